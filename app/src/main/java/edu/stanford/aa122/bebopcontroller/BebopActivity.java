@@ -11,6 +11,9 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AlertDialog;
@@ -34,21 +37,31 @@ import com.parrot.arsdk.arcontroller.ARControllerCodec;
 import com.parrot.arsdk.arcontroller.ARFrame;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
 
+import java.io.File;
 import java.util.Date;
-import java.util.Locale;
+import java.util.List;
 
 import edu.stanford.aa122.bebopcontroller.controller.AutonomousController;
 import edu.stanford.aa122.bebopcontroller.controller.ManualController;
 import edu.stanford.aa122.bebopcontroller.drone.BebopDrone;
+import edu.stanford.aa122.bebopcontroller.drone.ConnectionManager;
 import edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment;
 import edu.stanford.aa122.bebopcontroller.helpers.DataLogger;
+import edu.stanford.aa122.bebopcontroller.helpers.FlightTracer;
+import edu.stanford.aa122.bebopcontroller.helpers.Geofence;
+import edu.stanford.aa122.bebopcontroller.helpers.LinkQualityMonitor;
+import edu.stanford.aa122.bebopcontroller.helpers.MetricsRegistry;
+import edu.stanford.aa122.bebopcontroller.helpers.StreamHealthMonitor;
+import edu.stanford.aa122.bebopcontroller.helpers.TelemetryBinder;
 import edu.stanford.aa122.bebopcontroller.listener.AutonomousControllerListener;
 import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
 import edu.stanford.aa122.bebopcontroller.view.AttitudeHUDView;
 import edu.stanford.aa122.bebopcontroller.view.BebopVideoView;
+import edu.stanford.aa122.bebopcontroller.view.FrameTimeView;
 import edu.stanford.aa122.bebopcontroller.view.MissionStateView;
 
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_BANKED_TURN;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_GEOFENCE;
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_HULL;
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_JOYSTICK_MAX_ROTATION;
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_JOYSTICK_MAX_THROTTLE;
@@ -59,6 +72,12 @@ import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragmen
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_MAX_TILT;
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_MAX_TILT_SPEED;
 import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_MAX_VERTICAL_SPEED;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_SHOW_FRAME_TIMES;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_PAUSE_ON_POOR_LINK;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_RECORDED_STREAM;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_SHOW_METRICS;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_TRACING;
+import static edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment.KEY_VIDEO_LATENCY;
 
 /**
  * Main activity that handles the video display and interaction with the Bebop drone.
@@ -80,8 +99,12 @@ public class BebopActivity extends AppCompatActivity {
     /** user is using autonomous control */
     private static final int MODE_AUTONOMOUS = 1;
 
-    /** conversion from meters to feet */
-    private static final double METERS_TO_FEET = 3.28084;
+    /** time between two reports of the runtime metrics [ms] */
+    private static final long METRICS_INTERVAL = 5000;
+
+    /** recorded stream played instead of the drone's video to measure the latency on the bench, in the external storage */
+    private static final String RECORDED_STREAM = "bebop/bench.h264";
+    private static final int RECORDED_STREAM_FPS = 30;
 
     /** activity context */
     private Context mContext;
@@ -111,6 +134,9 @@ public class BebopActivity extends AppCompatActivity {
     /** text view for displaying distance from the pilot */
     private TextView tvDistance;
 
+    /** text view for displaying the quality of the link with the drone */
+    private TextView tvLink;
+
     /** text view for displaying the current mode */
     private TextView tvMode;
 
@@ -132,6 +158,18 @@ public class BebopActivity extends AppCompatActivity {
     /** view representing the attitude of the drone */
     private AttitudeHUDView mAttitudeView;
 
+    /** debug view of the time taken by each display frame */
+    private FrameTimeView mFrameTimeView;
+
+    /** debug view of the runtime metrics */
+    private TextView tvMetrics;
+
+    /** handler reporting the runtime metrics */
+    private final Handler mMetricsHandler = new Handler();
+
+    /** updates the status views with the latest telemetry */
+    private TelemetryBinder mTelemetryBinder;
+
     /** the current location of the phone - potentially only going to be determined once */
     private Location mUserLocation;
 
@@ -152,6 +190,15 @@ public class BebopActivity extends AppCompatActivity {
     /** flag for Bebop's GPS status */
     private boolean mHaveGps = false;
 
+    /** last GPS fix of the drone */
+    private double mLatitude;
+    private double mLongitude;
+
+    /** center of the geofence, the GPS fix of the drone when it took off */
+    private boolean mHaveHome = false;
+    private double mHomeLatitude;
+    private double mHomeLongitude;
+
     /** flag for whether or not settings are currently being shown */
     private boolean mSettingsShowing = false;
 
@@ -186,11 +233,16 @@ public class BebopActivity extends AppCompatActivity {
         Intent intent = getIntent();
         ARDiscoveryDeviceService service = intent.getParcelableExtra(DeviceListActivity.EXTRA_DEVICE_SERVICE);
         mBebopDrone = new BebopDrone(this, service);
+        mBebopDrone.setSearchOrigin(intent.getLongExtra(DeviceListActivity.EXTRA_SEARCH_START, SystemClock.elapsedRealtime()),
+                intent.getBooleanExtra(DeviceListActivity.EXTRA_FROM_CACHE, false));
         mBebopDrone.addListener(mBebopListener);
 
         // add the data logging elements
         mDataLogger = new DataLogger(this);
         mBebopDrone.addListener(mDataLogger);
+        mBebopDrone.addLinkQualityListener(mDataLogger);
+        mBebopDrone.addLinkQualityListener(mLinkQualityListener);
+        mVideoView.getStreamHealthMonitor().setListener(mStreamHealthListener);
 
         // get a location manager
         mLocationManager = (LocationManager) this.getSystemService(Context.LOCATION_SERVICE);
@@ -204,6 +256,11 @@ public class BebopActivity extends AppCompatActivity {
         mManualController.setMaxThrottle(prefs.getInt(KEY_JOYSTICK_MAX_THROTTLE, 50));
         mManualController.setMaxRotation(prefs.getInt(KEY_JOYSTICK_MAX_ROTATION, 50));
         mManualController.setMaxTilt(prefs.getInt(KEY_JOYSTICK_MAX_TILT, 50));
+        showFrameTimes(prefs.getBoolean(KEY_SHOW_FRAME_TIMES, false));
+        tvMetrics.setVisibility(prefs.getBoolean(KEY_SHOW_METRICS, false) ? View.VISIBLE : View.GONE);
+        FlightTracer.getDefault().setEnabled(prefs.getBoolean(KEY_TRACING, false));
+        mVideoView.setLatencyTrackingEnabled(prefs.getBoolean(KEY_VIDEO_LATENCY, false));
+        playRecordedStream(prefs.getBoolean(KEY_RECORDED_STREAM, false));
 
 
         mAutonomousController = new AutonomousController(this, mBebopDrone);
@@ -212,7 +269,13 @@ public class BebopActivity extends AppCompatActivity {
             public void onMissionSegmentCompleted() {
                 mMissionStateView.nextMissionState();
             }
+
+            @Override
+            public void onMissionPaused(boolean paused) {
+                Toast.makeText(mContext, paused ? "Poor link, mission on hold" : "Link recovered, mission resumed", Toast.LENGTH_SHORT).show();
+            }
         });
+        mAutonomousController.setPauseOnPoorLink(prefs.getBoolean(KEY_PAUSE_ON_POOR_LINK, true));
     }
 
     @Override
@@ -257,6 +320,10 @@ public class BebopActivity extends AppCompatActivity {
             // start the logger - since at this point we are connected
             mDataLogger.startNewLog();
         }
+
+        // start a new interval of the runtime metrics
+        MetricsRegistry.getDefault().report();
+        mMetricsHandler.postDelayed(mMetricsReporter, METRICS_INTERVAL);
     }
 
     @Override
@@ -282,6 +349,7 @@ public class BebopActivity extends AppCompatActivity {
             //mBebopDrone.dispose();
             //mBebopDrone = null;
         }
+        mMetricsHandler.removeCallbacks(mMetricsReporter);
         mDataLogger.stopLogging();
         super.onStop();
     }
@@ -289,10 +357,12 @@ public class BebopActivity extends AppCompatActivity {
     @Override
     public void onDestroy() {
         if (mBebopDrone != null) {
-            //mBebopDrone.disconnect();
-            //mBebopDrone.dispose();
-            //mBebopDrone = null;
+            // disconnected in onStop, stop the connection thread and release the device controller
+            mBebopDrone.removeListener(mBebopListener);
+            mBebopDrone.dispose();
         }
+        mTelemetryBinder.stop();
+        mVideoView.stopRecordedStream();
         super.onDestroy();
     }
 
@@ -302,6 +372,7 @@ public class BebopActivity extends AppCompatActivity {
     private void initView() {
         // video view
         mVideoView = (BebopVideoView) findViewById(R.id.videoView);
+        mVideoView.setSkipBrokenFrames(true);
 
         // manual control view
         viewManualControl = findViewById(R.id.include_manual_control);
@@ -312,6 +383,10 @@ public class BebopActivity extends AppCompatActivity {
         // attitude view
         mAttitudeView = (AttitudeHUDView) findViewById(R.id.view_attitude);
 
+        // frame times, only when debugging the rendering
+        mFrameTimeView = (FrameTimeView) findViewById(R.id.view_frame_times);
+        tvMetrics = (TextView) findViewById(R.id.text_metrics);
+
         // mission state itself
         mMissionStateView = (MissionStateView) findViewById(R.id.view_mission_state);
         mMissionStateView.setMissionState(0); // make sure starting at state 0
@@ -323,6 +398,10 @@ public class BebopActivity extends AppCompatActivity {
         tvBattery = (TextView) findViewById(R.id.text_battery);
         tvAltitude = (TextView) findViewById(R.id.text_altitude);
         tvDistance = (TextView) findViewById(R.id.text_distance);
+        tvLink = (TextView) findViewById(R.id.text_link);
+
+        // the telemetry shown in these views is applied once per frame
+        mTelemetryBinder = new TelemetryBinder(tvBattery, tvAltitude, tvDistance, tvLink, imGps);
         tvMode = (TextView) findViewById(R.id.text_mode);
 
         // emergency button
@@ -539,9 +618,66 @@ public class BebopActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * show or hide the frame time graph.
+     * @param show true to show the graph
+     */
+    private void showFrameTimes(boolean show) {
+        if (show) {
+            mFrameTimeView.setVisibility(View.VISIBLE);
+            mFrameTimeView.start();
+        } else {
+            mFrameTimeView.stop();
+            mFrameTimeView.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * play the recorded stream instead of the drone's video, or go back to the drone's video.
+     * @param play true to play the recorded stream
+     */
+    private void playRecordedStream(boolean play) {
+        if (!play) {
+            mVideoView.stopRecordedStream();
+            return;
+        }
+        File file = new File(Environment.getExternalStorageDirectory(), RECORDED_STREAM);
+        if (!file.exists()) {
+            Toast.makeText(mContext, "no recorded video at " + file.getPath(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mVideoView.playRecordedStream(file, RECORDED_STREAM_FPS);
+    }
+
+    /**
+     * set the geofence of the drone from the max distance around the take off point and the max altitude.
+     * There is no geofence until the drone is seen taking off with a GPS fix.
+     * @param prefs the preferences holding the limits
+     */
+    private void updateGeofence(SharedPreferences prefs) {
+        if (!mHaveHome || !prefs.getBoolean(KEY_GEOFENCE, true)) {
+            mBebopDrone.setGeofence(null);
+            return;
+        }
+        mBebopDrone.setGeofence(Geofence.around(mHomeLatitude, mHomeLongitude,
+                prefs.getInt(KEY_MAX_DISTANCE, 100), prefs.getInt(KEY_MAX_ALTITUDE, 10)));
+    }
+
 
     /** listener for the bebop drone information */
     private final BebopDroneListener mBebopListener = new BebopDroneListener() {
+        @Override
+        public void onConnectionStateChanged(int state, int previousState, long timeInPreviousState) {
+            // the connection failed before the drone answered
+            if (state == ConnectionManager.STATE_DISCONNECTED && previousState == ConnectionManager.STATE_CONNECTING) {
+                if (mConnectionProgressDialog != null) {
+                    mConnectionProgressDialog.dismiss();
+                }
+                Toast.makeText(mContext, "connection error", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        }
+
         @Override
         public void onDroneConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM state) {
             switch (state)
@@ -554,10 +690,7 @@ public class BebopActivity extends AppCompatActivity {
                     // if the deviceController is stopped, go back to the previous activity
                     mConnectionProgressDialog.dismiss();
 
-                    // dispose of the drone properly
-                    //mBebopDrone.dispose();
-                    //mBebopDrone = null;
-
+                    // the drone is disposed of in onDestroy
                     finish();
                     break;
 
@@ -568,7 +701,7 @@ public class BebopActivity extends AppCompatActivity {
 
         @Override
         public void onBatteryChargeChanged(Date timestamp, int batteryPercentage) {
-            tvBattery.setText(String.format(Locale.US, "%d%%", batteryPercentage));
+            mTelemetryBinder.setBattery(batteryPercentage);
         }
 
         @Override
@@ -593,6 +726,16 @@ public class BebopActivity extends AppCompatActivity {
                     btnAction.setEnabled(true);
                     //mDownloadBt.setEnabled(false);
                     break;
+                case ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_TAKINGOFF:
+                    // the geofence is centered on the take off point
+                    if (mHaveGps) {
+                        mHaveHome = true;
+                        mHomeLatitude = mLatitude;
+                        mHomeLongitude = mLongitude;
+                        updateGeofence(PreferenceManager.getDefaultSharedPreferences(mContext));
+                    }
+                    btnAction.setEnabled(false);
+                    break;
                 default:
                     btnAction.setEnabled(false);
                     //mDownloadBt.setEnabled(false);
@@ -601,31 +744,12 @@ public class BebopActivity extends AppCompatActivity {
 
         @Override
         public void onPositionChanged(Date timestamp, double lat, double lon, double alt) {
-
-            if (mUserLocation == null || lat == 500.0) {
-                tvDistance.setText("ft");
-                mHaveGps = false;
-                imGps.setVisibility(View.GONE);
-                return;
-            }
-
-            // mark as now having GPS and show the GPS icon
-            if (!mHaveGps) {
-                mHaveGps = true;
-                imGps.setVisibility(View.VISIBLE);
+            mHaveGps = (lat != 500.0);
+            if (mHaveGps) {
+                mLatitude = lat;
+                mLongitude = lon;
             }
-
-            // convert to a Location for easier handling
-            Location dronePos = new Location("Bebop");
-            dronePos.setLatitude(lat);
-            dronePos.setLongitude(lon);
-            dronePos.setAltitude(alt);
-
-            // get the distance to the drone in feet
-            double distanceToBebop = mUserLocation.distanceTo(dronePos)*METERS_TO_FEET;
-
-            // display the distance
-            tvDistance.setText(String.format(Locale.US, "%d ft", (int) distanceToBebop));
+            mTelemetryBinder.setDronePosition(lat, lon);
         }
 
         @Override
@@ -640,7 +764,7 @@ public class BebopActivity extends AppCompatActivity {
 
         @Override
         public void onRelativeAltitudeChanged(Date timestamp, double alt) {
-            tvAltitude.setText(String.format(Locale.US, "%d ft", (int) alt));
+            mTelemetryBinder.setAltitude(alt);
         }
 
         @Override
@@ -670,12 +794,16 @@ public class BebopActivity extends AppCompatActivity {
 
         @Override
         public void configureDecoder(ARControllerCodec codec) {
-            mVideoView.configureDecoder(codec);
+            if (!mVideoView.isPlayingRecordedStream()) {
+                mVideoView.configureDecoder(codec);
+            }
         }
 
         @Override
         public void onFrameReceived(ARFrame frame) {
-            mVideoView.displayFrame(frame);
+            if (!mVideoView.isPlayingRecordedStream()) {
+                mVideoView.displayFrame(frame);
+            }
         }
 
         @Override
@@ -719,6 +847,50 @@ public class BebopActivity extends AppCompatActivity {
                 mDownloadProgressDialog = null;
             }
         }
+
+        @Override
+        public void onThumbnailAvailable(String mediaName) {
+
+        }
+    };
+
+    /** listener for the health of the video stream, logged and used to budget the media downloads */
+    private final StreamHealthMonitor.Listener mStreamHealthListener = new StreamHealthMonitor.Listener() {
+        @Override
+        public void onStreamHealthUpdated(StreamHealthMonitor.Summary summary) {
+            mDataLogger.onStreamHealthUpdated(summary);
+            mBebopDrone.setVideoStreamHealth(summary);
+        }
+    };
+
+    /** listener for the quality of the link with the drone, shown in the status bar */
+    private final LinkQualityMonitor.Listener mLinkQualityListener = new LinkQualityMonitor.Listener() {
+        @Override
+        public void onLinkQualityChanged(LinkQualityMonitor.Quality quality) {
+            mTelemetryBinder.setLinkQuality(quality.score, quality.level);
+        }
+    };
+
+    /** reports the runtime metrics to the log and to the debug view, at intervals */
+    private final Runnable mMetricsReporter = new Runnable() {
+        @Override
+        public void run() {
+            List<MetricsRegistry.Sample> samples = MetricsRegistry.getDefault().report();
+            mDataLogger.onMetricsReported(samples);
+
+            if (tvMetrics.getVisibility() == View.VISIBLE) {
+                StringBuilder sb = new StringBuilder();
+                for (MetricsRegistry.Sample sample : samples) {
+                    if (sb.length() > 0) {
+                        sb.append('\n');
+                    }
+                    sb.append(sample);
+                }
+                tvMetrics.setText(sb);
+            }
+
+            mMetricsHandler.postDelayed(this, METRICS_INTERVAL);
+        }
     };
 
     /** listener for the GPS position of the phone (user) */
@@ -726,6 +898,7 @@ public class BebopActivity extends AppCompatActivity {
         @Override
         public void onLocationChanged(Location location) {
             mUserLocation = location;
+            mTelemetryBinder.setUserLocation(location);
         }
 
         @Override
@@ -797,10 +970,12 @@ public class BebopActivity extends AppCompatActivity {
 
                 case KEY_MAX_ALTITUDE:
                     mBebopDrone.setMaxAltitude(sharedPreferences.getInt(KEY_MAX_ALTITUDE, 10));
+                    updateGeofence(sharedPreferences);
                     break;
 
                 case KEY_MAX_DISTANCE:
                     mBebopDrone.setMaxDistance(sharedPreferences.getInt(KEY_MAX_DISTANCE, 100));
+                    updateGeofence(sharedPreferences);
                     break;
 
                 case KEY_MAX_TILT:
@@ -832,6 +1007,34 @@ public class BebopActivity extends AppCompatActivity {
                 case KEY_JOYSTICK_MAX_THROTTLE:
                     mManualController.setMaxThrottle(sharedPreferences.getInt(KEY_JOYSTICK_MAX_THROTTLE, 50));
                     break;
+
+                case KEY_SHOW_FRAME_TIMES:
+                    showFrameTimes(sharedPreferences.getBoolean(KEY_SHOW_FRAME_TIMES, false));
+                    break;
+
+                case KEY_SHOW_METRICS:
+                    tvMetrics.setVisibility(sharedPreferences.getBoolean(KEY_SHOW_METRICS, false) ? View.VISIBLE : View.GONE);
+                    break;
+
+                case KEY_PAUSE_ON_POOR_LINK:
+                    mAutonomousController.setPauseOnPoorLink(sharedPreferences.getBoolean(KEY_PAUSE_ON_POOR_LINK, true));
+                    break;
+
+                case KEY_TRACING:
+                    FlightTracer.getDefault().setEnabled(sharedPreferences.getBoolean(KEY_TRACING, false));
+                    break;
+
+                case KEY_VIDEO_LATENCY:
+                    mVideoView.setLatencyTrackingEnabled(sharedPreferences.getBoolean(KEY_VIDEO_LATENCY, false));
+                    break;
+
+                case KEY_RECORDED_STREAM:
+                    playRecordedStream(sharedPreferences.getBoolean(KEY_RECORDED_STREAM, false));
+                    break;
+
+                case KEY_GEOFENCE:
+                    updateGeofence(sharedPreferences);
+                    break;
             }
         }
     };
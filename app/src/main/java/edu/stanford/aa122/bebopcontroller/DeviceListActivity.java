@@ -4,6 +4,7 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -28,6 +29,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import edu.stanford.aa122.bebopcontroller.helpers.ConnectionCache;
 import edu.stanford.aa122.bebopcontroller.helpers.DroneDiscoverer;
 
 /**
@@ -38,6 +40,12 @@ import edu.stanford.aa122.bebopcontroller.helpers.DroneDiscoverer;
 public class DeviceListActivity extends AppCompatActivity {
     public static final String EXTRA_DEVICE_SERVICE = "EXTRA_DEVICE_SERVICE";
 
+    /** time the search of the drone started, as given by SystemClock.elapsedRealtime() [ms] */
+    public static final String EXTRA_SEARCH_START = "EXTRA_SEARCH_START";
+
+    /** whether the device service comes from the connection cache rather than from the discovery */
+    public static final String EXTRA_FROM_CACHE = "EXTRA_FROM_CACHE";
+
     private static final String TAG = "DeviceListActivity";
 
     /** List of runtime permission we need. */
@@ -50,10 +58,26 @@ public class DeviceListActivity extends AppCompatActivity {
     /** Code for permission request result handling. */
     private static final int REQUEST_CODE_PERMISSIONS_REQUEST = 1;
 
+    /** how long the cached drone is probed for before leaving it to the discovery [ms] */
+    private static final long PROBE_DURATION = 10000;
+
+    /** time to wait for the cached drone to answer a single probe [ms] */
+    private static final int PROBE_TIMEOUT = 500;
+
     public DroneDiscoverer mDroneDiscoverer;
 
     private final List<ARDiscoveryDeviceService> mDronesList = new ArrayList<>();
 
+    private ListView mListView;
+
+    /** last drone connected to, connected to again as soon as it is found */
+    private ARDiscoveryDeviceService mCachedDrone;
+    private boolean mAutoConnect = false;
+    private Thread mProbeThread;
+
+    /** time the search of the drone started [ms] */
+    private long mSearchStart;
+
     // this block loads the native libraries
     // it is mandatory
     static {
@@ -64,47 +88,24 @@ public class DeviceListActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_device_list);
-        final ListView listView = (ListView) findViewById(R.id.list);
+        mListView = (ListView) findViewById(R.id.list);
 
         // Assign adapter to ListView
-        listView.setAdapter(mAdapter);
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mListView.setAdapter(mAdapter);
+        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                // launch the activity related to the type of discovery device service
-                Intent intent = null;
-
-                ARDiscoveryDeviceService service = (ARDiscoveryDeviceService)mAdapter.getItem(position);
-                ARDISCOVERY_PRODUCT_ENUM product = ARDiscoveryService.getProductFromProductID(service.getProductID());
-                switch (product) {
-                    case ARDISCOVERY_PRODUCT_ARDRONE:
-                    case ARDISCOVERY_PRODUCT_BEBOP_2:
-                        intent = new Intent(DeviceListActivity.this, BebopActivity.class);
-                        break;
-
-                    /*
-                    case ARDISCOVERY_PRODUCT_SKYCONTROLLER:
-                        intent = new Intent(DeviceListActivity.this, SkyControllerActivity.class);
-                        break;
-
-                    case ARDISCOVERY_PRODUCT_SKYCONTROLLER_2:
-                        intent = new Intent(DeviceListActivity.this, SkyController2Activity.class);
-                        break;
-                    */
-
-                    default:
-                        Log.e(TAG, "The type " + product + " is not supported by this app");
-                }
-
-                if (intent != null) {
-                    intent.putExtra(EXTRA_DEVICE_SERVICE, service);
-                    startActivity(intent);
-                }
+                mAutoConnect = false;
+                startBebopActivity((ARDiscoveryDeviceService) mAdapter.getItem(position), false);
             }
         });
 
         mDroneDiscoverer = new DroneDiscoverer(this);
 
+        // only connect automatically when the app is started, not when coming back to the list
+        mCachedDrone = new ConnectionCache(this).load();
+        mAutoConnect = (savedInstanceState == null) && (mCachedDrone != null);
+
         Set<String> permissionsToRequest = new HashSet<>();
         for (String permission : PERMISSIONS_NEEDED) {
             if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
@@ -132,18 +133,31 @@ public class DeviceListActivity extends AppCompatActivity {
         mDroneDiscoverer.setup();
         mDroneDiscoverer.addListener(mDiscovererListener);
 
-        // start discovering
+        // start discovering, and in parallel try the last drone connected to
+        mSearchStart = SystemClock.elapsedRealtime();
         mDroneDiscoverer.startDiscovering();
+        if (mAutoConnect) {
+            startProbing();
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
+        if (mProbeThread != null) {
+            mProbeThread.interrupt();
+            mProbeThread = null;
+        }
+
         // clean the drone discoverer object
         mDroneDiscoverer.stopDiscovering();
         mDroneDiscoverer.cleanup();
         mDroneDiscoverer.removeListener(mDiscovererListener);
+
+        // the drones are added again by the discoverer on resume
+        mDronesList.clear();
+        mAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -169,15 +183,113 @@ public class DeviceListActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Launch the activity related to the type of the drone
+     * @param service the device service of the drone
+     * @param fromCache true if the device service comes from the connection cache
+     */
+    private void startBebopActivity(ARDiscoveryDeviceService service, boolean fromCache) {
+        Intent intent = null;
+
+        ARDISCOVERY_PRODUCT_ENUM product = ARDiscoveryService.getProductFromProductID(service.getProductID());
+        switch (product) {
+            case ARDISCOVERY_PRODUCT_ARDRONE:
+            case ARDISCOVERY_PRODUCT_BEBOP_2:
+                intent = new Intent(DeviceListActivity.this, BebopActivity.class);
+                break;
+
+            /*
+            case ARDISCOVERY_PRODUCT_SKYCONTROLLER:
+                intent = new Intent(DeviceListActivity.this, SkyControllerActivity.class);
+                break;
+
+            case ARDISCOVERY_PRODUCT_SKYCONTROLLER_2:
+                intent = new Intent(DeviceListActivity.this, SkyController2Activity.class);
+                break;
+            */
+
+            default:
+                Log.e(TAG, "The type " + product + " is not supported by this app");
+        }
+
+        if (intent != null) {
+            intent.putExtra(EXTRA_DEVICE_SERVICE, service);
+            intent.putExtra(EXTRA_SEARCH_START, mSearchStart);
+            intent.putExtra(EXTRA_FROM_CACHE, fromCache);
+            startActivity(intent);
+        }
+    }
+
+    /**
+     * Probe the endpoint of the cached drone until it answers or the discovery finds it
+     */
+    private void startProbing() {
+        final ARDiscoveryDeviceService cachedDrone = mCachedDrone;
+        mProbeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long end = SystemClock.elapsedRealtime() + PROBE_DURATION;
+                while (!Thread.currentThread().isInterrupted() && SystemClock.elapsedRealtime() < end) {
+                    long probeStart = SystemClock.elapsedRealtime();
+                    if (ConnectionCache.probe(cachedDrone, PROBE_TIMEOUT)) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (mAutoConnect) {
+                                    Log.i(TAG, "cached drone answered before the discovery");
+                                    mAutoConnect = false;
+                                    startBebopActivity(cachedDrone, true);
+                                }
+                            }
+                        });
+                        return;
+                    }
+
+                    // a refused connection returns at once, don't spin
+                    long wait = PROBE_TIMEOUT - (SystemClock.elapsedRealtime() - probeStart);
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "CachedDroneProbe");
+        mProbeThread.start();
+    }
+
     private final DroneDiscoverer.Listener mDiscovererListener = new  DroneDiscoverer.Listener() {
 
         @Override
-        public void onDronesListUpdated(List<ARDiscoveryDeviceService> dronesList) {
-            mDronesList.clear();
-            mDronesList.addAll(dronesList);
+        public void onDroneAdded(ARDiscoveryDeviceService drone, int position) {
+            mDronesList.add(position, drone);
+            mAdapter.notifyDataSetChanged();
 
+            if (mAutoConnect && ConnectionCache.isSameDrone(drone, mCachedDrone)) {
+                Log.i(TAG, "cached drone discovered before it answered");
+                mAutoConnect = false;
+                startBebopActivity(drone, false);
+            }
+        }
+
+        @Override
+        public void onDroneRemoved(ARDiscoveryDeviceService drone, int position) {
+            mDronesList.remove(position);
             mAdapter.notifyDataSetChanged();
         }
+
+        @Override
+        public void onDroneChanged(ARDiscoveryDeviceService drone, int position) {
+            mDronesList.set(position, drone);
+
+            // only rebind the row of the drone, if it is visible
+            View rowView = mListView.getChildAt(position - mListView.getFirstVisiblePosition());
+            if (rowView != null) {
+                mAdapter.getView(position, rowView, mListView);
+            }
+        }
     };
 
     private static class ViewHolder {
@@ -6,6 +6,11 @@ import android.widget.Toast;
 
 
 import edu.stanford.aa122.bebopcontroller.drone.BebopDrone;
+import edu.stanford.aa122.bebopcontroller.helpers.CoveragePlanner;
+import edu.stanford.aa122.bebopcontroller.helpers.FlightTracer;
+import edu.stanford.aa122.bebopcontroller.helpers.LinkQualityMonitor;
+import edu.stanford.aa122.bebopcontroller.helpers.StateEstimator;
+import edu.stanford.aa122.bebopcontroller.helpers.TrajectoryPlanner;
 import edu.stanford.aa122.bebopcontroller.listener.AutonomousControllerListener;
 import edu.stanford.aa122.bebopcontroller.listener.BebopDroneMissionListener;
 
@@ -26,6 +31,18 @@ public class AutonomousController {
     /** flag for whether or not the mission should be running */
     private boolean mRunning = false;
 
+    /** whether or not to hold the mission while the link with the drone is poor */
+    private boolean mPauseOnPoorLink = true;
+
+    /** flag for whether or not the mission is held because of the link */
+    private boolean mPaused = false;
+
+    /** whether or not a command finished while the mission was held, the next one is sent on resume */
+    private boolean mCommandFinishedWhilePaused = false;
+
+    /** trace of the flight, to follow the commands */
+    private final FlightTracer mTracer = FlightTracer.getDefault();
+
     public AutonomousController(Context context, BebopDrone drone) {
         mContext = context;
         mBebopDrone = drone;
@@ -35,9 +52,24 @@ public class AutonomousController {
             @Override
             public void onCommandFinished() {
                 // only call the control drone function if the mission is running
-                if (mRunning) {
+                if (mRunning && mPaused) {
+                    // hold at the end of this segment until the link recovers
+                    mCommandFinishedWhilePaused = true;
+                    notifyMissionSegmentCompleted();
+                } else if (mRunning) {
+                    long start = mTracer.isEnabled() ? System.nanoTime() : 0;
                     notifyMissionSegmentCompleted();
                     controlDrone();
+                    mTracer.complete("controlDrone", start);
+                }
+            }
+        });
+
+        mBebopDrone.addLinkQualityListener(new LinkQualityMonitor.Listener() {
+            @Override
+            public void onLinkQualityChanged(LinkQualityMonitor.Quality quality) {
+                if (mRunning && mPauseOnPoorLink) {
+                    updatePause(quality.level);
                 }
             }
         });
@@ -51,12 +83,27 @@ public class AutonomousController {
         mListener = listener;
     }
 
+    /**
+     * set whether or not to hold the mission while the link with the drone is poor.
+     * the drone finishes the command in progress and waits for the link to be good again
+     * before the next one is sent.
+     * @param pause true to hold the mission on a poor link
+     */
+    public void setPauseOnPoorLink(boolean pause) {
+        mPauseOnPoorLink = pause;
+        if (!pause) {
+            updatePause(LinkQualityMonitor.LEVEL_GOOD);
+        }
+    }
+
     /**
      * start running the mission.
      */
     public void startMission() {
         // flag the mission as running
         mRunning = true;
+        mPaused = false;
+        mCommandFinishedWhilePaused = false;
 
         // initialize the mission
         initializeMission();
@@ -70,14 +117,125 @@ public class AutonomousController {
      */
     public void stopMission() {
         mRunning = false;
+        mPaused = false;
+        mCommandFinishedWhilePaused = false;
 
         // make sure the bebop stops moving!
+        mBebopDrone.stopTrajectory();
         if (!mBebopDrone.isLanded()) {
             mBebopDrone.relativeMove(0, 0, 0, 0);
         }
 
     }
 
+    /**
+     * fly through waypoints without stopping at them, on a smooth trajectory planned within the
+     * limits set on the drone.  like a relative move, the next step of the mission is run once the
+     * last waypoint is reached.
+     * @param north offsets of the waypoints to the north of the current position [m]
+     * @param east offsets of the waypoints to the east of the current position [m]
+     * @param up offsets of the waypoints above the current position [m]
+     * @return false if the waypoints could not be flown through, without a GPS position
+     */
+    public boolean flyThrough(double[] north, double[] east, double[] up) {
+        StateEstimator estimator = mBebopDrone.getEstimator();
+        if (!estimator.hasOrigin()) {
+            // the trajectory would be flown on the drift of the dead reckoning
+            Toast.makeText(mContext, "No GPS position for the trajectory", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        int count = north.length + 1;
+        double[] n = new double[count];
+        double[] e = new double[count];
+        double[] d = new double[count];
+        n[0] = estimator.getPosition(StateEstimator.NORTH);
+        e[0] = estimator.getPosition(StateEstimator.EAST);
+        d[0] = estimator.getPosition(StateEstimator.DOWN);
+        for (int i = 1; i < count; i++) {
+            n[i] = n[0] + north[i - 1];
+            e[i] = e[0] + east[i - 1];
+            d[i] = d[0] - up[i - 1];
+        }
+
+        TrajectoryPlanner planner = new TrajectoryPlanner();
+        planner.setDroneLimits(mBebopDrone.getMaxTilt(), mBebopDrone.getMaxVerticalSpeed());
+        mBebopDrone.followTrajectory(planner.plan(n, e, d));
+        return true;
+    }
+
+    /**
+     * fly a survey from the current position, taking its pictures along the passes.  like a
+     * relative move, the next step of the mission is run once the end of the survey is reached.
+     * the passes are flown at the altitude of the plan above the take off point, whatever the
+     * height of the ground under the area.
+     * @param plan the survey, its altitude above the take off point
+     * @return false if the survey could not be started, without a GPS position
+     */
+    public boolean flySurvey(CoveragePlanner.Plan plan) {
+        StateEstimator estimator = mBebopDrone.getEstimator();
+        if (!estimator.hasOrigin()) {
+            Toast.makeText(mContext, "No GPS position for the survey", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        // from the current position to the passes
+        int count = plan.getWaypointCount() + 1;
+        double[] n = new double[count];
+        double[] e = new double[count];
+        double[] d = new double[count];
+        n[0] = estimator.getPosition(StateEstimator.NORTH);
+        e[0] = estimator.getPosition(StateEstimator.EAST);
+        d[0] = estimator.getPosition(StateEstimator.DOWN);
+        for (int i = 1; i < count; i++) {
+            n[i] = estimator.getNorth(plan.getLatitude(i - 1));
+            e[i] = estimator.getEast(plan.getLongitude(i - 1));
+            d[i] = -plan.altitude;
+        }
+
+        // the pictures are along the passes, after the transit to the first one
+        double transit = Math.sqrt((n[1] - n[0]) * (n[1] - n[0]) + (e[1] - e[0]) * (e[1] - e[0]) + (d[1] - d[0]) * (d[1] - d[0]));
+        double[] pictures = new double[plan.getPictureCount()];
+        for (int i = 0; i < pictures.length; i++) {
+            pictures[i] = transit + plan.getPictureDistance(i);
+        }
+
+        TrajectoryPlanner planner = new TrajectoryPlanner();
+        planner.setMaxSpeed(plan.speed);
+        planner.setDroneLimits(mBebopDrone.getMaxTilt(), mBebopDrone.getMaxVerticalSpeed());
+        mBebopDrone.followTrajectory(planner.plan(n, e, d), pictures);
+        return true;
+    }
+
+    /**
+     * hold the mission when the link becomes poor, and resume it once good again.
+     * @param level the level of the link quality
+     */
+    private void updatePause(int level) {
+        if (!mPaused && level == LinkQualityMonitor.LEVEL_POOR) {
+            mPaused = true;
+            notifyMissionPaused(true);
+        } else if (mPaused && level == LinkQualityMonitor.LEVEL_GOOD) {
+            mPaused = false;
+            notifyMissionPaused(false);
+
+            // send the command held back
+            if (mRunning && mCommandFinishedWhilePaused) {
+                mCommandFinishedWhilePaused = false;
+                controlDrone();
+            }
+        }
+    }
+
+    /**
+     * notify the listener of the mission being held or resumed
+     */
+    private void notifyMissionPaused(boolean paused) {
+        if (mListener != null) {
+            mListener.onMissionPaused(paused);
+        }
+    }
+
     /**
      * notify the listener of the mission segment completion
      */
@@ -0,0 +1,79 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import com.parrot.arsdk.arutils.ARUTILS_ERROR_ENUM;
+import com.parrot.arsdk.arutils.ARUTILS_FTP_RESUME_ENUM;
+import com.parrot.arsdk.arutils.ARUtilsException;
+import com.parrot.arsdk.arutils.ARUtilsFtpProgressListener;
+import com.parrot.arsdk.arutils.ARUtilsManager;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * FTP session to the drone using its own {@link ARUtilsManager}.
+ */
+public class ARUtilsFtpSession implements FtpSession {
+
+    private final ARUtilsManager mManager;
+
+    /**
+     * Factory opening sessions to a given drone.
+     */
+    public static class Factory implements MediaDownloadScheduler.SessionFactory {
+        private final String mIp;
+        private final int mPort;
+
+        public Factory(String ip, int port) {
+            mIp = ip;
+            mPort = port;
+        }
+
+        @Override
+        public FtpSession openSession() throws IOException {
+            return new ARUtilsFtpSession(mIp, mPort);
+        }
+    }
+
+    /**
+     * Constructor, connects to the FTP server of the drone
+     * @param ip address of the drone
+     * @param port port of the FTP server
+     * @throws IOException if the connection could not be set up
+     */
+    public ARUtilsFtpSession(String ip, int port) throws IOException {
+        try {
+            mManager = new ARUtilsManager();
+            mManager.initWifiFtp(ip, port, ARUtilsManager.FTP_ANONYMOUS, "");
+        } catch (ARUtilsException e) {
+            throw new IOException("unable to open FTP session", e);
+        }
+    }
+
+    @Override
+    public void download(String remotePath, File localFile, boolean resume, final ProgressListener listener) throws IOException {
+        ARUTILS_FTP_RESUME_ENUM resumeMode = resume ? ARUTILS_FTP_RESUME_ENUM.FTP_RESUME_TRUE : ARUTILS_FTP_RESUME_ENUM.FTP_RESUME_FALSE;
+        ARUTILS_ERROR_ENUM result = mManager.ftpGet(remotePath, localFile.getAbsolutePath(), new ARUtilsFtpProgressListener() {
+            @Override
+            public void didFtpProgress(Object arg, float percent) {
+                if (listener != null) {
+                    listener.onProgress(percent);
+                }
+            }
+        }, null, resumeMode);
+
+        if (result != ARUTILS_ERROR_ENUM.ARUTILS_OK) {
+            throw new IOException("FTP download of " + remotePath + " failed: " + result);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        mManager.ftpConnectionCancel();
+    }
+
+    @Override
+    public void close() {
+        mManager.closeWifiFtp();
+        mManager.dispose();
+    }
+}
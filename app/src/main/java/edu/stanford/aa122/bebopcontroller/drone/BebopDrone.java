@@ -4,6 +4,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.util.Log;
@@ -47,9 +49,20 @@ import com.parrot.arsdk.arutils.ARUtilsManager;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import edu.stanford.aa122.bebopcontroller.fragment.BebopPreferenceFragment;
 import edu.stanford.aa122.bebopcontroller.helpers.AttitudeVector;
+import edu.stanford.aa122.bebopcontroller.helpers.ConnectionCache;
+import edu.stanford.aa122.bebopcontroller.helpers.FlightTracer;
+import edu.stanford.aa122.bebopcontroller.helpers.Geofence;
+import edu.stanford.aa122.bebopcontroller.helpers.LatencyHistogram;
+import edu.stanford.aa122.bebopcontroller.helpers.LinkQualityMonitor;
+import edu.stanford.aa122.bebopcontroller.helpers.MetricsRegistry;
+import edu.stanford.aa122.bebopcontroller.helpers.StateEstimator;
+import edu.stanford.aa122.bebopcontroller.helpers.StreamHealthMonitor;
+import edu.stanford.aa122.bebopcontroller.helpers.TrajectoryPlanner;
+import edu.stanford.aa122.bebopcontroller.helpers.TrajectoryTracker;
 import edu.stanford.aa122.bebopcontroller.helpers.VelocityVector;
 import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
 import edu.stanford.aa122.bebopcontroller.listener.BebopDroneMissionListener;
@@ -62,7 +75,7 @@ import edu.stanford.aa122.bebopcontroller.listener.BebopDroneMissionListener;
  *
  * @author Adrien Perkins <adrienp@stanford.edu>
  */
-public class BebopDrone {
+public class BebopDrone implements FleetMember {
 
     /** tag for debugging */
     private static final String TAG = "BebopDrone";
@@ -70,21 +83,46 @@ public class BebopDrone {
     /** port number for downloading images */
     private static final int DEVICE_PORT = 21;
 
+    /** time between two evaluations of the quality of the link [ms] */
+    private static final long LINK_QUALITY_INTERVAL = 500;
+
+    /** time between two steps of the state estimator [ms] */
+    private static final long ESTIMATOR_INTERVAL = 20;
+
+    /** distance [m] and speed [m/s] from the end of a trajectory within which it is flown */
+    private static final double TRAJECTORY_ARRIVAL_DISTANCE = 0.5;
+    private static final double TRAJECTORY_ARRIVAL_SPEED = 0.3;
+
+    /** time given to settle at the end of a trajectory, after which it is ended anyway [s] */
+    private static final double TRAJECTORY_SETTLE_TIMEOUT = 5;
+
     /** list of listeners configured to listener to Bebop events */
     private final List<BebopDroneListener> mListeners;
 
     /** list of mission listeners */
     private final List<BebopDroneMissionListener> mMissionListeners;
 
+    /** list of link quality listeners */
+    private final List<LinkQualityMonitor.Listener> mLinkQualityListeners;
+
     /** handler */
     private final Handler mHandler;
 
     /* Parrot stuff */
-    private ARDeviceController mDeviceController;
-    private SDCardModule mSDCardModule;
+    private volatile ARDeviceController mDeviceController;
+
+    /** media module, created on the first media request, and the lock held while creating it */
+    private volatile SDCardModule mSDCardModule;
+    private final Object mSDCardModuleLock = new Object();
+
+    /** bandwidth budget of the media downloads */
+    private final DownloadThrottle mDownloadThrottle = new DownloadThrottle();
+
+    /** state machine running the connection in the background */
+    private final ConnectionManager mConnection;
 
     /** Bebop controller (phone) state */
-    private ARCONTROLLER_DEVICE_STATE_ENUM mState;
+    private volatile ARCONTROLLER_DEVICE_STATE_ENUM mState;
 
     /** current run id */
     private String mCurrentRunId;
@@ -106,6 +144,35 @@ public class BebopDrone {
     /** current Bebop attitude */
     private AttitudeVector mAttitude;
 
+    /** fused position and velocity, stepped at a fixed rate while connected */
+    private final StateEstimator mEstimator = new StateEstimator();
+    private long mLastEstimatorStep = 0;
+
+    /** operating area the commands are checked against, null to not check them */
+    private Geofence mGeofence;
+
+    /** piloting commands requested (roll, pitch, yaw, gaz), and as sent once limited by the geofence */
+    private final byte[] mRequestedPcmd = new byte[4];
+    private final byte[] mSentPcmd = new byte[4];
+    private byte mRequestedFlag = 0;
+    private boolean mPcmdLimited = false;
+
+    /** max tilt [deg], max vertical speed [m/s] and max rotation speed [deg/s] set on the drone */
+    private float mMaxTilt = 15;
+    private float mMaxVerticalSpeed = 1;
+    private float mMaxRotationSpeed = 100;
+
+    /** trajectory being flown with the piloting commands, null if none, and the time it started [ns] */
+    private TrajectoryPlanner.Trajectory mTrajectory;
+    private long mTrajectoryStart;
+    private final TrajectoryTracker mTrajectoryTracker = new TrajectoryTracker();
+    private final double[] mTrajectoryReference = new double[9];
+
+    /** distances along the trajectory to take pictures at [m], the next one to take, and the pictures taken not yet notified */
+    private double[] mTrajectoryPictures;
+    private int mNextTrajectoryPicture;
+    private int mPendingTrajectoryPictures;
+
     /** whether or not Bebop has completed the last relative move command sent */
     private boolean mFinishedLastCommand = true;
 
@@ -118,105 +185,188 @@ public class BebopDrone {
     /** the preferences that contain the settings for the drone */
     private SharedPreferences mSettings;
 
+    /** the service of the drone, remembered once connected */
+    private final ARDiscoveryDeviceService mDeviceService;
+    private final ConnectionCache mConnectionCache;
+
+    /** time the search of the drone started [ms] and whether it was found through the cache */
+    private long mSearchStart;
+    private boolean mFromCache;
+    private volatile boolean mFirstTelemetryPending = false;
+
+    // runtime metrics
+    private final MetricsRegistry.Counter mBatteryCount;
+    private final MetricsRegistry.Counter mFlyingStateCount;
+    private final MetricsRegistry.Counter mPositionCount;
+    private final MetricsRegistry.Counter mSpeedCount;
+    private final MetricsRegistry.Counter mAttitudeCount;
+    private final MetricsRegistry.Counter mAltitudeCount;
+    private final MetricsRegistry.Counter mMoveEndCount;
+    private final MetricsRegistry.Counter mOtherCount;
+    private final LatencyHistogram mDispatchLatency;
+    private final MetricsRegistry.Gauge mDispatchPending;
+    private final LatencyHistogram mCommandRoundTrip;
+
+    /** quality of the link, evaluated at intervals while connected */
+    private final LinkQualityMonitor mLinkQuality = new LinkQualityMonitor();
+    private final MetricsRegistry.Gauge mLinkQualityGauge;
+
+    /** time the last relative move was sent [ns], 0 once it ended */
+    private volatile long mMoveSent = 0;
+
+    /** span of the mission command in progress in the flight trace (0 if none) */
+    private final FlightTracer mTracer = FlightTracer.getDefault();
+
+    /** prefix of the names of the metrics and traces of this drone, to tell the drones of a fleet apart */
+    private final String mScope;
+    private volatile long mTraceCommand = 0;
+    private volatile String mTraceCommandName;
+
     public BebopDrone(Context context, @NonNull ARDiscoveryDeviceService deviceService) {
+        // needed because some callbacks will be called on the main thread
+        this(context, deviceService, context.getMainLooper());
+    }
+
+    /**
+     * Constructor
+     * @param context context containing this instance
+     * @param deviceService the service of the drone
+     * @param looper looper of the thread the listeners are called in
+     */
+    public BebopDrone(Context context, @NonNull ARDiscoveryDeviceService deviceService, Looper looper) {
+        this(context, deviceService, looper, "");
+    }
 
+    /**
+     * Constructor
+     * @param context context containing this instance
+     * @param deviceService the service of the drone
+     * @param looper looper of the thread the listeners are called in
+     * @param scope prefix of the names of the metrics and traces of this drone, "" for none
+     */
+    public BebopDrone(Context context, @NonNull ARDiscoveryDeviceService deviceService, Looper looper, String scope) {
+
+        mScope = scope;
         mSettings = PreferenceManager.getDefaultSharedPreferences(context);
+        mDeviceService = deviceService;
+        mConnectionCache = new ConnectionCache(context);
 
         mListeners = new ArrayList<>();
         mMissionListeners = new ArrayList<>();
+        mLinkQualityListeners = new ArrayList<>();
 
-        // needed because some callbacks will be called on the main thread
-        mHandler = new Handler(context.getMainLooper());
+        mHandler = new Handler(looper);
 
         mState = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED;
 
-        // if the product type of the deviceService match with the types supported
-        ARDISCOVERY_PRODUCT_ENUM productType = ARDiscoveryService.getProductFromProductID(deviceService.getProductID());
-        ARDISCOVERY_PRODUCT_FAMILY_ENUM family = ARDiscoveryService.getProductFamily(productType);
-        if (ARDISCOVERY_PRODUCT_FAMILY_ENUM.ARDISCOVERY_PRODUCT_FAMILY_ARDRONE.equals(family)) {
-
-            ARDiscoveryDevice discoveryDevice = createDiscoveryDevice(deviceService, productType);
-            if (discoveryDevice != null) {
-                mDeviceController = createDeviceController(discoveryDevice);
-                discoveryDevice.dispose();
-            }
-
-            try {
-                String productIP = ((ARDiscoveryDeviceNetService)(deviceService.getDevice())).getIp();
-
-                ARUtilsManager ftpListManager = new ARUtilsManager();
-                ARUtilsManager ftpQueueManager = new ARUtilsManager();
-
-                ftpListManager.initWifiFtp(productIP, DEVICE_PORT, ARUtilsManager.FTP_ANONYMOUS, "");
-                ftpQueueManager.initWifiFtp(productIP, DEVICE_PORT, ARUtilsManager.FTP_ANONYMOUS, "");
-
-                mSDCardModule = new SDCardModule(ftpListManager, ftpQueueManager);
-                mSDCardModule.addListener(mSDCardModuleListener);
-            } catch (ARUtilsException e) {
-                Log.e(TAG, "Exception", e);
-            }
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        mBatteryCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "battery");
+        mFlyingStateCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "flyingstate");
+        mPositionCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "position");
+        mSpeedCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "speed");
+        mAttitudeCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "attitude");
+        mAltitudeCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "altitude");
+        mMoveEndCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "moveend");
+        mOtherCount = metrics.counter(mScope + MetricsRegistry.TELEMETRY + "other");
+        mDispatchLatency = metrics.histogram(mScope + MetricsRegistry.DISPATCH_LATENCY);
+        mDispatchPending = metrics.gauge(mScope + MetricsRegistry.DISPATCH_PENDING);
+        mCommandRoundTrip = metrics.histogram(mScope + MetricsRegistry.COMMAND_ROUND_TRIP);
+        mLinkQualityGauge = metrics.gauge(mScope + MetricsRegistry.LINK_QUALITY);
+
+        // the device controller is created on the connection thread
+        mConnection = new ConnectionManager(mLink);
+        mConnection.setListener(mConnectionListener);
+    }
 
-        } else {
-            Log.e(TAG, "DeviceService type is not supported by BebopDrone");
-        }
+    @Override
+    public String getName() {
+        return mDeviceService.getName();
     }
 
+    @Override
     public void dispose() {
-        if (mDeviceController != null) {
-            mDeviceController.dispose();
-        }
+        mConnection.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDeviceController != null) {
+                    mDeviceController.dispose();
+                    mDeviceController = null;
+                }
+            }
+        });
+        mConnection.shutdown();
     }
 
     //region Listener functions
+    @Override
     public void addListener(BebopDroneListener listener) {
         mListeners.add(listener);
     }
 
+    @Override
     public void addMissionListener(BebopDroneMissionListener listener) {
         mMissionListeners.add(listener);
     }
 
+    @Override
     public void removeListener(BebopDroneListener listener) {
         mListeners.remove(listener);
     }
 
+    @Override
     public void removeMissionListener(BebopDroneMissionListener listener) {
         mMissionListeners.remove(listener);
     }
+
+    public void addLinkQualityListener(LinkQualityMonitor.Listener listener) {
+        mLinkQualityListeners.add(listener);
+    }
+
+    public void removeLinkQualityListener(LinkQualityMonitor.Listener listener) {
+        mLinkQualityListeners.remove(listener);
+    }
     //endregion Listener
 
     /**
-     * Connect to the drone
-     * @return true if operation was successful.
+     * Set where the drone has been found, to report the time to the first telemetry
+     * @param searchStart time the search of the drone started, as given by SystemClock.elapsedRealtime() [ms]
+     * @param fromCache true if the drone has been found through the connection cache
+     */
+    public void setSearchOrigin(long searchStart, boolean fromCache) {
+        mSearchStart = searchStart;
+        mFromCache = fromCache;
+        mFirstTelemetryPending = true;
+    }
+
+    /**
+     * Connect to the drone, in the background
+     * @return true if the connection has been started.
      *              Returning true doesn't mean that device is connected.
      *              You can be informed of the actual connection through {@link BebopDroneListener#onDroneConnectionChanged}
+     *              and of the failed attempts through {@link BebopDroneListener#onConnectionStateChanged}
      */
+    @Override
     public boolean connect() {
-        boolean success = false;
-        if ((mDeviceController != null) && (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(mState))) {
-            ARCONTROLLER_ERROR_ENUM error = mDeviceController.start();
-            if (error == ARCONTROLLER_ERROR_ENUM.ARCONTROLLER_OK) {
-                success = true;
-            }
-        }
-        return success;
+        return mConnection.connect();
     }
 
     /**
-     * Disconnect from the drone
-     * @return true if operation was successful.
+     * Disconnect from the drone, in the background
+     * @return true if the disconnection has been started.
      *              Returning true doesn't mean that device is disconnected.
      *              You can be informed of the actual disconnection through {@link BebopDroneListener#onDroneConnectionChanged}
      */
+    @Override
     public boolean disconnect() {
-        boolean success = false;
-        if ((mDeviceController != null) && (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mState))) {
-            ARCONTROLLER_ERROR_ENUM error = mDeviceController.stop();
-            if (error == ARCONTROLLER_ERROR_ENUM.ARCONTROLLER_OK) {
-                success = true;
-            }
-        }
-        return success;
+        return mConnection.disconnect();
+    }
+
+    /**
+     * Get the state of the connection state machine
+     * @return one of the ConnectionManager.STATE_* constants
+     */
+    public int getConnectionManagerState() {
+        return mConnection.getState();
     }
 
     /**
@@ -293,6 +443,149 @@ public class BebopDrone {
         return mAttitude;
     }
 
+    /**
+     * Get the estimate of the position and velocity, fusing the GPS, speed, attitude and altitude
+     * To be used from the thread the listeners are called in
+     * @return the estimator, stepped every {@link #ESTIMATOR_INTERVAL} ms while connected
+     */
+    public StateEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * Set the operating area the relative moves and piloting commands are checked against before
+     * being sent: the moves are shortened to stay in it, the piloting commands limited so the drone
+     * doesn't leave it in the next {@link Geofence#LOOKAHEAD} seconds
+     * @param geofence the operating area, null to send the commands as they are
+     */
+    public void setGeofence(Geofence geofence) {
+        if (geofence != null) {
+            geofence.build();
+        }
+        mGeofence = geofence;
+        applyPcmd();
+    }
+
+    public Geofence getGeofence() {
+        return mGeofence;
+    }
+
+    public float getMaxTilt() {
+        return mMaxTilt;
+    }
+
+    public float getMaxVerticalSpeed() {
+        return mMaxVerticalSpeed;
+    }
+
+    public float getMaxRotationSpeed() {
+        return mMaxRotationSpeed;
+    }
+
+    /**
+     * Fly a trajectory with the piloting commands, tracking it at each step of the estimator and
+     * holding the current heading.  Like a relative move, the mission listeners are notified once
+     * the end of the trajectory is reached.
+     * @param trajectory the trajectory, in the frame of the estimator
+     */
+    public void followTrajectory(TrajectoryPlanner.Trajectory trajectory) {
+        followTrajectory(trajectory, null);
+    }
+
+    /**
+     * Fly a trajectory taking pictures along it, as for a survey.  The pictures taken are notified
+     * to the listeners, and only the end of the trajectory to the mission listeners.
+     * @param trajectory the trajectory, in the frame of the estimator
+     * @param pictureDistances distances along the trajectory to take the pictures at, in
+     *                         increasing order [m], null for none
+     */
+    public void followTrajectory(TrajectoryPlanner.Trajectory trajectory, double[] pictureDistances) {
+        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+            traceCommandIssued("trajectory");
+            mTrajectoryTracker.setHeading((mAttitude != null) ? mAttitude.yaw : Float.NaN);
+            mTrajectoryStart = System.nanoTime();
+            mTrajectory = trajectory;
+            mTrajectoryPictures = pictureDistances;
+            mNextTrajectoryPicture = 0;
+            mPendingTrajectoryPictures = 0;
+
+            // mark the command being in progress
+            mFinishedLastCommand = false;
+        }
+    }
+
+    /**
+     * Stop flying the trajectory in progress, the drone stops where it is
+     */
+    public void stopTrajectory() {
+        // pictures of the trajectory still in flight are then notified like the others, rather
+        // than swallowing the next pictures of the mission
+        mPendingTrajectoryPictures = 0;
+        if (mTrajectory != null) {
+            mTrajectory = null;
+            hover();
+        }
+    }
+
+    /**
+     * @return true while a trajectory is being flown
+     */
+    public boolean isFollowingTrajectory() {
+        return mTrajectory != null;
+    }
+
+    /**
+     * track the trajectory in progress, and end it once flown
+     * @param now time of the step [ns]
+     */
+    private void updateTrajectory(long now) {
+        TrajectoryPlanner.Trajectory trajectory = mTrajectory;
+        double t = (now - mTrajectoryStart) / 1e9;
+        double distance = trajectory.sample(t, mTrajectoryReference);
+
+        // take the pictures passed, at most one per step
+        double[] pictures = mTrajectoryPictures;
+        if (mDeviceController != null && pictures != null && mNextTrajectoryPicture < pictures.length
+                && distance >= pictures[mNextTrajectoryPicture]) {
+            mNextTrajectoryPicture++;
+            mPendingTrajectoryPictures++;
+            mDeviceController.getFeatureARDrone3().sendMediaRecordPictureV2();
+            mTracer.step(mTraceCommand, "picture");
+        }
+
+        float yaw = (mAttitude != null) ? mAttitude.yaw : 0;
+        mTrajectoryTracker.setLimits(mMaxTilt, mMaxVerticalSpeed, mMaxRotationSpeed);
+        mTrajectoryTracker.compute(mEstimator, yaw, mTrajectoryReference, mRequestedPcmd);
+        mRequestedFlag = 1;
+
+        double speed = Math.hypot(mEstimator.getVelocity(StateEstimator.NORTH), mEstimator.getVelocity(StateEstimator.EAST));
+        boolean arrived = mTrajectoryTracker.getError() < TRAJECTORY_ARRIVAL_DISTANCE && speed < TRAJECTORY_ARRIVAL_SPEED;
+        if (t >= trajectory.getDuration() && (arrived || t >= trajectory.getDuration() + TRAJECTORY_SETTLE_TIMEOUT)) {
+            if (!arrived) {
+                Log.w(TAG, String.format(Locale.US, "trajectory ended %.1f m from its end", mTrajectoryTracker.getError()));
+            }
+            mTrajectory = null;
+            hover();
+
+            // mark as having just finished a command
+            mFinishedLastCommand = true;
+            notifyMissionCommandFinished();
+            return;
+        }
+        applyPcmd();
+    }
+
+    /**
+     * clear the piloting commands, the drone holds its position
+     */
+    private void hover() {
+        for (int i = 0; i < mRequestedPcmd.length; i++) {
+            mRequestedPcmd[i] = 0;
+        }
+        mRequestedFlag = 0;
+        applyPcmd();
+    }
+
     /**
      * Determine whether or not Bebop has completed the last command sent to it
      * @return true if completed the last command sent
@@ -304,25 +597,34 @@ public class BebopDrone {
     /**
      * command the drone to takeoff
      */
+    @Override
     public void takeOff() {
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+            traceCommandIssued("takeOff");
             mDeviceController.getFeatureARDrone3().sendPilotingTakeOff();
+            mTracer.step(mTraceCommand, "sent");
         }
     }
 
     /**
      * command the drone to land
      */
+    @Override
     public void land() {
+        stopTrajectory();
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+            traceCommandIssued("land");
             mDeviceController.getFeatureARDrone3().sendPilotingLanding();
+            mTracer.step(mTraceCommand, "sent");
         }
     }
 
     /**
      * command the drone to execute the emergency procedure (immediately cuts the motors)
      */
+    @Override
     public void emergency() {
+        stopTrajectory();
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
             mDeviceController.getFeatureARDrone3().sendPilotingEmergency();
         }
@@ -333,7 +635,9 @@ public class BebopDrone {
      */
     public void takePicture() {
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+            traceCommandIssued("takePicture");
             mDeviceController.getFeatureARDrone3().sendMediaRecordPictureV2();
+            mTracer.step(mTraceCommand, "sent");
         }
     }
 
@@ -362,13 +666,30 @@ public class BebopDrone {
      * @param dz body z translation (down) [m]
      * @param dpsi heading change [deg]
      */
+    @Override
     public void relativeMove(float dx, float dy, float dz, float dpsi) {
         // convert from deg to rad
         dpsi = (float) Math.toRadians((double) dpsi);
 
+        // shorten the move to stay in the geofence, still sending it so the end of the move is notified
+        Geofence geofence = mGeofence;
+        if (geofence != null) {
+            float yaw = (mAttitude != null) ? mAttitude.yaw : Float.NaN;
+            float fraction = geofence.getAllowedFraction(mEstimator, yaw, dx, dy, dz);
+            if (fraction < 1) {
+                Log.w(TAG, String.format(Locale.US, "move (%.1f, %.1f, %.1f) limited to %.0f%% by the geofence", dx, dy, dz, fraction * 100));
+                dx *= fraction;
+                dy *= fraction;
+                dz *= fraction;
+            }
+        }
+
         // send the command
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+            traceCommandIssued("moveBy");
+            mMoveSent = System.nanoTime();
             mDeviceController.getFeatureARDrone3().sendPilotingMoveBy(dx, dy, dz, dpsi);
+            mTracer.step(mTraceCommand, "sent");
 
             // mark the command being in progress
             mFinishedLastCommand = false;
@@ -395,9 +716,8 @@ public class BebopDrone {
      * @param pitch value in percentage from -100 to 100
      */
     public void setPitch(byte pitch) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureARDrone3().setPilotingPCMDPitch(pitch);
-        }
+        mRequestedPcmd[1] = pitch;
+        applyPcmd();
     }
 
     /**
@@ -406,9 +726,8 @@ public class BebopDrone {
      * @param roll value in percentage from -100 to 100
      */
     public void setRoll(byte roll) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureARDrone3().setPilotingPCMDRoll(roll);
-        }
+        mRequestedPcmd[0] = roll;
+        applyPcmd();
     }
 
     /**
@@ -416,9 +735,8 @@ public class BebopDrone {
      * @param yaw value in percentage from -100 (max ccw rate) to 100 (max cw rate)
      */
     public void setYaw(byte yaw) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureARDrone3().setPilotingPCMDYaw(yaw);
-        }
+        mRequestedPcmd[2] = yaw;
+        applyPcmd();
     }
 
     /**
@@ -426,9 +744,8 @@ public class BebopDrone {
      * @param gaz value in percentage from -100 (max descent rate) to 100 (max ascent rate)
      */
     public void setGaz(byte gaz) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureARDrone3().setPilotingPCMDGaz(gaz);
-        }
+        mRequestedPcmd[3] = gaz;
+        applyPcmd();
     }
 
     /**
@@ -436,12 +753,47 @@ public class BebopDrone {
      * @param flag 1 if the pitch and roll values should be used, 0 otherwise
      */
     public void setFlag(byte flag) {
+        mRequestedFlag = flag;
+        applyPcmd();
+    }
+
+    /**
+     * set the piloting commands requested, limited by the geofence
+     * called on each request, and at each step of the estimator while there is a geofence
+     */
+    private void applyPcmd() {
+        System.arraycopy(mRequestedPcmd, 0, mSentPcmd, 0, 4);
+        Geofence geofence = mGeofence;
+        byte flag = mRequestedFlag;
+        if (geofence != null && mAttitude != null) {
+            // without the flag the drone holds its position, only the climb is checked
+            if (flag == 0) {
+                mSentPcmd[0] = 0;
+                mSentPcmd[1] = 0;
+            }
+            boolean limited = geofence.limitPcmd(mEstimator, mAttitude.yaw, mSentPcmd, mMaxTilt, mMaxVerticalSpeed);
+            if (flag == 0) {
+                mSentPcmd[0] = 0;
+                mSentPcmd[1] = 0;
+            }
+            if (limited != mPcmdLimited) {
+                Log.w(TAG, limited ? "piloting commands limited by the geofence" : "piloting commands no longer limited");
+                mPcmdLimited = limited;
+            }
+        }
+
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureARDrone3().setPilotingPCMDFlag(flag);
+            ARFeatureARDrone3 feature = mDeviceController.getFeatureARDrone3();
+            feature.setPilotingPCMDRoll(mSentPcmd[0]);
+            feature.setPilotingPCMDPitch(mSentPcmd[1]);
+            feature.setPilotingPCMDYaw(mSentPcmd[2]);
+            feature.setPilotingPCMDGaz(mSentPcmd[3]);
+            feature.setPilotingPCMDFlag(flag);
         }
     }
 
     public void setMaxTilt(int tilt) {
+        mMaxTilt = tilt;
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
             mDeviceController.getFeatureARDrone3().sendPilotingSettingsMaxTilt(tilt);
         }
@@ -478,12 +830,14 @@ public class BebopDrone {
     }
 
     public void setMaxVerticalSpeed(float speed) {
+        mMaxVerticalSpeed = speed;
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
             mDeviceController.getFeatureARDrone3().sendSpeedSettingsMaxVerticalSpeed(speed);
         }
     }
 
     public void setMaxRotationSpeed(int speed) {
+        mMaxRotationSpeed = speed;
         if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
             mDeviceController.getFeatureARDrone3().sendSpeedSettingsMaxRotationSpeed(speed);
         }
@@ -513,17 +867,168 @@ public class BebopDrone {
      * If no run id is available, download all medias of the day
      */
     public void getLastFlightMedias() {
-        String runId = mCurrentRunId;
-        if ((runId != null) && !runId.isEmpty()) {
-            mSDCardModule.getFlightMedias(runId);
-        } else {
-            Log.e(TAG, "RunID not available, fallback to the day's medias");
-            mSDCardModule.getTodaysFlightMedias();
-        }
+        final String runId = mCurrentRunId;
+        mConnection.execute(new Runnable() {
+            @Override
+            public void run() {
+                SDCardModule sdCardModule = getSDCardModule();
+                if (sdCardModule == null) {
+                    return;
+                }
+                if ((runId != null) && !runId.isEmpty()) {
+                    sdCardModule.getFlightMedias(runId);
+                } else {
+                    Log.e(TAG, "RunID not available, fallback to the day's medias");
+                    sdCardModule.getTodaysFlightMedias();
+                }
+            }
+        });
     }
 
     public void cancelGetLastFlightMedias() {
-        mSDCardModule.cancelGetFlightMedias();
+        SDCardModule sdCardModule = peekSDCardModule();
+        if (sdCardModule != null) {
+            sdCardModule.cancelGetFlightMedias();
+        }
+    }
+
+    /**
+     * Get the bandwidth budget of the media downloads
+     * @return the budget
+     */
+    public DownloadThrottle getDownloadThrottle() {
+        return mDownloadThrottle;
+    }
+
+    /**
+     * Give the health of the video stream to the media downloads, which back off when it degrades
+     * @param summary the last summary of the stream health
+     */
+    public void setVideoStreamHealth(StreamHealthMonitor.Summary summary) {
+        mDownloadThrottle.setStreamHealth(summary);
+        mLinkQuality.onVideoHealth(summary, System.nanoTime());
+    }
+
+    /**
+     * Get the last evaluated quality of the link with the drone
+     * You can be informed of each evaluation through {@link #addLinkQualityListener}
+     * @return the quality, null if not connected yet
+     */
+    public LinkQualityMonitor.Quality getLinkQuality() {
+        return mLinkQuality.getLastQuality();
+    }
+
+    /**
+     * Get the catalog of the medias on the drone, to browse them
+     * Creates the media module if needed, which blocks on the FTP setup
+     * @return the catalog, null if the medias cannot be stored on the phone
+     */
+    public MediaCatalog getMediaCatalog() {
+        SDCardModule sdCardModule = getSDCardModule();
+        return (sdCardModule != null) ? sdCardModule.getCatalog() : null;
+    }
+
+    /**
+     * Get the thumbnail of a media, if it has been fetched
+     * @param media the media
+     * @return the thumbnail (jpeg), null if not available yet
+     */
+    public byte[] getMediaThumbnail(MediaCatalog.Entry media) {
+        SDCardModule sdCardModule = peekSDCardModule();
+        return (sdCardModule != null) ? sdCardModule.getThumbnail(media) : null;
+    }
+
+    /**
+     * Download a selection of the medias
+     * @param mediaNames names of the medias to download
+     */
+    public void getSelectedMedias(final List<String> mediaNames) {
+        mConnection.execute(new Runnable() {
+            @Override
+            public void run() {
+                SDCardModule sdCardModule = getSDCardModule();
+                if (sdCardModule != null) {
+                    sdCardModule.getSelectedMedias(mediaNames);
+                }
+            }
+        });
+    }
+
+    /**
+     * get the media module, creating it (and its FTP sessions) on the first call
+     * Only the callers creating the module wait on the FTP setup, see {@link #peekSDCardModule}
+     * @return the module, null if the FTP sessions could not be created
+     */
+    private SDCardModule getSDCardModule() {
+        SDCardModule sdCardModule = mSDCardModule;
+        if (sdCardModule != null) {
+            return sdCardModule;
+        }
+        synchronized (mSDCardModuleLock) {
+            if (mSDCardModule != null) {
+                return mSDCardModule;
+            }
+            if (!(mDeviceService.getDevice() instanceof ARDiscoveryDeviceNetService)) {
+                Log.e(TAG, "DeviceService type is not supported by SDCardModule");
+                return null;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            try {
+                String productIP = ((ARDiscoveryDeviceNetService)(mDeviceService.getDevice())).getIp();
+
+                ARUtilsManager ftpListManager = new ARUtilsManager();
+                ARUtilsManager ftpQueueManager = new ARUtilsManager();
+
+                ftpListManager.initWifiFtp(productIP, DEVICE_PORT, ARUtilsManager.FTP_ANONYMOUS, "");
+                ftpQueueManager.initWifiFtp(productIP, DEVICE_PORT, ARUtilsManager.FTP_ANONYMOUS, "");
+
+                sdCardModule = new SDCardModule(ftpListManager, ftpQueueManager, new ARUtilsFtpSession.Factory(productIP, DEVICE_PORT), mDownloadThrottle);
+                sdCardModule.addListener(mSDCardModuleListener);
+            } catch (ARUtilsException e) {
+                Log.e(TAG, "Exception", e);
+                return null;
+            }
+            Log.i(TAG, "media module created in " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+            // published once ready, for the callers not waiting on the lock
+            mSDCardModule = sdCardModule;
+        }
+
+        // fetch the thumbnails now that the medias are of interest
+        if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mState)) {
+            sdCardModule.prefetchThumbnails();
+        }
+        return sdCardModule;
+    }
+
+    /**
+     * get the media module without creating it, never blocks
+     * @return the module, null if not created yet
+     */
+    private SDCardModule peekSDCardModule() {
+        return mSDCardModule;
+    }
+
+    /**
+     * create the device controller from the device service
+     * @return true if the controller has been created
+     */
+    private boolean createController() {
+        // if the product type of the deviceService match with the types supported
+        ARDISCOVERY_PRODUCT_ENUM productType = ARDiscoveryService.getProductFromProductID(mDeviceService.getProductID());
+        ARDISCOVERY_PRODUCT_FAMILY_ENUM family = ARDiscoveryService.getProductFamily(productType);
+        if (!ARDISCOVERY_PRODUCT_FAMILY_ENUM.ARDISCOVERY_PRODUCT_FAMILY_ARDRONE.equals(family)) {
+            Log.e(TAG, "DeviceService type is not supported by BebopDrone");
+            return false;
+        }
+
+        ARDiscoveryDevice discoveryDevice = createDiscoveryDevice(mDeviceService, productType);
+        if (discoveryDevice != null) {
+            mDeviceController = createDeviceController(discoveryDevice);
+            discoveryDevice.dispose();
+        }
+        return mDeviceController != null;
     }
 
     /**
@@ -568,7 +1073,82 @@ public class BebopDrone {
         return deviceController;
     }
 
+    /**
+     * log the time from the start of the search of the drone to its first telemetry,
+     * along with the mean times with and without the connection cache
+     */
+    private void reportTimeToFirstTelemetry() {
+        long time = SystemClock.elapsedRealtime() - mSearchStart;
+        mConnectionCache.recordTimeToFirstTelemetry(mFromCache, time);
+        Log.i(TAG, String.format(Locale.US, "first telemetry %d ms after the search (%s), mean %d ms from cache (%d), %d ms from discovery (%d)",
+                time, mFromCache ? "cache" : "discovery",
+                mConnectionCache.getMeanTimeToFirstTelemetry(true), mConnectionCache.getConnectionCount(true),
+                mConnectionCache.getMeanTimeToFirstTelemetry(false), mConnectionCache.getConnectionCount(false)));
+    }
+
     //region notify listener block
+    /**
+     * start the span of a mission command in the flight trace
+     * @param name name of the command
+     */
+    private void traceCommandIssued(String name) {
+        if (!mTracer.isEnabled()) {
+            return;
+        }
+        // a command sent before the previous one finished replaces it
+        mTracer.endCommand(mTraceCommand, mTraceCommandName);
+        mTraceCommandName = mScope + name;
+        mTraceCommand = mTracer.beginCommand(mTraceCommandName);
+    }
+
+    /**
+     * count a telemetry message in the metrics and in the quality of the link
+     * @param commandKey the message received
+     * @param received time the message was received [ns]
+     */
+    private void countTelemetry(ARCONTROLLER_DICTIONARY_KEY_ENUM commandKey, long received) {
+        switch (commandKey) {
+            case ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED:
+                mBatteryCount.increment();
+                mLinkQuality.onMessage(LinkQualityMonitor.CHANNEL_BATTERY, received);
+                break;
+            case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED:
+                mFlyingStateCount.increment();
+                break;
+            case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_POSITIONCHANGED:
+                mPositionCount.increment();
+                mLinkQuality.onMessage(LinkQualityMonitor.CHANNEL_POSITION, received);
+                break;
+            case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_SPEEDCHANGED:
+                mSpeedCount.increment();
+                mLinkQuality.onMessage(LinkQualityMonitor.CHANNEL_SPEED, received);
+                break;
+            case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_ATTITUDECHANGED:
+                mAttitudeCount.increment();
+                mLinkQuality.onMessage(LinkQualityMonitor.CHANNEL_ATTITUDE, received);
+                break;
+            case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_ALTITUDECHANGED:
+                mAltitudeCount.increment();
+                mLinkQuality.onMessage(LinkQualityMonitor.CHANNEL_ALTITUDE, received);
+                break;
+            case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGEVENT_MOVEBYEND:
+                mMoveEndCount.increment();
+                break;
+            default:
+                mOtherCount.increment();
+                break;
+        }
+    }
+
+    /**
+     * record the delivery of a telemetry message to the listener thread
+     * @param received time the message was received [ns]
+     */
+    private void onDispatched(long received) {
+        mDispatchPending.add(-1);
+        mDispatchLatency.record(System.nanoTime() - received);
+    }
+
     private void notifyConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM state) {
         List<BebopDroneListener> listenersCpy = new ArrayList<>(mListeners);
         for (BebopDroneListener listener : listenersCpy) {
@@ -576,6 +1156,13 @@ public class BebopDrone {
         }
     }
 
+    private void notifyConnectionStateChanged(int state, int previousState, long timeInPreviousState) {
+        List<BebopDroneListener> listenersCpy = new ArrayList<>(mListeners);
+        for (BebopDroneListener listener : listenersCpy) {
+            listener.onConnectionStateChanged(state, previousState, timeInPreviousState);
+        }
+    }
+
     private void notifyBatteryChanged(Date timestamp, int battery) {
         List<BebopDroneListener> listenersCpy = new ArrayList<>(mListeners);
         for (BebopDroneListener listener : listenersCpy) {
@@ -674,7 +1261,25 @@ public class BebopDrone {
         }
     }
 
+    private void notifyThumbnailAvailable(String mediaName) {
+        List<BebopDroneListener> listenersCpy = new ArrayList<>(mListeners);
+        for (BebopDroneListener listener : listenersCpy) {
+            listener.onThumbnailAvailable(mediaName);
+        }
+    }
+
+    private void notifyLinkQualityChanged(LinkQualityMonitor.Quality quality) {
+        List<LinkQualityMonitor.Listener> listenersCpy = new ArrayList<>(mLinkQualityListeners);
+        for (LinkQualityMonitor.Listener listener : listenersCpy) {
+            listener.onLinkQualityChanged(quality);
+        }
+    }
+
     private void notifyMissionCommandFinished() {
+        // the end of the command reached the listeners
+        mTracer.endCommand(mTraceCommand, mTraceCommandName);
+        mTraceCommand = 0;
+
         List<BebopDroneMissionListener> listenersCpy = new ArrayList<>(mMissionListeners);
         for (BebopDroneMissionListener listener : listenersCpy) {
             listener.onCommandFinished();
@@ -682,6 +1287,35 @@ public class BebopDrone {
     }
     //endregion notify listener block
 
+    /** evaluates the quality of the link and publishes it, at intervals */
+    private final Runnable mLinkQualityUpdater = new Runnable() {
+        @Override
+        public void run() {
+            LinkQualityMonitor.Quality quality = mLinkQuality.evaluate(System.nanoTime());
+            mLinkQualityGauge.set(Math.round(quality.score * 100));
+            notifyLinkQualityChanged(quality);
+            mHandler.postDelayed(this, LINK_QUALITY_INTERVAL);
+        }
+    };
+
+    /** steps the state estimator, at a fixed rate */
+    private final Runnable mEstimatorUpdater = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            mEstimator.predict((now - mLastEstimatorStep) / 1e9);
+            mLastEstimatorStep = now;
+
+            // follow the trajectory, or check the piloting commands against the new estimate
+            if (mTrajectory != null) {
+                updateTrajectory(now);
+            } else if (mGeofence != null) {
+                applyPcmd();
+            }
+            mHandler.postDelayed(this, ESTIMATOR_INTERVAL);
+        }
+    };
+
     /** listener for the sd card information to be able to download pictures and video from the drone */
     private final SDCardModule.Listener mSDCardModuleListener = new SDCardModule.Listener() {
         @Override
@@ -713,6 +1347,55 @@ public class BebopDrone {
                 }
             });
         }
+
+        @Override
+        public void onDownloadThroughputUpdated(long bytesDone, long bytesTotal, double bytesPerSecond) {
+            DownloadThrottle throttle = mDownloadThrottle;
+            Log.i(TAG, String.format(Locale.US, "downloaded %.1f / %.1f MB (%.2f MB/s), level %d, %.1f MB landed, %.1f MB flying",
+                    bytesDone / 1e6, bytesTotal / 1e6, bytesPerSecond / 1e6, throttle.getLevel(),
+                    throttle.getBytesTransferred(DownloadThrottle.PHASE_LANDED) / 1e6,
+                    throttle.getBytesTransferred(DownloadThrottle.PHASE_FLYING) / 1e6));
+        }
+
+        @Override
+        public void onThumbnailAvailable(final String mediaName) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyThumbnailAvailable(mediaName);
+                }
+            });
+        }
+    };
+
+    /** link opened and closed by the connection state machine, on the connection thread */
+    private final ConnectionManager.Link mLink = new ConnectionManager.Link() {
+        @Override
+        public boolean open() {
+            if ((mDeviceController == null) && !createController()) {
+                return false;
+            }
+            return mDeviceController.start() == ARCONTROLLER_ERROR_ENUM.ARCONTROLLER_OK;
+        }
+
+        @Override
+        public boolean close() {
+            return (mDeviceController != null) && (mDeviceController.stop() == ARCONTROLLER_ERROR_ENUM.ARCONTROLLER_OK);
+        }
+    };
+
+    /** listener for the transitions of the connection state machine */
+    private final ConnectionManager.Listener mConnectionListener = new ConnectionManager.Listener() {
+        @Override
+        public void onConnectionStateChanged(final int state, final int previousState, final long timeInPreviousState) {
+            Log.i(TAG, "connection state " + previousState + " -> " + state + " after " + timeInPreviousState + " ms");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyConnectionStateChanged(state, previousState, timeInPreviousState);
+                }
+            });
+        }
     };
 
     /** listener for the state information from the Bebop drone */
@@ -722,12 +1405,36 @@ public class BebopDrone {
             mState = newState;
             if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mState)) {
                 mDeviceController.getFeatureARDrone3().sendMediaStreamingVideoEnable((byte) 1);
+                mConnectionCache.save(mDeviceService);
+                SDCardModule sdCardModule = peekSDCardModule();
+                if (sdCardModule != null) {
+                    sdCardModule.prefetchThumbnails();
+                }
+                mConnection.onLinkConnected();
             } else if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(mState)) {
-                mSDCardModule.cancelGetFlightMedias();
+                SDCardModule sdCardModule = peekSDCardModule();
+                if (sdCardModule != null) {
+                    sdCardModule.cancelGetFlightMedias();
+                    sdCardModule.cancelThumbnailPrefetch();
+                }
+                mConnection.onLinkDisconnected();
             }
+            final boolean running = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(newState);
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
+                    // follow the quality of the link and the state while connected
+                    mHandler.removeCallbacks(mLinkQualityUpdater);
+                    mHandler.removeCallbacks(mEstimatorUpdater);
+                    mLinkQuality.reset();
+                    mEstimator.reset();
+                    mTrajectory = null;
+                    mPendingTrajectoryPictures = 0;
+                    if (running) {
+                        mHandler.postDelayed(mLinkQualityUpdater, LINK_QUALITY_INTERVAL);
+                        mLastEstimatorStep = System.nanoTime();
+                        mHandler.postDelayed(mEstimatorUpdater, ESTIMATOR_INTERVAL);
+                    }
                     notifyConnectionChanged(mState);
                 }
             });
@@ -752,15 +1459,24 @@ public class BebopDrone {
 
             // get the current timestamp - will be used to know when the event/command was received
             final Date now = new Date();
+            final long received = System.nanoTime();
+            countTelemetry(commandKey, received);
+
+            if (mFirstTelemetryPending) {
+                mFirstTelemetryPending = false;
+                reportTimeToFirstTelemetry();
+            }
 
             switch (commandKey) {
 
                 /* battery update */
                 case ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED:
                     final int battery = (Integer) args.get(ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED_PERCENT);
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             notifyBatteryChanged(now, battery);
                         }
                     });
@@ -769,10 +1485,14 @@ public class BebopDrone {
                 /* flying state update */
                 case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED:
                     final ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM state = ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.getFromValue((Integer) args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE));
+                    mTracer.step(mTraceCommand, "flying state");
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             mFlyingState = state;
+                            mDownloadThrottle.setFlying(!isLanded());
                             notifyPilotingStateChanged(now, state);
 
                             // takeoff is one of the initial mission commands and doesn't trigger a move end
@@ -796,10 +1516,13 @@ public class BebopDrone {
                     loc.setLongitude(longitude);
                     loc.setAltitude(altitude);
 
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             mPosition = loc;
+                            mEstimator.onPosition(latitude, longitude);
                             notifyPositionChanged(now, latitude, longitude, altitude);
                         }
                     });
@@ -814,10 +1537,13 @@ public class BebopDrone {
 
                     final VelocityVector speed = new VelocityVector(speedX, speedY, speedZ);
 
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             mVelocity = speed;
+                            mEstimator.onVelocity(speedX, speedY, speedZ);
                             notifySpeedChanged(now, speedX, speedY, speedZ);
                         }
                     });
@@ -832,10 +1558,13 @@ public class BebopDrone {
 
                     final AttitudeVector att = new AttitudeVector(roll, pitch, yaw);
 
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             mAttitude = att;
+                            mEstimator.onAttitude(roll, pitch, yaw);
                             notifyAttitudeChanged(now, roll, pitch, yaw);
                         }
                     });
@@ -846,10 +1575,13 @@ public class BebopDrone {
                 case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_ALTITUDECHANGED:
                     final double relativeAltitude = (double)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_ALTITUDECHANGED_ALTITUDE);
 
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             mHeight = (float) relativeAltitude;
+                            mEstimator.onRelativeAltitude(relativeAltitude);
                             notifyRelativeAltitudeChanged(now, relativeAltitude);
                         }
                     });
@@ -864,9 +1596,18 @@ public class BebopDrone {
                     final float dPsi = (float)((Double)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGEVENT_MOVEBYEND_DPSI)).doubleValue();
                     final ARCOMMANDS_ARDRONE3_PILOTINGEVENT_MOVEBYEND_ERROR_ENUM relativeMoveError = ARCOMMANDS_ARDRONE3_PILOTINGEVENT_MOVEBYEND_ERROR_ENUM.getFromValue((Integer)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGEVENT_MOVEBYEND_ERROR));
 
+                    mTracer.step(mTraceCommand, "received");
+                    long moveSent = mMoveSent;
+                    if (moveSent != 0) {
+                        mMoveSent = 0;
+                        mCommandRoundTrip.record(received - moveSent);
+                    }
+
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             notifyRelativeMoveEnded(now, dX, dY, dZ, dPsi, relativeMoveError.getValue());
 
                             // mark as having just finished a command
@@ -880,12 +1621,21 @@ public class BebopDrone {
                 /* picture notification */
                 case ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_MEDIARECORDEVENT_PICTUREEVENTCHANGED:
                     final ARCOMMANDS_ARDRONE3_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM pictureError = ARCOMMANDS_ARDRONE3_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM.getFromValue((Integer)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR));
+                    mTracer.step(mTraceCommand, "received");
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             // notify the changes as needed - note this is mission related so notify of the event
                             notifyPictureTaken(now, pictureError);
-                            notifyMissionCommandFinished();
+
+                            // the pictures of a trajectory are not commands of the mission
+                            if (mPendingTrajectoryPictures > 0) {
+                                mPendingTrajectoryPictures--;
+                            } else {
+                                notifyMissionCommandFinished();
+                            }
                         }
                     });
                     break;
@@ -895,9 +1645,11 @@ public class BebopDrone {
                     final ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE_ENUM videoState = ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE_ENUM.getFromValue((Integer)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE));
                     final ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_ERROR_ENUM videoError = ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_ERROR_ENUM.getFromValue((Integer) args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_ERROR));
 
+                    mDispatchPending.add(1);
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            onDispatched(received);
                             // update the local recording state
                             mVideoRecording = ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE_ENUM.ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE_STARTED.equals(videoState);
 
@@ -939,6 +1691,7 @@ public class BebopDrone {
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            mMaxTilt = currentTilt;
                             mSettings.edit().putInt(BebopPreferenceFragment.KEY_MAX_TILT, (int) currentTilt).apply();
                         }
                     });
@@ -1001,6 +1754,7 @@ public class BebopDrone {
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            mMaxVerticalSpeed = currentVert;
                             mSettings.edit().putInt(BebopPreferenceFragment.KEY_MAX_VERTICAL_SPEED, (int) (currentVert*10)).apply();
                         }
                     });
@@ -1017,6 +1771,7 @@ public class BebopDrone {
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            mMaxRotationSpeed = currentRot;
                             mSettings.edit().putInt(BebopPreferenceFragment.KEY_MAX_ROTATION_SPEED, (int) currentRot).apply();
                         }
                     });
@@ -0,0 +1,203 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * State machine of the connection to the drone.
+ *
+ * Connecting and disconnecting block on the network, so they run on a connection thread and the
+ * activities only see the transitions, published with the time spent in the previous state.
+ * A connection asked for while disconnecting is made once the link is down.
+ */
+public class ConnectionManager {
+
+    /** no connection */
+    public static final int STATE_DISCONNECTED = 0;
+
+    /** the link is being opened */
+    public static final int STATE_CONNECTING = 1;
+
+    /** the link is up */
+    public static final int STATE_CONNECTED = 2;
+
+    /** the link is being closed */
+    public static final int STATE_DISCONNECTING = 3;
+
+    public interface Link {
+        /**
+         * Start opening the link, the link being up is reported through {@link #onLinkConnected()}
+         * Called on the connection thread
+         * @return true if the link is being opened
+         */
+        boolean open();
+
+        /**
+         * Start closing the link, the link being down is reported through {@link #onLinkDisconnected()}
+         * Called on the connection thread
+         * @return true if the link is being closed
+         */
+        boolean close();
+    }
+
+    public interface Listener {
+        /**
+         * Called when the state of the connection changes
+         * Called on the thread causing the transition
+         * @param state the new state (one of the STATE_* constants)
+         * @param previousState the previous state
+         * @param timeInPreviousState time spent in the previous state [ms]
+         */
+        void onConnectionStateChanged(int state, int previousState, long timeInPreviousState);
+    }
+
+    private final Link mLink;
+    private final Executor mExecutor;
+    private Listener mListener;
+
+    private int mState = STATE_DISCONNECTED;
+
+    /** time the current state was entered [ns] */
+    private long mStateSince = System.nanoTime();
+
+    /** whether to connect again once disconnected */
+    private boolean mPendingConnect = false;
+
+    /**
+     * Constructor, with a connection thread of its own
+     * @param link the link to the drone
+     */
+    public ConnectionManager(Link link) {
+        this(link, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BebopConnection");
+            }
+        }));
+    }
+
+    /**
+     * Constructor
+     * @param link the link to the drone
+     * @param executor executor running the blocking operations, in order
+     */
+    ConnectionManager(Link link, Executor executor) {
+        mLink = link;
+        mExecutor = executor;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Connect to the drone, in the background
+     * @return true if a connection is going to be made
+     */
+    public synchronized boolean connect() {
+        if (mState == STATE_DISCONNECTING) {
+            mPendingConnect = true;
+            return true;
+        }
+        if (mState != STATE_DISCONNECTED) {
+            return false;
+        }
+
+        transition(STATE_CONNECTING);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mLink.open()) {
+                    synchronized (ConnectionManager.this) {
+                        if (mState == STATE_CONNECTING) {
+                            transition(STATE_DISCONNECTED);
+                        }
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Disconnect from the drone, in the background
+     * @return true if the drone is going to be disconnected
+     */
+    public synchronized boolean disconnect() {
+        mPendingConnect = false;
+        if (mState != STATE_CONNECTING && mState != STATE_CONNECTED) {
+            return false;
+        }
+
+        transition(STATE_DISCONNECTING);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mLink.close()) {
+                    // nothing to close, the link is already down
+                    onLinkDisconnected();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Run a task on the connection thread, after the pending connection operations
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Stop the connection thread, should be called once disconnected
+     */
+    public void shutdown() {
+        if (mExecutor instanceof ExecutorService) {
+            ((ExecutorService) mExecutor).shutdown();
+        }
+    }
+
+    /**
+     * To be called by the link when it is up
+     */
+    public synchronized void onLinkConnected() {
+        if (mState == STATE_CONNECTING) {
+            transition(STATE_CONNECTED);
+        }
+    }
+
+    /**
+     * To be called by the link when it is down
+     */
+    public synchronized void onLinkDisconnected() {
+        if (mState == STATE_DISCONNECTED) {
+            return;
+        }
+        transition(STATE_DISCONNECTED);
+
+        if (mPendingConnect) {
+            mPendingConnect = false;
+            connect();
+        }
+    }
+
+    private void transition(int state) {
+        long now = System.nanoTime();
+        int previousState = mState;
+        long timeInPreviousState = (now - mStateSince) / 1000000;
+        mState = state;
+        mStateSince = now;
+
+        if (mListener != null) {
+            mListener.onConnectionStateChanged(state, previousState, timeInPreviousState);
+        }
+    }
+}
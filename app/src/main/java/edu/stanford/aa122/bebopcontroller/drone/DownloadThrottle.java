@@ -0,0 +1,198 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import edu.stanford.aa122.bebopcontroller.helpers.StreamHealthMonitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bandwidth budget of the media downloads, which share the Wi-Fi link with the video stream
+ * and the piloting commands.
+ *
+ * The downloads run at full speed when the drone is landed, are limited to a low rate while it
+ * flies and are paused if the video stream degrades in flight.  Full speed only comes back once
+ * the drone has been landed with a healthy stream for a while.
+ *
+ * The transfers are slowed down by blocking their progress callbacks (which run on the
+ * transferring thread), the TCP flow control then slows down the drone's side of the transfer.
+ */
+public class DownloadThrottle {
+
+    /** downloads paused */
+    public static final int LEVEL_PAUSED = 0;
+
+    /** downloads limited to the low rate */
+    public static final int LEVEL_LOW = 1;
+
+    /** downloads not limited */
+    public static final int LEVEL_FULL = 2;
+
+    /** phases of the flight the transferred bytes are accounted to */
+    public static final int PHASE_LANDED = 0;
+    public static final int PHASE_FLYING = 1;
+
+    /** default rate of the downloads at the low level [bytes per second] */
+    public static final long DEFAULT_LOW_RATE = 256 * 1024;
+
+    /** default time landed with a healthy stream before going back to full speed [ms] */
+    public static final long DEFAULT_RAMP_DELAY = 3000;
+
+    /** frame rate under which the stream is considered degraded [fps] */
+    private static final double MIN_FRAME_RATE = 20;
+
+    /** time after which a stream health summary is no longer taken into account [ms] */
+    private static final long HEALTH_TIMEOUT = 3000;
+
+    /** longest time a transfer waits before checking the level again [ms] */
+    private static final long MAX_WAIT = 100;
+
+    private final long mLowRate;
+    private final long mRampDelay;
+
+    private boolean mFlying = false;
+    private boolean mDegraded = false;
+
+    /** time the last stream health summary was received [ms] */
+    private long mLastHealth = 0;
+
+    /** time since which the drone is landed with a healthy stream [ms] */
+    private long mCalmSince;
+
+    private int mLevel = LEVEL_LOW;
+
+    /** time from which the next bytes can be transferred at the low level [ns] */
+    private long mNextFree = 0;
+
+    private final AtomicLong[] mBytes = {new AtomicLong(), new AtomicLong()};
+
+    /**
+     * Constructor with the default rate and delay.
+     */
+    public DownloadThrottle() {
+        this(DEFAULT_LOW_RATE, DEFAULT_RAMP_DELAY);
+    }
+
+    /**
+     * Constructor
+     * @param lowRate rate of the downloads at the low level [bytes per second]
+     * @param rampDelay time landed with a healthy stream before going back to full speed [ms]
+     */
+    public DownloadThrottle(long lowRate, long rampDelay) {
+        mLowRate = lowRate;
+        mRampDelay = rampDelay;
+        mCalmSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Set whether or not the drone is flying
+     * @param flying true if the drone is not landed
+     */
+    public synchronized void setFlying(boolean flying) {
+        if (flying == mFlying) {
+            return;
+        }
+        mFlying = flying;
+        if (!flying) {
+            mCalmSince = System.currentTimeMillis();
+        }
+        updateLevel();
+    }
+
+    /**
+     * Update the health of the video stream
+     * @param summary the last summary of the stream health
+     */
+    public synchronized void setStreamHealth(StreamHealthMonitor.Summary summary) {
+        boolean degraded = (summary.missedFrames > 0) || (summary.gaps > 0) || (summary.getFrameRate() < MIN_FRAME_RATE);
+        mLastHealth = System.currentTimeMillis();
+        if (degraded != mDegraded) {
+            mDegraded = degraded;
+            if (!degraded) {
+                mCalmSince = mLastHealth;
+            }
+        }
+        updateLevel();
+    }
+
+    /**
+     * Get the current level of the downloads
+     * @return one of the LEVEL_* constants
+     */
+    public synchronized int getLevel() {
+        updateLevel();
+        return mLevel;
+    }
+
+    /**
+     * Get the number of bytes downloaded during a phase of the flight
+     * @param phase one of the PHASE_* constants
+     * @return number of bytes
+     */
+    public long getBytesTransferred(int phase) {
+        return mBytes[phase].get();
+    }
+
+    /**
+     * Account for transferred bytes and wait as long as the level requires.
+     * Called on the transferring threads, returns early if the thread is interrupted.
+     * @param bytes number of bytes just transferred, or 0 to only wait for the downloads to be allowed
+     */
+    public void acquire(long bytes) {
+        long sleep = 0;
+        synchronized (this) {
+            mBytes[mFlying ? PHASE_FLYING : PHASE_LANDED].addAndGet(bytes);
+
+            updateLevel();
+            while (mLevel == LEVEL_PAUSED) {
+                try {
+                    wait(MAX_WAIT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                updateLevel();
+            }
+
+            long now = System.nanoTime();
+            if (mLevel == LEVEL_FULL) {
+                mNextFree = now;
+            } else {
+                // token bucket shared by all the transfers, with no credit for idle time
+                mNextFree = Math.max(mNextFree, now) + bytes * 1000000000L / mLowRate;
+                sleep = mNextFree - now;
+            }
+        }
+
+        while (sleep > 0) {
+            long slice = Math.min(sleep, MAX_WAIT * 1000000);
+            try {
+                Thread.sleep(slice / 1000000, (int) (slice % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            sleep -= slice;
+            if (getLevel() == LEVEL_FULL) {
+                return;
+            }
+        }
+    }
+
+    private void updateLevel() {
+        long now = System.currentTimeMillis();
+        boolean degraded = mDegraded && (now - mLastHealth) < HEALTH_TIMEOUT;
+
+        int level;
+        if (mFlying) {
+            level = degraded ? LEVEL_PAUSED : LEVEL_LOW;
+        } else if (degraded || (now - mCalmSince) < mRampDelay) {
+            level = LEVEL_LOW;
+        } else {
+            level = LEVEL_FULL;
+        }
+
+        if (level != mLevel) {
+            mLevel = level;
+            notifyAll();
+        }
+    }
+}
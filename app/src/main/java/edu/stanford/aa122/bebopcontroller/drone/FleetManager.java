@@ -0,0 +1,510 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.HandlerThread;
+
+import com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM;
+import com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_ERROR_ENUM;
+import com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE_ENUM;
+import com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM;
+import com.parrot.arsdk.arcontroller.ARCONTROLLER_DEVICE_STATE_ENUM;
+import com.parrot.arsdk.arcontroller.ARControllerCodec;
+import com.parrot.arsdk.arcontroller.ARFrame;
+import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.aa122.bebopcontroller.helpers.DataLogger;
+import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
+import edu.stanford.aa122.bebopcontroller.listener.BebopDroneMissionListener;
+
+/**
+ * Manager of several drones flown together.
+ *
+ * Each Bebop gets its own dispatch thread and data logger, so the telemetry of the fleet is
+ * never funnelled through the main thread, and its metrics and traces are named after it so the
+ * drones are told apart in the reports.  The state of each drone is kept as an immutable
+ * {@link DroneState} replaced by its dispatch thread, so the fleet can be read from any thread
+ * without locks.  Commands are sent to several drones at once as steps, a step completing when
+ * all of its drones have finished their command.
+ */
+public class FleetManager {
+
+    /** immutable state of a drone of the fleet */
+    public static final class DroneState {
+        public final int index;
+        public final String name;
+        public final boolean connected;
+        public final ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM flyingState;
+
+        /** battery level [%], -1 if unknown */
+        public final int battery;
+
+        /** position [deg, deg, m], NaN if unknown */
+        public final double latitude;
+        public final double longitude;
+        public final double altitude;
+
+        /** time of the last update [ms since epoch] */
+        public final long timestamp;
+
+        DroneState(int index, String name, boolean connected,
+                   ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM flyingState, int battery,
+                   double latitude, double longitude, double altitude, long timestamp) {
+            this.index = index;
+            this.name = name;
+            this.connected = connected;
+            this.flyingState = flyingState;
+            this.battery = battery;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.altitude = altitude;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Whether or not the drone is in the air
+         * @return true if flying
+         */
+        public boolean isFlying() {
+            return (flyingState != null)
+                    && (flyingState != ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_LANDED)
+                    && (flyingState != ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_EMERGENCY);
+        }
+    }
+
+    /**
+     * A command sent to a drone as part of a step.
+     */
+    public interface Command {
+        void send(FleetMember drone);
+    }
+
+    public interface StepListener {
+        /**
+         * Called when all the drones of a step have finished their command
+         * Called in the dispatch thread of the last drone to finish
+         */
+        void onStepCompleted();
+    }
+
+    /** a drone of the fleet, with the resources owned for it */
+    private static final class Member {
+        final FleetMember drone;
+        final HandlerThread thread;
+        final DataLogger logger;
+        final BebopDroneListener listener;
+        final BebopDroneMissionListener missionListener;
+
+        /** only written by the dispatch thread of the drone */
+        volatile DroneState state;
+
+        /** whether the drone has to finish its command for the current step to complete */
+        volatile boolean inStep;
+
+        /** commands of cancelled steps still running, their finish is not counted (guarded by the member) */
+        int cancelledRunning;
+
+        Member(FleetMember drone, HandlerThread thread, DataLogger logger,
+               BebopDroneListener listener, BebopDroneMissionListener missionListener, DroneState state) {
+            this.drone = drone;
+            this.thread = thread;
+            this.logger = logger;
+            this.listener = listener;
+            this.missionListener = missionListener;
+            this.state = state;
+        }
+    }
+
+    /** the drones, replaced as a whole when one is added */
+    private volatile Member[] mMembers = new Member[0];
+
+    /** incremented on each update of the state of a drone */
+    private final AtomicLong mVersion = new AtomicLong();
+
+    /** number of drones still running the command of the current step */
+    private final AtomicInteger mStepRemaining = new AtomicInteger();
+    private volatile StepListener mStepListener;
+
+    /**
+     * Add a Bebop to the fleet, with its own dispatch thread and logger
+     * @param context context of the calling activity
+     * @param service the service of the drone
+     * @return the index of the drone in the fleet
+     */
+    public int addBebop(Context context, ARDiscoveryDeviceService service) {
+        HandlerThread thread = new HandlerThread("Fleet-" + service.getName());
+        thread.start();
+        BebopDrone drone = new BebopDrone(context, service, thread.getLooper(), service.getName() + ".");
+        DataLogger logger = new DataLogger(context, service.getName());
+        drone.addListener(logger);
+        logger.startNewLog();
+        return add(drone, thread, logger);
+    }
+
+    /**
+     * Add a drone to the fleet, its listeners are called on a thread of its own
+     * @param drone the drone
+     * @return the index of the drone in the fleet
+     */
+    public int addDrone(FleetMember drone) {
+        return add(drone, null, null);
+    }
+
+    private synchronized int add(FleetMember drone, HandlerThread thread, DataLogger logger) {
+        final int index = mMembers.length;
+        DroneState state = new DroneState(index, drone.getName(), false, null, -1,
+                Double.NaN, Double.NaN, Double.NaN, System.currentTimeMillis());
+
+        Member[] members = Arrays.copyOf(mMembers, index + 1);
+        members[index] = new Member(drone, thread, logger, new MemberListener(index), new BebopDroneMissionListener() {
+            @Override
+            public void onCommandFinished() {
+                onMemberCommandFinished(index);
+            }
+        }, state);
+        mMembers = members;
+        drone.addListener(members[index].listener);
+        drone.addMissionListener(members[index].missionListener);
+        return index;
+    }
+
+    /**
+     * Get a drone of the fleet
+     * @param index index of the drone
+     * @return the drone
+     */
+    public FleetMember getDrone(int index) {
+        return mMembers[index].drone;
+    }
+
+    public int size() {
+        return mMembers.length;
+    }
+
+    /**
+     * Get the state of the fleet, without locking
+     * @return the state of each drone, by index
+     */
+    public DroneState[] getStates() {
+        Member[] members = mMembers;
+        DroneState[] states = new DroneState[members.length];
+        for (int i = 0; i < members.length; i++) {
+            states[i] = members[i].state;
+        }
+        return states;
+    }
+
+    /**
+     * Get the version of the state of the fleet, to only read it again when it changed
+     * @return a number incremented on each update
+     */
+    public long getVersion() {
+        return mVersion.get();
+    }
+
+    public int getConnectedCount() {
+        int count = 0;
+        for (DroneState state : getStates()) {
+            if (state.connected) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getFlyingCount() {
+        int count = 0;
+        for (DroneState state : getStates()) {
+            if (state.isFlying()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the lowest battery level of the fleet
+     * @return the level [%], -1 if not known for any drone
+     */
+    public int getMinBattery() {
+        int min = -1;
+        for (DroneState state : getStates()) {
+            if (state.battery >= 0 && (min < 0 || state.battery < min)) {
+                min = state.battery;
+            }
+        }
+        return min;
+    }
+
+    public void connectAll() {
+        for (Member member : mMembers) {
+            member.drone.connect();
+        }
+    }
+
+    public void disconnectAll() {
+        for (Member member : mMembers) {
+            member.drone.disconnect();
+        }
+    }
+
+    /**
+     * Cut the motors of all the drones, at once
+     */
+    public void emergencyAll() {
+        cancelStep();
+        for (Member member : mMembers) {
+            member.drone.emergency();
+        }
+    }
+
+    /**
+     * Send the same command to all the drones as one step
+     * @param command the command
+     * @param listener called once all the drones have finished the command
+     * @return false if a step is still running
+     */
+    public boolean executeAll(Command command, StepListener listener) {
+        Command[] commands = new Command[mMembers.length];
+        Arrays.fill(commands, command);
+        return execute(commands, listener);
+    }
+
+    /**
+     * Send a command to each drone as one step, the previous step must be completed
+     * @param commands the command of each drone, by index, null for the drones not in the step
+     * @param listener called once all the drones of the step have finished their command
+     * @return false if a step is still running
+     */
+    public boolean execute(Command[] commands, StepListener listener) {
+        Member[] members = mMembers;
+        int count = 0;
+        for (int i = 0; i < Math.min(commands.length, members.length); i++) {
+            if (commands[i] != null) {
+                count++;
+            }
+        }
+        if (!mStepRemaining.compareAndSet(0, count + 1)) {
+            return false;
+        }
+
+        mStepListener = listener;
+        for (int i = 0; i < Math.min(commands.length, members.length); i++) {
+            if (commands[i] != null) {
+                synchronized (members[i]) {
+                    members[i].inStep = true;
+                }
+                commands[i].send(members[i].drone);
+            }
+        }
+
+        // released last so the step can't complete before all the commands are sent
+        releaseStep();
+        return true;
+    }
+
+    /**
+     * Forget the current step, its listener will not be called
+     * The commands still running are expected to finish, their finish is not counted in the next step
+     */
+    public void cancelStep() {
+        for (Member member : mMembers) {
+            synchronized (member) {
+                if (member.inStep) {
+                    member.inStep = false;
+                    member.cancelledRunning++;
+                }
+            }
+        }
+        mStepListener = null;
+        mStepRemaining.set(0);
+    }
+
+    /**
+     * Disconnect the drones and release their threads and loggers
+     */
+    public synchronized void dispose() {
+        cancelStep();
+        for (Member member : mMembers) {
+            member.drone.removeListener(member.listener);
+            member.drone.removeMissionListener(member.missionListener);
+            member.drone.disconnect();
+            member.drone.dispose();
+            if (member.logger != null) {
+                member.drone.removeListener(member.logger);
+                member.logger.stopLogging();
+            }
+            if (member.thread != null) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                    member.thread.quitSafely();
+                } else {
+                    member.thread.quit();
+                }
+            }
+        }
+        mMembers = new Member[0];
+    }
+
+    public static Command takeOff() {
+        return new Command() {
+            @Override
+            public void send(FleetMember drone) {
+                drone.takeOff();
+            }
+        };
+    }
+
+    public static Command land() {
+        return new Command() {
+            @Override
+            public void send(FleetMember drone) {
+                drone.land();
+            }
+        };
+    }
+
+    public static Command relativeMove(final float dx, final float dy, final float dz, final float dpsi) {
+        return new Command() {
+            @Override
+            public void send(FleetMember drone) {
+                drone.relativeMove(dx, dy, dz, dpsi);
+            }
+        };
+    }
+
+    private void onMemberCommandFinished(int index) {
+        Member member = mMembers[index];
+        synchronized (member) {
+            if (member.cancelledRunning > 0) {
+                // the command of a cancelled step, the drone finishes its commands in order
+                member.cancelledRunning--;
+                return;
+            }
+            if (!member.inStep) {
+                return;
+            }
+            member.inStep = false;
+        }
+        releaseStep();
+    }
+
+    private void releaseStep() {
+        // never below 0, a drone may finish while the step is cancelled
+        int remaining;
+        do {
+            remaining = mStepRemaining.get();
+            if (remaining == 0) {
+                return;
+            }
+        } while (!mStepRemaining.compareAndSet(remaining, remaining - 1));
+
+        if (remaining == 1) {
+            StepListener listener = mStepListener;
+            mStepListener = null;
+            if (listener != null) {
+                listener.onStepCompleted();
+            }
+        }
+    }
+
+    /** replace the state of a drone, called in its dispatch thread */
+    private void update(int index, DroneState state) {
+        mMembers[index].state = state;
+        mVersion.incrementAndGet();
+    }
+
+    /** keeps the state of a drone up to date, in its dispatch thread */
+    private final class MemberListener implements BebopDroneListener {
+        private final int mIndex;
+
+        MemberListener(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onDroneConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM state) {
+            DroneState s = mMembers[mIndex].state;
+            boolean connected = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(state);
+            update(mIndex, new DroneState(mIndex, s.name, connected, s.flyingState, s.battery,
+                    s.latitude, s.longitude, s.altitude, System.currentTimeMillis()));
+        }
+
+        @Override
+        public void onConnectionStateChanged(int state, int previousState, long timeInPreviousState) {
+        }
+
+        @Override
+        public void onBatteryChargeChanged(Date timestamp, int batteryPercentage) {
+            DroneState s = mMembers[mIndex].state;
+            update(mIndex, new DroneState(mIndex, s.name, s.connected, s.flyingState, batteryPercentage,
+                    s.latitude, s.longitude, s.altitude, timestamp.getTime()));
+        }
+
+        @Override
+        public void onPilotingStateChanged(Date timestamp, ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM state) {
+            DroneState s = mMembers[mIndex].state;
+            update(mIndex, new DroneState(mIndex, s.name, s.connected, state, s.battery,
+                    s.latitude, s.longitude, s.altitude, timestamp.getTime()));
+        }
+
+        @Override
+        public void onPositionChanged(Date timestamp, double lat, double lon, double alt) {
+            DroneState s = mMembers[mIndex].state;
+            update(mIndex, new DroneState(mIndex, s.name, s.connected, s.flyingState, s.battery,
+                    lat, lon, alt, timestamp.getTime()));
+        }
+
+        @Override
+        public void onSpeedChanged(Date timestamp, float vx, float vy, float vz) {
+        }
+
+        @Override
+        public void onAttitudeChanged(Date timestamp, float roll, float pitch, float yaw) {
+        }
+
+        @Override
+        public void onRelativeAltitudeChanged(Date timestamp, double alt) {
+        }
+
+        @Override
+        public void onRelativeMoveEnded(Date timestamp, float dx, float dy, float dz, float dpsi, int error) {
+        }
+
+        @Override
+        public void onPictureTaken(Date timestamp, ARCOMMANDS_ARDRONE3_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM error) {
+        }
+
+        @Override
+        public void onVideoStateChanged(Date timestamp, ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_STATE_ENUM event, ARCOMMANDS_ARDRONE3_MEDIARECORDSTATE_VIDEOSTATECHANGEDV2_ERROR_ENUM error) {
+        }
+
+        @Override
+        public void configureDecoder(ARControllerCodec codec) {
+        }
+
+        @Override
+        public void onFrameReceived(ARFrame frame) {
+        }
+
+        @Override
+        public void onMatchingMediasFound(int nbMedias) {
+        }
+
+        @Override
+        public void onDownloadProgressed(String mediaName, int progress) {
+        }
+
+        @Override
+        public void onDownloadComplete(String mediaName) {
+        }
+
+        @Override
+        public void onThumbnailAvailable(String mediaName) {
+        }
+    }
+}
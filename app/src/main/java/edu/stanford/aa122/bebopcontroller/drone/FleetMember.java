@@ -0,0 +1,47 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
+import edu.stanford.aa122.bebopcontroller.listener.BebopDroneMissionListener;
+
+/**
+ * A drone managed by the {@link FleetManager}.
+ *
+ * Implemented by {@link BebopDrone}, and by simulated drones to test the fleet without drones.
+ */
+public interface FleetMember {
+
+    /**
+     * Get the name of the drone, as advertised on the network
+     * @return the name
+     */
+    String getName();
+
+    boolean connect();
+
+    boolean disconnect();
+
+    void addListener(BebopDroneListener listener);
+
+    void removeListener(BebopDroneListener listener);
+
+    void addMissionListener(BebopDroneMissionListener listener);
+
+    void removeMissionListener(BebopDroneMissionListener listener);
+
+    void takeOff();
+
+    void land();
+
+    void emergency();
+
+    /**
+     * Command the drone to move in the body frame.
+     * @param dx body x translation (front) [m]
+     * @param dy body y translation (right side) [m]
+     * @param dz body z translation (down) [m]
+     * @param dpsi heading change [deg]
+     */
+    void relativeMove(float dx, float dy, float dz, float dpsi);
+
+    void dispose();
+}
@@ -0,0 +1,42 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Interface for a single connection to the FTP server of the drone, used to download the medias.
+ *
+ * A session only handles one transfer at a time, parallel downloads each use their own session.
+ */
+public interface FtpSession {
+
+    interface ProgressListener {
+        /**
+         * Called each time the progress of the transfer changes
+         * Called on the thread running the transfer
+         * @param percent progress of the whole file (from 0 to 100)
+         */
+        void onProgress(float percent);
+    }
+
+    /**
+     * Download a file, blocking until it is complete.
+     * @param remotePath path of the file on the drone
+     * @param localFile file to download to
+     * @param resume true to continue from the current end of the local file
+     * @param listener listener to the progress of the transfer
+     * @throws IOException if the transfer failed or was cancelled
+     */
+    void download(String remotePath, File localFile, boolean resume, ProgressListener listener) throws IOException;
+
+    /**
+     * Cancel the transfer in progress, if any.
+     * Can be called from any thread.
+     */
+    void cancel();
+
+    /**
+     * Close the connection, the session can no longer be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,36 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+/**
+ * Creates hard links, kept apart so the classes calling it load on devices before API 21.
+ * Only to be called on API 21 and above.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class HardLinks {
+
+    private static final String TAG = "HardLinks";
+
+    private HardLinks() {
+    }
+
+    /**
+     * Create a hard link to a file
+     * @param original path of the file to link to
+     * @param link path of the link to create
+     * @return true if the link has been created
+     */
+    static boolean link(String original, String link) {
+        try {
+            Os.link(original, link);
+            return true;
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Exception", e);
+            return false;
+        }
+    }
+}
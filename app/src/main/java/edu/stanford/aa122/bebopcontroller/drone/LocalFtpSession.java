@@ -0,0 +1,154 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stand-in for the FTP server of the drone, serving the files of a local directory.
+ *
+ * The transfer rate can be limited and the connection can be made to drop after a given number
+ * of bytes, to test the download scheduling, resuming and reporting without a drone.
+ */
+public class LocalFtpSession implements FtpSession {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** directory playing the role of the root of the drone's FTP server */
+    private final File mRoot;
+
+    /** maximum transfer rate [bytes per second], 0 for unlimited */
+    private final long mBytesPerSecond;
+
+    /** number of bytes after which the connection drops, 0 to never drop */
+    private final long mDropAfter;
+
+    /** number of bytes transferred by this session */
+    private long mTransferred = 0;
+
+    private volatile boolean mCancelled = false;
+    private boolean mClosed = false;
+
+    /**
+     * Factory opening local sessions, each with their own drop budget.
+     */
+    public static class Factory implements MediaDownloadScheduler.SessionFactory {
+        private final File mRoot;
+        private final long mBytesPerSecond;
+        private final long mDropAfter;
+
+        public Factory(File root, long bytesPerSecond, long dropAfter) {
+            mRoot = root;
+            mBytesPerSecond = bytesPerSecond;
+            mDropAfter = dropAfter;
+        }
+
+        @Override
+        public FtpSession openSession() throws IOException {
+            return new LocalFtpSession(mRoot, mBytesPerSecond, mDropAfter);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param root directory to serve the files from
+     * @param bytesPerSecond maximum transfer rate [bytes per second], 0 for unlimited
+     * @param dropAfter number of bytes after which the connection drops, 0 to never drop
+     */
+    public LocalFtpSession(File root, long bytesPerSecond, long dropAfter) {
+        mRoot = root;
+        mBytesPerSecond = bytesPerSecond;
+        mDropAfter = dropAfter;
+    }
+
+    @Override
+    public void download(String remotePath, File localFile, boolean resume, ProgressListener listener) throws IOException {
+        if (mClosed) {
+            throw new IOException("session closed");
+        }
+        mCancelled = false;
+
+        File source = new File(mRoot, remotePath);
+        if (!source.isFile()) {
+            throw new FileNotFoundException(remotePath);
+        }
+        long total = source.length();
+        long offset = (resume && localFile.length() <= total) ? localFile.length() : 0;
+
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(localFile, offset > 0);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                skipped += in.skip(offset - skipped);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = offset;
+            long start = System.nanoTime();
+            long sent = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (mCancelled) {
+                    throw new IOException("transfer cancelled");
+                }
+                if (mDropAfter > 0 && mTransferred + n > mDropAfter) {
+                    // write what fits in the budget then drop, like a Wi-Fi loss mid transfer
+                    int fits = (int) (mDropAfter - mTransferred);
+                    out.write(buffer, 0, fits);
+                    mTransferred += fits;
+                    mClosed = true;
+                    throw new IOException("connection lost");
+                }
+
+                out.write(buffer, 0, n);
+                mTransferred += n;
+                position += n;
+                sent += n;
+                if (listener != null) {
+                    listener.onProgress((float) (100.0 * position / total));
+                }
+
+                throttle(start, sent);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * sleep as needed to keep the transfer rate under the limit
+     * @param start time the transfer started [ns]
+     * @param sent number of bytes sent since the start
+     */
+    private void throttle(long start, long sent) throws IOException {
+        if (mBytesPerSecond <= 0) {
+            return;
+        }
+        long due = start + sent * 1000000000L / mBytesPerSecond;
+        long sleep = due - System.nanoTime();
+        if (sleep > 0) {
+            try {
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("transfer interrupted");
+            }
+        }
+    }
+}
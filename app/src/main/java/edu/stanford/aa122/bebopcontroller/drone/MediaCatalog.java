@@ -0,0 +1,522 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Catalog of the medias of the drone, persisted on the phone next to the downloaded medias.
+ *
+ * Each listing of the drone is merged into the catalog, so the medias already on the phone are
+ * known without looking at them again and are not downloaded a second time.
+ */
+public class MediaCatalog {
+
+    private static final String TAG = "MediaCatalog";
+
+    /** name of the catalog file in the media folder */
+    public static final String FILE_NAME = ".catalog";
+
+    /** media listed on the drone, not (completely) on the phone */
+    public static final int STATE_REMOTE = 0;
+
+    /** media downloaded to the phone, not verified yet */
+    public static final int STATE_DOWNLOADED = 1;
+
+    /** media downloaded to the phone and verified */
+    public static final int STATE_VERIFIED = 2;
+
+    /** media identical to another media of the catalog, only the other one is kept on the phone */
+    public static final int STATE_DUPLICATE = 3;
+
+    /** picture (jpg or dng) */
+    public static final int TYPE_PHOTO = 0;
+
+    /** video (mp4) */
+    public static final int TYPE_VIDEO = 1;
+
+    /** any other file */
+    public static final int TYPE_OTHER = 2;
+
+    /** first line of the file, to detect incompatible formats */
+    private static final String HEADER = "#catalog 2";
+
+    private static final String SEPARATOR = "\t";
+
+    /** format of the dates given by the drone */
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HHmmss";
+
+    /**
+     * A media of the catalog.
+     */
+    public static class Entry {
+        /** name of the file */
+        public final String name;
+
+        /** path of the file on the drone */
+        public final String remotePath;
+
+        /** size of the file [bytes] */
+        public final long size;
+
+        /** date of the media, as given by the drone */
+        public final String date;
+
+        /** date of the media [ms since epoch], 0 if unknown */
+        public final long time;
+
+        /** id of the run the media was taken during, null if unknown */
+        public final String runId;
+
+        /** day of the media (see {@link #dayKey(Calendar)}), 0 if unknown */
+        public final int day;
+
+        /** one of the TYPE_* constants */
+        public final int type;
+
+        private int mState = STATE_REMOTE;
+
+        /** hash of the file on the phone, null if not verified */
+        private String mHash = null;
+
+        /** name of the media this one is a duplicate of, null if it is not a duplicate */
+        private String mDuplicateOf = null;
+
+        /** true if the media was in the last listing of the drone */
+        private boolean mOnDrone = false;
+
+        public Entry(String name, String remotePath, long size, String date) {
+            this(name, remotePath, size, date, parseDate(date), parseRunId(name));
+        }
+
+        private Entry(String name, String remotePath, long size, String date, long time, String runId) {
+            this.name = name;
+            this.remotePath = remotePath;
+            this.size = size;
+            this.date = date;
+            this.time = time;
+            this.runId = runId;
+            this.day = dayKey(time);
+            this.type = parseType(name);
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        public String getHash() {
+            return mHash;
+        }
+
+        public String getDuplicateOf() {
+            return mDuplicateOf;
+        }
+
+        public boolean isOnDrone() {
+            return mOnDrone;
+        }
+    }
+
+    private final File mFile;
+
+    /** directory the medias are downloaded to */
+    private final File mMediaDirectory;
+
+    /** entries by name, in listing order */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    /** names of the verified medias by hash */
+    private final Map<String, String> mByHash = new HashMap<>();
+
+    /** index of the medias on the drone, rebuilt on each listing */
+    private volatile MediaIndex mIndex = new MediaIndex(new ArrayList<Entry>());
+
+    private boolean mDirty = false;
+
+    /**
+     * Constructor, loads the catalog if there is one
+     * @param mediaDirectory directory the medias are downloaded to, where the catalog is kept
+     */
+    public MediaCatalog(File mediaDirectory) {
+        mMediaDirectory = mediaDirectory;
+        mFile = new File(mediaDirectory, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Merge a listing of the drone into the catalog.
+     *
+     * New medias are added, medias that changed on the drone are reset and medias that are no
+     * longer on the drone are dropped unless they are on the phone.  A media found complete on
+     * the phone without being known as downloaded (downloaded before the catalog existed) is
+     * marked as downloaded.
+     * @param listed the medias currently on the drone
+     * @return number of medias that were not in the catalog
+     */
+    public synchronized int merge(List<Entry> listed) {
+        int added = 0;
+        for (Entry entry : mEntries.values()) {
+            entry.mOnDrone = false;
+        }
+
+        for (Entry entry : listed) {
+            Entry known = mEntries.get(entry.name);
+            if (known == null || known.size != entry.size || !known.remotePath.equals(entry.remotePath)) {
+                if (known == null) {
+                    added++;
+                }
+                known = entry;
+                mEntries.put(entry.name, entry);
+                mDirty = true;
+            }
+            known.mOnDrone = true;
+
+            if (known.mState == STATE_REMOTE && isOnPhone(known)) {
+                known.mState = STATE_DOWNLOADED;
+                mDirty = true;
+            }
+        }
+
+        List<String> removed = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (!entry.mOnDrone && !isPresent(entry)) {
+                removed.add(entry.name);
+            }
+        }
+        for (String name : removed) {
+            mEntries.remove(name);
+            mDirty = true;
+        }
+
+        buildIndex();
+        return added;
+    }
+
+    /**
+     * Get the medias on the drone taken during a run
+     * @param runId the id of the run
+     * @return the matching medias
+     */
+    public List<Entry> getByRunId(String runId) {
+        return mIndex.getByRunId(runId);
+    }
+
+    /**
+     * Get the medias on the drone taken on a given day
+     * @param day the day
+     * @return the matching medias
+     */
+    public List<Entry> getByDay(Calendar day) {
+        return mIndex.getByDay(day);
+    }
+
+    /**
+     * Get the index of the medias on the drone, for other queries
+     * @return the index as of the last listing
+     */
+    public MediaIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Get the medias that still need to be downloaded among a list
+     * @param entries the medias
+     * @return the medias not on the phone
+     */
+    public synchronized List<Entry> getToDownload(Collection<Entry> entries) {
+        List<Entry> toDownload = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (!isPresent(entry)) {
+                toDownload.add(entry);
+            }
+        }
+        return toDownload;
+    }
+
+    public synchronized Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Mark a media as downloaded, it still has to be verified
+     * @param name the name of the media
+     */
+    public synchronized void markDownloaded(String name) {
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            entry.mState = STATE_DOWNLOADED;
+            entry.mHash = null;
+            entry.mDuplicateOf = null;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Mark a media as verified
+     * @param name the name of the media
+     * @param hash the hash of the file on the phone
+     */
+    public synchronized void markVerified(String name, String hash) {
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            entry.mState = STATE_VERIFIED;
+            entry.mHash = hash;
+            entry.mDuplicateOf = null;
+            if (findVerified(hash, entry.size, null) == null) {
+                mByHash.put(hash, name);
+            }
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Mark a media as a duplicate of another one
+     * @param name the name of the media
+     * @param original the name of the media it is identical to
+     * @param hash the hash of the media
+     */
+    public synchronized void markDuplicate(String name, String original, String hash) {
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            entry.mState = STATE_DUPLICATE;
+            entry.mHash = hash;
+            entry.mDuplicateOf = original;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Mark a media as not on the phone (anymore), for it to be downloaded again
+     * @param name the name of the media
+     */
+    public synchronized void markCorrupted(String name) {
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            entry.mState = STATE_REMOTE;
+            entry.mHash = null;
+            entry.mDuplicateOf = null;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Find a verified media with a given content
+     * @param hash the hash of the content
+     * @param size the size of the content [bytes]
+     * @param exclude name of a media to ignore, may be null
+     * @return the media, null if there is none
+     */
+    public synchronized Entry findVerified(String hash, long size, String exclude) {
+        String name = mByHash.get(hash);
+        if ((name == null) || name.equals(exclude)) {
+            return null;
+        }
+        Entry entry = mEntries.get(name);
+        if ((entry == null) || (entry.mState != STATE_VERIFIED) || (entry.size != size) || !hash.equals(entry.mHash)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Write the catalog to the phone if it changed since it was last written.
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+            try {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Entry entry : mEntries.values()) {
+                    writer.write(entry.name + SEPARATOR + entry.remotePath + SEPARATOR + entry.size + SEPARATOR
+                            + entry.date + SEPARATOR + entry.time + SEPARATOR + ((entry.runId != null) ? entry.runId : "")
+                            + SEPARATOR + entry.mState + SEPARATOR + ((entry.mHash != null) ? entry.mHash : "")
+                            + SEPARATOR + (entry.mOnDrone ? 1 : 0) + SEPARATOR + ((entry.mDuplicateOf != null) ? entry.mDuplicateOf : ""));
+                    writer.newLine();
+                }
+            } finally {
+                writer.close();
+            }
+
+            // replace the previous catalog only once the new one is complete
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Failed to write the catalog " + mFile);
+                return;
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception", e);
+        }
+    }
+
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(mFile));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    // unknown format, start over
+                    return;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR, -1);
+                    if (fields.length != 10) {
+                        continue;
+                    }
+                    try {
+                        Entry entry = new Entry(fields[0], fields[1], Long.parseLong(fields[2]), fields[3],
+                                Long.parseLong(fields[4]), fields[5].isEmpty() ? null : fields[5]);
+                        entry.mState = Integer.parseInt(fields[6]);
+                        entry.mHash = fields[7].isEmpty() ? null : fields[7];
+                        entry.mOnDrone = "1".equals(fields[8]);
+                        entry.mDuplicateOf = fields[9].isEmpty() ? null : fields[9];
+                        mEntries.put(entry.name, entry);
+                        if ((entry.mState == STATE_VERIFIED) && !mByHash.containsKey(entry.mHash)) {
+                            mByHash.put(entry.mHash, entry.name);
+                        }
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "Invalid catalog line: " + line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception", e);
+        }
+        buildIndex();
+    }
+
+    private void buildIndex() {
+        List<Entry> onDrone = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            if (entry.mOnDrone) {
+                onDrone.add(entry);
+            }
+        }
+        mIndex = new MediaIndex(onDrone);
+    }
+
+    /**
+     * check if a media is complete on the phone
+     * @param entry the media
+     * @return true if the file is on the phone with the size of the media
+     */
+    private boolean isOnPhone(Entry entry) {
+        File file = new File(mMediaDirectory, entry.name);
+        return file.isFile() && file.length() == entry.size;
+    }
+
+    /**
+     * check if the content of a media is on the phone, under its name or as its original
+     * @param entry the media
+     * @return true if the media does not need to be downloaded
+     */
+    private boolean isPresent(Entry entry) {
+        switch (entry.mState) {
+            case STATE_DOWNLOADED:
+            case STATE_VERIFIED:
+                return isOnPhone(entry);
+            case STATE_DUPLICATE:
+                Entry original = mEntries.get(entry.mDuplicateOf);
+                return (original != null) && isOnPhone(original);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * parse the date of a media
+     * @param date the date as given by the drone
+     * @return the date [ms since epoch], 0 if it could not be parsed
+     */
+    private static long parseDate(String date) {
+        if (date == null) {
+            return 0;
+        }
+        try {
+            return new SimpleDateFormat(DATE_FORMAT, Locale.getDefault()).parse(date).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the key of a day, as used by the index
+     * @param day the day
+     * @return the key (yyyymmdd)
+     */
+    public static int dayKey(Calendar day) {
+        return day.get(Calendar.YEAR) * 10000 + (day.get(Calendar.MONTH) + 1) * 100 + day.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private static int dayKey(long time) {
+        if (time == 0) {
+            return 0;
+        }
+        Calendar cal = new GregorianCalendar();
+        cal.setTimeInMillis(time);
+        return dayKey(cal);
+    }
+
+    private static int parseType(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".jpg") || lower.endsWith(".dng")) {
+            return TYPE_PHOTO;
+        } else if (lower.endsWith(".mp4")) {
+            return TYPE_VIDEO;
+        }
+        return TYPE_OTHER;
+    }
+
+    /**
+     * get the run id from the name of a media (e.g. Bebop_2_2017-04-12T101545+0000_A3C5F21B.jpg)
+     * @param name the name of the media
+     * @return the run id, null if the name does not contain one
+     */
+    private static String parseRunId(String name) {
+        int end = name.lastIndexOf('.');
+        if (end < 0) {
+            end = name.length();
+        }
+        int start = name.lastIndexOf('_', end) + 1;
+        if (start <= 0 || start >= end) {
+            return null;
+        }
+        for (int i = start; i < end; i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return name.substring(start, end);
+    }
+}
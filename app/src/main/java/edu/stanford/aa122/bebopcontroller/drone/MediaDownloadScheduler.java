@@ -0,0 +1,466 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the download of medias from the drone over several FTP sessions in parallel.
+ *
+ * Each file is first downloaded to a partial file next to its destination, which is renamed once
+ * the file is complete.  A transfer that fails (or a download that is cancelled) leaves the
+ * partial file behind, and the next attempt resumes from where it stopped, reconnecting the
+ * session if needed.  Files already present with the expected size are not downloaded again.
+ */
+public class MediaDownloadScheduler {
+
+    /** download the smallest files first (the most files in the least time) */
+    public static final int ORDER_SMALLEST_FIRST = 0;
+
+    /** download the files with the highest priority first, then the smallest */
+    public static final int ORDER_PRIORITY = 1;
+
+    /** default number of attempts per file before giving up on it */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /** suffix of the files being downloaded */
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    /** time between two throughput reports [ms] */
+    private static final long REPORT_INTERVAL = 1000;
+
+    public interface SessionFactory {
+        /**
+         * Open a new session to the FTP server
+         * Called on the download threads
+         * @return the session
+         * @throws IOException if the session could not be opened
+         */
+        FtpSession openSession() throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * Called each time the progress of a download changes
+         * Called on a download thread
+         * @param mediaName the name of the media
+         * @param progress the progress of its download (from 0 to 100)
+         */
+        void onDownloadProgressed(String mediaName, int progress);
+
+        /**
+         * Called when a media download has ended
+         * Called on a download thread
+         * @param mediaName the name of the media
+         * @param success true if the media is now fully on the phone
+         */
+        void onDownloadComplete(String mediaName, boolean success);
+
+        /**
+         * Called periodically with the aggregate progress of all the downloads
+         * Called on a download thread
+         * @param bytesDone number of bytes of all the medias present on the phone
+         * @param bytesTotal total number of bytes of all the medias
+         * @param bytesPerSecond transfer rate since the start of the downloads
+         */
+        void onThroughputUpdated(long bytesDone, long bytesTotal, double bytesPerSecond);
+
+        /**
+         * Called once all of the downloads have ended (or have been cancelled)
+         * Called on the last download thread running
+         * @param nbSucceeded number of medias downloaded
+         * @param nbFailed number of medias that could not be downloaded
+         */
+        void onAllDownloadsFinished(int nbSucceeded, int nbFailed);
+    }
+
+    /**
+     * A media to download.
+     */
+    public static class Task {
+        /** name of the file on the phone */
+        public final String name;
+
+        /** path of the file on the drone */
+        public final String remotePath;
+
+        /** size of the file [bytes] */
+        public final long size;
+
+        /** priority of the file, higher is downloaded first with {@link #ORDER_PRIORITY} */
+        public final int priority;
+
+        /** order the task was added in, to keep the ordering stable */
+        private long mSequence;
+
+        /** number of bytes of the file on the phone */
+        private long mDone;
+
+        private int mAttempts = 0;
+        private int mLastProgress = -1;
+
+        public Task(String name, String remotePath, long size, int priority) {
+            this.name = name;
+            this.remotePath = remotePath;
+            this.size = size;
+            this.priority = priority;
+        }
+    }
+
+    private static final Comparator<Task> SMALLEST_FIRST = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.size != b.size) {
+                return (a.size < b.size) ? -1 : 1;
+            }
+            return (a.mSequence < b.mSequence) ? -1 : ((a.mSequence == b.mSequence) ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Task> PRIORITY = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.priority != b.priority) {
+                return (a.priority > b.priority) ? -1 : 1;
+            }
+            return SMALLEST_FIRST.compare(a, b);
+        }
+    };
+
+    private final SessionFactory mSessionFactory;
+    private final File mDestination;
+    private final int mMaxConcurrent;
+    private final Listener mListener;
+
+    private final PriorityBlockingQueue<Task> mQueue;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** bandwidth budget of the downloads, null for no limit */
+    private DownloadThrottle mThrottle;
+    private long mNextSequence = 0;
+
+    private final List<Thread> mWorkers = new ArrayList<>();
+
+    /** sessions currently open, to cancel their transfers */
+    private final List<FtpSession> mSessions = new ArrayList<>();
+
+    private volatile boolean mCancelled = false;
+    private boolean mStarted = false;
+
+    /* progress */
+    private final AtomicInteger mRunningWorkers = new AtomicInteger();
+    private final AtomicInteger mSucceeded = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicLong mBytesTotal = new AtomicLong();
+    private final AtomicLong mBytesDone = new AtomicLong();
+    private final AtomicLong mBytesTransferred = new AtomicLong();
+    private long mStartTime;
+    private long mLastReport;
+
+    /**
+     * Constructor
+     * @param sessionFactory factory for the sessions to the FTP server (one per concurrent download)
+     * @param destination directory to download the medias to
+     * @param maxConcurrent maximum number of downloads in parallel
+     * @param order one of the ORDER_* constants
+     * @param listener the listener to the downloads
+     */
+    public MediaDownloadScheduler(SessionFactory sessionFactory, File destination, int maxConcurrent, int order, Listener listener) {
+        mSessionFactory = sessionFactory;
+        mDestination = destination;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mListener = listener;
+        mQueue = new PriorityBlockingQueue<>(16, (order == ORDER_PRIORITY) ? PRIORITY : SMALLEST_FIRST);
+    }
+
+    /**
+     * Set the number of attempts per file before giving up on it.
+     * @param maxAttempts number of attempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Set the bandwidth budget the downloads must follow, must be called before {@link #start()}.
+     * @param throttle the budget, null for no limit
+     */
+    public void setThrottle(DownloadThrottle throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * Add a media to download, must be called before {@link #start()}.
+     * @param task the media
+     */
+    public synchronized void enqueue(Task task) {
+        task.mSequence = mNextSequence++;
+        mBytesTotal.addAndGet(task.size);
+        mQueue.add(task);
+    }
+
+    /**
+     * Start downloading the medias, on up to the maximum number of concurrent threads.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartTime = System.nanoTime();
+        mLastReport = mStartTime;
+
+        int nbWorkers = Math.max(1, Math.min(mMaxConcurrent, mQueue.size()));
+        mRunningWorkers.set(nbWorkers);
+        for (int i = 0; i < nbWorkers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "MediaDownload-" + i);
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Cancel all the downloads, the partial files are kept to resume from later.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mSessions) {
+            for (FtpSession session : mSessions) {
+                session.cancel();
+            }
+        }
+        if (mThrottle != null) {
+            // wake up the workers waiting for bandwidth
+            synchronized (this) {
+                for (Thread worker : mWorkers) {
+                    worker.interrupt();
+                }
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Wait for all of the downloads to end.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        List<Thread> workers;
+        synchronized (this) {
+            workers = new ArrayList<>(mWorkers);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    public int getNbSucceeded() {
+        return mSucceeded.get();
+    }
+
+    public int getNbFailed() {
+        return mFailed.get();
+    }
+
+    /**
+     * Get the number of bytes transferred since the start (not counting resumed or skipped data).
+     * @return number of bytes
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred.get();
+    }
+
+    /**
+     * Get the transfer rate since the start of the downloads.
+     * @return transfer rate [bytes per second]
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - mStartTime;
+        return (elapsed > 0) ? mBytesTransferred.get() * 1e9 / elapsed : 0;
+    }
+
+    private void runWorker() {
+        FtpSession session = null;
+        try {
+            while (!mCancelled) {
+                Task task = mQueue.poll();
+                if (task == null) {
+                    break;
+                }
+
+                File target = new File(mDestination, task.name);
+                if (target.isFile() && target.length() == task.size) {
+                    // already downloaded
+                    addDone(task, task.size);
+                    complete(task, true);
+                    continue;
+                }
+
+                File partial = new File(mDestination, task.name + PARTIAL_SUFFIX);
+                if (partial.length() > task.size) {
+                    // not the same file anymore
+                    partial.delete();
+                }
+                addDone(task, partial.length());
+
+                if (mThrottle != null) {
+                    // do not start a new file while the downloads are paused
+                    mThrottle.acquire(0);
+                }
+
+                boolean success = false;
+                while (!success && !mCancelled && task.mAttempts < mMaxAttempts) {
+                    task.mAttempts++;
+                    try {
+                        if (session == null) {
+                            session = openSession();
+                        }
+                        session.download(task.remotePath, partial, partial.length() > 0, new ProgressListener(task));
+                        settle(task, partial.length());
+
+                        if (partial.length() != task.size) {
+                            throw new IOException("incomplete download of " + task.name);
+                        }
+                        if (!partial.renameTo(target)) {
+                            throw new IOException("unable to rename " + partial);
+                        }
+                        success = true;
+                    } catch (IOException e) {
+                        // drop the session, the next attempt reconnects and resumes
+                        if (session != null) {
+                            closeSession(session);
+                            session = null;
+                        }
+                        // only count what really is on the phone
+                        settle(task, partial.length());
+                    }
+                }
+                complete(task, success);
+            }
+        } finally {
+            if (session != null) {
+                closeSession(session);
+            }
+            if (mRunningWorkers.decrementAndGet() == 0) {
+                // anything left in the queue was cancelled
+                mFailed.addAndGet(mQueue.size());
+                mQueue.clear();
+                report(true);
+                mListener.onAllDownloadsFinished(mSucceeded.get(), mFailed.get());
+            }
+        }
+    }
+
+    private FtpSession openSession() throws IOException {
+        FtpSession session = mSessionFactory.openSession();
+        synchronized (mSessions) {
+            mSessions.add(session);
+        }
+        if (mCancelled) {
+            session.cancel();
+        }
+        return session;
+    }
+
+    private void closeSession(FtpSession session) {
+        synchronized (mSessions) {
+            mSessions.remove(session);
+        }
+        session.close();
+    }
+
+    private void complete(Task task, boolean success) {
+        if (success) {
+            mSucceeded.incrementAndGet();
+        } else {
+            mFailed.incrementAndGet();
+        }
+        mListener.onDownloadComplete(task.name, success);
+    }
+
+    /**
+     * update the number of bytes of a task present on the phone
+     * @param task the task
+     * @param done number of bytes of the task present on the phone
+     */
+    private void addDone(Task task, long done) {
+        mBytesDone.addAndGet(done - task.mDone);
+        task.mDone = done;
+    }
+
+    /**
+     * account for the bytes of a task really on the phone once a transfer has ended, the
+     * progress reported during the transfer is approximate and misses the data written last
+     * @param task the task
+     * @param done number of bytes of the task present on the phone
+     */
+    private void settle(Task task, long done) {
+        long missed = done - task.mDone;
+        mBytesTransferred.addAndGet(missed);
+        addDone(task, done);
+        if ((mThrottle != null) && (missed > 0)) {
+            mThrottle.acquire(missed);
+        }
+    }
+
+    /**
+     * report the aggregate progress if it is time to do so
+     * @param force true to report regardless of the time since the last report
+     */
+    private void report(boolean force) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!force && (now - mLastReport) < REPORT_INTERVAL * 1000000) {
+                return;
+            }
+            mLastReport = now;
+        }
+        mListener.onThroughputUpdated(mBytesDone.get(), mBytesTotal.get(), getThroughput());
+    }
+
+    /**
+     * Follows the progress of the transfer of a task.
+     */
+    private class ProgressListener implements FtpSession.ProgressListener {
+        private final Task mTask;
+
+        ProgressListener(Task task) {
+            mTask = task;
+        }
+
+        @Override
+        public void onProgress(float percent) {
+            long done = (long) (percent / 100.0 * mTask.size);
+            long transferred = done - mTask.mDone;
+            if (transferred > 0) {
+                mBytesTransferred.addAndGet(transferred);
+                addDone(mTask, done);
+            }
+
+            int progress = (int) Math.floor(percent);
+            if (progress != mTask.mLastProgress) {
+                mTask.mLastProgress = progress;
+                mListener.onDownloadProgressed(mTask.name, progress);
+            }
+            report(false);
+
+            if ((mThrottle != null) && (transferred > 0)) {
+                // holding the transfer thread holds back the transfer itself
+                mThrottle.acquire(transferred);
+            }
+        }
+    }
+}
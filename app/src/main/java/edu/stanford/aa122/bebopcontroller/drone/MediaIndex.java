@@ -0,0 +1,204 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of the medias of the drone by run, by day and by time.
+ *
+ * Built once per listing so the queries only cost the number of matching medias, the lists
+ * returned are shared and must not be modified.
+ */
+public class MediaIndex {
+
+    private static final Comparator<MediaCatalog.Entry> BY_TIME = new Comparator<MediaCatalog.Entry>() {
+        @Override
+        public int compare(MediaCatalog.Entry a, MediaCatalog.Entry b) {
+            return (a.time < b.time) ? -1 : ((a.time == b.time) ? a.name.compareTo(b.name) : 1);
+        }
+    };
+
+    /** medias by run id (upper case), in time order */
+    private final Map<String, List<MediaCatalog.Entry>> mByRunId = new HashMap<>();
+
+    /** medias by day (see {@link MediaCatalog#dayKey(Calendar)}), in time order */
+    private final Map<Integer, List<MediaCatalog.Entry>> mByDay = new HashMap<>();
+
+    /** medias with a known date, in time order */
+    private final MediaCatalog.Entry[] mByTime;
+    private final long[] mTimes;
+
+    /** run ids, most recent run first */
+    private final List<String> mRuns;
+
+    /** all the medias */
+    private final List<MediaCatalog.Entry> mAll;
+
+    /**
+     * Constructor
+     * @param entries the medias to index
+     */
+    public MediaIndex(Collection<MediaCatalog.Entry> entries) {
+        mAll = Collections.unmodifiableList(new ArrayList<>(entries));
+
+        List<MediaCatalog.Entry> dated = new ArrayList<>(entries.size());
+        for (MediaCatalog.Entry entry : entries) {
+            if (entry.time != 0) {
+                dated.add(entry);
+            }
+        }
+        mByTime = dated.toArray(new MediaCatalog.Entry[dated.size()]);
+        Arrays.sort(mByTime, BY_TIME);
+        mTimes = new long[mByTime.length];
+        for (int i = 0; i < mByTime.length; i++) {
+            mTimes[i] = mByTime[i].time;
+        }
+
+        // undated medias first, so each list ends up in time order
+        final Map<String, Long> runEnd = new HashMap<>();
+        for (MediaCatalog.Entry entry : entries) {
+            if (entry.time == 0) {
+                add(entry);
+            }
+        }
+        for (MediaCatalog.Entry entry : mByTime) {
+            add(entry);
+            if (entry.runId != null) {
+                runEnd.put(entry.runId.toUpperCase(), entry.time);
+            }
+        }
+
+        List<String> runs = new ArrayList<>(mByRunId.keySet());
+        Collections.sort(runs, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long endA = runEnd.containsKey(a) ? runEnd.get(a) : 0;
+                long endB = runEnd.containsKey(b) ? runEnd.get(b) : 0;
+                return (endA > endB) ? -1 : ((endA == endB) ? a.compareTo(b) : 1);
+            }
+        });
+        mRuns = Collections.unmodifiableList(runs);
+    }
+
+    /**
+     * Get the medias of a run
+     * @param runId the id of the run
+     * @return the medias, in time order
+     */
+    public List<MediaCatalog.Entry> getByRunId(String runId) {
+        return unmodifiable(mByRunId.get(runId.toUpperCase()));
+    }
+
+    /**
+     * Get the medias of a day
+     * @param day the day
+     * @return the medias, in time order
+     */
+    public List<MediaCatalog.Entry> getByDay(Calendar day) {
+        return unmodifiable(mByDay.get(MediaCatalog.dayKey(day)));
+    }
+
+    /**
+     * Get the medias taken during a time range
+     * @param from start of the range [ms since epoch], included
+     * @param to end of the range [ms since epoch], excluded
+     * @return the medias, in time order
+     */
+    public List<MediaCatalog.Entry> getByTimeRange(long from, long to) {
+        int start = lowerBound(from);
+        int end = lowerBound(to);
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(mByTime).subList(start, end));
+    }
+
+    /**
+     * Get the ids of the runs, the most recent first
+     * @return the run ids
+     */
+    public List<String> getRuns() {
+        return mRuns;
+    }
+
+    /**
+     * Get the medias of a given type taken during the last runs
+     * @param nbRuns number of runs
+     * @param type one of the MediaCatalog.TYPE_* constants, or -1 for all medias
+     * @return the medias, run by run from the most recent
+     */
+    public List<MediaCatalog.Entry> getFromLastRuns(int nbRuns, int type) {
+        List<MediaCatalog.Entry> matching = new ArrayList<>();
+        for (int i = 0; i < Math.min(nbRuns, mRuns.size()); i++) {
+            for (MediaCatalog.Entry entry : mByRunId.get(mRuns.get(i))) {
+                if (type < 0 || entry.type == type) {
+                    matching.add(entry);
+                }
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Get all the medias, dated or not
+     * @return the medias
+     */
+    public List<MediaCatalog.Entry> getAll() {
+        return mAll;
+    }
+
+    public int size() {
+        return mAll.size();
+    }
+
+    private void add(MediaCatalog.Entry entry) {
+        if (entry.runId != null) {
+            addTo(mByRunId, entry.runId.toUpperCase(), entry);
+        }
+        if (entry.day != 0) {
+            addTo(mByDay, entry.day, entry);
+        }
+    }
+
+    private static <K> void addTo(Map<K, List<MediaCatalog.Entry>> map, K key, MediaCatalog.Entry entry) {
+        List<MediaCatalog.Entry> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        list.add(entry);
+    }
+
+    /**
+     * find the first media taken at or after a time
+     * @param time the time [ms since epoch]
+     * @return index of the media in mByTime
+     */
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = mTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimes[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static List<MediaCatalog.Entry> unmodifiable(List<MediaCatalog.Entry> list) {
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+}
@@ -0,0 +1,250 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the downloaded medias in the background and removes the duplicates.
+ *
+ * Each media is checked against the size in the catalog and hashed, a file identical to a
+ * media already on the phone is replaced by a hard link to it (or deleted when hard links are
+ * not available).  Incomplete files go back to being partial downloads, to be resumed.
+ */
+public class MediaVerifier {
+
+    private static final String TAG = "MediaVerifier";
+
+    /** the media is complete and unique */
+    public static final int RESULT_OK = 0;
+
+    /** the media is not complete, it will be downloaded again */
+    public static final int RESULT_CORRUPTED = 1;
+
+    /** the media is identical to another media on the phone */
+    public static final int RESULT_DUPLICATE = 2;
+
+    /** the media could not be verified */
+    public static final int RESULT_ERROR = 3;
+
+    /** size of the part of the file mapped at once, to keep the address space use low [bytes] */
+    private static final long MAP_WINDOW = 8 * 1024 * 1024;
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    public interface Listener {
+        /**
+         * Called when a media has been verified
+         * Called on the verification thread
+         * @param mediaName the name of the media
+         * @param result one of the RESULT_* constants
+         */
+        void onMediaVerified(String mediaName, int result);
+    }
+
+    private final MediaCatalog mCatalog;
+    private final File mMediaDirectory;
+    private Listener mListener;
+
+    /** whether duplicates are replaced by hard links (API 21+) or deleted */
+    boolean mUseHardLinks = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+    private ExecutorService mExecutor;
+
+    /** number of medias waiting to be verified */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param catalog the catalog of the medias
+     * @param mediaDirectory directory the medias are downloaded to
+     */
+    public MediaVerifier(MediaCatalog catalog, File mediaDirectory) {
+        mCatalog = catalog;
+        mMediaDirectory = mediaDirectory;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queue a downloaded media for verification
+     * @param mediaName the name of the media
+     */
+    public synchronized void verify(final String mediaName) {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            // never compete with the video and the piloting
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            r.run();
+                        }
+                    }, "MediaVerifier");
+                }
+            });
+        }
+
+        mPending.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int result = verifyNow(mediaName);
+                // write the catalog once the queue is empty
+                if (mPending.decrementAndGet() == 0) {
+                    mCatalog.save();
+                }
+                if (mListener != null) {
+                    mListener.onMediaVerified(mediaName, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the verifications, the medias not verified yet stay as downloaded.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Verify a media on the calling thread
+     * @param mediaName the name of the media
+     * @return one of the RESULT_* constants
+     */
+    int verifyNow(String mediaName) {
+        MediaCatalog.Entry entry = mCatalog.get(mediaName);
+        if (entry == null) {
+            return RESULT_ERROR;
+        }
+        if (entry.getState() != MediaCatalog.STATE_DOWNLOADED) {
+            // already verified (or not downloaded)
+            switch (entry.getState()) {
+                case MediaCatalog.STATE_VERIFIED:
+                    return RESULT_OK;
+                case MediaCatalog.STATE_DUPLICATE:
+                    return RESULT_DUPLICATE;
+                default:
+                    return RESULT_ERROR;
+            }
+        }
+
+        File file = new File(mMediaDirectory, mediaName);
+        if (!file.isFile() || file.length() != entry.size) {
+            if (file.isFile() && file.length() < entry.size) {
+                // resume from what is there on the next download
+                file.renameTo(new File(mMediaDirectory, mediaName + MediaDownloadScheduler.PARTIAL_SUFFIX));
+            } else {
+                file.delete();
+            }
+            mCatalog.markCorrupted(mediaName);
+            return RESULT_CORRUPTED;
+        }
+
+        String hash;
+        try {
+            hash = hash(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception", e);
+            return RESULT_ERROR;
+        }
+
+        MediaCatalog.Entry original = mCatalog.findVerified(hash, entry.size, mediaName);
+        if (original != null) {
+            File originalFile = new File(mMediaDirectory, original.name);
+            if (originalFile.isFile() && originalFile.length() == entry.size) {
+                if (mUseHardLinks && link(originalFile, file)) {
+                    mCatalog.markVerified(mediaName, hash);
+                } else if (file.delete()) {
+                    mCatalog.markDuplicate(mediaName, original.name, hash);
+                } else {
+                    mCatalog.markVerified(mediaName, hash);
+                    return RESULT_OK;
+                }
+                return RESULT_DUPLICATE;
+            }
+        }
+
+        mCatalog.markVerified(mediaName, hash);
+        return RESULT_OK;
+    }
+
+    /**
+     * Compute the hash of a file, reading it through memory mapped windows
+     * @param file the file
+     * @return the hash (hex)
+     * @throws IOException if the file could not be read
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                digest.update(buffer);
+                position += length;
+            }
+        } finally {
+            raf.close();
+        }
+
+        byte[] bytes = digest.digest();
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * replace a file by a hard link to another one
+     * @param original the file to link to
+     * @param file the file to replace
+     * @return true if the file has been replaced
+     */
+    private boolean link(File original, File file) {
+        File tmp = new File(file.getPath() + ".link");
+        tmp.delete();
+        if (!HardLinks.link(original.getPath(), tmp.getPath())) {
+            return false;
+        }
+
+        // replace in one step, the media stays readable under its name
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+}
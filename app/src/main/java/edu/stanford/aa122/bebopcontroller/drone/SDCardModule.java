@@ -1,6 +1,7 @@
 package edu.stanford.aa122.bebopcontroller.drone;
 
 import android.os.Environment;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -9,19 +10,13 @@ import com.parrot.arsdk.ardatatransfer.ARDataTransferException;
 import com.parrot.arsdk.ardatatransfer.ARDataTransferManager;
 import com.parrot.arsdk.ardatatransfer.ARDataTransferMedia;
 import com.parrot.arsdk.ardatatransfer.ARDataTransferMediasDownloader;
-import com.parrot.arsdk.ardatatransfer.ARDataTransferMediasDownloaderCompletionListener;
-import com.parrot.arsdk.ardatatransfer.ARDataTransferMediasDownloaderProgressListener;
+import com.parrot.arsdk.ardatatransfer.ARDataTransferMediasDownloaderAvailableMediaListener;
 import com.parrot.arsdk.arutils.ARUtilsManager;
 
 import java.io.File;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * Helper class for interacting with the SD card onboard the Bebop.
@@ -34,6 +29,7 @@ public class SDCardModule {
 
     private static final String DRONE_MEDIA_FOLDER = "internal_000";
     private static final String MOBILE_MEDIA_FOLDER = "/ARSDKMedias/";
+    private static final String THUMBNAIL_FOLDER = ".thumbnails";
 
     public interface Listener {
         /**
@@ -57,27 +53,86 @@ public class SDCardModule {
          * @param mediaName the name of the media
          */
         void onDownloadComplete(String mediaName);
+
+        /**
+         * Called periodically with the aggregate progress of the downloads
+         * Called on a separate thread
+         * @param bytesDone number of bytes of all the medias present on the phone
+         * @param bytesTotal total number of bytes of all the medias
+         * @param bytesPerSecond transfer rate since the start of the downloads
+         */
+        void onDownloadThroughputUpdated(long bytesDone, long bytesTotal, double bytesPerSecond);
+
+        /**
+         * Called when the thumbnail of a media has been added to the cache
+         * Called on a separate thread
+         * @param mediaName the name of the media
+         */
+        void onThumbnailAvailable(String mediaName);
     }
 
+    /** default number of medias downloaded in parallel */
+    public static final int DEFAULT_CONCURRENT_DOWNLOADS = 2;
+
     private final List<Listener> mListeners;
 
     private ARDataTransferManager mDataTransferManager;
     private ARUtilsManager mFtpList;
     private ARUtilsManager mFtpQueue;
 
+    /** factory for the FTP sessions used by the downloads */
+    private final MediaDownloadScheduler.SessionFactory mDownloadSessions;
+
+    /** scheduler of the downloads in progress, if any */
+    private volatile MediaDownloadScheduler mScheduler;
+
+    /** directory the medias are downloaded to */
+    private File mMediaDirectory;
+
+    /** catalog of the medias of the drone, null if there is no media directory */
+    private MediaCatalog mCatalog;
+
+    /** verifier of the downloaded medias, null if there is no media directory */
+    private MediaVerifier mVerifier;
+
+    /** thumbnails of the medias, null if there is no media directory */
+    private ThumbnailCache mThumbnails;
+
+    /** held while using the medias downloader of the SDK (listing or thumbnails) */
+    private final Object mDownloaderLock = new Object();
+
+    private Thread mPrefetchThread;
+    private volatile boolean mPrefetchCancelled;
+
+    /** bandwidth budget of the downloads */
+    private final DownloadThrottle mThrottle;
+
+    private int mMaxConcurrentDownloads = DEFAULT_CONCURRENT_DOWNLOADS;
+    private int mDownloadOrder = MediaDownloadScheduler.ORDER_SMALLEST_FIRST;
+
     private boolean mThreadIsRunning;
     private boolean mIsCancelled;
 
     private int mNbMediasToDownload;
-    private int mCurrentDownloadIndex;
 
-    public SDCardModule(@NonNull ARUtilsManager ftpListManager, @NonNull ARUtilsManager ftpQueueManager) {
+    /**
+     * Constructor
+     * @param ftpListManager FTP session used to list the medias
+     * @param ftpQueueManager FTP session used by the SDK medias downloader
+     * @param downloadSessions factory for the FTP sessions of the parallel downloads
+     * @param throttle bandwidth budget of the downloads
+     */
+    public SDCardModule(@NonNull ARUtilsManager ftpListManager, @NonNull ARUtilsManager ftpQueueManager,
+                        @NonNull MediaDownloadScheduler.SessionFactory downloadSessions,
+                        @NonNull DownloadThrottle throttle) {
 
         mThreadIsRunning = false;
         mListeners = new ArrayList<>();
 
         mFtpList = ftpListManager;
         mFtpQueue = ftpQueueManager;
+        mDownloadSessions = downloadSessions;
+        mThrottle = throttle;
 
         ARDATATRANSFER_ERROR_ENUM result = ARDATATRANSFER_ERROR_ENUM.ARDATATRANSFER_OK;
         try {
@@ -99,6 +154,11 @@ public class SDCardModule {
                     Log.e(TAG, "Failed to create the folder " + externalDirectory);
                 }
             }
+            mMediaDirectory = f;
+            mCatalog = new MediaCatalog(f);
+            mVerifier = new MediaVerifier(mCatalog, f);
+            mVerifier.setListener(mVerifierListener);
+            mThumbnails = new ThumbnailCache(new File(f, THUMBNAIL_FOLDER), ThumbnailCache.DEFAULT_MAX_SIZE);
             try {
                 mDataTransferManager.getARDataTransferMediasDownloader().createMediasDownloader(mFtpList, mFtpQueue, DRONE_MEDIA_FOLDER, externalDirectory);
             } catch (ARDataTransferException e) {
@@ -124,18 +184,129 @@ public class SDCardModule {
     }
     //endregion Listener
 
+    /**
+     * Set the number of medias downloaded in parallel (each uses its own FTP session).
+     * Applies to the next downloads.
+     * @param maxConcurrentDownloads number of parallel downloads
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        mMaxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+    /**
+     * Set the order in which the medias are downloaded.
+     * Applies to the next downloads.
+     * @param order one of the MediaDownloadScheduler.ORDER_* constants
+     */
+    public void setDownloadOrder(int order) {
+        mDownloadOrder = order;
+    }
+
+    /**
+     * Get the bandwidth budget of the downloads, to feed it the state of the drone and the video
+     * @return the budget
+     */
+    public DownloadThrottle getDownloadThrottle() {
+        return mThrottle;
+    }
+
+    /**
+     * Get the catalog of the medias, to browse them
+     * @return the catalog, null if there is no media directory on the phone
+     */
+    public MediaCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Get the thumbnail of a media from the cache
+     * @param media the media
+     * @return the thumbnail (jpeg), null if it has not been fetched
+     */
+    public byte[] getThumbnail(MediaCatalog.Entry media) {
+        if (mThumbnails == null) {
+            return null;
+        }
+        return mThumbnails.get(ThumbnailCache.key(media.name, media.date));
+    }
+
+    /**
+     * Fetch the thumbnails of the medias on the drone that are not in the cache yet.
+     * Runs on a low priority thread and gives way to the downloads, which stop it.
+     */
+    public synchronized void prefetchThumbnails() {
+        if ((mThumbnails == null) || mThreadIsRunning || ((mPrefetchThread != null) && mPrefetchThread.isAlive())) {
+            return;
+        }
+
+        mPrefetchCancelled = false;
+        mPrefetchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                fetchThumbnails();
+            }
+        }, "ThumbnailPrefetch");
+        mPrefetchThread.start();
+    }
+
+    /**
+     * Cancel the thumbnail prefetch, without waiting for it to stop.
+     */
+    public void cancelThumbnailPrefetch() {
+        mPrefetchCancelled = true;
+        if (mDataTransferManager != null) {
+            mDataTransferManager.getARDataTransferMediasDownloader().cancelAvailableMedias();
+        }
+    }
+
+    /**
+     * Download a selection of the medias of the catalog
+     * @param mediaNames names of the medias to download
+     */
+    public void getSelectedMedias(final List<String> mediaNames) {
+        if (!mThreadIsRunning && (mCatalog != null)) {
+            mThreadIsRunning = true;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    stopThumbnailPrefetch();
+
+                    List<MediaCatalog.Entry> selected = new ArrayList<>(mediaNames.size());
+                    for (String name : mediaNames) {
+                        MediaCatalog.Entry media = mCatalog.get(name);
+                        if ((media != null) && media.isOnDrone()) {
+                            selected.add(media);
+                        }
+                    }
+                    selected = mCatalog.getToDownload(selected);
+                    mNbMediasToDownload = selected.size();
+
+                    notifyMatchingMediasFound(mNbMediasToDownload);
+
+                    if ((mNbMediasToDownload != 0) && !mIsCancelled) {
+                        downloadMedias(selected);
+                    }
+
+                    mThreadIsRunning = false;
+                    mIsCancelled = false;
+                }
+            }).start();
+        }
+    }
+
     public void getFlightMedias(final String runId) {
         if (!mThreadIsRunning) {
             mThreadIsRunning = true;
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    ArrayList<ARDataTransferMedia> mediaList = getMediaList();
+                    stopThumbnailPrefetch();
 
-                    ArrayList<ARDataTransferMedia> mediasFromRun = null;
+                    List<MediaCatalog.Entry> mediasFromRun = null;
                     mNbMediasToDownload = 0;
-                    if ((mediaList != null) && !mIsCancelled) {
-                        mediasFromRun = getRunIdMatchingMedias(mediaList, runId);
+                    if (syncCatalog() && !mIsCancelled) {
+                        mediasFromRun = mCatalog.getToDownload(mCatalog.getByRunId(runId));
                         mNbMediasToDownload = mediasFromRun.size();
                     }
 
@@ -158,13 +329,13 @@ public class SDCardModule {
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    ArrayList<ARDataTransferMedia> mediaList = getMediaList();
+                    stopThumbnailPrefetch();
 
-                    ArrayList<ARDataTransferMedia> mediasFromDate = null;
+                    List<MediaCatalog.Entry> mediasFromDate = null;
                     mNbMediasToDownload = 0;
-                    if ((mediaList != null) && !mIsCancelled) {
+                    if (syncCatalog() && !mIsCancelled) {
                         GregorianCalendar today = new GregorianCalendar();
-                        mediasFromDate = getDateMatchingMedias(mediaList, today);
+                        mediasFromDate = mCatalog.getToDownload(mCatalog.getByDay(today));
                         mNbMediasToDownload = mediasFromDate.size();
                     }
 
@@ -184,13 +355,9 @@ public class SDCardModule {
     public void cancelGetFlightMedias() {
         if (mThreadIsRunning) {
             mIsCancelled = true;
-            ARDataTransferMediasDownloader mediasDownloader = null;
-            if (mDataTransferManager != null) {
-                mediasDownloader = mDataTransferManager.getARDataTransferMediasDownloader();
-            }
-
-            if (mediasDownloader != null) {
-                mediasDownloader.cancelQueueThread();
+            MediaDownloadScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                scheduler.cancel();
             }
         }
     }
@@ -225,84 +392,111 @@ public class SDCardModule {
         return mediaList;
     }
 
-    private @NonNull
-    ArrayList<ARDataTransferMedia> getRunIdMatchingMedias(
-            ArrayList<ARDataTransferMedia> mediaList,
-            String runId) {
-        ArrayList<ARDataTransferMedia> matchingMedias = new ArrayList<>();
+    /**
+     * list the medias of the drone and merge them into the catalog
+     * @return true if the drone could be listed
+     */
+    private boolean syncCatalog() {
+        if (mCatalog == null) {
+            return false;
+        }
+
+        ArrayList<ARDataTransferMedia> mediaList;
+        synchronized (mDownloaderLock) {
+            mediaList = getMediaList();
+        }
+        if ((mediaList == null) || mIsCancelled) {
+            return false;
+        }
+
+        List<MediaCatalog.Entry> listed = new ArrayList<>(mediaList.size());
         for (ARDataTransferMedia media : mediaList) {
-            if (media.getName().contains(runId)) {
-                matchingMedias.add(media);
+            // the file path of the media is its path on the drone
+            listed.add(new MediaCatalog.Entry(media.getName(), media.getFilePath(), (long) media.getSize(), media.getDate()));
+        }
+        int added = mCatalog.merge(listed);
+        mCatalog.save();
+        Log.i(TAG, mediaList.size() + " medias on the drone, " + added + " new");
+
+        // medias found on the phone by the merge still have to be verified
+        for (MediaCatalog.Entry media : mCatalog.getIndex().getAll()) {
+            if (media.getState() == MediaCatalog.STATE_DOWNLOADED) {
+                mVerifier.verify(media.name);
             }
+        }
+        return true;
+    }
 
-            // exit if the async task is cancelled
-            if (mIsCancelled) {
-                break;
-            }
+    /**
+     * stop the thumbnail prefetch and wait for it to release the medias downloader
+     */
+    private void stopThumbnailPrefetch() {
+        Thread thread;
+        synchronized (this) {
+            thread = mPrefetchThread;
+            mPrefetchThread = null;
+        }
+        if (thread == null) {
+            return;
         }
 
-        return matchingMedias;
+        cancelThumbnailPrefetch();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private ArrayList<ARDataTransferMedia> getDateMatchingMedias(ArrayList<ARDataTransferMedia> mediaList,
-                                                                 GregorianCalendar matchingCal) {
-        ArrayList<ARDataTransferMedia> matchingMedias = new ArrayList<>();
-        Calendar mediaCal = new GregorianCalendar();
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss", Locale.getDefault());
-        for (ARDataTransferMedia media : mediaList) {
-            // convert date in string to calendar
-            String dateStr = media.getDate();
-            try {
-                Date mediaDate = dateFormatter.parse(dateStr);
-                mediaCal.setTime(mediaDate);
-
-                // if the date are the same day
-                if ((mediaCal.get(Calendar.DAY_OF_MONTH) == (matchingCal.get(Calendar.DAY_OF_MONTH))) &&
-                        (mediaCal.get(Calendar.MONTH) == (matchingCal.get(Calendar.MONTH))) &&
-                        (mediaCal.get(Calendar.YEAR) == (matchingCal.get(Calendar.YEAR)))) {
-                    matchingMedias.add(media);
-                }
-            } catch (ParseException e) {
-                Log.e(TAG, "Exception", e);
-            }
+    private void fetchThumbnails() {
+        if (!syncCatalog() || mPrefetchCancelled) {
+            return;
+        }
 
-            // exit if the async task is cancelled
-            if (mIsCancelled) {
-                break;
+        // nothing to fetch if all the thumbnails are already in the cache
+        int missing = 0;
+        for (MediaCatalog.Entry media : mCatalog.getIndex().getAll()) {
+            if (!mThumbnails.contains(ThumbnailCache.key(media.name, media.date))) {
+                missing++;
             }
         }
+        if (missing == 0) {
+            return;
+        }
+        Log.i(TAG, "fetching " + missing + " thumbnails");
 
-        return matchingMedias;
+        synchronized (mDownloaderLock) {
+            if (!mPrefetchCancelled && (mDataTransferManager != null)) {
+                // blocks until all the thumbnails of the last listing are fetched, or cancelled
+                mDataTransferManager.getARDataTransferMediasDownloader().getAvailableMediasAsync(mThumbnailListener, null);
+            }
+        }
     }
 
-    private void downloadMedias(@NonNull ArrayList<ARDataTransferMedia> matchingMedias) {
-        mCurrentDownloadIndex = 1;
-
-        ARDataTransferMediasDownloader mediasDownloader = null;
-        if (mDataTransferManager != null)
-        {
-            mediasDownloader = mDataTransferManager.getARDataTransferMediasDownloader();
+    private void downloadMedias(@NonNull List<MediaCatalog.Entry> matchingMedias) {
+        if (mMediaDirectory == null) {
+            return;
         }
 
-        if (mediasDownloader != null)
-        {
-            for (ARDataTransferMedia media : matchingMedias) {
-                try {
-                    mediasDownloader.addMediaToQueue(media, mDLProgressListener, null, mDLCompletionListener, null);
-                } catch (ARDataTransferException e) {
-                    Log.e(TAG, "Exception", e);
-                }
-
-                // exit if the async task is cancelled
-                if (mIsCancelled) {
-                    break;
-                }
-            }
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(mDownloadSessions, mMediaDirectory,
+                mMaxConcurrentDownloads, mDownloadOrder, mSchedulerListener);
+        scheduler.setThrottle(mThrottle);
+        for (MediaCatalog.Entry media : matchingMedias) {
+            scheduler.enqueue(new MediaDownloadScheduler.Task(media.name, media.remotePath, media.size, 0));
+        }
 
-            if (!mIsCancelled) {
-                mediasDownloader.getDownloaderQueueRunnable().run();
+        mScheduler = scheduler;
+        if (!mIsCancelled) {
+            scheduler.start();
+            try {
+                scheduler.awaitCompletion();
+            } catch (InterruptedException e) {
+                scheduler.cancel();
+                Thread.currentThread().interrupt();
             }
         }
+        mScheduler = null;
+        mCatalog.save();
     }
 
     //region notify listener block
@@ -326,38 +520,77 @@ public class SDCardModule {
             listener.onDownloadComplete(mediaName);
         }
     }
+
+    private void notifyDownloadThroughputUpdated(long bytesDone, long bytesTotal, double bytesPerSecond) {
+        List<Listener> listenersCpy = new ArrayList<>(mListeners);
+        for (Listener listener : listenersCpy) {
+            listener.onDownloadThroughputUpdated(bytesDone, bytesTotal, bytesPerSecond);
+        }
+    }
+
+    private void notifyThumbnailAvailable(String mediaName) {
+        List<Listener> listenersCpy = new ArrayList<>(mListeners);
+        for (Listener listener : listenersCpy) {
+            listener.onThumbnailAvailable(mediaName);
+        }
+    }
     //endregion notify listener block
 
-    private final ARDataTransferMediasDownloaderProgressListener mDLProgressListener = new ARDataTransferMediasDownloaderProgressListener() {
-        private int mLastProgressSent = -1;
+    private final ARDataTransferMediasDownloaderAvailableMediaListener mThumbnailListener = new ARDataTransferMediasDownloaderAvailableMediaListener() {
+        @Override
+        public void didMediaAvailable(Object arg, ARDataTransferMedia media, int index) {
+            byte[] thumbnail = media.getThumbnail();
+            if (mPrefetchCancelled || (thumbnail == null)) {
+                return;
+            }
+
+            String key = ThumbnailCache.key(media.getName(), media.getDate());
+            if (!mThumbnails.contains(key)) {
+                mThumbnails.put(key, thumbnail);
+                notifyThumbnailAvailable(media.getName());
+            }
+
+            // thumbnails share the budget of the downloads
+            mThrottle.acquire(thumbnail.length);
+        }
+    };
+
+    private final MediaVerifier.Listener mVerifierListener = new MediaVerifier.Listener() {
         @Override
-        public void didMediaProgress(Object arg, ARDataTransferMedia media, float percent) {
-            final int progressInt = (int) Math.floor(percent);
-            if (mLastProgressSent != progressInt) {
-                mLastProgressSent = progressInt;
-                notifyDownloadProgressed(media.getName(), progressInt);
+        public void onMediaVerified(String mediaName, int result) {
+            if (result == MediaVerifier.RESULT_CORRUPTED) {
+                Log.e(TAG, mediaName + " is incomplete, it will be downloaded again");
+            } else if (result == MediaVerifier.RESULT_DUPLICATE) {
+                Log.i(TAG, mediaName + " is a duplicate, only one copy is kept");
             }
         }
     };
 
-    private final ARDataTransferMediasDownloaderCompletionListener mDLCompletionListener = new ARDataTransferMediasDownloaderCompletionListener() {
+    private final MediaDownloadScheduler.Listener mSchedulerListener = new MediaDownloadScheduler.Listener() {
         @Override
-        public void didMediaComplete(Object arg, ARDataTransferMedia media, ARDATATRANSFER_ERROR_ENUM error) {
-            notifyDownloadComplete(media.getName());
-
-            // when all download are finished, stop the download runnable
-            // in order to get out of the downloadMedias function
-            mCurrentDownloadIndex ++;
-            if (mCurrentDownloadIndex > mNbMediasToDownload ) {
-                ARDataTransferMediasDownloader mediasDownloader = null;
-                if (mDataTransferManager != null) {
-                    mediasDownloader = mDataTransferManager.getARDataTransferMediasDownloader();
-                }
+        public void onDownloadProgressed(String mediaName, int progress) {
+            notifyDownloadProgressed(mediaName, progress);
+        }
 
-                if (mediasDownloader != null) {
-                    mediasDownloader.cancelQueueThread();
-                }
+        @Override
+        public void onDownloadComplete(String mediaName, boolean success) {
+            if (success) {
+                mCatalog.markDownloaded(mediaName);
+                mVerifier.verify(mediaName);
+            } else {
+                Log.e(TAG, "Failed to download " + mediaName);
             }
+            notifyDownloadComplete(mediaName);
+        }
+
+        @Override
+        public void onThroughputUpdated(long bytesDone, long bytesTotal, double bytesPerSecond) {
+            notifyDownloadThroughputUpdated(bytesDone, bytesTotal, bytesPerSecond);
+        }
+
+        @Override
+        public void onAllDownloadsFinished(int nbSucceeded, int nbFailed) {
+            Log.i(TAG, "downloads finished: " + nbSucceeded + " succeeded, " + nbFailed + " failed");
         }
     };
 }
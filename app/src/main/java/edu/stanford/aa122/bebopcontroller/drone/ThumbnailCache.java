@@ -0,0 +1,200 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded disk cache of the thumbnails of the medias, least recently used evicted first.
+ *
+ * Thumbnails are keyed by the name and date of their media, so a media replaced on the drone
+ * under the same name gets a new thumbnail.  The order of use is kept across sessions through
+ * the modification time of the files.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    /** default maximum size of the cache [bytes] */
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final String SUFFIX = ".jpg";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /** size of the thumbnails by key, least recently used first */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** total size of the thumbnails [bytes] */
+    private long mSize = 0;
+
+    /**
+     * Constructor, picks up the thumbnails already in the directory
+     * @param directory directory to keep the thumbnails in
+     * @param maxSize maximum total size of the thumbnails [bytes]
+     */
+    public ThumbnailCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Failed to create the folder " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long ta = a.lastModified();
+                    long tb = b.lastModified();
+                    return (ta < tb) ? -1 : ((ta == tb) ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(SUFFIX)) {
+                    mEntries.put(fileName.substring(0, fileName.length() - SUFFIX.length()), file.length());
+                    mSize += file.length();
+                } else {
+                    // left over from an interrupted write
+                    file.delete();
+                }
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Get the key of the thumbnail of a media
+     * @param name the name of the media
+     * @param date the date of the media, as given by the drone
+     * @return the key
+     */
+    public static String key(String name, String date) {
+        String key = name + "_" + date;
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '_';
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Get a thumbnail, marking it as the most recently used
+     * @param key the key of the thumbnail
+     * @return the thumbnail (jpeg), null if it is not in the cache
+     */
+    public byte[] get(String key) {
+        File file;
+        synchronized (this) {
+            if (mEntries.get(key) == null) {
+                return null;
+            }
+            file = fileFor(key);
+        }
+        file.setLastModified(System.currentTimeMillis());
+
+        byte[] data = new byte[(int) file.length()];
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // evicted in the meantime
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Add a thumbnail, evicting the least recently used ones if the cache is full
+     * @param key the key of the thumbnail
+     * @param data the thumbnail (jpeg)
+     */
+    public void put(String key, byte[] data) {
+        File tmp = new File(mDirectory, key + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception", e);
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmp.renameTo(fileFor(key))) {
+                tmp.delete();
+                return;
+            }
+            Long previous = mEntries.put(key, (long) data.length);
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mSize += data.length;
+            trim();
+        }
+    }
+
+    public synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get the total size of the thumbnails in the cache
+     * @return size [bytes]
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    private File fileFor(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+
+    /**
+     * evict the least recently used thumbnails until the cache fits its maximum size
+     */
+    private synchronized void trim() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            fileFor(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+}
@@ -22,9 +22,16 @@ public class BebopPreferenceFragment extends PreferenceFragment {
     public static final String KEY_MAX_TILT_SPEED = "pref_bebop_max_tilt_speed";
     public static final String KEY_MAX_VERTICAL_SPEED = "pref_bebop_max_vert_speed";
     public static final String KEY_MAX_ROTATION_SPEED = "pref_bebop_max_rot_speed";
+    public static final String KEY_PAUSE_ON_POOR_LINK = "pref_bebop_pause_on_poor_link";
+    public static final String KEY_GEOFENCE = "pref_bebop_geofence";
     public static final String KEY_JOYSTICK_MAX_TILT = "pref_joystick_max_pitch";
     public static final String KEY_JOYSTICK_MAX_ROTATION = "pref_joystick_max_yaw";
     public static final String KEY_JOYSTICK_MAX_THROTTLE = "pref_joystick_max_throttle";
+    public static final String KEY_SHOW_FRAME_TIMES = "pref_debug_frame_times";
+    public static final String KEY_SHOW_METRICS = "pref_debug_metrics";
+    public static final String KEY_TRACING = "pref_debug_tracing";
+    public static final String KEY_VIDEO_LATENCY = "pref_debug_video_latency";
+    public static final String KEY_RECORDED_STREAM = "pref_debug_recorded_stream";
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
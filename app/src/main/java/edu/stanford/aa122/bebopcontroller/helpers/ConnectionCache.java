@@ -0,0 +1,150 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceNetService;
+import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Cache of the endpoint of the last drone successfully connected to, to connect to it again
+ * without waiting for the discovery.
+ *
+ * Also keeps the time to the first telemetry of the connections made from the cache and from
+ * the discovery, so the two can be compared.
+ */
+public class ConnectionCache {
+
+    private static final String PREFS_NAME = "connection_cache";
+
+    private static final String KEY_PRODUCT_ID = "product_id";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_IP = "ip";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_TYPE = "type";
+
+    private static final String KEY_COUNT = "ttft_count_";
+    private static final String KEY_TOTAL = "ttft_total_";
+
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Constructor
+     * @param context context containing this instance
+     */
+    public ConnectionCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Remember a drone successfully connected to
+     * @param service the service of the drone
+     */
+    public void save(ARDiscoveryDeviceService service) {
+        if (!(service.getDevice() instanceof ARDiscoveryDeviceNetService)) {
+            return;
+        }
+        ARDiscoveryDeviceNetService netService = (ARDiscoveryDeviceNetService) service.getDevice();
+        mPrefs.edit()
+                .putInt(KEY_PRODUCT_ID, service.getProductID())
+                .putString(KEY_NAME, service.getName())
+                .putString(KEY_IP, netService.getIp())
+                .putInt(KEY_PORT, netService.getPort())
+                .putString(KEY_TYPE, netService.getType())
+                .apply();
+    }
+
+    /**
+     * Get the last drone successfully connected to
+     * @return the service of the drone, or null if none has been connected to yet
+     */
+    public ARDiscoveryDeviceService load() {
+        String name = mPrefs.getString(KEY_NAME, null);
+        String ip = mPrefs.getString(KEY_IP, null);
+        if (name == null || ip == null) {
+            return null;
+        }
+        ARDiscoveryDeviceNetService netService = new ARDiscoveryDeviceNetService(name,
+                mPrefs.getString(KEY_TYPE, null), ip, mPrefs.getInt(KEY_PORT, 0), null);
+        return new ARDiscoveryDeviceService(name, netService, mPrefs.getInt(KEY_PRODUCT_ID, 0));
+    }
+
+    /**
+     * Check whether two services are the same drone
+     * @return true if they have the same name and address
+     */
+    public static boolean isSameDrone(ARDiscoveryDeviceService a, ARDiscoveryDeviceService b) {
+        return DroneDiscoverer.key(a).equals(DroneDiscoverer.key(b));
+    }
+
+    /**
+     * Check whether a drone answers on its endpoint
+     * Blocks, should not be called in the main thread
+     * @param service the service of the drone
+     * @param timeout time to wait for the drone [ms]
+     * @return true if the drone accepted a connection
+     */
+    public static boolean probe(ARDiscoveryDeviceService service, int timeout) {
+        if (!(service.getDevice() instanceof ARDiscoveryDeviceNetService)) {
+            return false;
+        }
+        ARDiscoveryDeviceNetService netService = (ARDiscoveryDeviceNetService) service.getDevice();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(netService.getIp(), netService.getPort()), timeout);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Account the time from the start of the search of the drone to its first telemetry
+     * @param fromCache true if the connection used the cached endpoint
+     * @param time the time [ms]
+     */
+    public void recordTimeToFirstTelemetry(boolean fromCache, long time) {
+        String suffix = suffix(fromCache);
+        mPrefs.edit()
+                .putInt(KEY_COUNT + suffix, mPrefs.getInt(KEY_COUNT + suffix, 0) + 1)
+                .putLong(KEY_TOTAL + suffix, mPrefs.getLong(KEY_TOTAL + suffix, 0) + time)
+                .apply();
+    }
+
+    /**
+     * Get the mean time to the first telemetry
+     * @param fromCache true for the connections which used the cached endpoint
+     * @return the mean time [ms], or -1 if there was no such connection
+     */
+    public long getMeanTimeToFirstTelemetry(boolean fromCache) {
+        String suffix = suffix(fromCache);
+        int count = mPrefs.getInt(KEY_COUNT + suffix, 0);
+        if (count == 0) {
+            return -1;
+        }
+        return mPrefs.getLong(KEY_TOTAL + suffix, 0) / count;
+    }
+
+    /**
+     * Get the number of connections accounted
+     * @param fromCache true for the connections which used the cached endpoint
+     * @return the number of connections
+     */
+    public int getConnectionCount(boolean fromCache) {
+        return mPrefs.getInt(KEY_COUNT + suffix(fromCache), 0);
+    }
+
+    private static String suffix(boolean fromCache) {
+        return fromCache ? "cache" : "discovery";
+    }
+}
@@ -0,0 +1,537 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Plans the survey of an area: passes back and forth over the area (a lawnmower pattern) with the
+ * pictures to take along them, so the pictures cover the area with the requested overlap.
+ *
+ * The passes are parallel to the side of the area across which it is the narrowest (the minimum
+ * width of its convex hull, found with rotating calipers), which gives the fewest turns.  Each pass
+ * is cut by the area into the parts flown over it, extended so the footprint of the camera reaches
+ * the edges of the area between the passes.  The time to fly the survey is that of the trajectory
+ * planned through the passes, at a speed leaving the camera the time to take each picture.
+ *
+ * Planning is linear in the number of vertices of the area and of pictures, apart from sorting the
+ * hull and the crossings of each pass, so large areas can be planned interactively.
+ */
+public class CoveragePlanner {
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(6378137.0);
+
+    /** battery to keep at the end of the survey [%] */
+    public static final float BATTERY_RESERVE = 20;
+
+    /* field of view of the camera, across and along the passes [deg] */
+    private double mFieldOfViewAcross = 80;
+    private double mFieldOfViewAlong = 60;
+
+    /* overlap of the pictures between two passes and along the passes, from 0 to 1 */
+    private double mSideOverlap = 0.6;
+    private double mFrontOverlap = 0.7;
+
+    /** time needed between two pictures [s] */
+    private double mPictureInterval = 2;
+
+    /** max speed along the passes [m/s] */
+    private double mMaxSpeed = 5;
+
+    /* limits of the drone, NaN if not set */
+    private float mMaxTilt = Float.NaN;
+    private float mMaxVerticalSpeed = Float.NaN;
+
+    /** flight time of a full battery [s] */
+    private double mEndurance = 20 * 60;
+
+    /** point the drone takes off from and lands at, NaN if not set [deg] */
+    private double mHomeLatitude = Double.NaN;
+    private double mHomeLongitude = Double.NaN;
+
+    /**
+     * Survey of an area.
+     */
+    public static class Plan {
+
+        /**
+         * waypoints of the passes, in order [deg], and the altitude of the passes above the take off
+         * point [m] (not above sea level, nor above the ground under the area)
+         */
+        private final double[] mLatitudes;
+        private final double[] mLongitudes;
+        public final float altitude;
+
+        /** distance along the path from the first waypoint at which each picture is taken [m] */
+        private final double[] mPictureDistances;
+        private final double[] mPictureLatitudes;
+        private final double[] mPictureLongitudes;
+
+        /** number of passes, and their bearing [deg] */
+        public final int passes;
+        public final double bearing;
+
+        /** length of the path [m] and speed along it [m/s] */
+        public final double length;
+        public final double speed;
+
+        /** time of the flight, with the transit from and to the home point if set [s] */
+        public final double flightTime;
+
+        /** battery used by the flight [%] */
+        public final float batteryNeeded;
+
+        Plan(double[] latitudes, double[] longitudes, float altitude, double[] pictureDistances,
+             double[] pictureLatitudes, double[] pictureLongitudes, int passes, double bearing,
+             double length, double speed, double flightTime, float batteryNeeded) {
+            mLatitudes = latitudes;
+            mLongitudes = longitudes;
+            this.altitude = altitude;
+            mPictureDistances = pictureDistances;
+            mPictureLatitudes = pictureLatitudes;
+            mPictureLongitudes = pictureLongitudes;
+            this.passes = passes;
+            this.bearing = bearing;
+            this.length = length;
+            this.speed = speed;
+            this.flightTime = flightTime;
+            this.batteryNeeded = batteryNeeded;
+        }
+
+        public int getWaypointCount() {
+            return mLatitudes.length;
+        }
+
+        public double getLatitude(int waypoint) {
+            return mLatitudes[waypoint];
+        }
+
+        public double getLongitude(int waypoint) {
+            return mLongitudes[waypoint];
+        }
+
+        public int getPictureCount() {
+            return mPictureDistances.length;
+        }
+
+        /**
+         * @param picture index of the picture
+         * @return distance along the path from the first waypoint at which the picture is taken [m]
+         */
+        public double getPictureDistance(int picture) {
+            return mPictureDistances[picture];
+        }
+
+        public double getPictureLatitude(int picture) {
+            return mPictureLatitudes[picture];
+        }
+
+        public double getPictureLongitude(int picture) {
+            return mPictureLongitudes[picture];
+        }
+
+        /**
+         * @param battery charge of the battery [%]
+         * @return true if the survey can be flown keeping the {@link #BATTERY_RESERVE}
+         */
+        public boolean isFeasible(int battery) {
+            return battery - batteryNeeded >= BATTERY_RESERVE;
+        }
+    }
+
+    /**
+     * @param across field of view across the passes [deg]
+     * @param along field of view along the passes [deg]
+     */
+    public void setFieldOfView(double across, double along) {
+        mFieldOfViewAcross = across;
+        mFieldOfViewAlong = along;
+    }
+
+    /**
+     * @param side overlap of the pictures of two passes, from 0 to 1
+     * @param front overlap of two pictures along a pass, from 0 to 1
+     */
+    public void setOverlap(double side, double front) {
+        mSideOverlap = side;
+        mFrontOverlap = front;
+    }
+
+    public void setPictureInterval(double interval) {
+        mPictureInterval = interval;
+    }
+
+    public void setMaxSpeed(double speed) {
+        mMaxSpeed = speed;
+    }
+
+    /**
+     * @param maxTilt max tilt of the drone [deg]
+     * @param maxVerticalSpeed max vertical speed of the drone [m/s]
+     */
+    public void setDroneLimits(float maxTilt, float maxVerticalSpeed) {
+        mMaxTilt = maxTilt;
+        mMaxVerticalSpeed = maxVerticalSpeed;
+    }
+
+    /**
+     * @param endurance flight time of a full battery [s]
+     */
+    public void setEndurance(double endurance) {
+        mEndurance = endurance;
+    }
+
+    /**
+     * Set the point the drone takes off from and lands at, to count the transit in the flight time
+     */
+    public void setHome(double lat, double lon) {
+        mHomeLatitude = lat;
+        mHomeLongitude = lon;
+    }
+
+    /**
+     * Plan the survey of an area
+     * @param latitudes latitudes of the vertices of the area [deg]
+     * @param longitudes longitudes of the vertices of the area [deg]
+     * @param altitude altitude of the survey above the take off point [m], the relative altitude the
+     *                 drone reports (not above sea level, nor above the ground under the area)
+     * @return the survey
+     */
+    public Plan plan(double[] latitudes, double[] longitudes, float altitude) {
+        int vertices = latitudes.length;
+        if (vertices < 3 || longitudes.length != vertices) {
+            throw new IllegalArgumentException("the area needs at least 3 vertices");
+        }
+
+        // local frame at the middle of the area
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < vertices; i++) {
+            minLat = Math.min(minLat, latitudes[i]);
+            maxLat = Math.max(maxLat, latitudes[i]);
+            minLon = Math.min(minLon, longitudes[i]);
+            maxLon = Math.max(maxLon, longitudes[i]);
+        }
+        double referenceLatitude = (minLat + maxLat) / 2;
+        double referenceLongitude = (minLon + maxLon) / 2;
+        double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(referenceLatitude));
+        double[] north = new double[vertices];
+        double[] east = new double[vertices];
+        for (int i = 0; i < vertices; i++) {
+            north[i] = (latitudes[i] - referenceLatitude) * METERS_PER_DEGREE;
+            east[i] = (longitudes[i] - referenceLongitude) * metersPerDegreeLongitude;
+        }
+
+        // footprint of a picture and spacing of the passes and pictures
+        double footprintAcross = 2 * altitude * Math.tan(Math.toRadians(mFieldOfViewAcross / 2));
+        double footprintAlong = 2 * altitude * Math.tan(Math.toRadians(mFieldOfViewAlong / 2));
+        double passSpacing = Math.max(0.1, footprintAcross * (1 - mSideOverlap));
+        double pictureSpacing = Math.max(0.1, footprintAlong * (1 - mFrontOverlap));
+
+        // speed leaving the time to take each picture, within what the drone can follow
+        TrajectoryPlanner planner = new TrajectoryPlanner();
+        planner.setMaxSpeed(Math.min(mMaxSpeed, pictureSpacing / mPictureInterval));
+        if (!Float.isNaN(mMaxTilt)) {
+            planner.setDroneLimits(mMaxTilt, mMaxVerticalSpeed);
+        }
+        double speed = planner.getMaxSpeed();
+
+        // passes along the direction the area is the narrowest across
+        double bearing = narrowestDirection(north, east);
+        double cos = Math.cos(bearing);
+        double sin = Math.sin(bearing);
+        double[] along = new double[vertices];
+        double[] across = new double[vertices];
+        double minAcross = Double.POSITIVE_INFINITY, maxAcross = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < vertices; i++) {
+            along[i] = cos * north[i] + sin * east[i];
+            across[i] = -sin * north[i] + cos * east[i];
+            minAcross = Math.min(minAcross, across[i]);
+            maxAcross = Math.max(maxAcross, across[i]);
+        }
+        int passes = Math.max(1, (int) Math.ceil((maxAcross - minAcross) / passSpacing));
+        double firstPass = minAcross + (maxAcross - minAcross - (passes - 1) * passSpacing) / 2;
+
+        double[][] segments = cutPasses(along, across, firstPass, passSpacing, passes);
+
+        // serpentine through the parts of the passes, listing the waypoints and the pictures
+        int waypointCount = 0;
+        int pictureCount = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < segments[pass].length; i += 2) {
+                waypointCount += 2;
+                pictureCount += picturesOver(segments[pass][i + 1] - segments[pass][i], pictureSpacing);
+            }
+        }
+        double[] waypointAlong = new double[waypointCount];
+        double[] waypointAcross = new double[waypointCount];
+        double[] pictureDistances = new double[pictureCount];
+        double[] pictureAlong = new double[pictureCount];
+        double[] pictureAcross = new double[pictureCount];
+        int waypoint = 0;
+        int picture = 0;
+        double distance = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            double[] cuts = segments[pass];
+            boolean forward = pass % 2 == 0;
+            double position = firstPass + pass * passSpacing;
+            for (int k = 0; k < cuts.length; k += 2) {
+                int i = forward ? k : cuts.length - 2 - k;
+                double start = forward ? cuts[i] : cuts[i + 1];
+                double end = forward ? cuts[i + 1] : cuts[i];
+
+                if (waypoint > 0) {
+                    distance += Math.hypot(start - waypointAlong[waypoint - 1], position - waypointAcross[waypoint - 1]);
+                }
+                waypointAlong[waypoint] = start;
+                waypointAcross[waypoint] = position;
+                waypointAlong[waypoint + 1] = end;
+                waypointAcross[waypoint + 1] = position;
+                waypoint += 2;
+
+                int count = picturesOver(Math.abs(end - start), pictureSpacing);
+                for (int p = 0; p < count; p++) {
+                    double fraction = (count > 1) ? (double) p / (count - 1) : 0.5;
+                    pictureDistances[picture] = distance + fraction * Math.abs(end - start);
+                    pictureAlong[picture] = start + fraction * (end - start);
+                    pictureAcross[picture] = position;
+                    picture++;
+                }
+                distance += Math.abs(end - start);
+            }
+        }
+
+        // back to coordinates
+        double[] waypointLatitudes = new double[waypointCount];
+        double[] waypointLongitudes = new double[waypointCount];
+        double[] waypointNorth = new double[waypointCount];
+        double[] waypointEast = new double[waypointCount];
+        for (int i = 0; i < waypointCount; i++) {
+            waypointNorth[i] = cos * waypointAlong[i] - sin * waypointAcross[i];
+            waypointEast[i] = sin * waypointAlong[i] + cos * waypointAcross[i];
+            waypointLatitudes[i] = referenceLatitude + waypointNorth[i] / METERS_PER_DEGREE;
+            waypointLongitudes[i] = referenceLongitude + waypointEast[i] / metersPerDegreeLongitude;
+        }
+        double[] pictureLatitudes = new double[pictureCount];
+        double[] pictureLongitudes = new double[pictureCount];
+        for (int i = 0; i < pictureCount; i++) {
+            pictureLatitudes[i] = referenceLatitude + (cos * pictureAlong[i] - sin * pictureAcross[i]) / METERS_PER_DEGREE;
+            pictureLongitudes[i] = referenceLongitude + (sin * pictureAlong[i] + cos * pictureAcross[i]) / metersPerDegreeLongitude;
+        }
+
+        // time of the flight, from and back to the home point at the altitude of the survey
+        boolean home = !Double.isNaN(mHomeLatitude);
+        int offset = home ? 1 : 0;
+        int count = waypointCount + 2 * offset;
+        double[] pathNorth = new double[count];
+        double[] pathEast = new double[count];
+        double[] pathDown = new double[count];
+        Arrays.fill(pathDown, -altitude);
+        System.arraycopy(waypointNorth, 0, pathNorth, offset, waypointCount);
+        System.arraycopy(waypointEast, 0, pathEast, offset, waypointCount);
+        if (home) {
+            pathNorth[0] = pathNorth[count - 1] = (mHomeLatitude - referenceLatitude) * METERS_PER_DEGREE;
+            pathEast[0] = pathEast[count - 1] = (mHomeLongitude - referenceLongitude) * metersPerDegreeLongitude;
+        }
+        double flightTime = planner.plan(pathNorth, pathEast, pathDown).getDuration();
+        if (home) {
+            // climb after the take off and descent before the landing
+            double verticalSpeed = Float.isNaN(mMaxVerticalSpeed) ? 1 : mMaxVerticalSpeed;
+            flightTime += 2 * altitude / verticalSpeed;
+        }
+
+        return new Plan(waypointLatitudes, waypointLongitudes, altitude, pictureDistances,
+                pictureLatitudes, pictureLongitudes, passes, (Math.toDegrees(bearing) + 360) % 360,
+                distance, speed, flightTime, (float) (100 * flightTime / mEndurance));
+    }
+
+    /**
+     * number of pictures along a part of a pass, one at each end and within the spacing
+     */
+    private static int picturesOver(double length, double spacing) {
+        return (int) Math.ceil(length / spacing) + 1;
+    }
+
+    /**
+     * direction of the side of the convex hull across which the area is the narrowest
+     * @return bearing of the side [rad]
+     */
+    static double narrowestDirection(double[] north, double[] east) {
+        int[] hull = convexHull(north, east);
+        int size = hull.length;
+        if (size < 3) {
+            return (size == 2) ? Math.atan2(east[hull[1]] - east[hull[0]], north[hull[1]] - north[hull[0]]) : 0;
+        }
+
+        // rotating calipers: the vertex farthest from each side only moves forward
+        double bestWidth = Double.POSITIVE_INFINITY;
+        double bestBearing = 0;
+        int far = 1;
+        for (int i = 0; i < size; i++) {
+            int a = hull[i];
+            int b = hull[(i + 1) % size];
+            double dn = north[b] - north[a];
+            double de = east[b] - east[a];
+            double side = Math.hypot(dn, de);
+            if (side == 0) {
+                continue;
+            }
+            while (cross(dn, de, north[hull[(far + 1) % size]] - north[a], east[hull[(far + 1) % size]] - east[a])
+                    >= cross(dn, de, north[hull[far]] - north[a], east[hull[far]] - east[a])) {
+                far = (far + 1) % size;
+                if (far == i) {
+                    break;
+                }
+            }
+            double width = Math.abs(cross(dn, de, north[hull[far]] - north[a], east[hull[far]] - east[a])) / side;
+            if (width < bestWidth) {
+                bestWidth = width;
+                bestBearing = Math.atan2(de, dn);
+            }
+        }
+        return bestBearing;
+    }
+
+    private static double cross(double an, double ae, double bn, double be) {
+        return an * be - ae * bn;
+    }
+
+    /**
+     * convex hull of points (monotone chain)
+     * @return indices of the points of the hull, counterclockwise in the north-east plane
+     */
+    static int[] convexHull(final double[] north, final double[] east) {
+        int count = north.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byNorth = Double.compare(north[a], north[b]);
+                return (byNorth != 0) ? byNorth : Double.compare(east[a], east[b]);
+            }
+        });
+
+        int[] hull = new int[2 * count];
+        int size = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int start = size;
+            for (int k = 0; k < count; k++) {
+                int p = order[pass == 0 ? k : count - 1 - k];
+                while (size >= start + 2 && cross(north[hull[size - 1]] - north[hull[size - 2]], east[hull[size - 1]] - east[hull[size - 2]],
+                        north[p] - north[hull[size - 2]], east[p] - east[hull[size - 2]]) <= 0) {
+                    size--;
+                }
+                hull[size++] = p;
+            }
+            // the last point is the first of the other chain
+            size--;
+        }
+        return Arrays.copyOf(hull, Math.max(1, size));
+    }
+
+    /**
+     * cut the passes by the area, each pass extended at its ends so the camera reaches the edges of
+     * the area between the passes
+     * @param along positions of the vertices along the passes [m]
+     * @param across positions of the vertices across the passes [m]
+     * @return for each pass, the start and end of each part flown over the area, along the pass [m]
+     */
+    private static double[][] cutPasses(double[] along, double[] across, double firstPass, double spacing, int passes) {
+        int vertices = along.length;
+
+        // count, then fill the crossings of the edges with each pass
+        int[] counts = new int[passes];
+        double[][] crossings = new double[passes][];
+        for (int fill = 0; fill < 2; fill++) {
+            if (fill == 1) {
+                for (int pass = 0; pass < passes; pass++) {
+                    crossings[pass] = new double[counts[pass]];
+                    counts[pass] = 0;
+                }
+            }
+            for (int i = 0; i < vertices; i++) {
+                int j = (i + 1) % vertices;
+                double w0 = across[i], w1 = across[j];
+                if (w0 == w1) {
+                    continue;
+                }
+                // passes crossing the edge, half open to count the vertices once
+                double low = Math.min(w0, w1), high = Math.max(w0, w1);
+                int first = Math.max(0, (int) Math.ceil((low - firstPass) / spacing));
+                int last = Math.min(passes - 1, (int) Math.ceil((high - firstPass) / spacing) - 1);
+                for (int pass = first; pass <= last; pass++) {
+                    double w = firstPass + pass * spacing;
+                    if (w < low || w >= high) {
+                        continue;
+                    }
+                    if (fill == 1) {
+                        double t = (w - w0) / (w1 - w0);
+                        crossings[pass][counts[pass]] = along[i] + t * (along[j] - along[i]);
+                    }
+                    counts[pass]++;
+                }
+            }
+        }
+
+        double[][] segments = new double[passes][];
+        for (int pass = 0; pass < passes; pass++) {
+            double[] cuts = crossings[pass];
+            Arrays.sort(cuts);
+            int pairs = cuts.length / 2;
+            segments[pass] = Arrays.copyOf(cuts, 2 * pairs);
+        }
+
+        // extend the parts to the extent of the area within half a spacing of the pass
+        double half = spacing / 2;
+        for (int i = 0; i < vertices; i++) {
+            int j = (i + 1) % vertices;
+            double lowAcross = Math.min(across[i], across[j]);
+            double highAcross = Math.max(across[i], across[j]);
+            int first = Math.max(0, (int) Math.floor((lowAcross - half - firstPass) / spacing));
+            int last = Math.min(passes - 1, (int) Math.ceil((highAcross + half - firstPass) / spacing));
+            for (int pass = first; pass <= last; pass++) {
+                double w = firstPass + pass * spacing;
+                double from = Math.max(lowAcross, w - half);
+                double to = Math.min(highAcross, w + half);
+                if (from > to || segments[pass].length == 0) {
+                    continue;
+                }
+                // the part of the edge within the strip of the pass
+                double a0 = alongAt(along, across, i, j, from);
+                double a1 = alongAt(along, across, i, j, to);
+                extend(segments[pass], Math.min(a0, a1), Math.max(a0, a1));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * position along the passes of an edge at a position across them
+     */
+    private static double alongAt(double[] along, double[] across, int i, int j, double w) {
+        if (across[i] == across[j]) {
+            return (w == across[i]) ? along[i] : along[j];
+        }
+        double t = Math.max(0, Math.min(1, (w - across[i]) / (across[j] - across[i])));
+        return along[i] + t * (along[j] - along[i]);
+    }
+
+    /**
+     * extend the nearest part of a pass to cover an extent along the pass
+     */
+    private static void extend(double[] cuts, double from, double to) {
+        // the part the extent overlaps or is the closest to
+        int best = 0;
+        double bestGap = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < cuts.length; k += 2) {
+            double gap = Math.max(0, Math.max(cuts[k] - to, from - cuts[k + 1]));
+            if (gap < bestGap) {
+                bestGap = gap;
+                best = k;
+            }
+        }
+        cuts[best] = Math.min(cuts[best], from);
+        cuts[best + 1] = Math.max(cuts[best + 1], to);
+    }
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
@@ -30,10 +31,11 @@ import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
  * Helper class for logging all of the important data from the Bebop drone to file.
  *
  * Note: implements a bebopdrone listener to be able to know when all the things happen
+ * (and stream health and link quality listeners to keep the link quality for post flight analysis)
  *
  * @author Adrien Perkins <adrienp@stanford.edu>
  */
-public class DataLogger implements BebopDroneListener {
+public class DataLogger implements BebopDroneListener, StreamHealthMonitor.Listener, LinkQualityMonitor.Listener {
 
     /** helpful constants */
     private static final String FILE_PREFIX = "bebop";
@@ -41,6 +43,9 @@ public class DataLogger implements BebopDroneListener {
     /** context of the calling activity */
     private Context mContext;
 
+    /** name of the drone, in the file name when several drones are logged at once */
+    private final String mDroneName;
+
     /** whether or not we should be logging to file */
     private boolean mLogging = false;
 
@@ -49,12 +54,25 @@ public class DataLogger implements BebopDroneListener {
     private BufferedWriter mFileWriter;
     private File mFile;
 
+    /** time taken by each write */
+    private final LatencyHistogram mWriteLatency = MetricsRegistry.getDefault().histogram(MetricsRegistry.LOGGER_WRITE);
+
     /**
      * Constructor
      * @param context  context containing this instance
      */
     public DataLogger(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Constructor
+     * @param context  context containing this instance
+     * @param droneName name of the logged drone, to tell apart the logs of a fleet
+     */
+    public DataLogger(Context context, String droneName) {
         mContext = context;
+        mDroneName = droneName;
     }
 
 
@@ -80,7 +98,12 @@ public class DataLogger implements BebopDroneListener {
             // name, create, and open the file
             SimpleDateFormat formatter = new SimpleDateFormat("yyy_MM_dd_HH_mm_ss", Locale.US);
             Date now = new Date();
-            String fileName = String.format("%s_log_%s.txt", FILE_PREFIX, formatter.format(now));
+            String fileName;
+            if (mDroneName == null) {
+                fileName = String.format("%s_log_%s.txt", FILE_PREFIX, formatter.format(now));
+            } else {
+                fileName = String.format("%s_%s_log_%s.txt", FILE_PREFIX, mDroneName.replaceAll("[^A-Za-z0-9_-]", "_"), formatter.format(now));
+            }
             File currentFile = new File(baseDirectory, fileName);
             String currentFilePath = currentFile.getAbsolutePath();
             BufferedWriter currentFileWriter;
@@ -138,8 +161,68 @@ public class DataLogger implements BebopDroneListener {
                 } catch (IOException e) {
                     // unable to close the file for some reason
                 }
+                exportTrace(mFile);
+            }
+        }
+    }
+
+    /**
+     * Save the flight trace next to a log file, in the background
+     * @param logFile the log file
+     */
+    private void exportTrace(File logFile) {
+        final FlightTracer tracer = FlightTracer.getDefault();
+        if (!tracer.isEnabled() || logFile == null) {
+            return;
+        }
+
+        final File traceFile = new File(logFile.getParentFile(), logFile.getName().replace(".txt", ".trace.json"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tracer.export(traceFile);
+                    tracer.clear();
+                } catch (IOException e) {
+                    // nothing to do, the trace is lost
+                }
+            }
+        }, "TraceExport").start();
+    }
+
+
+    /**
+     * Log the runtime metrics over the last report interval.
+     * @param samples the value of each instrument
+     */
+    public void onMetricsReported(List<MetricsRegistry.Sample> samples) {
+        synchronized (mFileLock) {
+            if (mFileWriter == null) {
+                return;
             }
+
+            long now = System.currentTimeMillis();
+            for (MetricsRegistry.Sample sample : samples) {
+                String newLine = String.format(Locale.US, "MET:%d,%s,%d,%d,%.2f,%.3f,%.3f,%.3f,%.3f", now, sample.name,
+                        sample.type, sample.count, sample.rate, sample.p50, sample.p90, sample.p99, sample.max);
+                writeLine(newLine);
+            }
+        }
+    }
+
+    /**
+     * write a line to the log file, must be called holding the file lock
+     * @param line the line
+     */
+    private void writeLine(String line) {
+        long start = System.nanoTime();
+        try {
+            mFileWriter.write(line);
+            mFileWriter.newLine();
+        } catch (IOException e) {
+            // nothing to do, will just miss this entry
         }
+        mWriteLatency.record(System.nanoTime() - start);
     }
 
 
@@ -151,6 +234,18 @@ public class DataLogger implements BebopDroneListener {
 
     }
 
+    @Override
+    public void onConnectionStateChanged(int state, int previousState, long timeInPreviousState) {
+        synchronized (mFileLock) {
+            if (mFileWriter == null) {
+                return;
+            }
+
+            String newLine = String.format(Locale.US, "CON:%d,%d,%d,%d", System.currentTimeMillis(), state, previousState, timeInPreviousState);
+            writeLine(newLine);
+        }
+    }
+
     @Override
     public void onBatteryChargeChanged(Date timestamp, int batteryPercentage) {
         synchronized (mFileLock) {
@@ -159,12 +254,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "BAT:%d,%d", timestamp.getTime(), batteryPercentage);
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -176,12 +266,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "PIL:%d,%d", timestamp.getTime(), state.getValue());
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -193,12 +278,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "POS:%d,%f,%f,%f", timestamp.getTime(), lat, lon, alt);
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
 
     }
@@ -212,12 +292,7 @@ public class DataLogger implements BebopDroneListener {
 
             // add the line to the file
             String newLine = String.format(Locale.US, "VEL:%d,%f,%f,%f", timestamp.getTime(), vx, vy, vz);
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
 
     }
@@ -231,12 +306,7 @@ public class DataLogger implements BebopDroneListener {
 
             // add the line to the file
             String newLine = String.format(Locale.US, "ATT:%d,%f,%f,%f", timestamp.getTime(), roll, pitch, yaw);
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -248,12 +318,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "ALT:%d,%f", timestamp.getTime(), alt);
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -265,12 +330,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "CMD:%d,%f,%f,%f,%f,%d", timestamp.getTime(), dx, dy, dz, dpsi, error);
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -282,12 +342,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "PIC:%d,%d", timestamp.getTime(), error.getValue());
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -299,12 +354,7 @@ public class DataLogger implements BebopDroneListener {
             }
 
             String newLine = String.format(Locale.US, "VID:%d,%d,%d", timestamp.getTime(), event.getValue(), error.getValue());
-            try {
-                mFileWriter.write(newLine);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                // nothing to do, will just miss this entry
-            }
+            writeLine(newLine);
         }
     }
 
@@ -318,6 +368,37 @@ public class DataLogger implements BebopDroneListener {
 
     }
 
+    @Override
+    public void onStreamHealthUpdated(StreamHealthMonitor.Summary summary) {
+        synchronized (mFileLock) {
+            if (mFileWriter == null) {
+                return;
+            }
+
+            String newLine = String.format(Locale.US, "VHS:%d,%d,%d,%d,%d,%d,%d,%d,%d,%d", summary.timestamp, summary.duration,
+                    summary.frames, summary.idrFrames, summary.missedFrames, summary.brokenFrames,
+                    summary.gaps, summary.maxGap, summary.bytes, summary.gopLength);
+            writeLine(newLine);
+        }
+    }
+
+    @Override
+    public void onLinkQualityChanged(LinkQualityMonitor.Quality quality) {
+        synchronized (mFileLock) {
+            if (mFileWriter == null) {
+                return;
+            }
+
+            String newLine = String.format(Locale.US, "LNK:%d,%.3f,%d,%.3f,%d,%d,%.1f,%.1f,%.1f,%.1f", quality.timestamp,
+                    quality.score, quality.level, quality.videoScore, quality.gaps, quality.maxGap,
+                    quality.getChannelRate(LinkQualityMonitor.CHANNEL_ATTITUDE),
+                    quality.getChannelRate(LinkQualityMonitor.CHANNEL_SPEED),
+                    quality.getChannelRate(LinkQualityMonitor.CHANNEL_POSITION),
+                    quality.getChannelRate(LinkQualityMonitor.CHANNEL_ALTITUDE));
+            writeLine(newLine);
+        }
+    }
+
     @Override
     public void onMatchingMediasFound(int nbMedias) {
 
@@ -332,4 +413,9 @@ public class DataLogger implements BebopDroneListener {
     public void onDownloadComplete(String mediaName) {
 
     }
+
+    @Override
+    public void onThumbnailAvailable(String mediaName) {
+
+    }
 }
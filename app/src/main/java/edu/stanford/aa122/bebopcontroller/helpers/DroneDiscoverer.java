@@ -9,13 +9,17 @@ import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceNetService;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryService;
 import com.parrot.arsdk.ardiscovery.receivers.ARDiscoveryServicesDevicesListUpdatedReceiver;
 import com.parrot.arsdk.ardiscovery.receivers.ARDiscoveryServicesDevicesListUpdatedReceiverDelegate;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper class for handling the drone discovery elements.
@@ -28,12 +32,28 @@ public class DroneDiscoverer {
 
     public interface Listener {
         /**
-         * Called when the list of seen drones is updated
+         * Called when a drone is seen for the first time
          * Called in the main thread
-         * @param dronesList list of ARDiscoveryDeviceService which represents all available drones
-         *                   Content of this list respect the drone types given in startDiscovery
+         * @param drone the service of the drone
+         * @param position position of the drone in the list of seen drones
          */
-        void onDronesListUpdated(List<ARDiscoveryDeviceService> dronesList);
+        void onDroneAdded(ARDiscoveryDeviceService drone, int position);
+
+        /**
+         * Called when a drone is no longer seen
+         * Called in the main thread
+         * @param drone the service of the drone
+         * @param position position the drone had in the list of seen drones
+         */
+        void onDroneRemoved(ARDiscoveryDeviceService drone, int position);
+
+        /**
+         * Called when a drone still seen is advertised with other properties (product, port...)
+         * Called in the main thread
+         * @param drone the new service of the drone
+         * @param position position of the drone in the list of seen drones
+         */
+        void onDroneChanged(ARDiscoveryDeviceService drone, int position);
     }
 
     private final List<Listener> mListeners;
@@ -45,8 +65,12 @@ public class DroneDiscoverer {
     private ServiceConnection mArdiscoveryServiceConnection;
     private final ARDiscoveryServicesDevicesListUpdatedReceiver mArdiscoveryServicesDevicesListUpdatedReceiver;
 
+    /** seen drones, in the order they were discovered */
     private final List<ARDiscoveryDeviceService> mMatchingDrones;
 
+    /** properties of the seen drones, by key (see {@link #key(ARDiscoveryDeviceService)}) */
+    private final Map<String, String> mSignatures;
+
     private boolean mStartDiscoveryAfterConnection;
 
     public DroneDiscoverer(Context ctx) {
@@ -55,20 +79,23 @@ public class DroneDiscoverer {
         mListeners = new ArrayList<>();
 
         mMatchingDrones = new ArrayList<>();
+        mSignatures = new HashMap<>();
 
         mArdiscoveryServicesDevicesListUpdatedReceiver = new ARDiscoveryServicesDevicesListUpdatedReceiver(mDiscoveryListener);
     }
 
     /**
      * Add a listener
-     * All callbacks of the interface Listener will be called within this function
+     * {@link Listener#onDroneAdded} is called within this function for the drones already seen
      * Should be called in the main thread
      * @param listener an object that implements the {@link Listener} interface
      */
     public void addListener(Listener listener) {
         mListeners.add(listener);
 
-        notifyServiceDiscovered(mMatchingDrones);
+        for (int i = 0; i < mMatchingDrones.size(); i++) {
+            listener.onDroneAdded(mMatchingDrones.get(i), i);
+        }
     }
 
     /**
@@ -79,6 +106,14 @@ public class DroneDiscoverer {
         mListeners.remove(listener);
     }
 
+    /**
+     * Get the seen drones
+     * @return the drones, in the order they were discovered
+     */
+    public List<ARDiscoveryDeviceService> getDrones() {
+        return Collections.unmodifiableList(mMatchingDrones);
+    }
+
     /**
      * Setup the drone discoverer
      * Should be called before starting discovering
@@ -145,7 +180,7 @@ public class DroneDiscoverer {
     /**
      * Start discovering Parrot drones
      * For Wifi drones, the device should be on the drone's network
-     * When drones will be discovered, you will be notified through {@link Listener#onDronesListUpdated(List)}
+     * When drones will be discovered, you will be notified through {@link Listener#onDroneAdded}
      */
     public void startDiscovering() {
         if (mArdiscoveryService != null) {
@@ -169,10 +204,87 @@ public class DroneDiscoverer {
         mStartDiscoveryAfterConnection = false;
     }
 
-    private void notifyServiceDiscovered(List<ARDiscoveryDeviceService> dronesList) {
+    /**
+     * Apply the list of drones advertised by the discovery service and notify the differences
+     * @param deviceList the advertised drones
+     */
+    private void updateDrones(List<ARDiscoveryDeviceService> deviceList) {
+        ListDiff.apply(mMatchingDrones, mSignatures, deviceList, DRONE_IDENTITY, mDiffCallback);
+    }
+
+    /** a drone is identified by its name and address, its other properties can change */
+    private static final ListDiff.Identity<ARDiscoveryDeviceService> DRONE_IDENTITY = new ListDiff.Identity<ARDiscoveryDeviceService>() {
+        @Override
+        public String key(ARDiscoveryDeviceService item) {
+            return DroneDiscoverer.key(item);
+        }
+
+        @Override
+        public String signature(ARDiscoveryDeviceService item) {
+            return DroneDiscoverer.signature(item);
+        }
+    };
+
+    private final ListDiff.Callback<ARDiscoveryDeviceService> mDiffCallback = new ListDiff.Callback<ARDiscoveryDeviceService>() {
+        @Override
+        public void onRemoved(ARDiscoveryDeviceService item, int position) {
+            notifyDroneRemoved(item, position);
+        }
+
+        @Override
+        public void onChanged(ARDiscoveryDeviceService item, int position) {
+            notifyDroneChanged(item, position);
+        }
+
+        @Override
+        public void onAdded(ARDiscoveryDeviceService item, int position) {
+            notifyDroneAdded(item, position);
+        }
+    };
+
+    /**
+     * identity of a drone: its name and its address
+     */
+    static String key(ARDiscoveryDeviceService service) {
+        Object device = service.getDevice();
+        if (device instanceof ARDiscoveryDeviceNetService) {
+            return service.getName() + "@" + ((ARDiscoveryDeviceNetService) device).getIp();
+        }
+        return service.getName() + "@" + service.getNetworkType();
+    }
+
+    /**
+     * properties of a drone which can change while it is seen
+     */
+    private static String signature(ARDiscoveryDeviceService service) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(service.getProductID());
+        Object device = service.getDevice();
+        if (device instanceof ARDiscoveryDeviceNetService) {
+            ARDiscoveryDeviceNetService netService = (ARDiscoveryDeviceNetService) device;
+            sb.append(':').append(netService.getPort()).append(':').append(netService.getType());
+        }
+        return sb.toString();
+    }
+
+    private void notifyDroneAdded(ARDiscoveryDeviceService drone, int position) {
+        List<Listener> listenersCpy = new ArrayList<>(mListeners);
+        for (Listener listener : listenersCpy) {
+            listener.onDroneAdded(drone, position);
+        }
+    }
+
+    private void notifyDroneRemoved(ARDiscoveryDeviceService drone, int position) {
+        List<Listener> listenersCpy = new ArrayList<>(mListeners);
+        for (Listener listener : listenersCpy) {
+            listener.onDroneRemoved(drone, position);
+        }
+    }
+
+    private void notifyDroneChanged(ARDiscoveryDeviceService drone, int position) {
         List<Listener> listenersCpy = new ArrayList<>(mListeners);
         for (Listener listener : listenersCpy) {
-            listener.onDronesListUpdated(dronesList);
+            listener.onDroneChanged(drone, position);
         }
     }
 
@@ -181,16 +293,7 @@ public class DroneDiscoverer {
                 @Override
                 public void onServicesDevicesListUpdated() {
                     if (mArdiscoveryService != null) {
-                        // clear current list
-                        mMatchingDrones.clear();
-                        List<ARDiscoveryDeviceService> deviceList = mArdiscoveryService.getDeviceServicesArray();
-
-                        if (deviceList != null)  {
-                            for (ARDiscoveryDeviceService service : deviceList) {
-                                mMatchingDrones.add(service);
-                            }
-                        }
-                        notifyServiceDiscovered(mMatchingDrones);
+                        updateDrones(mArdiscoveryService.getDeviceServicesArray());
                     }
                 }
             };
@@ -0,0 +1,280 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the timeline of a flight session as trace events, to find where the time goes between
+ * the controller, the SDK, the drone and the handler queues.
+ *
+ * Each command is an asynchronous span, from being issued to its end being delivered to the
+ * listeners, with a mark at each step in between.  Work done on one thread is recorded as complete
+ * spans.  The events are kept in a fixed-size ring (the oldest are overwritten) and exported in the
+ * Chrome trace event format, to be opened in chrome://tracing or Perfetto.
+ *
+ * Recording is lock free and allocation free, and is a single branch when tracing is disabled.
+ */
+public class FlightTracer {
+
+    /** default number of events kept */
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    private static final char PHASE_BEGIN = 'b';
+    private static final char PHASE_STEP = 'n';
+    private static final char PHASE_END = 'e';
+    private static final char PHASE_COMPLETE = 'X';
+    private static final char PHASE_INSTANT = 'i';
+
+    private static final String CATEGORY = "bebop";
+
+    private static final FlightTracer sDefault = new FlightTracer(DEFAULT_CAPACITY);
+
+    private volatile boolean mEnabled = false;
+
+    // events, indexed by slot
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final long[] mValues;
+    private final long[] mThreads;
+    private final String[] mNames;
+    private final char[] mPhases;
+
+    /** sequence number of the event in each slot, -1 while it is being written */
+    private final AtomicLongArray mSlotSequences;
+
+    /** sequence number of the next event */
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /** id of the next command span */
+    private final AtomicLong mNextId = new AtomicLong(1);
+
+    /** names of the threads that recorded events, by id */
+    private final List<Long> mThreadIds = new ArrayList<>();
+    private final List<String> mThreadNames = new ArrayList<>();
+    private final ThreadLocal<Long> mThreadId = new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+            Thread thread = Thread.currentThread();
+            synchronized (mThreadNames) {
+                mThreadIds.add(thread.getId());
+                mThreadNames.add(thread.getName());
+            }
+            return thread.getId();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param capacity number of events kept
+     */
+    public FlightTracer(int capacity) {
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mValues = new long[capacity];
+        mThreads = new long[capacity];
+        mNames = new String[capacity];
+        mPhases = new char[capacity];
+        mSlotSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSlotSequences.set(i, -1);
+        }
+    }
+
+    /**
+     * @return the tracer shared by the whole app
+     */
+    public static FlightTracer getDefault() {
+        return sDefault;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Start the span of a command
+     * @param name name of the command
+     * @return id of the span, 0 if tracing is disabled
+     */
+    public long beginCommand(String name) {
+        if (!mEnabled) {
+            return 0;
+        }
+        long id = mNextId.getAndIncrement();
+        record(PHASE_BEGIN, name, id, System.nanoTime());
+        return id;
+    }
+
+    /**
+     * Mark a step of a command
+     * @param id id of the span of the command (nothing is recorded for 0)
+     * @param name name of the step
+     */
+    public void step(long id, String name) {
+        if (!mEnabled || id == 0) {
+            return;
+        }
+        record(PHASE_STEP, name, id, System.nanoTime());
+    }
+
+    /**
+     * End the span of a command
+     * @param id id of the span of the command (nothing is recorded for 0)
+     * @param name name of the command
+     */
+    public void endCommand(long id, String name) {
+        if (!mEnabled || id == 0) {
+            return;
+        }
+        record(PHASE_END, name, id, System.nanoTime());
+    }
+
+    /**
+     * Record a span of work done by the calling thread
+     * @param name name of the span
+     * @param start start of the span, from {@link System#nanoTime()} [ns]
+     */
+    public void complete(String name, long start) {
+        if (!mEnabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        record(PHASE_COMPLETE, name, now - start, start);
+    }
+
+    /**
+     * Mark an event on the calling thread
+     * @param name name of the event
+     */
+    public void instant(String name) {
+        if (!mEnabled) {
+            return;
+        }
+        record(PHASE_INSTANT, name, 0, System.nanoTime());
+    }
+
+    /**
+     * Drop all of the events recorded
+     */
+    public void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            mSlotSequences.set(i, -1);
+        }
+    }
+
+    private void record(char phase, String name, long value, long time) {
+        long sequence = mNextSequence.getAndIncrement();
+        int slot = (int) (sequence % mCapacity);
+
+        // readers skip the slot while it is written
+        mSlotSequences.set(slot, -1);
+        mPhases[slot] = phase;
+        mNames[slot] = name;
+        mValues[slot] = value;
+        mTimes[slot] = time;
+        mThreads[slot] = mThreadId.get();
+        mSlotSequences.set(slot, sequence);
+    }
+
+    /**
+     * Export the events to a file
+     * @param file the file, overwritten
+     * @return number of events exported
+     * @throws IOException if the file could not be written
+     */
+    public int export(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            return export(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Export the events, oldest first, in the Chrome trace event format (JSON object form)
+     * @param out where to write the events
+     * @return number of events exported
+     * @throws IOException if the events could not be written
+     */
+    public int export(Writer out) throws IOException {
+        long next = mNextSequence.get();
+        long first = Math.max(0, next - mCapacity);
+
+        // time origin of the trace, the complete spans are recorded after their start
+        long origin = Long.MAX_VALUE;
+        for (long sequence = first; sequence < next; sequence++) {
+            int slot = (int) (sequence % mCapacity);
+            if (mSlotSequences.get(slot) == sequence) {
+                origin = Math.min(origin, mTimes[slot]);
+            }
+        }
+
+        out.write("{\"traceEvents\":[");
+        int count = 0;
+        for (long sequence = first; sequence < next; sequence++) {
+            int slot = (int) (sequence % mCapacity);
+            if (mSlotSequences.get(slot) != sequence) {
+                continue;
+            }
+            char phase = mPhases[slot];
+            String name = mNames[slot];
+            long value = mValues[slot];
+            long time = mTimes[slot];
+            long thread = mThreads[slot];
+            if (mSlotSequences.get(slot) != sequence) {
+                // overwritten while being read
+                continue;
+            }
+
+            if (count > 0) {
+                out.write(',');
+            }
+            out.write(String.format(Locale.US, "\n{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"%c\",\"ts\":%.3f,\"pid\":1,\"tid\":%d",
+                    escape(name), CATEGORY, phase, (time - origin) / 1000.0, thread));
+            switch (phase) {
+                case PHASE_BEGIN:
+                case PHASE_STEP:
+                case PHASE_END:
+                    out.write(String.format(Locale.US, ",\"id\":\"0x%x\"", value));
+                    break;
+                case PHASE_COMPLETE:
+                    out.write(String.format(Locale.US, ",\"dur\":%.3f", value / 1000.0));
+                    break;
+                case PHASE_INSTANT:
+                    out.write(",\"s\":\"t\"");
+                    break;
+            }
+            out.write('}');
+            count++;
+        }
+
+        synchronized (mThreadNames) {
+            for (int i = 0; i < mThreadNames.size(); i++) {
+                if (count > 0 || i > 0) {
+                    out.write(',');
+                }
+                out.write(String.format(Locale.US, "\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                        mThreadIds.get(i), escape(mThreadNames.get(i))));
+            }
+        }
+        out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+        return count;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
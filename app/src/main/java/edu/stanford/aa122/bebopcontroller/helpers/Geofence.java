@@ -0,0 +1,668 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Operating area of the drone, checked by the app before the commands are sent.
+ *
+ * The area is made of polygon zones, each with an altitude band: the drone has to stay in one of
+ * the keep in zones (if there are any) and out of all of the keep out zones.  An altitude envelope
+ * applies everywhere.
+ *
+ * The zones are rasterized on a grid when built: each cell knows which polygons contain its
+ * center and which edges cross it.  Locating a point is then a lookup of its cell and a parity
+ * test against the few edges crossing the cell, in constant time whatever the number of
+ * vertices of the polygons.  The checks allocate nothing, they can run at the control rate.
+ *
+ * Positions are given as latitude and longitude [deg] and altitude above the take off [m],
+ * moves and commands in the local NED frame of the {@link StateEstimator}.
+ */
+public class Geofence {
+
+    /** most zones a geofence can hold */
+    public static final int MAX_ZONES = 64;
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(6378137.0);
+
+    /* bounds of the number of cells along each side of the grid */
+    private static final int MIN_GRID_SIZE = 16;
+    private static final int MAX_GRID_SIZE = 512;
+
+    /** time the commanded tilt and climb are projected over to check the piloting commands [s] */
+    public static final double LOOKAHEAD = 2.0;
+
+    private static final double GRAVITY = 9.81;
+
+    /** tilt commanded to brake when the drone would leave the area even without tilt [%] */
+    private static final int BRAKE_COMMAND = 50;
+
+    // zones, as given
+    private final List<double[]> mZoneLatitudes = new ArrayList<>();
+    private final List<double[]> mZoneLongitudes = new ArrayList<>();
+    private final float[] mMinAltitudes = new float[MAX_ZONES];
+    private final float[] mMaxAltitudes = new float[MAX_ZONES];
+    private long mKeepInZones = 0;
+    private long mKeepOutZones = 0;
+
+    /** altitude envelope [m] */
+    private float mMinAltitude = Float.NEGATIVE_INFINITY;
+    private float mMaxAltitude = Float.POSITIVE_INFINITY;
+
+    /* grid, valid once built */
+    private boolean mBuilt = false;
+    private double mReferenceLatitude;
+    private double mReferenceLongitude;
+    private double mMetersPerDegreeLongitude;
+    private double mGridNorth;
+    private double mGridEast;
+    private double mCellSize;
+    private int mRows;
+    private int mColumns;
+
+    /** zones (bit per zone) containing the center of each cell */
+    private long[] mCenterInside;
+
+    /** edges crossing each cell: indices in mCellEdges from mCellEdgeStart[cell] to mCellEdgeStart[cell + 1] */
+    private int[] mCellEdgeStart;
+    private int[] mCellEdges;
+
+    /** edges of all the zones, in meters from the reference */
+    private double[] mEdgeNorth0;
+    private double[] mEdgeEast0;
+    private double[] mEdgeNorth1;
+    private double[] mEdgeEast1;
+    private int[] mEdgeZones;
+
+    /**
+     * Add a zone the drone has to stay in
+     * @param latitudes latitudes of the vertices of the polygon [deg]
+     * @param longitudes longitudes of the vertices of the polygon [deg]
+     * @param minAltitude lowest altitude allowed in the zone [m]
+     * @param maxAltitude highest altitude allowed in the zone [m]
+     * @return index of the zone
+     */
+    public int addKeepInZone(double[] latitudes, double[] longitudes, float minAltitude, float maxAltitude) {
+        int zone = addZone(latitudes, longitudes, minAltitude, maxAltitude);
+        mKeepInZones |= 1L << zone;
+        return zone;
+    }
+
+    /**
+     * Add a zone the drone has to stay out of
+     * @param latitudes latitudes of the vertices of the polygon [deg]
+     * @param longitudes longitudes of the vertices of the polygon [deg]
+     * @param minAltitude lowest altitude of the zone [m]
+     * @param maxAltitude highest altitude of the zone [m], the drone can fly over the zone above it
+     * @return index of the zone
+     */
+    public int addKeepOutZone(double[] latitudes, double[] longitudes, float minAltitude, float maxAltitude) {
+        int zone = addZone(latitudes, longitudes, minAltitude, maxAltitude);
+        mKeepOutZones |= 1L << zone;
+        return zone;
+    }
+
+    /**
+     * Set the altitudes allowed everywhere
+     * @param minAltitude lowest altitude above the take off [m]
+     * @param maxAltitude highest altitude above the take off [m]
+     */
+    public void setAltitudeEnvelope(float minAltitude, float maxAltitude) {
+        mMinAltitude = minAltitude;
+        mMaxAltitude = maxAltitude;
+    }
+
+    /**
+     * Create a geofence keeping the drone within a distance of a point, a circle approximated by a
+     * polygon lying inside of it
+     * @param lat latitude of the center [deg]
+     * @param lon longitude of the center [deg]
+     * @param radius distance allowed from the center [m]
+     * @param maxAltitude highest altitude above the take off [m]
+     * @return the geofence
+     */
+    public static Geofence around(double lat, double lon, double radius, float maxAltitude) {
+        int vertices = 64;
+        double[] latitudes = new double[vertices];
+        double[] longitudes = new double[vertices];
+        double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            latitudes[i] = lat + radius * Math.cos(angle) / METERS_PER_DEGREE;
+            longitudes[i] = lon + radius * Math.sin(angle) / metersPerDegreeLongitude;
+        }
+
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(latitudes, longitudes, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        geofence.setAltitudeEnvelope(Float.NEGATIVE_INFINITY, maxAltitude);
+        return geofence;
+    }
+
+    public int getZoneCount() {
+        return mZoneLatitudes.size();
+    }
+
+    private int addZone(double[] latitudes, double[] longitudes, float minAltitude, float maxAltitude) {
+        if (latitudes.length != longitudes.length || latitudes.length < 3) {
+            throw new IllegalArgumentException("a zone needs at least 3 vertices");
+        }
+        int zone = mZoneLatitudes.size();
+        if (zone >= MAX_ZONES) {
+            throw new IllegalStateException("too many zones");
+        }
+        mZoneLatitudes.add(latitudes.clone());
+        mZoneLongitudes.add(longitudes.clone());
+        mMinAltitudes[zone] = minAltitude;
+        mMaxAltitudes[zone] = maxAltitude;
+        mBuilt = false;
+        return zone;
+    }
+
+    /**
+     * Rasterize the zones on the grid, done by the first check after the zones changed
+     */
+    public synchronized void build() {
+        if (mBuilt) {
+            return;
+        }
+        int zones = mZoneLatitudes.size();
+        int edges = 0;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int z = 0; z < zones; z++) {
+            double[] lats = mZoneLatitudes.get(z);
+            double[] lons = mZoneLongitudes.get(z);
+            edges += lats.length;
+            for (int i = 0; i < lats.length; i++) {
+                minLat = Math.min(minLat, lats[i]);
+                maxLat = Math.max(maxLat, lats[i]);
+                minLon = Math.min(minLon, lons[i]);
+                maxLon = Math.max(maxLon, lons[i]);
+            }
+        }
+        if (zones == 0) {
+            minLat = maxLat = minLon = maxLon = 0;
+        }
+
+        // local frame at the center of the zones
+        mReferenceLatitude = (minLat + maxLat) / 2;
+        mReferenceLongitude = (minLon + maxLon) / 2;
+        mMetersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(mReferenceLatitude));
+
+        mEdgeNorth0 = new double[edges];
+        mEdgeEast0 = new double[edges];
+        mEdgeNorth1 = new double[edges];
+        mEdgeEast1 = new double[edges];
+        mEdgeZones = new int[edges];
+        int edge = 0;
+        for (int z = 0; z < zones; z++) {
+            double[] lats = mZoneLatitudes.get(z);
+            double[] lons = mZoneLongitudes.get(z);
+            for (int i = 0; i < lats.length; i++) {
+                int j = (i + 1) % lats.length;
+                mEdgeNorth0[edge] = toNorth(lats[i]);
+                mEdgeEast0[edge] = toEast(lons[i]);
+                mEdgeNorth1[edge] = toNorth(lats[j]);
+                mEdgeEast1[edge] = toEast(lons[j]);
+                mEdgeZones[edge] = z;
+                edge++;
+            }
+        }
+
+        // square cells, more of them with more vertices, with a margin around the zones
+        double height = (maxLat - minLat) * METERS_PER_DEGREE;
+        double width = (maxLon - minLon) * mMetersPerDegreeLongitude;
+        int size = Math.max(MIN_GRID_SIZE, Math.min(MAX_GRID_SIZE, (int) Math.ceil(4 * Math.sqrt(edges))));
+        mCellSize = Math.max(Math.max(height, width) / (size - 2), 1e-3);
+        mRows = (int) Math.ceil(height / mCellSize) + 2;
+        mColumns = (int) Math.ceil(width / mCellSize) + 2;
+        mGridNorth = toNorth(minLat) - mCellSize;
+        mGridEast = toEast(minLon) - mCellSize;
+
+        rasterizeCenters(edges);
+        assignEdges(edges);
+        mBuilt = true;
+    }
+
+    /**
+     * find the zones containing the center of each cell, by scanning each row of centers
+     */
+    private void rasterizeCenters(int edges) {
+        mCenterInside = new long[mRows * mColumns];
+        double[] crossings = new double[edges];
+        int[] crossingZones = new int[edges];
+        long[] rowMask = new long[mColumns];
+
+        for (int row = 0; row < mRows; row++) {
+            double north = mGridNorth + (row + 0.5) * mCellSize;
+
+            // the edges crossing the row, half open to count the vertices once
+            int count = 0;
+            for (int e = 0; e < edges; e++) {
+                double n0 = mEdgeNorth0[e];
+                double n1 = mEdgeNorth1[e];
+                if ((n0 <= north) != (n1 <= north)) {
+                    double t = (north - n0) / (n1 - n0);
+                    crossings[count] = mEdgeEast0[e] + t * (mEdgeEast1[e] - mEdgeEast0[e]);
+                    crossingZones[count] = mEdgeZones[e];
+                    count++;
+                }
+            }
+
+            // toggle the zones from each crossing to the east end of the row
+            Arrays.fill(rowMask, 0);
+            for (int c = 0; c < count; c++) {
+                int column = (int) Math.ceil((crossings[c] - mGridEast) / mCellSize - 0.5);
+                if (column < mColumns) {
+                    rowMask[Math.max(0, column)] ^= 1L << crossingZones[c];
+                }
+            }
+            long inside = 0;
+            for (int column = 0; column < mColumns; column++) {
+                inside ^= rowMask[column];
+                mCenterInside[row * mColumns + column] = inside;
+            }
+        }
+    }
+
+    /**
+     * list the edges crossing each cell, walking each edge row by row
+     */
+    private void assignEdges(int edges) {
+        int cells = mRows * mColumns;
+        mCellEdgeStart = new int[cells + 1];
+
+        // count, then fill
+        for (int pass = 0; pass < 2; pass++) {
+            int[] next = (pass == 1) ? Arrays.copyOf(mCellEdgeStart, cells) : null;
+            for (int e = 0; e < edges; e++) {
+                double n0 = mEdgeNorth0[e], e0 = mEdgeEast0[e];
+                double dn = mEdgeNorth1[e] - n0, de = mEdgeEast1[e] - e0;
+                int row0 = rowOf(Math.min(n0, n0 + dn));
+                int row1 = rowOf(Math.max(n0, n0 + dn));
+                for (int row = row0; row <= row1; row++) {
+                    // part of the edge within the row
+                    double t0 = 0, t1 = 1;
+                    if (dn != 0) {
+                        double ta = (mGridNorth + row * mCellSize - n0) / dn;
+                        double tb = (mGridNorth + (row + 1) * mCellSize - n0) / dn;
+                        t0 = Math.max(0, Math.min(ta, tb));
+                        t1 = Math.min(1, Math.max(ta, tb));
+                    }
+                    int column0 = columnOf(e0 + t0 * de);
+                    int column1 = columnOf(e0 + t1 * de);
+                    if (column0 > column1) {
+                        int swap = column0;
+                        column0 = column1;
+                        column1 = swap;
+                    }
+                    for (int column = column0; column <= column1; column++) {
+                        int cell = row * mColumns + column;
+                        if (pass == 0) {
+                            mCellEdgeStart[cell + 1]++;
+                        } else {
+                            mCellEdges[next[cell]++] = e;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < cells; cell++) {
+                    mCellEdgeStart[cell + 1] += mCellEdgeStart[cell];
+                }
+                mCellEdges = new int[mCellEdgeStart[cells]];
+            }
+        }
+    }
+
+    private int rowOf(double north) {
+        return Math.max(0, Math.min(mRows - 1, (int) Math.floor((north - mGridNorth) / mCellSize)));
+    }
+
+    private int columnOf(double east) {
+        return Math.max(0, Math.min(mColumns - 1, (int) Math.floor((east - mGridEast) / mCellSize)));
+    }
+
+    private double toNorth(double lat) {
+        return (lat - mReferenceLatitude) * METERS_PER_DEGREE;
+    }
+
+    private double toEast(double lon) {
+        return (lon - mReferenceLongitude) * mMetersPerDegreeLongitude;
+    }
+
+    /**
+     * zones containing a point
+     * @param north position from the reference [m]
+     * @param east position from the reference [m]
+     * @return bit per zone
+     */
+    long zonesAt(double north, double east) {
+        double row = (north - mGridNorth) / mCellSize;
+        double column = (east - mGridEast) / mCellSize;
+        if (row < 0 || column < 0 || row >= mRows || column >= mColumns) {
+            return 0;
+        }
+        int cell = (int) row * mColumns + (int) column;
+        long inside = mCenterInside[cell];
+
+        // each edge between the center of the cell and the point toggles its zone
+        double centerNorth = mGridNorth + ((int) row + 0.5) * mCellSize;
+        double centerEast = mGridEast + ((int) column + 0.5) * mCellSize;
+        for (int i = mCellEdgeStart[cell]; i < mCellEdgeStart[cell + 1]; i++) {
+            int e = mCellEdges[i];
+            if (segmentsCross(centerNorth, centerEast, north, east,
+                    mEdgeNorth0[e], mEdgeEast0[e], mEdgeNorth1[e], mEdgeEast1[e])) {
+                inside ^= 1L << mEdgeZones[e];
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * whether the segment a-b crosses the segment c-d, counting the end c but not d (as the
+     * rasterization counts each vertex once)
+     */
+    private static boolean segmentsCross(double an, double ae, double bn, double be,
+                                         double cn, double ce, double dn, double de) {
+        double d1 = orientation(cn, ce, dn, de, an, ae);
+        double d2 = orientation(cn, ce, dn, de, bn, be);
+        if ((d1 > 0) == (d2 > 0)) {
+            return false;
+        }
+        double d3 = orientation(an, ae, bn, be, cn, ce);
+        double d4 = orientation(an, ae, bn, be, dn, de);
+        return (d3 >= 0) != (d4 >= 0);
+    }
+
+    private static double orientation(double an, double ae, double bn, double be, double cn, double ce) {
+        return (be - ae) * (cn - an) - (bn - an) * (ce - ae);
+    }
+
+    /**
+     * whether a point is allowed
+     * @param north position from the reference [m]
+     * @param east position from the reference [m]
+     * @param altitude altitude above the take off [m]
+     */
+    private boolean allowedAt(double north, double east, double altitude) {
+        if (altitude < mMinAltitude || altitude > mMaxAltitude) {
+            return false;
+        }
+        if (mKeepInZones == 0 && mKeepOutZones == 0) {
+            return true;
+        }
+
+        long inside = zonesAt(north, east);
+        boolean keptIn = mKeepInZones == 0;
+        for (long zones = inside; zones != 0; zones &= zones - 1) {
+            int zone = Long.numberOfTrailingZeros(zones);
+            boolean inBand = altitude >= mMinAltitudes[zone] && altitude <= mMaxAltitudes[zone];
+            if ((mKeepOutZones & (1L << zone)) != 0 && inBand) {
+                return false;
+            }
+            if ((mKeepInZones & (1L << zone)) != 0 && inBand) {
+                keptIn = true;
+            }
+        }
+        return keptIn;
+    }
+
+    /**
+     * Check whether a point is allowed
+     * @param lat latitude [deg]
+     * @param lon longitude [deg]
+     * @param altitude altitude above the take off [m]
+     * @return true if the drone is allowed there
+     */
+    public boolean isAllowed(double lat, double lon, double altitude) {
+        build();
+        return allowedAt(toNorth(lat), toEast(lon), altitude);
+    }
+
+    /**
+     * Check a relative move from the estimated position of the drone
+     * @param state estimate of the position of the drone
+     * @param yaw heading of the drone [deg], NaN if unknown
+     * @param dx body x translation (front) [m]
+     * @param dy body y translation (right side) [m]
+     * @param dz body z translation (down) [m]
+     * @return fraction of the move that can be done (0 to veto it, 1 to do all of it)
+     */
+    public float getAllowedFraction(StateEstimator state, float yaw, float dx, float dy, float dz) {
+        build();
+        double altitude = -state.getPosition(StateEstimator.DOWN);
+        boolean horizontal = dx != 0 || dy != 0;
+        if (!hasZones()) {
+            return allowedFraction(0, 0, altitude, 0, 0, -dz);
+        }
+        if (!state.hasOrigin() || Float.isNaN(yaw)) {
+            // without knowing where the drone goes, only a vertical move can be done
+            return horizontal ? 0 : allowedFraction(0, 0, altitude, 0, 0, -dz);
+        }
+
+        double north = toNorth(state.getLatitude());
+        double east = toEast(state.getLongitude());
+        double cosYaw = Math.cos(Math.toRadians(yaw));
+        double sinYaw = Math.sin(Math.toRadians(yaw));
+        double dn = cosYaw * dx - sinYaw * dy;
+        double de = sinYaw * dx + cosYaw * dy;
+        return allowedFraction(north, east, altitude, dn, de, -dz);
+    }
+
+    private boolean hasZones() {
+        return (mKeepInZones | mKeepOutZones) != 0;
+    }
+
+    /**
+     * largest fraction of a straight move along which every point is allowed, sampled at the
+     * resolution of the grid then refined
+     */
+    private float allowedFraction(double north, double east, double altitude,
+                                  double dn, double de, double dAltitude) {
+        if (!allowedAt(north, east, altitude)) {
+            // a drone already out of the area may only come back in
+            return allowedAt(north + dn, east + de, altitude + dAltitude) ? 1 : 0;
+        }
+
+        int samples = (int) Math.ceil(Math.abs(dAltitude) / 0.5);
+        if (hasZones()) {
+            samples = Math.max(samples, (int) Math.ceil(Math.hypot(dn, de) / (mCellSize / 2)));
+        }
+        samples = Math.max(1, samples);
+        double allowed = 0;
+        for (int i = 1; i <= samples; i++) {
+            double t = (double) i / samples;
+            if (!allowedAt(north + t * dn, east + t * de, altitude + t * dAltitude)) {
+                // the boundary is between the last two samples
+                double high = t;
+                for (int j = 0; j < 8; j++) {
+                    double mid = (allowed + high) / 2;
+                    if (allowedAt(north + mid * dn, east + mid * de, altitude + mid * dAltitude)) {
+                        allowed = mid;
+                    } else {
+                        high = mid;
+                    }
+                }
+                return (float) allowed;
+            }
+            allowed = t;
+        }
+        return 1;
+    }
+
+    /**
+     * Limit the piloting commands so the drone stays in the area over the next {@link #LOOKAHEAD}
+     * seconds, projecting the commanded tilt and climb from the estimated position and velocity.
+     * The horizontal command is scaled down as needed, and reversed to brake if the drone would
+     * leave the area even without it, unless the pilot already brakes harder.  The climb is stopped
+     * if it would leave the area.
+     * @param state estimate of the position and velocity of the drone
+     * @param yaw heading of the drone [deg]
+     * @param pcmd roll, pitch, yaw and gaz commands [%], limited in place
+     * @param maxTilt tilt of a full roll or pitch command [deg]
+     * @param maxVerticalSpeed vertical speed of a full gaz command [m/s]
+     * @return true if the commands were limited
+     */
+    public boolean limitPcmd(StateEstimator state, float yaw, byte[] pcmd, float maxTilt, float maxVerticalSpeed) {
+        build();
+        if (hasZones() && !state.hasOrigin()) {
+            return false;
+        }
+
+        double north = hasZones() ? toNorth(state.getLatitude()) : 0;
+        double east = hasZones() ? toEast(state.getLongitude()) : 0;
+        double altitude = -state.getPosition(StateEstimator.DOWN);
+        double vn = state.getVelocity(StateEstimator.NORTH);
+        double ve = state.getVelocity(StateEstimator.EAST);
+        boolean limited = false;
+
+        // climb
+        double climb = pcmd[3] / 100.0 * maxVerticalSpeed * LOOKAHEAD;
+        if (climb != 0 && allowedAt(north, east, altitude) && !allowedAt(north, east, altitude + climb)) {
+            pcmd[3] = 0;
+            limited = true;
+        }
+
+        // horizontal, the largest scale of the command staying in the area (a drone already out of
+        // the area is left to the pilot to bring back)
+        if (!allowedAt(north, east, altitude)) {
+            return limited;
+        }
+        double cosYaw = Math.cos(Math.toRadians(yaw));
+        double sinYaw = Math.sin(Math.toRadians(yaw));
+        double forward = GRAVITY * Math.tan(Math.toRadians(pcmd[1] / 100.0 * maxTilt));
+        double right = GRAVITY * Math.tan(Math.toRadians(pcmd[0] / 100.0 * maxTilt));
+        double an = cosYaw * forward - sinYaw * right;
+        double ae = sinYaw * forward + cosYaw * right;
+        if (projectionAllowed(north, east, altitude, vn, ve, an, ae, 1)) {
+            return limited;
+        }
+
+        if (projectionAllowed(north, east, altitude, vn, ve, an, ae, 0)) {
+            double low = 0, high = 1;
+            for (int i = 0; i < 6; i++) {
+                double mid = (low + high) / 2;
+                if (projectionAllowed(north, east, altitude, vn, ve, an, ae, mid)) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            pcmd[0] = (byte) Math.round(pcmd[0] * low);
+            pcmd[1] = (byte) Math.round(pcmd[1] * low);
+        } else {
+            // brake against the velocity, in the body frame, unless the pilot already brakes harder
+            double speed = Math.hypot(vn, ve);
+            if (speed > 0) {
+                double bodyForward = cosYaw * vn + sinYaw * ve;
+                double bodyRight = -sinYaw * vn + cosYaw * ve;
+                double pilotBrake = -(pcmd[1] * bodyForward + pcmd[0] * bodyRight) / speed;
+                if (pilotBrake < BRAKE_COMMAND) {
+                    pcmd[1] = (byte) Math.round(-BRAKE_COMMAND * bodyForward / speed);
+                    pcmd[0] = (byte) Math.round(-BRAKE_COMMAND * bodyRight / speed);
+                } else {
+                    return limited;
+                }
+            } else {
+                pcmd[0] = 0;
+                pcmd[1] = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * whether the projected path over the lookahead is allowed, checked along chords of the path no
+     * longer than a cell so a zone thinner than the distance flown between two chords is not missed
+     */
+    private boolean projectionAllowed(double north, double east, double altitude,
+                                      double vn, double ve, double an, double ae, double scale) {
+        if (!hasZones()) {
+            // the altitude does not change along the path
+            return true;
+        }
+        double length = Math.hypot(vn, ve) * LOOKAHEAD + 0.5 * scale * Math.hypot(an, ae) * LOOKAHEAD * LOOKAHEAD;
+        int chords = Math.max(2, (int) Math.ceil(length / mCellSize));
+        double n0 = north;
+        double e0 = east;
+        for (int i = 1; i <= chords; i++) {
+            double t = LOOKAHEAD * i / chords;
+            double n1 = north + vn * t + 0.5 * scale * an * t * t;
+            double e1 = east + ve * t + 0.5 * scale * ae * t * t;
+            if (!chordAllowed(n0, e0, n1, e1, altitude)) {
+                return false;
+            }
+            n0 = n1;
+            e0 = e1;
+        }
+        return true;
+    }
+
+    /**
+     * whether a chord no longer than a cell, from an allowed point, is allowed all along: the zones
+     * only change where the chord crosses an edge of the cells it goes through, so the point after
+     * each crossing is checked
+     */
+    private boolean chordAllowed(double n0, double e0, double n1, double e1, double altitude) {
+        if (!allowedAt(n1, e1, altitude)) {
+            return false;
+        }
+        int row0 = rowOf(Math.min(n0, n1));
+        int row1 = rowOf(Math.max(n0, n1));
+        int column0 = columnOf(Math.min(e0, e1));
+        int column1 = columnOf(Math.max(e0, e1));
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                int cell = row * mColumns + column;
+                for (int i = mCellEdgeStart[cell]; i < mCellEdgeStart[cell + 1]; i++) {
+                    double t = crossingAlong(n0, e0, n1, e1, mCellEdges[i]);
+                    if (Double.isNaN(t)) {
+                        continue;
+                    }
+                    // the next crossing along the chord bounds the part entered here
+                    double next = nextCrossing(n0, e0, n1, e1, t, row0, row1, column0, column1);
+                    double mid = (t + next) / 2;
+                    if (!allowedAt(n0 + mid * (n1 - n0), e0 + mid * (e1 - e0), altitude)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * first crossing of the chord after a given one, by any edge of the cells from row0, column0
+     * to row1, column1, 1 if none
+     */
+    private double nextCrossing(double n0, double e0, double n1, double e1, double after,
+                                int row0, int row1, int column0, int column1) {
+        double next = 1;
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                int cell = row * mColumns + column;
+                for (int i = mCellEdgeStart[cell]; i < mCellEdgeStart[cell + 1]; i++) {
+                    double t = crossingAlong(n0, e0, n1, e1, mCellEdges[i]);
+                    if (t > after && t < next) {
+                        next = t;
+                    }
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * fraction of the chord at which an edge crosses it, NaN if it does not
+     */
+    private double crossingAlong(double n0, double e0, double n1, double e1, int e) {
+        if (!segmentsCross(n0, e0, n1, e1, mEdgeNorth0[e], mEdgeEast0[e], mEdgeNorth1[e], mEdgeEast1[e])) {
+            return Double.NaN;
+        }
+        double d0 = orientation(mEdgeNorth0[e], mEdgeEast0[e], mEdgeNorth1[e], mEdgeEast1[e], n0, e0);
+        double d1 = orientation(mEdgeNorth0[e], mEdgeEast0[e], mEdgeNorth1[e], mEdgeEast1[e], n1, e1);
+        return d0 / (d0 - d1);
+    }
+}
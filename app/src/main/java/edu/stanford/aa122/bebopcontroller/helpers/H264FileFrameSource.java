@@ -0,0 +1,303 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stand-in for the drone's video stream that plays back a recorded H.264 elementary stream
+ * (Annex B, e.g. dumped from the Bebop frames) at a fixed frame rate.
+ *
+ * The stream is split into access units the same way the Bebop delivers them (parameter sets
+ * and slices of one picture together), which allows comparing decoder settings on the bench
+ * without a drone.
+ */
+public class H264FileFrameSource {
+
+    private static final String TAG = "H264FileFrameSource";
+
+    /* NAL unit types of interest */
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    public interface Listener {
+        /**
+         * Called once before the first frame with the parameter sets of the stream
+         * Called on the playback thread
+         * @param sps the sequence parameter set (with its start code)
+         * @param pps the picture parameter set (with its start code)
+         */
+        void onCodecConfig(byte[] sps, byte[] pps);
+
+        /**
+         * Called for every access unit of the stream
+         * Called on the playback thread
+         * @param data buffer containing the access unit (Annex B, with start codes)
+         * @param size number of valid bytes in the buffer
+         */
+        void onFrame(byte[] data, int size);
+
+        /**
+         * Called when the end of the stream has been reached (and looping is disabled)
+         * Called on the playback thread
+         */
+        void onEndOfStream();
+    }
+
+    /** the recorded stream */
+    private final File mFile;
+
+    /** playback rate [frames per second] */
+    private final int mFps;
+
+    /** whether or not to restart from the beginning when reaching the end */
+    private final boolean mLoop;
+
+    private final Listener mListener;
+
+    /** offsets of each access unit in the stream (with one extra entry at the end) */
+    private int[] mFrameOffsets;
+
+    /** content of the stream */
+    private byte[] mStream;
+
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Constructor
+     * @param file the recorded H.264 elementary stream
+     * @param fps the rate at which to play the frames
+     * @param loop true to restart playback from the beginning at the end of the stream
+     * @param listener the listener to feed the frames to
+     */
+    public H264FileFrameSource(File file, int fps, boolean loop, Listener listener) {
+        mFile = file;
+        mFps = fps;
+        mLoop = loop;
+        mListener = listener;
+    }
+
+    /**
+     * Start playing the stream on a separate thread.
+     * The file is read and split into frames before the first frame is played.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop the playback and wait for the playback thread to finish.
+     */
+    public void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * Get the number of frames in the stream (only valid once playback has started).
+     * @return number of access units
+     */
+    public int getFrameCount() {
+        return (mFrameOffsets == null) ? 0 : mFrameOffsets.length - 1;
+    }
+
+    private void play() {
+        try {
+            load();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception", e);
+            mRunning = false;
+            return;
+        }
+
+        byte[] frame = new byte[getLargestFrame()];
+        long frameIntervalNs = 1000000000L / mFps;
+        long next = System.nanoTime();
+        int index = 0;
+
+        while (mRunning) {
+            if (index >= getFrameCount()) {
+                if (!mLoop || getFrameCount() == 0) {
+                    break;
+                }
+                index = 0;
+            }
+
+            int start = mFrameOffsets[index];
+            int size = mFrameOffsets[index + 1] - start;
+            System.arraycopy(mStream, start, frame, 0, size);
+            mListener.onFrame(frame, size);
+            index++;
+
+            // pace the frames on an absolute schedule so the rate doesn't drift
+            next += frameIntervalNs;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        if (mRunning) {
+            mRunning = false;
+            mListener.onEndOfStream();
+        }
+    }
+
+    /**
+     * read the whole stream into memory, split it into access units and extract the parameter sets
+     * @throws IOException if the file cannot be read
+     */
+    private void load() throws IOException {
+        InputStream in = new FileInputStream(mFile);
+        try {
+            mStream = new byte[(int) mFile.length()];
+            int read = 0;
+            while (read < mStream.length) {
+                int n = in.read(mStream, read, mStream.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        mFrameOffsets = splitAccessUnits(mStream);
+
+        byte[] sps = findNalUnit(mStream, NAL_SPS);
+        byte[] pps = findNalUnit(mStream, NAL_PPS);
+        if (sps != null && pps != null) {
+            mListener.onCodecConfig(sps, pps);
+        } else {
+            Log.e(TAG, "No SPS/PPS found in " + mFile);
+        }
+    }
+
+    /**
+     * Split an H.264 elementary stream into access units, the same way the Bebop delivers them
+     * (parameter sets and slices of one picture together).
+     * @param stream the stream (Annex B)
+     * @return offsets of each access unit in the stream, with one extra entry for the end
+     */
+    public static int[] splitAccessUnits(byte[] stream) {
+        List<Integer> offsets = new ArrayList<>();
+
+        // whether the access unit being built already contains a picture slice
+        boolean auHasSlice = false;
+
+        int nalStart = findStartCode(stream, 0);
+        while (nalStart >= 0) {
+            int headerPos = nalStart + startCodeLength(stream, nalStart);
+            int nextStart = findStartCode(stream, headerPos);
+            int nalEnd = (nextStart < 0) ? stream.length : nextStart;
+            if (headerPos >= nalEnd) {
+                nalStart = nextStart;
+                continue;
+            }
+
+            int type = stream[headerPos] & 0x1F;
+            boolean isSlice = (type == NAL_SLICE || type == NAL_IDR);
+
+            // first_mb_in_slice == 0 (ue(v) coded as a single '1' bit) starts a new picture
+            boolean firstSliceOfPicture = isSlice && (headerPos + 1 < nalEnd) && ((stream[headerPos + 1] & 0x80) != 0);
+            boolean startsAccessUnit = (type == NAL_AUD || type == NAL_SPS || type == NAL_PPS || type == NAL_SEI) || firstSliceOfPicture;
+
+            if (offsets.isEmpty() || (auHasSlice && startsAccessUnit)) {
+                offsets.add(nalStart);
+                auHasSlice = false;
+            }
+            auHasSlice |= isSlice;
+
+            nalStart = nextStart;
+        }
+        offsets.add(stream.length);
+
+        int[] result = new int[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the first NAL unit of a given type in a stream.
+     * @param stream the stream (Annex B)
+     * @param type the NAL unit type (e.g. 7 for the SPS)
+     * @return copy of the NAL unit with its start code, or null if there is none
+     */
+    public static byte[] findNalUnit(byte[] stream, int type) {
+        int nalStart = findStartCode(stream, 0);
+        while (nalStart >= 0) {
+            int headerPos = nalStart + startCodeLength(stream, nalStart);
+            int nextStart = findStartCode(stream, headerPos);
+            if (headerPos < stream.length && (stream[headerPos] & 0x1F) == type) {
+                return Arrays.copyOfRange(stream, nalStart, (nextStart < 0) ? stream.length : nextStart);
+            }
+            nalStart = nextStart;
+        }
+        return null;
+    }
+
+    private int getLargestFrame() {
+        int largest = 0;
+        for (int i = 0; i < getFrameCount(); i++) {
+            largest = Math.max(largest, mFrameOffsets[i + 1] - mFrameOffsets[i]);
+        }
+        return largest;
+    }
+
+    /**
+     * find the next Annex B start code (00 00 01 or 00 00 00 01)
+     * @param data the stream
+     * @param from position to start searching from
+     * @return position of the first byte of the start code, or -1 if none
+     */
+    private static int findStartCode(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0) {
+                if (data[i + 2] == 1) {
+                    return (i > from && data[i - 1] == 0) ? i - 1 : i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int startCodeLength(byte[] data, int pos) {
+        return (data[pos + 2] == 1) ? 3 : 4;
+    }
+}
@@ -0,0 +1,220 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+/**
+ * Helper class for reading the stream information contained in an H.264 sequence parameter set.
+ *
+ * Only the fields needed to configure a decoder are kept (profile, level and the cropped
+ * picture size), see ITU-T H.264 section 7.3.2.1.1 for the syntax.
+ */
+public class H264SpsParser {
+
+    /**
+     * Class for holding the information read from a sequence parameter set.
+     */
+    public static class Sps {
+        /** profile of the stream */
+        public final int profileIdc;
+
+        /** level of the stream */
+        public final int levelIdc;
+
+        /** displayed picture width [px] */
+        public final int width;
+
+        /** displayed picture height [px] */
+        public final int height;
+
+        public Sps(int profileIdc, int levelIdc, int width, int height) {
+            this.profileIdc = profileIdc;
+            this.levelIdc = levelIdc;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** the RBSP (payload with the emulation prevention bytes removed) */
+    private final byte[] mData;
+
+    /** size of the RBSP */
+    private final int mSize;
+
+    /** current read position [bits] */
+    private int mBitPos;
+
+    private H264SpsParser(byte[] data, int size) {
+        mData = data;
+        mSize = size;
+    }
+
+    /**
+     * Parse a sequence parameter set NAL unit.
+     * @param sps the SPS, with or without its Annex B start code
+     * @return the information of the SPS, or null if the data is not a valid SPS
+     */
+    public static Sps parse(byte[] sps) {
+        if (sps == null) {
+            return null;
+        }
+
+        // skip the start code if there is one
+        int pos = 0;
+        while (pos < sps.length && sps[pos] == 0) {
+            pos++;
+        }
+        if (pos >= 2 && pos < sps.length && sps[pos] == 1) {
+            pos++;
+        } else {
+            pos = 0;
+        }
+
+        // NAL header then at least profile, constraints and level
+        if (sps.length - pos < 4 || (sps[pos] & 0x1F) != 7) {
+            return null;
+        }
+        pos++;
+
+        // remove the emulation prevention bytes (00 00 03 -> 00 00)
+        byte[] rbsp = new byte[sps.length - pos];
+        int size = 0;
+        int zeros = 0;
+        for (int i = pos; i < sps.length; i++) {
+            byte b = sps[i];
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = (b == 0) ? zeros + 1 : 0;
+            rbsp[size++] = b;
+        }
+
+        try {
+            return new H264SpsParser(rbsp, size).readSps();
+        } catch (IndexOutOfBoundsException e) {
+            // truncated SPS
+            return null;
+        }
+    }
+
+    private Sps readSps() {
+        int profileIdc = readBits(8);
+        readBits(8); // constraint flags and reserved bits
+        int levelIdc = readBits(8);
+        readUE(); // seq_parameter_set_id
+
+        int chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 ||
+                profileIdc == 44 || profileIdc == 83 || profileIdc == 86 || profileIdc == 118 ||
+                profileIdc == 128 || profileIdc == 138 || profileIdc == 139 || profileIdc == 134 ||
+                profileIdc == 135) {
+            chromaFormatIdc = readUE();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = readBits(1) == 1;
+            }
+            readUE(); // bit_depth_luma_minus8
+            readUE(); // bit_depth_chroma_minus8
+            readBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (readBits(1) == 1) {
+                // seq_scaling_matrix_present_flag
+                int nbLists = (chromaFormatIdc != 3) ? 8 : 12;
+                for (int i = 0; i < nbLists; i++) {
+                    if (readBits(1) == 1) {
+                        skipScalingList(i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        readUE(); // log2_max_frame_num_minus4
+        int picOrderCntType = readUE();
+        if (picOrderCntType == 0) {
+            readUE(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            readBits(1); // delta_pic_order_always_zero_flag
+            readSE(); // offset_for_non_ref_pic
+            readSE(); // offset_for_top_to_bottom_field
+            int cycle = readUE();
+            for (int i = 0; i < cycle; i++) {
+                readSE(); // offset_for_ref_frame
+            }
+        }
+        readUE(); // max_num_ref_frames
+        readBits(1); // gaps_in_frame_num_value_allowed_flag
+
+        int widthInMbs = readUE() + 1;
+        int heightInMapUnits = readUE() + 1;
+        int frameMbsOnly = readBits(1);
+        if (frameMbsOnly == 0) {
+            readBits(1); // mb_adaptive_frame_field_flag
+        }
+        readBits(1); // direct_8x8_inference_flag
+
+        int width = widthInMbs * 16;
+        int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+
+        if (readBits(1) == 1) {
+            // frame cropping, offsets are in chroma sample units
+            int left = readUE();
+            int right = readUE();
+            int top = readUE();
+            int bottom = readUE();
+
+            int cropUnitX = 1;
+            int cropUnitY = 2 - frameMbsOnly;
+            if (chromaFormatIdc != 0 && !separateColourPlane) {
+                cropUnitX = (chromaFormatIdc == 3) ? 1 : 2;
+                cropUnitY *= (chromaFormatIdc == 1) ? 2 : 1;
+            }
+            width -= cropUnitX * (left + right);
+            height -= cropUnitY * (top + bottom);
+        }
+
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new Sps(profileIdc, levelIdc, width, height);
+    }
+
+    private void skipScalingList(int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                int delta = readSE();
+                nextScale = (lastScale + delta + 256) % 256;
+            }
+            lastScale = (nextScale == 0) ? lastScale : nextScale;
+        }
+    }
+
+    private int readBits(int n) {
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            if ((mBitPos >> 3) >= mSize) {
+                throw new IndexOutOfBoundsException();
+            }
+            int bit = (mData[mBitPos >> 3] >> (7 - (mBitPos & 7))) & 1;
+            value = (value << 1) | bit;
+            mBitPos++;
+        }
+        return value;
+    }
+
+    /** read an unsigned exp-golomb value */
+    private int readUE() {
+        int leadingZeros = 0;
+        while (readBits(1) == 0) {
+            leadingZeros++;
+            if (leadingZeros > 31) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+        return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+    }
+
+    /** read a signed exp-golomb value */
+    private int readSE() {
+        int value = readUE();
+        return ((value & 1) == 1) ? (value + 1) / 2 : -(value / 2);
+    }
+}
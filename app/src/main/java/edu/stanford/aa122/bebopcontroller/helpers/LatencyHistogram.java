@@ -0,0 +1,163 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a bounded relative error, in the manner of an HDR histogram.
+ *
+ * Values are counted in buckets whose width grows with the magnitude of the value (a fixed number
+ * of linear sub-buckets per power of two), so any value up to the highest trackable one is
+ * known within 1/64 of its magnitude with a few thousand counters.
+ *
+ * Recording is lock free and allocation free, it can be done from any thread.  Snapshots are
+ * taken without stopping the recording, a value recorded during a snapshot may only be counted
+ * in the next one.
+ */
+public class LatencyHistogram {
+
+    /** number of bits of precision of a value (the buckets below 2^SUB_BUCKET_BITS are exact) */
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final long mHighestValue;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param highestValue highest value tracked, higher values are counted as this one
+     */
+    public LatencyHistogram(long highestValue) {
+        mHighestValue = highestValue;
+        mCounts = new AtomicLongArray(indexOf(highestValue) + 1);
+    }
+
+    /**
+     * Record a value
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > mHighestValue) {
+            value = mHighestValue;
+        }
+
+        mCounts.incrementAndGet(indexOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Get the values recorded so far
+     * @param reset true to start counting from 0 again
+     * @return the snapshot
+     */
+    public Snapshot snapshot(boolean reset) {
+        long[] counts = new long[mCounts.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = reset ? mCounts.getAndSet(i, 0) : mCounts.get(i);
+            total += counts[i];
+        }
+        long sum = reset ? mSum.getAndSet(0) : mSum.get();
+        long max = reset ? mMax.getAndSet(0) : mMax.get();
+        if (reset) {
+            mCount.addAndGet(-total);
+        }
+        return new Snapshot(counts, total, sum, max);
+    }
+
+    /**
+     * @return number of values recorded since the last reset
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * index of the bucket counting a value
+     * @param value the value (positive)
+     * @return the index
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // keep the SUB_BUCKET_BITS most significant bits of the value
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * lowest value counted in a bucket
+     * @param index index of the bucket
+     * @return the value
+     */
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        return (long) (index - shift * SUB_BUCKET_HALF) << shift;
+    }
+
+    /**
+     * Values recorded by the histogram over an interval.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+
+        /** number of values */
+        public final long count;
+
+        /** sum of the values */
+        public final long sum;
+
+        /** highest value */
+        public final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return mean of the values, or 0 if there are none
+         */
+        public double getMean() {
+            return (count > 0) ? (double) sum / count : 0;
+        }
+
+        /**
+         * Get a percentile of the values
+         * @param percentile percentile to get (0 - 100)
+         * @return highest value of the bucket holding the percentile (at most the highest value), 0 if there are none
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(max, lowestValueOf(i + 1) - 1);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.Locale;
+
+/**
+ * Scores the quality of the link with the drone from the telemetry and video it receives.
+ *
+ * The arrival times of each telemetry channel are followed with streaming statistics (moving mean
+ * and deviation of the time between two messages), which give the rate of the channel and its
+ * gaps.  Each channel is scored against its nominal rate and how long it has been silent, the
+ * video is scored from the health of the stream, and the weighted mean of those is the quality of
+ * the link, from 0 (lost) to 1 (nominal).
+ *
+ * Messages are recorded from any thread, the score is computed when {@link #evaluate(long)} is
+ * called and given to the listener on that thread.
+ */
+public class LinkQualityMonitor {
+
+    /* telemetry channels followed */
+    public static final int CHANNEL_ATTITUDE = 0;
+    public static final int CHANNEL_SPEED = 1;
+    public static final int CHANNEL_POSITION = 2;
+    public static final int CHANNEL_ALTITUDE = 3;
+    public static final int CHANNEL_BATTERY = 4;
+    public static final int CHANNEL_COUNT = 5;
+
+    private static final String[] CHANNEL_NAMES = {"attitude", "speed", "position", "altitude", "battery"};
+
+    /* levels of quality */
+    public static final int LEVEL_GOOD = 0;
+    public static final int LEVEL_DEGRADED = 1;
+    public static final int LEVEL_POOR = 2;
+
+    /** score from which the link is good again */
+    public static final float GOOD_SCORE = 0.8f;
+
+    /** score below which the link is poor, it needs to reach DEGRADED_SCORE to be degraded again */
+    public static final float POOR_SCORE = 0.5f;
+    public static final float DEGRADED_SCORE = 0.6f;
+
+    /**
+     * nominal time between two messages of each channel [ms]
+     * the battery is only sent when it changes, so it has no rate to follow and isn't scored
+     */
+    private static final long[] NOMINAL_INTERVALS = {200, 200, 1000, 200, 0};
+
+    /** weight of each channel in the score, the attitude matters most to fly */
+    private static final float[] WEIGHTS = {3, 2, 1, 2, 0};
+
+    /** weight of the video in the score */
+    private static final float VIDEO_WEIGHT = 2;
+
+    /** nominal frame rate of the video [frames per second] */
+    private static final double VIDEO_FRAME_RATE = 30;
+
+    /** number of summary intervals without a summary after which the video is considered frozen */
+    private static final int VIDEO_STALE_INTERVALS = 3;
+
+    /** time between two messages above which a channel has a gap, in nominal intervals */
+    private static final int GAP_FACTOR = 3;
+
+    /** smoothing factor of the moving statistics */
+    private static final double ALPHA = 0.125;
+
+    public interface Listener {
+        /**
+         * Called each time the quality of the link is evaluated
+         * Called on the thread evaluating the quality
+         * @param quality the quality of the link
+         */
+        void onLinkQualityChanged(Quality quality);
+    }
+
+    /**
+     * Quality of the link at a given time.
+     */
+    public static class Quality {
+        /** time of the evaluation [ms] (from {@link System#currentTimeMillis()}) */
+        public final long timestamp;
+
+        /** quality of the link, from 0 (lost) to 1 (nominal) */
+        public final float score;
+
+        /** one of the LEVEL_* constants */
+        public final int level;
+
+        /** score of the video, -1 if no video has been received */
+        public final float videoScore;
+
+        /** number of telemetry gaps since the previous evaluation, and the longest of them [ms] */
+        public final int gaps;
+        public final long maxGap;
+
+        private final float[] mChannelScores;
+        private final float[] mChannelRates;
+
+        Quality(long timestamp, float score, int level, float videoScore, int gaps, long maxGap,
+                float[] channelScores, float[] channelRates) {
+            this.timestamp = timestamp;
+            this.score = score;
+            this.level = level;
+            this.videoScore = videoScore;
+            this.gaps = gaps;
+            this.maxGap = maxGap;
+            mChannelScores = channelScores;
+            mChannelRates = channelRates;
+        }
+
+        /**
+         * Get the score of a telemetry channel
+         * @param channel one of the CHANNEL_* constants
+         * @return the score, from 0 to 1, -1 if the channel has not been received
+         */
+        public float getChannelScore(int channel) {
+            return mChannelScores[channel];
+        }
+
+        /**
+         * Get the rate of a telemetry channel, from the moving mean of the time between two messages
+         * @param channel one of the CHANNEL_* constants
+         * @return the rate [messages per second], 0 if unknown
+         */
+        public float getChannelRate(int channel) {
+            return mChannelRates[channel];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.US, "link %.0f%% (%s), video %.0f%%, %d gaps (max %d ms)",
+                    score * 100, getLevelName(level), videoScore * 100, gaps, maxGap));
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                sb.append(String.format(Locale.US, ", %s %.1f/s", CHANNEL_NAMES[i], mChannelRates[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private Listener mListener;
+
+    // statistics of each channel
+    private final long[] mLastArrivals = new long[CHANNEL_COUNT];
+    private final long[] mCounts = new long[CHANNEL_COUNT];
+    private final double[] mMeanIntervals = new double[CHANNEL_COUNT];
+    private final double[] mIntervalVariances = new double[CHANNEL_COUNT];
+
+    // gaps since the previous evaluation
+    private int mGaps;
+    private long mMaxGap;
+
+    /** last summary of the video stream, and the time it arrived [ns] */
+    private StreamHealthMonitor.Summary mVideoSummary;
+    private long mVideoArrival;
+
+    private int mLevel = LEVEL_GOOD;
+    private volatile Quality mLastQuality;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Record a telemetry message
+     * @param channel one of the CHANNEL_* constants
+     * @param arrival time the message arrived [ns] (from {@link System#nanoTime()})
+     */
+    public synchronized void onMessage(int channel, long arrival) {
+        if (mCounts[channel] > 0) {
+            double interval = (arrival - mLastArrivals[channel]) / 1e6;
+            if (mCounts[channel] == 1) {
+                mMeanIntervals[channel] = interval;
+            } else {
+                double delta = interval - mMeanIntervals[channel];
+                mMeanIntervals[channel] += ALPHA * delta;
+                mIntervalVariances[channel] = (1 - ALPHA) * (mIntervalVariances[channel] + ALPHA * delta * delta);
+            }
+
+            long nominal = NOMINAL_INTERVALS[channel];
+            if (nominal > 0 && interval > GAP_FACTOR * nominal) {
+                mGaps++;
+                mMaxGap = Math.max(mMaxGap, (long) interval);
+            }
+        }
+        mLastArrivals[channel] = arrival;
+        mCounts[channel]++;
+    }
+
+    /**
+     * Record the health of the video stream
+     * @param summary the last summary of the stream
+     * @param arrival time the summary was published [ns] (from {@link System#nanoTime()})
+     */
+    public synchronized void onVideoHealth(StreamHealthMonitor.Summary summary, long arrival) {
+        mVideoSummary = summary;
+        mVideoArrival = arrival;
+    }
+
+    /**
+     * Forget everything received, for a new connection
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mLastArrivals[i] = 0;
+            mCounts[i] = 0;
+            mMeanIntervals[i] = 0;
+            mIntervalVariances[i] = 0;
+        }
+        mGaps = 0;
+        mMaxGap = 0;
+        mVideoSummary = null;
+        mLevel = LEVEL_GOOD;
+        mLastQuality = null;
+    }
+
+    /**
+     * Get the last evaluated quality
+     * @return the quality, null if it has not been evaluated yet
+     */
+    public Quality getLastQuality() {
+        return mLastQuality;
+    }
+
+    /**
+     * Get the moving standard deviation of the time between two messages of a channel, its jitter
+     * @param channel one of the CHANNEL_* constants
+     * @return the deviation [ms]
+     */
+    public synchronized double getIntervalDeviation(int channel) {
+        return Math.sqrt(mIntervalVariances[channel]);
+    }
+
+    /**
+     * Evaluate the quality of the link, and give it to the listener
+     * @param now time of the evaluation [ns] (from {@link System#nanoTime()})
+     * @return the quality
+     */
+    public Quality evaluate(long now) {
+        Quality quality;
+        synchronized (this) {
+            float[] scores = new float[CHANNEL_COUNT];
+            float[] rates = new float[CHANNEL_COUNT];
+            float total = 0;
+            float weights = 0;
+            for (int i = 0; i < CHANNEL_COUNT; i++) {
+                rates[i] = (mMeanIntervals[i] > 0) ? (float) (1000 / mMeanIntervals[i]) : 0;
+                scores[i] = channelScore(i, now);
+                if (scores[i] >= 0 && WEIGHTS[i] > 0) {
+                    total += WEIGHTS[i] * scores[i];
+                    weights += WEIGHTS[i];
+                }
+            }
+
+            float videoScore = videoScore(now);
+            if (videoScore >= 0) {
+                total += VIDEO_WEIGHT * videoScore;
+                weights += VIDEO_WEIGHT;
+            }
+
+            // without any telemetry there is no link
+            float score = (weights > 0) ? total / weights : 0;
+            mLevel = nextLevel(mLevel, score);
+
+            quality = new Quality(System.currentTimeMillis(), score, mLevel, videoScore, mGaps, mMaxGap, scores, rates);
+            mGaps = 0;
+            mMaxGap = 0;
+            mLastQuality = quality;
+        }
+
+        if (mListener != null) {
+            mListener.onLinkQualityChanged(quality);
+        }
+        return quality;
+    }
+
+    /**
+     * score a telemetry channel against its nominal rate and how long it has been silent
+     * @param channel the channel
+     * @param now time of the evaluation [ns]
+     * @return the score, -1 if the channel has not been received or has no nominal rate
+     */
+    private float channelScore(int channel, long now) {
+        long nominal = NOMINAL_INTERVALS[channel];
+        if (mCounts[channel] == 0 || nominal == 0) {
+            return -1;
+        }
+
+        float rate = (mCounts[channel] > 1) ? (float) Math.min(1, nominal / mMeanIntervals[channel]) : 1;
+
+        // a silent channel fades out over one gap threshold
+        long threshold = GAP_FACTOR * nominal;
+        double silence = (now - mLastArrivals[channel]) / 1e6;
+        float freshness = (float) Math.max(0, Math.min(1, 1 - (silence - threshold) / threshold));
+
+        return rate * freshness;
+    }
+
+    /**
+     * score the video from the frame rate and the frames missed
+     * @param now time of the evaluation [ns]
+     * @return the score, -1 if no video has been received
+     */
+    private float videoScore(long now) {
+        StreamHealthMonitor.Summary summary = mVideoSummary;
+        if (summary == null) {
+            return -1;
+        }
+
+        // the summaries are only published when frames come in
+        long interval = Math.max(summary.duration, StreamHealthMonitor.DEFAULT_SUMMARY_INTERVAL);
+        if ((now - mVideoArrival) / 1000000 > VIDEO_STALE_INTERVALS * interval) {
+            return 0;
+        }
+
+        double rate = Math.min(1, summary.getFrameRate() / VIDEO_FRAME_RATE);
+        int expected = summary.frames + summary.missedFrames;
+        double delivered = (expected > 0) ? (double) summary.frames / expected : 0;
+        return (float) (rate * delivered);
+    }
+
+    /**
+     * level of the link for a score, with some hysteresis
+     * @param level the current level
+     * @param score the score
+     * @return the new level
+     */
+    static int nextLevel(int level, float score) {
+        if (score < POOR_SCORE) {
+            return LEVEL_POOR;
+        }
+        if (score >= GOOD_SCORE) {
+            return LEVEL_GOOD;
+        }
+        if (level == LEVEL_POOR && score < DEGRADED_SCORE) {
+            return LEVEL_POOR;
+        }
+        return LEVEL_DEGRADED;
+    }
+
+    /**
+     * @param level one of the LEVEL_* constants
+     * @return name of the level
+     */
+    public static String getLevelName(int level) {
+        switch (level) {
+            case LEVEL_GOOD:
+                return "good";
+            case LEVEL_DEGRADED:
+                return "degraded";
+            default:
+                return "poor";
+        }
+    }
+}
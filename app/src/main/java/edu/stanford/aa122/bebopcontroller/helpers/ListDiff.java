@@ -0,0 +1,87 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates a list of items to a new version of it, notifying each item removed, changed or added
+ * at the position it has in the list at the time, so the notifications can be replayed on a copy
+ * of the list (e.g. by an adapter).
+ *
+ * Items are identified by a key, an item keeping its key keeps its position.  Removals and
+ * changes are notified from the end of the list so the positions of the items not yet visited
+ * are still valid, then the new items are appended in the order of the new version.
+ */
+public class ListDiff {
+
+    /**
+     * Identity of the items
+     * @param <T> type of the items
+     */
+    public interface Identity<T> {
+        /**
+         * @return what identifies the item between two versions of the list
+         */
+        String key(T item);
+
+        /**
+         * @return the properties of the item which can change while it stays in the list
+         */
+        String signature(T item);
+    }
+
+    public interface Callback<T> {
+        void onRemoved(T item, int position);
+
+        void onChanged(T item, int position);
+
+        void onAdded(T item, int position);
+    }
+
+    private ListDiff() {
+    }
+
+    /**
+     * Update a list to a new version
+     * @param items the list, updated
+     * @param signatures signatures of the items of the list by key, updated
+     * @param update the new version of the list, null if empty
+     * @param identity identity of the items
+     * @param callback notified of each update of the list
+     * @param <T> type of the items
+     */
+    public static <T> void apply(List<T> items, Map<String, String> signatures, List<T> update,
+                                 Identity<T> identity, Callback<T> callback) {
+        Map<String, T> updated = new LinkedHashMap<>();
+        if (update != null) {
+            for (T item : update) {
+                updated.put(identity.key(item), item);
+            }
+        }
+
+        // removed and changed, from the end so the positions notified stay valid
+        for (int i = items.size() - 1; i >= 0; i--) {
+            String key = identity.key(items.get(i));
+            T item = updated.remove(key);
+            if (item == null) {
+                T removed = items.remove(i);
+                signatures.remove(key);
+                callback.onRemoved(removed, i);
+            } else {
+                items.set(i, item);
+                String signature = identity.signature(item);
+                if (!signature.equals(signatures.put(key, signature))) {
+                    callback.onChanged(item, i);
+                }
+            }
+        }
+
+        // added, in the order of the new version
+        for (Map.Entry<String, T> entry : updated.entrySet()) {
+            items.add(entry.getValue());
+            signatures.put(entry.getKey(), identity.signature(entry.getValue()));
+            callback.onAdded(entry.getValue(), items.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hardware decoder of the video stream, rendering to a surface.
+ *
+ * The stream is renegotiated every time the connection recovers, so the decoder is only
+ * fully reconfigured when it has to be: identical parameter sets are ignored and new ones
+ * with a size the decoder can handle are given to it in-band.
+ */
+public class MediaCodecVideoDecoder implements VideoDecoder {
+
+    private static final String TAG = "MediaCodecVideoDecoder";
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+    private static final int VIDEO_DEQUEUE_TIMEOUT = 33000;
+
+    /** size of the video stream when it cannot be read from the SPS [px] */
+    private static final int DEFAULT_VIDEO_WIDTH = 640;
+    private static final int DEFAULT_VIDEO_HEIGHT = 368;
+
+    /** size the decoder is prepared for when it supports adaptive playback [px] */
+    private static final int ADAPTIVE_MAX_WIDTH = 1280;
+    private static final int ADAPTIVE_MAX_HEIGHT = 720;
+
+    private final MediaCodec mMediaCodec;
+
+    /** surface the frames are rendered to */
+    private final Surface mSurface;
+
+    private Listener mListener;
+
+    private boolean mIsCodecConfigured = false;
+
+    private ByteBuffer[] mBuffers;
+
+    /** reused for every output buffer dequeued */
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    /** parameter sets the decoder is currently configured with (with their start codes) */
+    private byte[] mSps;
+    private byte[] mPps;
+
+    /** size of the video stream, as given by the SPS [px] */
+    private int mVideoWidth = DEFAULT_VIDEO_WIDTH;
+    private int mVideoHeight = DEFAULT_VIDEO_HEIGHT;
+
+    /** whether or not the decoder can change resolution without being reconfigured */
+    private final boolean mAdaptivePlayback;
+
+    /** largest size the decoder has been configured to adapt to [px] */
+    private int mMaxWidth = 0;
+    private int mMaxHeight = 0;
+
+    /**
+     * Constructor
+     * @param surface the surface to render the frames to
+     * @throws IOException if no decoder is available
+     */
+    public MediaCodecVideoDecoder(Surface surface) throws IOException {
+        mSurface = surface;
+        mMediaCodec = MediaCodec.createDecoderByType(VIDEO_MIME_TYPE);
+        mAdaptivePlayback = isAdaptivePlaybackSupported();
+        Log.i(TAG, "adaptive playback " + (mAdaptivePlayback ? "supported" : "not supported"));
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void configure(byte[] sps, byte[] pps) {
+        if (mIsCodecConfigured && Arrays.equals(sps, mSps) && Arrays.equals(pps, mPps)) {
+            Log.d(TAG, "same codec parameters, keeping decoder");
+            return;
+        }
+
+        int width = DEFAULT_VIDEO_WIDTH;
+        int height = DEFAULT_VIDEO_HEIGHT;
+        H264SpsParser.Sps info = H264SpsParser.parse(sps);
+        if (info != null) {
+            width = info.width;
+            height = info.height;
+        } else {
+            Log.e(TAG, "unable to read video size from SPS, using default");
+        }
+
+        boolean sameSize = (width == mVideoWidth) && (height == mVideoHeight);
+        boolean canAdapt = mAdaptivePlayback && (width <= mMaxWidth) && (height <= mMaxHeight);
+
+        mSps = sps;
+        mPps = pps;
+        mVideoWidth = width;
+        mVideoHeight = height;
+
+        if (mIsCodecConfigured && (sameSize || canAdapt) && queueCodecConfig()) {
+            Log.i(TAG, "new codec parameters given in-band (" + width + "x" + height + ")");
+        } else {
+            configureMediaCodec();
+        }
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return mIsCodecConfigured;
+    }
+
+    @Override
+    public boolean queueFrame(byte[] data, int size, long pts) {
+        // Here we have either a good PFrame, or an IFrame
+        int index = -1;
+
+        try {
+            index = mMediaCodec.dequeueInputBuffer(VIDEO_DEQUEUE_TIMEOUT);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error while dequeue input buffer");
+        }
+        if (index < 0) {
+            return false;
+        }
+
+        ByteBuffer b = getInputBuffer(index);
+        if (b != null) {
+            b.put(data, 0, size);
+        }
+
+        try {
+            mMediaCodec.queueInputBuffer(index, 0, size, pts, 0);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error while queue input buffer");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void drainOutput() {
+        // Try to display previous frame
+        int outIndex;
+        try {
+            outIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
+
+            while (outIndex >= 0) {
+                long pts = mBufferInfo.presentationTimeUs;
+                if (mListener != null) {
+                    mListener.onOutputAvailable(pts);
+                }
+                mMediaCodec.releaseOutputBuffer(outIndex, true);
+                if (mListener != null) {
+                    mListener.onFrameRendered(pts);
+                }
+                outIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error while dequeue input buffer (outIndex)");
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mIsCodecConfigured) {
+            mMediaCodec.stop();
+            mIsCodecConfigured = false;
+        }
+        mMediaCodec.release();
+    }
+
+    private void configureMediaCodec() {
+        if (mIsCodecConfigured) {
+            mMediaCodec.stop();
+            mIsCodecConfigured = false;
+        }
+
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, mVideoWidth, mVideoHeight);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(mSps));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(mPps));
+
+        if (mAdaptivePlayback) {
+            mMaxWidth = Math.max(mVideoWidth, ADAPTIVE_MAX_WIDTH);
+            mMaxHeight = Math.max(mVideoHeight, ADAPTIVE_MAX_HEIGHT);
+            format.setInteger(MediaFormat.KEY_MAX_WIDTH, mMaxWidth);
+            format.setInteger(MediaFormat.KEY_MAX_HEIGHT, mMaxHeight);
+        }
+
+        Log.i(TAG, "configuring decoder (" + mVideoWidth + "x" + mVideoHeight + ")");
+        mMediaCodec.configure(format, mSurface, null, 0);
+        mMediaCodec.start();
+
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
+            mBuffers = mMediaCodec.getInputBuffers();
+        }
+
+        mIsCodecConfigured = true;
+    }
+
+    /**
+     * give the current parameter sets to the running decoder as a codec config buffer
+     * @return true if the parameter sets were queued
+     */
+    private boolean queueCodecConfig() {
+        try {
+            int index = mMediaCodec.dequeueInputBuffer(VIDEO_DEQUEUE_TIMEOUT);
+            if (index < 0) {
+                return false;
+            }
+
+            ByteBuffer b = getInputBuffer(index);
+            if (b == null || b.remaining() < mSps.length + mPps.length) {
+                // give the buffer back empty
+                mMediaCodec.queueInputBuffer(index, 0, 0, 0, 0);
+                return false;
+            }
+
+            b.put(mSps);
+            b.put(mPps);
+            mMediaCodec.queueInputBuffer(index, 0, mSps.length + mPps.length, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error while queuing codec config");
+            return false;
+        }
+    }
+
+    private ByteBuffer getInputBuffer(int index) {
+        ByteBuffer b;
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+            b = mMediaCodec.getInputBuffer(index);
+        } else {
+            b = mBuffers[index];
+            b.clear();
+        }
+        return b;
+    }
+
+    /**
+     * check whether the decoder can change resolution mid-stream (requires API 19)
+     * @return true if the decoder supports adaptive playback
+     */
+    private boolean isAdaptivePlaybackSupported() {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = mMediaCodec.getCodecInfo().getCapabilitiesForType(VIDEO_MIME_TYPE);
+            return capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
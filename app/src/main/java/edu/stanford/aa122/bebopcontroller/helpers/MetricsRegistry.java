@@ -0,0 +1,220 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the runtime metrics of the app: counters, gauges and latency histograms.
+ *
+ * The instruments are looked up by name once, when setting up the code they measure, recording
+ * into them is then lock free and allocation free.  The registry is reported at intervals, each
+ * report giving the rates and latency percentiles since the previous one.
+ */
+public class MetricsRegistry {
+
+    /* names of the built-in instruments */
+
+    /** telemetry messages received, per type (suffix) */
+    public static final String TELEMETRY = "telemetry.";
+
+    /** from a telemetry message being received to it being delivered to the listeners [ns] */
+    public static final String DISPATCH_LATENCY = "dispatch.latency";
+
+    /** telemetry messages waiting to be delivered to the listeners (including the logger) */
+    public static final String DISPATCH_PENDING = "dispatch.pending";
+
+    /** time taken to write a line of the flight log [ns] */
+    public static final String LOGGER_WRITE = "logger.write";
+
+    /** from a video frame being queued in the decoder to it being decoded [ns] */
+    public static final String VIDEO_DECODE = "video.decode";
+
+    /** from a relative move being sent to the drone to it reporting the move ended [ns] */
+    public static final String COMMAND_ROUND_TRIP = "command.roundtrip";
+
+    /** time between two display frames [ns] */
+    public static final String UI_FRAME = "ui.frame";
+
+    /** quality of the link with the drone [%] */
+    public static final String LINK_QUALITY = "link.quality";
+
+    /** highest latency tracked by the histograms [ns] */
+    private static final long HIGHEST_LATENCY = 60L * 1000000000L;
+
+    public static final int TYPE_COUNTER = 0;
+    public static final int TYPE_GAUGE = 1;
+    public static final int TYPE_HISTOGRAM = 2;
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    /**
+     * Count of events.
+     */
+    public static class Counter {
+        private final AtomicLong mCount = new AtomicLong();
+        private long mReported = 0;
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * Current value of a quantity.
+     */
+    public static class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Value of an instrument over a report interval.
+     */
+    public static class Sample {
+        public final String name;
+
+        /** one of the TYPE_* constants */
+        public final int type;
+
+        /** events counted (counter), current value (gauge) or values recorded (histogram) */
+        public final long count;
+
+        /** events per second over the interval (counters and histograms) */
+        public final double rate;
+
+        /** percentiles and highest value of the latencies [ms] (histograms only) */
+        public final double p50, p90, p99, max;
+
+        Sample(String name, int type, long count, double rate, double p50, double p90, double p99, double max) {
+            this.name = name;
+            this.type = type;
+            this.count = count;
+            this.rate = rate;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case TYPE_COUNTER:
+                    return String.format(Locale.US, "%s: %d (%.1f/s)", name, count, rate);
+                case TYPE_GAUGE:
+                    return String.format(Locale.US, "%s: %d", name, count);
+                default:
+                    if (count == 0) {
+                        return String.format(Locale.US, "%s: no samples", name);
+                    }
+                    return String.format(Locale.US, "%s: p50 %.1f p90 %.1f p99 %.1f max %.1f ms (%.1f/s)",
+                            name, p50, p90, p99, max, rate);
+            }
+        }
+    }
+
+    /** instruments, in the order they were registered */
+    private final Map<String, Object> mInstruments = new LinkedHashMap<>();
+
+    /** time of the last report [ns] */
+    private long mLastReport = System.nanoTime();
+
+    /**
+     * @return the registry shared by the whole app
+     */
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Get a counter, created if needed
+     * @param name name of the counter
+     * @return the counter
+     */
+    public synchronized Counter counter(String name) {
+        Object instrument = mInstruments.get(name);
+        if (instrument == null) {
+            instrument = new Counter();
+            mInstruments.put(name, instrument);
+        }
+        return (Counter) instrument;
+    }
+
+    /**
+     * Get a gauge, created if needed
+     * @param name name of the gauge
+     * @return the gauge
+     */
+    public synchronized Gauge gauge(String name) {
+        Object instrument = mInstruments.get(name);
+        if (instrument == null) {
+            instrument = new Gauge();
+            mInstruments.put(name, instrument);
+        }
+        return (Gauge) instrument;
+    }
+
+    /**
+     * Get a latency histogram, created if needed
+     * @param name name of the histogram
+     * @return the histogram, recording latencies in nanoseconds
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        Object instrument = mInstruments.get(name);
+        if (instrument == null) {
+            instrument = new LatencyHistogram(HIGHEST_LATENCY);
+            mInstruments.put(name, instrument);
+        }
+        return (LatencyHistogram) instrument;
+    }
+
+    /**
+     * Report the instruments over the interval since the last report, and start a new interval
+     * @return the value of each instrument, in the order they were registered
+     */
+    public synchronized List<Sample> report() {
+        long now = System.nanoTime();
+        double interval = Math.max(1, now - mLastReport) / 1e9;
+        mLastReport = now;
+
+        List<Sample> samples = new ArrayList<>(mInstruments.size());
+        for (Map.Entry<String, Object> entry : mInstruments.entrySet()) {
+            String name = entry.getKey();
+            Object instrument = entry.getValue();
+            if (instrument instanceof Counter) {
+                Counter counter = (Counter) instrument;
+                long count = counter.get();
+                long delta = count - counter.mReported;
+                counter.mReported = count;
+                samples.add(new Sample(name, TYPE_COUNTER, count, delta / interval, 0, 0, 0, 0));
+            } else if (instrument instanceof Gauge) {
+                samples.add(new Sample(name, TYPE_GAUGE, ((Gauge) instrument).get(), 0, 0, 0, 0, 0));
+            } else {
+                LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) instrument).snapshot(true);
+                samples.add(new Sample(name, TYPE_HISTOGRAM, snapshot.count, snapshot.count / interval,
+                        snapshot.getPercentile(50) / 1e6, snapshot.getPercentile(90) / 1e6,
+                        snapshot.getPercentile(99) / 1e6, snapshot.max / 1e6));
+            }
+        }
+        return samples;
+    }
+}
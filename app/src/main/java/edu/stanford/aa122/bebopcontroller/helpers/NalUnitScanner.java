@@ -0,0 +1,135 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+/**
+ * Iterates over the NAL units of an H.264 Annex B buffer in place.
+ *
+ * Nothing is copied or allocated, the scanner only keeps offsets into the buffer it is given, so
+ * a single instance can be reused for every frame of the stream.
+ *
+ * Usage:
+ * <pre>
+ *     scanner.reset(data, 0, size);
+ *     while (scanner.next()) {
+ *         switch (scanner.getType()) { ... }
+ *     }
+ * </pre>
+ */
+public class NalUnitScanner {
+
+    /* NAL unit types */
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    private byte[] mData;
+
+    /** end of the valid data in the buffer */
+    private int mEnd;
+
+    /** offset of the payload of the next NAL unit, or -1 if there is none */
+    private int mNext = -1;
+
+    /* current NAL unit */
+    private int mStart;
+    private int mStop;
+    private int mType;
+
+    /**
+     * Start scanning a new buffer.
+     * @param data the buffer (Annex B)
+     * @param offset offset of the first byte to scan
+     * @param size number of bytes to scan
+     */
+    public void reset(byte[] data, int offset, int size) {
+        mData = data;
+        mEnd = offset + size;
+        int startCode = findStartCode(offset);
+        mNext = (startCode < 0) ? -1 : startCode + 3;
+        mType = -1;
+    }
+
+    /**
+     * Move to the next NAL unit of the buffer.
+     * @return true if there is one, false at the end of the buffer
+     */
+    public boolean next() {
+        while (mNext >= 0) {
+            mStart = mNext;
+            int startCode = findStartCode(mStart);
+            if (startCode < 0) {
+                mStop = mEnd;
+                mNext = -1;
+            } else {
+                mStop = startCode;
+                mNext = startCode + 3;
+            }
+
+            // zero bytes before a start code belong to it (4 byte start code or trailing zeros)
+            while (mStop > mStart && mData[mStop - 1] == 0) {
+                mStop--;
+            }
+
+            if (mStop > mStart) {
+                mType = mData[mStart] & 0x1F;
+                return true;
+            }
+        }
+        mType = -1;
+        return false;
+    }
+
+    /**
+     * @return type of the current NAL unit (one of the NAL_* constants or another type)
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return offset in the buffer of the current NAL unit, starting at its header byte
+     */
+    public int getOffset() {
+        return mStart;
+    }
+
+    /**
+     * @return length of the current NAL unit (header included, start code excluded)
+     */
+    public int getLength() {
+        return mStop - mStart;
+    }
+
+    /**
+     * Check if the current NAL unit is the first slice of a picture.
+     * @return true for a slice with first_mb_in_slice equal to 0
+     */
+    public boolean isFirstSliceOfPicture() {
+        return (mType == NAL_SLICE || mType == NAL_IDR) && (getLength() > 1) && ((mData[mStart + 1] & 0x80) != 0);
+    }
+
+    /**
+     * find the next 00 00 01 sequence
+     * @param from position to start searching from
+     * @return position of the first byte of the sequence, or -1 if none
+     */
+    private int findStartCode(int from) {
+        byte[] data = mData;
+        int last = mEnd - 3;
+        int i = from;
+        while (i <= last) {
+            int b = data[i + 2] & 0xFF;
+            if (b > 1) {
+                // neither of the 3 bytes ending here can be the start of a start code
+                i += 3;
+            } else if (b == 1 && data[i + 1] == 0 && data[i] == 0) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,298 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pure Java stand-in for the hardware decoder, to test and benchmark the video path off device.
+ *
+ * The decoder behaves like MediaCodec as seen from the video pipeline: a fixed number of input
+ * slots, frames decoded in order on a separate thread and frames before the first IDR discarded
+ * after each configuration.  The NAL units of every frame are parsed for real, but no pixels
+ * are produced, the cost of reconstructing the picture is simulated with a configurable cost
+ * per macroblock.
+ *
+ * Has no Android dependencies so it can run in local unit tests.
+ */
+public class SoftwareVideoDecoder implements VideoDecoder {
+
+    /** default number of input slots (hardware decoders typically have a handful) */
+    public static final int DEFAULT_INPUT_SLOTS = 4;
+
+    /** default time to wait for a free input slot [us] (same as the hardware path) */
+    public static final long DEFAULT_DEQUEUE_TIMEOUT = 33000;
+
+    /**
+     * Encoded frame waiting to be decoded.
+     */
+    private static class InputSlot {
+        byte[] data = new byte[0];
+        int size;
+        long pts;
+    }
+
+    private final ArrayBlockingQueue<InputSlot> mFreeSlots;
+    private final ArrayBlockingQueue<InputSlot> mPendingSlots;
+
+    /** time to wait for a free input slot [us] */
+    private final long mDequeueTimeout;
+
+    /** simulated decoding cost of one macroblock [ns] */
+    private final long mCostPerMacroblock;
+
+    /** decoded frames waiting to be drained, as a ring of presentation times */
+    private final long[] mOutput;
+    private int mOutputHead = 0;
+    private int mOutputCount = 0;
+    private final Object mOutputLock = new Object();
+
+    private Listener mListener;
+
+    /** scanner for the NAL units of the frames, only used on the decoding thread */
+    private final NalUnitScanner mScanner = new NalUnitScanner();
+
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+    private volatile boolean mConfigured = false;
+
+    /** set on configuration, frames are discarded until the next IDR frame */
+    private volatile boolean mWaitForIdr = true;
+
+    private byte[] mSps;
+    private byte[] mPps;
+
+    /** size of the stream [px] and number of macroblocks per picture */
+    private volatile int mWidth = 0;
+    private volatile int mHeight = 0;
+    private volatile int mMacroblocks = 0;
+
+    /* statistics */
+    private volatile long mFramesDecoded = 0;
+    private volatile long mFramesDiscarded = 0;
+    private volatile long mSlicesParsed = 0;
+    private volatile long mBusyTime = 0;
+
+    /**
+     * Constructor with the default number of input slots and timeout.
+     * @param costPerMacroblock simulated decoding cost of one macroblock [ns]
+     */
+    public SoftwareVideoDecoder(long costPerMacroblock) {
+        this(DEFAULT_INPUT_SLOTS, DEFAULT_DEQUEUE_TIMEOUT, costPerMacroblock);
+    }
+
+    /**
+     * Constructor
+     * @param inputSlots number of frames that can be queued in the decoder
+     * @param dequeueTimeout time to wait for a free input slot before dropping a frame [us]
+     * @param costPerMacroblock simulated decoding cost of one macroblock [ns]
+     */
+    public SoftwareVideoDecoder(int inputSlots, long dequeueTimeout, long costPerMacroblock) {
+        mFreeSlots = new ArrayBlockingQueue<>(inputSlots);
+        mPendingSlots = new ArrayBlockingQueue<>(inputSlots);
+        for (int i = 0; i < inputSlots; i++) {
+            mFreeSlots.offer(new InputSlot());
+        }
+        mDequeueTimeout = dequeueTimeout;
+        mCostPerMacroblock = costPerMacroblock;
+        mOutput = new long[inputSlots];
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void configure(byte[] sps, byte[] pps) {
+        if (mConfigured && Arrays.equals(sps, mSps) && Arrays.equals(pps, mPps)) {
+            return;
+        }
+
+        H264SpsParser.Sps info = H264SpsParser.parse(sps);
+        if (info == null) {
+            throw new IllegalArgumentException("invalid SPS");
+        }
+        mSps = sps;
+        mPps = pps;
+        mWidth = info.width;
+        mHeight = info.height;
+        mMacroblocks = ((info.width + 15) / 16) * ((info.height + 15) / 16);
+        mWaitForIdr = true;
+        mConfigured = true;
+
+        if (mThread == null) {
+            mRunning = true;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    decodeLoop();
+                }
+            }, "SoftwareVideoDecoder");
+            mThread.start();
+        }
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return mConfigured;
+    }
+
+    @Override
+    public boolean queueFrame(byte[] data, int size, long pts) {
+        InputSlot slot;
+        try {
+            slot = mFreeSlots.poll(mDequeueTimeout, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (slot == null) {
+            return false;
+        }
+
+        if (slot.data.length < size) {
+            slot.data = new byte[size];
+        }
+        System.arraycopy(data, 0, slot.data, 0, size);
+        slot.size = size;
+        slot.pts = pts;
+        mPendingSlots.offer(slot);
+        return true;
+    }
+
+    @Override
+    public void drainOutput() {
+        while (true) {
+            long pts;
+            synchronized (mOutputLock) {
+                if (mOutputCount == 0) {
+                    return;
+                }
+                pts = mOutput[mOutputHead];
+                mOutputHead = (mOutputHead + 1) % mOutput.length;
+                mOutputCount--;
+                mOutputLock.notifyAll();
+            }
+            if (mListener != null) {
+                mListener.onOutputAvailable(pts);
+                mListener.onFrameRendered(pts);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        mRunning = false;
+        mConfigured = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    /**
+     * Get the number of frames discarded while waiting for an IDR frame.
+     * @return number of discarded frames
+     */
+    public long getFramesDiscarded() {
+        return mFramesDiscarded;
+    }
+
+    public long getSlicesParsed() {
+        return mSlicesParsed;
+    }
+
+    /**
+     * Get the time spent by the decoding thread working on frames.
+     * @return busy time [ns]
+     */
+    public long getBusyTime() {
+        return mBusyTime;
+    }
+
+    private void decodeLoop() {
+        while (mRunning) {
+            InputSlot slot;
+            try {
+                slot = mPendingSlots.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            boolean decoded = decode(slot.data, slot.size);
+            long pts = slot.pts;
+            mFreeSlots.offer(slot);
+            mBusyTime += System.nanoTime() - start;
+
+            if (!decoded) {
+                mFramesDiscarded++;
+                continue;
+            }
+            mFramesDecoded++;
+
+            // wait for room at the output, like a decoder whose output buffers are all held
+            synchronized (mOutputLock) {
+                while (mOutputCount == mOutput.length && mRunning) {
+                    try {
+                        mOutputLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mOutput[(mOutputHead + mOutputCount) % mOutput.length] = pts;
+                mOutputCount++;
+            }
+        }
+    }
+
+    /**
+     * parse the NAL units of a frame and simulate the decoding of its slices
+     * @param data buffer containing the frame (Annex B)
+     * @param size number of valid bytes in the buffer
+     * @return true if the frame produced a picture
+     */
+    private boolean decode(byte[] data, int size) {
+        boolean hasSlice = false;
+        mScanner.reset(data, 0, size);
+        while (mScanner.next()) {
+            int type = mScanner.getType();
+            if (type == NalUnitScanner.NAL_IDR) {
+                mWaitForIdr = false;
+            }
+            if (type == NalUnitScanner.NAL_SLICE || type == NalUnitScanner.NAL_IDR) {
+                hasSlice = true;
+                mSlicesParsed++;
+            }
+        }
+
+        if (!hasSlice || mWaitForIdr) {
+            return false;
+        }
+
+        // reconstruction of the picture
+        long end = System.nanoTime() + mCostPerMacroblock * mMacroblocks;
+        while (System.nanoTime() < end) {
+            // busy wait, the decoder keeps its core busy
+        }
+        return true;
+    }
+}
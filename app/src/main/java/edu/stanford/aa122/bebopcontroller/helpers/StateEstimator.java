@@ -0,0 +1,318 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+/**
+ * Estimates the position and velocity of the drone in a local NED frame, at a fixed rate.
+ *
+ * The telemetry comes in at different rates (the GPS once per second at best, the speed, attitude
+ * and altitude a few times per second), the estimator fuses it with a small Kalman filter per axis
+ * (position and velocity) and dead-reckons between the measurements: the attitude gives the
+ * horizontal acceleration (the thrust tilted, minus the drag), which the filter integrates at each
+ * step.  The origin of the frame is the first GPS fix, the down axis is relative to the take off.
+ *
+ * Each step and measurement works on primitive arrays and allocates nothing, so the estimator can
+ * run inside a control loop.  Not thread safe, all of the calls are expected from the same thread.
+ */
+public class StateEstimator {
+
+    /** latitude reported by the drone without a GPS fix */
+    public static final double NO_GPS = 500.0;
+
+    /* axes of the local frame */
+    public static final int NORTH = 0;
+    public static final int EAST = 1;
+    public static final int DOWN = 2;
+
+    private static final double EARTH_RADIUS = 6378137.0;
+    private static final double GRAVITY = 9.81;
+
+    /** linear drag of the drone [1/s] */
+    static final double DRAG = 0.35;
+
+    /** standard deviation of the acceleration the model doesn't explain [m/s^2] */
+    private static final double ACCELERATION_NOISE = 1.0;
+
+    /* standard deviations of the measurements */
+    private static final double GPS_NOISE = 2.5;         // [m]
+    private static final double VELOCITY_NOISE = 0.15;   // [m/s]
+    private static final double ALTITUDE_NOISE = 0.1;    // [m]
+
+    /** variance of the position before the first measurement [m^2] */
+    private static final double INITIAL_VARIANCE = 1e4;
+
+    /** GPS fixes further than this many standard deviations from the estimate are rejected */
+    private static final double GPS_GATE = 5;
+
+    /** position and velocity along each axis [m] [m/s] */
+    private final double[] mPosition = new double[3];
+    private final double[] mVelocity = new double[3];
+
+    /** covariance of each axis: position variance, position-velocity covariance, velocity variance */
+    private final double[] mCovariance = new double[9];
+
+    /** acceleration given by the attitude [m/s^2] */
+    private final double[] mAcceleration = new double[3];
+
+    /* origin of the frame */
+    private boolean mHaveOrigin = false;
+    private double mOriginLatitude;
+    private double mOriginLongitude;
+    private double mMetersPerDegreeLatitude;
+    private double mMetersPerDegreeLongitude;
+
+    /** time since the last GPS fix [s] */
+    private double mTimeSinceFix = Double.POSITIVE_INFINITY;
+
+    private long mRejectedFixes = 0;
+
+    public StateEstimator() {
+        reset();
+    }
+
+    /**
+     * Forget the state and the origin, for a new flight
+     */
+    public void reset() {
+        for (int axis = 0; axis < 3; axis++) {
+            mPosition[axis] = 0;
+            mVelocity[axis] = 0;
+            mAcceleration[axis] = 0;
+            mCovariance[3 * axis] = INITIAL_VARIANCE;
+            mCovariance[3 * axis + 1] = 0;
+            mCovariance[3 * axis + 2] = VELOCITY_NOISE * VELOCITY_NOISE;
+        }
+        mHaveOrigin = false;
+        mTimeSinceFix = Double.POSITIVE_INFINITY;
+        mRejectedFixes = 0;
+    }
+
+    /**
+     * Propagate the state
+     * @param dt time since the previous step [s]
+     */
+    public void predict(double dt) {
+        if (dt <= 0) {
+            return;
+        }
+        double q = ACCELERATION_NOISE * ACCELERATION_NOISE;
+        double dt2 = dt * dt;
+        for (int axis = 0; axis < 3; axis++) {
+            double acceleration = mAcceleration[axis] - DRAG * mVelocity[axis];
+            mPosition[axis] += mVelocity[axis] * dt + 0.5 * acceleration * dt2;
+            mVelocity[axis] += acceleration * dt;
+
+            // P = F P F' + Q, for F = [1 dt; 0 1] and a white acceleration noise
+            int i = 3 * axis;
+            double p00 = mCovariance[i];
+            double p01 = mCovariance[i + 1];
+            double p11 = mCovariance[i + 2];
+            mCovariance[i] = p00 + 2 * dt * p01 + dt2 * p11 + q * dt2 * dt2 / 4;
+            mCovariance[i + 1] = p01 + dt * p11 + q * dt2 * dt / 2;
+            mCovariance[i + 2] = p11 + q * dt2;
+        }
+        mTimeSinceFix += dt;
+    }
+
+    /**
+     * Set the attitude, which gives the horizontal acceleration until the next one
+     * @param roll roll [deg], positive to the right
+     * @param pitch pitch [deg], positive nose up
+     * @param yaw yaw [deg], from the north
+     */
+    public void onAttitude(float roll, float pitch, float yaw) {
+        double forward = -GRAVITY * Math.tan(Math.toRadians(pitch));
+        double right = GRAVITY * Math.tan(Math.toRadians(roll));
+        double cosYaw = Math.cos(Math.toRadians(yaw));
+        double sinYaw = Math.sin(Math.toRadians(yaw));
+        mAcceleration[NORTH] = cosYaw * forward - sinYaw * right;
+        mAcceleration[EAST] = sinYaw * forward + cosYaw * right;
+    }
+
+    /**
+     * Fuse a velocity measurement
+     * @param vn north velocity [m/s]
+     * @param ve east velocity [m/s]
+     * @param vd down velocity [m/s]
+     */
+    public void onVelocity(float vn, float ve, float vd) {
+        double r = VELOCITY_NOISE * VELOCITY_NOISE;
+        updateVelocity(NORTH, vn, r);
+        updateVelocity(EAST, ve, r);
+        updateVelocity(DOWN, vd, r);
+    }
+
+    /**
+     * Fuse a GPS fix, the first one sets the origin of the frame
+     * @param lat latitude [deg], {@link #NO_GPS} without a fix (ignored)
+     * @param lon longitude [deg]
+     * @return false if the fix was ignored or rejected as an outlier
+     */
+    public boolean onPosition(double lat, double lon) {
+        if (lat == NO_GPS) {
+            return false;
+        }
+
+        if (!mHaveOrigin) {
+            mHaveOrigin = true;
+            mOriginLatitude = lat;
+            mOriginLongitude = lon;
+            mMetersPerDegreeLatitude = Math.toRadians(EARTH_RADIUS);
+            mMetersPerDegreeLongitude = mMetersPerDegreeLatitude * Math.cos(Math.toRadians(lat));
+        }
+
+        double north = (lat - mOriginLatitude) * mMetersPerDegreeLatitude;
+        double east = (lon - mOriginLongitude) * mMetersPerDegreeLongitude;
+        double r = GPS_NOISE * GPS_NOISE;
+
+        // reject the jumps, unless the estimate has drifted for long without a fix
+        if (mTimeSinceFix < 10 && (isOutlier(NORTH, north, r) || isOutlier(EAST, east, r))) {
+            mRejectedFixes++;
+            return false;
+        }
+
+        updatePosition(NORTH, north, r);
+        updatePosition(EAST, east, r);
+        mTimeSinceFix = 0;
+        return true;
+    }
+
+    /**
+     * Fuse an altitude measurement
+     * @param altitude altitude above the take off [m]
+     */
+    public void onRelativeAltitude(double altitude) {
+        updatePosition(DOWN, -altitude, ALTITUDE_NOISE * ALTITUDE_NOISE);
+    }
+
+    /**
+     * @param axis one of NORTH, EAST or DOWN
+     * @return position along the axis, from the origin [m]
+     */
+    public double getPosition(int axis) {
+        return mPosition[axis];
+    }
+
+    /**
+     * @param axis one of NORTH, EAST or DOWN
+     * @return velocity along the axis [m/s]
+     */
+    public double getVelocity(int axis) {
+        return mVelocity[axis];
+    }
+
+    /**
+     * @param axis one of NORTH, EAST or DOWN
+     * @return standard deviation of the position along the axis [m]
+     */
+    public double getPositionDeviation(int axis) {
+        return Math.sqrt(mCovariance[3 * axis]);
+    }
+
+    /**
+     * Copy the state
+     * @param state array of at least 6 values, filled with the north, east and down positions [m]
+     *              then velocities [m/s]
+     */
+    public void getState(double[] state) {
+        for (int axis = 0; axis < 3; axis++) {
+            state[axis] = mPosition[axis];
+            state[3 + axis] = mVelocity[axis];
+        }
+    }
+
+    /**
+     * @return true once the origin has been set by a GPS fix
+     */
+    public boolean hasOrigin() {
+        return mHaveOrigin;
+    }
+
+    /**
+     * @return latitude of the estimated position [deg], {@link #NO_GPS} without an origin
+     */
+    public double getLatitude() {
+        return mHaveOrigin ? mOriginLatitude + mPosition[NORTH] / mMetersPerDegreeLatitude : NO_GPS;
+    }
+
+    /**
+     * @return longitude of the estimated position [deg], 0 without an origin
+     */
+    public double getLongitude() {
+        return mHaveOrigin ? mOriginLongitude + mPosition[EAST] / mMetersPerDegreeLongitude : 0;
+    }
+
+    /**
+     * @param lat latitude [deg]
+     * @return north position of the latitude in the frame, 0 without an origin [m]
+     */
+    public double getNorth(double lat) {
+        return mHaveOrigin ? (lat - mOriginLatitude) * mMetersPerDegreeLatitude : 0;
+    }
+
+    /**
+     * @param lon longitude [deg]
+     * @return east position of the longitude in the frame, 0 without an origin [m]
+     */
+    public double getEast(double lon) {
+        return mHaveOrigin ? (lon - mOriginLongitude) * mMetersPerDegreeLongitude : 0;
+    }
+
+    /**
+     * @return time the position has been dead-reckoned since the last GPS fix [s]
+     */
+    public double getTimeSinceFix() {
+        return mTimeSinceFix;
+    }
+
+    public long getRejectedFixes() {
+        return mRejectedFixes;
+    }
+
+    private boolean isOutlier(int axis, double measurement, double r) {
+        double innovation = measurement - mPosition[axis];
+        return innovation * innovation > GPS_GATE * GPS_GATE * (mCovariance[3 * axis] + r);
+    }
+
+    /**
+     * fuse a measurement of the position along an axis
+     * @param axis the axis
+     * @param measurement the position [m]
+     * @param r variance of the measurement
+     */
+    private void updatePosition(int axis, double measurement, double r) {
+        int i = 3 * axis;
+        double p00 = mCovariance[i];
+        double p01 = mCovariance[i + 1];
+        double p11 = mCovariance[i + 2];
+        double s = p00 + r;
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        double innovation = measurement - mPosition[axis];
+        mPosition[axis] += k0 * innovation;
+        mVelocity[axis] += k1 * innovation;
+        mCovariance[i] = p00 - k0 * p00;
+        mCovariance[i + 1] = p01 - k0 * p01;
+        mCovariance[i + 2] = p11 - k1 * p01;
+    }
+
+    /**
+     * fuse a measurement of the velocity along an axis
+     * @param axis the axis
+     * @param measurement the velocity [m/s]
+     * @param r variance of the measurement
+     */
+    private void updateVelocity(int axis, double measurement, double r) {
+        int i = 3 * axis;
+        double p00 = mCovariance[i];
+        double p01 = mCovariance[i + 1];
+        double p11 = mCovariance[i + 2];
+        double s = p11 + r;
+        double k0 = p01 / s;
+        double k1 = p11 / s;
+        double innovation = measurement - mVelocity[axis];
+        mPosition[axis] += k0 * innovation;
+        mVelocity[axis] += k1 * innovation;
+        mCovariance[i] = p00 - k0 * p01;
+        mCovariance[i + 1] = p01 - k0 * p11;
+        mCovariance[i + 2] = p11 - k1 * p11;
+    }
+}
@@ -0,0 +1,299 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.Locale;
+
+/**
+ * Analyzes the incoming H.264 stream to give visibility on its health.
+ *
+ * Every frame is scanned in place for its NAL units, and the monitor keeps track of the GOP
+ * length, the bitrate, the gaps in the frame arrivals and the frames the SDK reports as missed.
+ * A summary of the last interval is published to the listener at a fixed rate.
+ *
+ * The monitor also follows the reference chain of the stream: once a frame has been missed, the
+ * following frames reference a picture the decoder never got until the next IDR frame comes in,
+ * see {@link #isReferenceBroken()}.
+ *
+ * Not thread safe, all of the frames are expected to come from the same thread.
+ */
+public class StreamHealthMonitor {
+
+    /** default time between two summaries [ms] */
+    public static final long DEFAULT_SUMMARY_INTERVAL = 1000;
+
+    /** time between two frames above which the stream is considered to have a gap [ms] */
+    public static final long GAP_THRESHOLD = 100;
+
+    public interface Listener {
+        /**
+         * Called with the summary of the last interval
+         * Called on the thread giving the frames to the monitor
+         * @param summary the summary
+         */
+        void onStreamHealthUpdated(Summary summary);
+    }
+
+    /**
+     * Summary of the health of the stream over an interval.
+     */
+    public static class Summary {
+        /** end of the interval [ms] (from {@link System#currentTimeMillis()}) */
+        public final long timestamp;
+
+        /** duration of the interval [ms] */
+        public final long duration;
+
+        /** number of frames received, and how many of them were IDR (or I) frames */
+        public final int frames;
+        public final int idrFrames;
+
+        /** number of frames received while the reference chain was broken */
+        public final int brokenFrames;
+
+        /** number of frames the SDK reported as missed */
+        public final int missedFrames;
+
+        /** number of gaps in the frame arrivals, and the longest of them [ms] */
+        public final int gaps;
+        public final long maxGap;
+
+        /** number of parameter sets and SEI units received */
+        public final int parameterSets;
+        public final int seiUnits;
+
+        /** number of bytes received */
+        public final long bytes;
+
+        /** number of frames between the last two IDR frames (0 if unknown) */
+        public final int gopLength;
+
+        public Summary(long timestamp, long duration, int frames, int idrFrames, int brokenFrames,
+                       int missedFrames, int gaps, long maxGap, int parameterSets, int seiUnits,
+                       long bytes, int gopLength) {
+            this.timestamp = timestamp;
+            this.duration = duration;
+            this.frames = frames;
+            this.idrFrames = idrFrames;
+            this.brokenFrames = brokenFrames;
+            this.missedFrames = missedFrames;
+            this.gaps = gaps;
+            this.maxGap = maxGap;
+            this.parameterSets = parameterSets;
+            this.seiUnits = seiUnits;
+            this.bytes = bytes;
+            this.gopLength = gopLength;
+        }
+
+        /**
+         * @return frame rate over the interval [frames per second]
+         */
+        public double getFrameRate() {
+            return (duration > 0) ? frames * 1000.0 / duration : 0;
+        }
+
+        /**
+         * @return bitrate over the interval [kbit/s]
+         */
+        public double getBitrate() {
+            return (duration > 0) ? bytes * 8.0 / duration : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f fps, %.0f kbit/s, gop %d, %d missed, %d broken, %d gaps (max %d ms)",
+                    getFrameRate(), getBitrate(), gopLength, missedFrames, brokenFrames, gaps, maxGap);
+        }
+    }
+
+    private final NalUnitScanner mScanner = new NalUnitScanner();
+
+    /** time between two summaries [ms] */
+    private final long mSummaryInterval;
+
+    private Listener mListener;
+
+    /** time the current interval started [ns] (from {@link System#nanoTime()}) */
+    private long mIntervalStart = -1;
+
+    /** arrival time of the previous frame [ns] */
+    private long mLastArrival = -1;
+
+    /** whether or not a frame has been missed since the last IDR frame */
+    private boolean mReferenceBroken = true;
+
+    /* GOP tracking */
+    private int mFramesSinceIdr = -1;
+    private int mGopLength = 0;
+
+    /* counters of the current interval */
+    private int mFrames;
+    private int mIdrFrames;
+    private int mBrokenFrames;
+    private int mMissedFrames;
+    private int mGaps;
+    private long mMaxGap;
+    private int mParameterSets;
+    private int mSeiUnits;
+    private long mBytes;
+
+    /* totals since the monitor was created */
+    private long mTotalFrames = 0;
+    private long mTotalMissed = 0;
+    private long mTotalGaps = 0;
+
+    /** last published summary */
+    private volatile Summary mLastSummary;
+
+    /**
+     * Constructor using the default summary interval.
+     */
+    public StreamHealthMonitor() {
+        this(DEFAULT_SUMMARY_INTERVAL);
+    }
+
+    /**
+     * Constructor
+     * @param summaryInterval time between two summaries [ms]
+     */
+    public StreamHealthMonitor(long summaryInterval) {
+        mSummaryInterval = summaryInterval;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Mark the stream as (re)configured, the decoder needs an IDR frame to start from.
+     */
+    public void onCodecConfig() {
+        mReferenceBroken = true;
+        mFramesSinceIdr = -1;
+    }
+
+    /**
+     * Analyze a frame of the stream.
+     * @param data buffer containing the frame (Annex B), it is not modified nor kept
+     * @param size number of valid bytes in the buffer
+     * @param missed number of frames missed right before this one (as reported by the SDK)
+     * @param iFrame true if the SDK flagged the frame as an I-frame (some streams use non-IDR
+     *               I-frames as refresh points)
+     * @param arrival time the frame arrived [ns] (from {@link System#nanoTime()})
+     * @return true if the frame can be decoded (it does not reference a missed frame)
+     */
+    public boolean onFrame(byte[] data, int size, int missed, boolean iFrame, long arrival) {
+        if (mIntervalStart < 0) {
+            mIntervalStart = arrival;
+        } else if (arrival - mIntervalStart >= mSummaryInterval * 1000000) {
+            publish(arrival);
+        }
+
+        if (mLastArrival >= 0) {
+            long gap = (arrival - mLastArrival) / 1000000;
+            if (gap > GAP_THRESHOLD) {
+                mGaps++;
+                mTotalGaps++;
+                mMaxGap = Math.max(mMaxGap, gap);
+            }
+        }
+        mLastArrival = arrival;
+
+        if (missed > 0) {
+            mMissedFrames += missed;
+            mTotalMissed += missed;
+            mReferenceBroken = true;
+        }
+
+        boolean idr = iFrame;
+        mScanner.reset(data, 0, size);
+        while (mScanner.next()) {
+            switch (mScanner.getType()) {
+                case NalUnitScanner.NAL_IDR:
+                    idr = true;
+                    break;
+                case NalUnitScanner.NAL_SPS:
+                case NalUnitScanner.NAL_PPS:
+                    mParameterSets++;
+                    break;
+                case NalUnitScanner.NAL_SEI:
+                    mSeiUnits++;
+                    break;
+            }
+        }
+
+        if (idr) {
+            mIdrFrames++;
+            if (mFramesSinceIdr > 0) {
+                mGopLength = mFramesSinceIdr;
+            }
+            mFramesSinceIdr = 0;
+            mReferenceBroken = false;
+        }
+        if (mFramesSinceIdr >= 0) {
+            mFramesSinceIdr++;
+        }
+
+        mFrames++;
+        mTotalFrames++;
+        mBytes += size;
+        if (mReferenceBroken) {
+            mBrokenFrames++;
+        }
+
+        return !mReferenceBroken;
+    }
+
+    /**
+     * Check if the frames being received reference a frame that was missed.
+     * The chain is restored by the next IDR frame.
+     * @return true if the reference chain is broken
+     */
+    public boolean isReferenceBroken() {
+        return mReferenceBroken;
+    }
+
+    /**
+     * Get the last published summary.
+     * @return the summary, or null if none has been published yet
+     */
+    public Summary getLastSummary() {
+        return mLastSummary;
+    }
+
+    public long getTotalFrames() {
+        return mTotalFrames;
+    }
+
+    public long getTotalMissed() {
+        return mTotalMissed;
+    }
+
+    public long getTotalGaps() {
+        return mTotalGaps;
+    }
+
+    /**
+     * publish the summary of the current interval and start a new one
+     * @param now end of the interval [ns]
+     */
+    private void publish(long now) {
+        Summary summary = new Summary(System.currentTimeMillis(), (now - mIntervalStart) / 1000000,
+                mFrames, mIdrFrames, mBrokenFrames, mMissedFrames, mGaps, mMaxGap,
+                mParameterSets, mSeiUnits, mBytes, mGopLength);
+
+        mIntervalStart = now;
+        mFrames = 0;
+        mIdrFrames = 0;
+        mBrokenFrames = 0;
+        mMissedFrames = 0;
+        mGaps = 0;
+        mMaxGap = 0;
+        mParameterSets = 0;
+        mSeiUnits = 0;
+        mBytes = 0;
+
+        mLastSummary = summary;
+        if (mListener != null) {
+            mListener.onStreamHealthUpdated(summary);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import android.graphics.Color;
+import android.location.Location;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.Locale;
+
+/**
+ * Binds the telemetry of the drone to the status views.
+ *
+ * The telemetry only updates the latest value of each field, the views are updated at most once
+ * per display frame with those values.  The text is only rebuilt (and set, possibly causing a
+ * layout pass) when the value shown changes.
+ *
+ * Not thread safe, to be used from the main thread.
+ */
+public class TelemetryBinder {
+
+    /** conversion from meters to feet */
+    private static final double METERS_TO_FEET = 3.28084;
+
+    /** latitude reported by the drone without a GPS fix */
+    private static final double NO_GPS = 500.0;
+
+    private static final int FIELD_BATTERY = 1;
+    private static final int FIELD_ALTITUDE = 1 << 1;
+    private static final int FIELD_DISTANCE = 1 << 2;
+    private static final int FIELD_LINK = 1 << 3;
+
+    /** color of the link quality, for each level */
+    private static final int[] LINK_COLORS = {Color.WHITE, Color.YELLOW, Color.RED};
+
+    private final TextView mBatteryText;
+    private final TextView mAltitudeText;
+    private final TextView mDistanceText;
+    private final TextView mLinkText;
+    private final View mGpsIcon;
+
+    // latest values received
+    private int mBattery;
+    private double mAltitude;
+    private double mLatitude = NO_GPS;
+    private double mLongitude;
+    private Location mUserLocation;
+    private int mLinkScore;
+    private int mLinkLevel;
+
+    /** fields changed since the last frame (FIELD_* flags) */
+    private int mDirty = 0;
+
+    // values shown, to skip the unchanged text
+    private int mShownBattery = Integer.MIN_VALUE;
+    private int mShownAltitude = Integer.MIN_VALUE;
+    private int mShownDistance = Integer.MIN_VALUE;
+    private int mShownLinkScore = Integer.MIN_VALUE;
+    private int mShownLinkLevel = -1;
+    private boolean mShownGps = true;
+
+    /** result of the distance computations */
+    private final float[] mDistance = new float[1];
+
+    private boolean mFrameScheduled = false;
+    private Choreographer mChoreographer;
+
+    /**
+     * Constructor
+     * @param batteryText view for the battery level
+     * @param altitudeText view for the altitude
+     * @param distanceText view for the distance between the user and the drone
+     * @param linkText view for the quality of the link with the drone
+     * @param gpsIcon view shown while the drone has GPS
+     */
+    public TelemetryBinder(TextView batteryText, TextView altitudeText, TextView distanceText, TextView linkText, View gpsIcon) {
+        mBatteryText = batteryText;
+        mAltitudeText = altitudeText;
+        mDistanceText = distanceText;
+        mLinkText = linkText;
+        mGpsIcon = gpsIcon;
+    }
+
+    /**
+     * @param batteryPercentage battery level of the drone [%]
+     */
+    public void setBattery(int batteryPercentage) {
+        mBattery = batteryPercentage;
+        markDirty(FIELD_BATTERY);
+    }
+
+    /**
+     * @param altitude altitude of the drone, relative to the take off [m]
+     */
+    public void setAltitude(double altitude) {
+        mAltitude = altitude;
+        markDirty(FIELD_ALTITUDE);
+    }
+
+    /**
+     * @param lat latitude of the drone, 500 without GPS
+     * @param lon longitude of the drone
+     */
+    public void setDronePosition(double lat, double lon) {
+        mLatitude = lat;
+        mLongitude = lon;
+        markDirty(FIELD_DISTANCE);
+    }
+
+    /**
+     * @param location location of the user (phone)
+     */
+    public void setUserLocation(Location location) {
+        mUserLocation = location;
+        markDirty(FIELD_DISTANCE);
+    }
+
+    /**
+     * @param score quality of the link with the drone, from 0 to 1
+     * @param level level of the quality, one of the LinkQualityMonitor.LEVEL_* constants
+     */
+    public void setLinkQuality(float score, int level) {
+        mLinkScore = Math.round(score * 100);
+        mLinkLevel = level;
+        markDirty(FIELD_LINK);
+    }
+
+    /**
+     * Stop updating the views until a new value is received
+     */
+    public void stop() {
+        if (mFrameScheduled) {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
+        }
+    }
+
+    private void markDirty(int field) {
+        mDirty |= field;
+        if (!mFrameScheduled) {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mChoreographer.postFrameCallback(mFrameCallback);
+            mFrameScheduled = true;
+        }
+    }
+
+    /**
+     * update the views for the fields changed since the last frame
+     */
+    private void apply() {
+        int dirty = mDirty;
+        mDirty = 0;
+
+        if ((dirty & FIELD_BATTERY) != 0 && mBattery != mShownBattery) {
+            mShownBattery = mBattery;
+            mBatteryText.setText(String.format(Locale.US, "%d%%", mBattery));
+        }
+
+        if ((dirty & FIELD_ALTITUDE) != 0 && (int) mAltitude != mShownAltitude) {
+            mShownAltitude = (int) mAltitude;
+            mAltitudeText.setText(String.format(Locale.US, "%d ft", mShownAltitude));
+        }
+
+        if ((dirty & FIELD_DISTANCE) != 0) {
+            applyDistance();
+        }
+
+        if ((dirty & FIELD_LINK) != 0) {
+            if (mLinkScore != mShownLinkScore) {
+                mShownLinkScore = mLinkScore;
+                mLinkText.setText(String.format(Locale.US, "link %d%%", mLinkScore));
+            }
+            if (mLinkLevel != mShownLinkLevel) {
+                mShownLinkLevel = mLinkLevel;
+                mLinkText.setTextColor(LINK_COLORS[mLinkLevel]);
+            }
+        }
+    }
+
+    private void applyDistance() {
+        boolean haveGps = mLatitude != NO_GPS;
+        if (haveGps != mShownGps) {
+            mShownGps = haveGps;
+            mGpsIcon.setVisibility(haveGps ? View.VISIBLE : View.GONE);
+        }
+
+        if (!haveGps || mUserLocation == null) {
+            if (mShownDistance != Integer.MIN_VALUE) {
+                mShownDistance = Integer.MIN_VALUE;
+                mDistanceText.setText("ft");
+            }
+            return;
+        }
+
+        // distance to the drone in feet, only for the latest position
+        Location.distanceBetween(mUserLocation.getLatitude(), mUserLocation.getLongitude(), mLatitude, mLongitude, mDistance);
+        int distance = (int) (mDistance[0] * METERS_TO_FEET);
+        if (distance != mShownDistance) {
+            mShownDistance = distance;
+            mDistanceText.setText(String.format(Locale.US, "%d ft", distance));
+        }
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            apply();
+        }
+    };
+}
@@ -0,0 +1,425 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plans trajectories through waypoints, for the drone to fly them without stopping.
+ *
+ * The path is the polyline through the waypoints, flown with a jerk limited speed profile: along
+ * each leg the speed ramps up to a cruise speed and down to the speed of the next corner with
+ * S-curves (the acceleration ramps at the max jerk), so the acceleration is continuous along the
+ * path.  The speed through a corner is limited so the change of direction stays small enough for
+ * the tracking controller to absorb, a drone only stops at the first and last waypoints.
+ *
+ * Positions are in the local NED frame of the {@link StateEstimator} [m].
+ */
+public class TrajectoryPlanner {
+
+    private static final double GRAVITY = 9.81;
+
+    /** number of iterations of the searches of the speeds */
+    private static final int SEARCH_ITERATIONS = 40;
+
+    /* limits of the trajectories */
+    private double mMaxSpeed = 2.0;                // [m/s]
+    private double mMaxVerticalSpeed = 0.8;        // [m/s]
+    private double mMaxAcceleration = 1.0;         // [m/s^2]
+    private double mMaxJerk = 2.0;                 // [m/s^3]
+
+    /** change of velocity allowed through a corner [m/s] */
+    private double mCornerVelocityChange = 1.0;
+
+    /**
+     * Trajectory through waypoints, sampled in time from its start.
+     */
+    public static class Trajectory {
+
+        /** waypoints, and the time each is reached [s] */
+        private final double[] mWaypoints;
+        private final double[] mWaypointTimes;
+
+        // legs: start, unit direction, length [m], distance along the path at the start [m]
+        private final double[] mStarts;
+        private final double[] mDirections;
+        private final double[] mLengths;
+        private final double[] mDistances;
+
+        // speed profile of each leg: speeds [m/s] and durations [s] of the ramp up, cruise and ramp down
+        private final double[] mEntrySpeeds;
+        private final double[] mCruiseSpeeds;
+        private final double[] mExitSpeeds;
+        private final double[] mStartTimes;
+        private final double[] mRampUpTimes;
+        private final double[] mCruiseTimes;
+        private final double[] mRampDownTimes;
+
+        private final double mAcceleration;
+        private final double mJerk;
+        private double mDuration = 0;
+
+        /** distance, speed and acceleration of a ramp, while sampling */
+        private final double[] mRamp = new double[3];
+
+        private Trajectory(double[] waypoints, double[] waypointTimes, int legs, double acceleration, double jerk) {
+            mWaypoints = waypoints;
+            mWaypointTimes = waypointTimes;
+            mStarts = new double[3 * legs];
+            mDirections = new double[3 * legs];
+            mLengths = new double[legs];
+            mDistances = new double[legs + 1];
+            mEntrySpeeds = new double[legs];
+            mCruiseSpeeds = new double[legs];
+            mExitSpeeds = new double[legs];
+            mStartTimes = new double[legs + 1];
+            mRampUpTimes = new double[legs];
+            mCruiseTimes = new double[legs];
+            mRampDownTimes = new double[legs];
+            mAcceleration = acceleration;
+            mJerk = jerk;
+        }
+
+        /**
+         * @return time to fly the trajectory [s]
+         */
+        public double getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return length of the path [m]
+         */
+        public double getLength() {
+            return mDistances[mLengths.length];
+        }
+
+        public int getWaypointCount() {
+            return mWaypointTimes.length;
+        }
+
+        /**
+         * @param waypoint index of the waypoint
+         * @return time the waypoint is reached [s]
+         */
+        public double getWaypointTime(int waypoint) {
+            return mWaypointTimes[waypoint];
+        }
+
+        /**
+         * @param waypoint index of the waypoint
+         * @param axis one of {@link StateEstimator#NORTH}, EAST or DOWN
+         * @return position of the waypoint [m]
+         */
+        public double getWaypoint(int waypoint, int axis) {
+            return mWaypoints[3 * waypoint + axis];
+        }
+
+        /**
+         * Sample the trajectory, from a single thread
+         * @param t time from the start [s], clamped to the trajectory
+         * @param state array of at least 9 values, filled with the north, east and down positions [m],
+         *              velocities [m/s] then accelerations [m/s^2]
+         * @return distance flown along the path [m]
+         */
+        public double sample(double t, double[] state) {
+            int legs = mLengths.length;
+            if (legs == 0) {
+                for (int axis = 0; axis < 3; axis++) {
+                    state[axis] = mWaypoints[axis];
+                    state[3 + axis] = 0;
+                    state[6 + axis] = 0;
+                }
+                return 0;
+            }
+            t = Math.max(0, Math.min(mDuration, t));
+
+            // leg flown at that time
+            int low = 0, high = legs - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (mStartTimes[mid] <= t) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            int leg = low;
+            double tau = t - mStartTimes[leg];
+
+            // distance, speed and acceleration along the leg
+            double[] ramp = mRamp;
+            double s, v, a;
+            if (tau < mRampUpTimes[leg]) {
+                evaluateRamp(mEntrySpeeds[leg], mCruiseSpeeds[leg], mAcceleration, mJerk, tau, ramp);
+                s = ramp[0];
+                v = ramp[1];
+                a = ramp[2];
+            } else if (tau < mRampUpTimes[leg] + mCruiseTimes[leg]) {
+                double rampUp = rampDistance(mEntrySpeeds[leg], mCruiseSpeeds[leg], mAcceleration, mJerk);
+                s = rampUp + mCruiseSpeeds[leg] * (tau - mRampUpTimes[leg]);
+                v = mCruiseSpeeds[leg];
+                a = 0;
+            } else {
+                double rampUp = rampDistance(mEntrySpeeds[leg], mCruiseSpeeds[leg], mAcceleration, mJerk);
+                evaluateRamp(mCruiseSpeeds[leg], mExitSpeeds[leg], mAcceleration, mJerk,
+                        Math.min(mRampDownTimes[leg], tau - mRampUpTimes[leg] - mCruiseTimes[leg]), ramp);
+                s = rampUp + mCruiseSpeeds[leg] * mCruiseTimes[leg] + ramp[0];
+                v = ramp[1];
+                a = ramp[2];
+            }
+            s = Math.min(s, mLengths[leg]);
+
+            for (int axis = 0; axis < 3; axis++) {
+                double direction = mDirections[3 * leg + axis];
+                state[axis] = mStarts[3 * leg + axis] + s * direction;
+                state[3 + axis] = v * direction;
+                state[6 + axis] = a * direction;
+            }
+            return mDistances[leg] + s;
+        }
+    }
+
+    public void setMaxSpeed(double speed) {
+        mMaxSpeed = speed;
+    }
+
+    public double getMaxSpeed() {
+        return mMaxSpeed;
+    }
+
+    public void setMaxVerticalSpeed(double speed) {
+        mMaxVerticalSpeed = speed;
+    }
+
+    public void setMaxAcceleration(double acceleration) {
+        mMaxAcceleration = acceleration;
+    }
+
+    public void setMaxJerk(double jerk) {
+        mMaxJerk = jerk;
+    }
+
+    public void setCornerVelocityChange(double change) {
+        mCornerVelocityChange = change;
+    }
+
+    /**
+     * Cap the limits to what the drone can follow with its settings, keeping a third of the tilt
+     * for the drag and a third for the tracking controller to correct the errors
+     * @param maxTilt max tilt of the drone [deg]
+     * @param maxVerticalSpeed max vertical speed of the drone [m/s]
+     */
+    public void setDroneLimits(float maxTilt, float maxVerticalSpeed) {
+        double tiltAcceleration = GRAVITY * Math.tan(Math.toRadians(maxTilt));
+        mMaxAcceleration = Math.min(mMaxAcceleration, tiltAcceleration / 3);
+        mMaxSpeed = Math.min(mMaxSpeed, tiltAcceleration / (3 * StateEstimator.DRAG));
+        mMaxVerticalSpeed = Math.min(mMaxVerticalSpeed, 0.8 * maxVerticalSpeed);
+    }
+
+    /**
+     * Plan the trajectory through waypoints, starting and ending at rest
+     * @param north north positions of the waypoints [m], the first one is the start
+     * @param east east positions of the waypoints [m]
+     * @param down down positions of the waypoints [m]
+     * @return the trajectory
+     */
+    public Trajectory plan(double[] north, double[] east, double[] down) {
+        int count = north.length;
+        if (count == 0 || east.length != count || down.length != count) {
+            throw new IllegalArgumentException("the trajectory needs waypoints");
+        }
+        double[] waypoints = new double[3 * count];
+        for (int i = 0; i < count; i++) {
+            waypoints[3 * i] = north[i];
+            waypoints[3 * i + 1] = east[i];
+            waypoints[3 * i + 2] = down[i];
+        }
+
+        // the legs between distinct waypoints
+        List<Integer> ends = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int previous = ends.isEmpty() ? 0 : ends.get(ends.size() - 1);
+            if (distance(waypoints, previous, i) > 1e-3) {
+                ends.add(i);
+            }
+        }
+        int legs = ends.size();
+        double acceleration = mMaxAcceleration;
+        double jerk = mMaxJerk;
+        double[] waypointTimes = new double[count];
+        Trajectory trajectory = new Trajectory(waypoints, waypointTimes, legs, acceleration, jerk);
+        if (legs == 0) {
+            return trajectory;
+        }
+
+        double[] maxSpeeds = new double[legs];
+        for (int leg = 0; leg < legs; leg++) {
+            int start = (leg == 0) ? 0 : ends.get(leg - 1);
+            int end = ends.get(leg);
+            double length = distance(waypoints, start, end);
+            trajectory.mLengths[leg] = length;
+            trajectory.mDistances[leg + 1] = trajectory.mDistances[leg] + length;
+            for (int axis = 0; axis < 3; axis++) {
+                trajectory.mStarts[3 * leg + axis] = waypoints[3 * start + axis];
+                trajectory.mDirections[3 * leg + axis] = (waypoints[3 * end + axis] - waypoints[3 * start + axis]) / length;
+            }
+
+            // the vertical speed limits the legs climbing or descending steeply
+            double vertical = Math.abs(trajectory.mDirections[3 * leg + 2]);
+            double horizontal = Math.sqrt(Math.max(0, 1 - vertical * vertical));
+            maxSpeeds[leg] = Math.min(horizontal > 0 ? mMaxSpeed / horizontal : Double.POSITIVE_INFINITY,
+                    vertical > 0 ? mMaxVerticalSpeed / vertical : Double.POSITIVE_INFINITY);
+        }
+
+        // speeds at the corners, limited by the change of direction
+        double[] speeds = new double[legs + 1];
+        for (int corner = 1; corner < legs; corner++) {
+            double cosAngle = 0;
+            for (int axis = 0; axis < 3; axis++) {
+                cosAngle += trajectory.mDirections[3 * (corner - 1) + axis] * trajectory.mDirections[3 * corner + axis];
+            }
+            double halfAngleSin = Math.sqrt(Math.max(0, (1 - cosAngle) / 2));
+            double cornerSpeed = (halfAngleSin > 1e-6) ? mCornerVelocityChange / (2 * halfAngleSin) : Double.POSITIVE_INFINITY;
+            speeds[corner] = Math.min(cornerSpeed, Math.min(maxSpeeds[corner - 1], maxSpeeds[corner]));
+        }
+
+        // reachable within the length of the legs, backward then forward
+        for (int leg = legs - 1; leg >= 0; leg--) {
+            speeds[leg] = Math.min(speeds[leg], reachableSpeed(speeds[leg + 1], trajectory.mLengths[leg], acceleration, jerk));
+        }
+        for (int leg = 0; leg < legs; leg++) {
+            speeds[leg + 1] = Math.min(speeds[leg + 1], reachableSpeed(speeds[leg], trajectory.mLengths[leg], acceleration, jerk));
+        }
+
+        // cruise speed of each leg, the highest fitting in its length
+        double time = 0;
+        for (int leg = 0; leg < legs; leg++) {
+            double entry = speeds[leg];
+            double exit = speeds[leg + 1];
+            double length = trajectory.mLengths[leg];
+            double low = Math.max(entry, exit);
+            double high = Math.max(low, maxSpeeds[leg]);
+            if (rampDistance(entry, high, acceleration, jerk) + rampDistance(high, exit, acceleration, jerk) > length) {
+                for (int i = 0; i < SEARCH_ITERATIONS; i++) {
+                    double mid = (low + high) / 2;
+                    if (rampDistance(entry, mid, acceleration, jerk) + rampDistance(mid, exit, acceleration, jerk) <= length) {
+                        low = mid;
+                    } else {
+                        high = mid;
+                    }
+                }
+                high = low;
+            }
+            double cruise = high;
+            double cruiseDistance = length - rampDistance(entry, cruise, acceleration, jerk) - rampDistance(cruise, exit, acceleration, jerk);
+
+            trajectory.mEntrySpeeds[leg] = entry;
+            trajectory.mCruiseSpeeds[leg] = cruise;
+            trajectory.mExitSpeeds[leg] = exit;
+            trajectory.mRampUpTimes[leg] = rampTime(entry, cruise, acceleration, jerk);
+            trajectory.mCruiseTimes[leg] = (cruise > 0) ? Math.max(0, cruiseDistance) / cruise : 0;
+            trajectory.mRampDownTimes[leg] = rampTime(cruise, exit, acceleration, jerk);
+            trajectory.mStartTimes[leg] = time;
+            time += trajectory.mRampUpTimes[leg] + trajectory.mCruiseTimes[leg] + trajectory.mRampDownTimes[leg];
+            trajectory.mStartTimes[leg + 1] = time;
+        }
+
+        // times of the waypoints, the ones skipped as duplicates are reached with the previous one
+        int leg = 0;
+        for (int i = 1; i < count; i++) {
+            if (leg < legs && ends.get(leg) == i) {
+                leg++;
+            }
+            waypointTimes[i] = trajectory.mStartTimes[leg];
+        }
+        trajectory.mDuration = time;
+        return trajectory;
+    }
+
+    private static double distance(double[] waypoints, int from, int to) {
+        double dn = waypoints[3 * to] - waypoints[3 * from];
+        double de = waypoints[3 * to + 1] - waypoints[3 * from + 1];
+        double dd = waypoints[3 * to + 2] - waypoints[3 * from + 2];
+        return Math.sqrt(dn * dn + de * de + dd * dd);
+    }
+
+    /**
+     * highest speed that can be reached from (or slowed down to) a speed within a distance
+     */
+    private static double reachableSpeed(double speed, double length, double acceleration, double jerk) {
+        double low = speed;
+        double high = speed + 1;
+        while (rampDistance(speed, high, acceleration, jerk) <= length) {
+            low = high;
+            high *= 2;
+        }
+        for (int i = 0; i < SEARCH_ITERATIONS; i++) {
+            double mid = (low + high) / 2;
+            if (rampDistance(speed, mid, acceleration, jerk) <= length) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * duration of a change of speed starting and ending without acceleration [s]
+     */
+    static double rampTime(double from, double to, double acceleration, double jerk) {
+        double change = Math.abs(to - from);
+        if (change * jerk >= acceleration * acceleration) {
+            return change / acceleration + acceleration / jerk;
+        }
+        return 2 * Math.sqrt(change / jerk);
+    }
+
+    /**
+     * distance flown during a change of speed, the profile being symmetric [m]
+     */
+    static double rampDistance(double from, double to, double acceleration, double jerk) {
+        return (from + to) / 2 * rampTime(from, to, acceleration, jerk);
+    }
+
+    /**
+     * evaluate a change of speed: the acceleration ramps up at the jerk, holds, and ramps down
+     * @param from speed at the start [m/s]
+     * @param to speed at the end [m/s]
+     * @param t time from the start of the change [s]
+     * @param out filled with the distance [m], speed [m/s] and acceleration [m/s^2]
+     */
+    static void evaluateRamp(double from, double to, double acceleration, double jerk, double t, double[] out) {
+        double sign = Math.signum(to - from);
+        double change = Math.abs(to - from);
+        double jerkTime, holdTime;
+        if (change * jerk >= acceleration * acceleration) {
+            jerkTime = acceleration / jerk;
+            holdTime = change / acceleration - jerkTime;
+        } else {
+            jerkTime = Math.sqrt(change / jerk);
+            holdTime = 0;
+        }
+        double peak = jerk * jerkTime;
+        double total = 2 * jerkTime + holdTime;
+
+        if (t < jerkTime) {
+            out[0] = from * t + sign * jerk * t * t * t / 6;
+            out[1] = from + sign * jerk * t * t / 2;
+            out[2] = sign * jerk * t;
+        } else if (t < jerkTime + holdTime) {
+            double hold = t - jerkTime;
+            double speed = from + sign * peak * jerkTime / 2;
+            double distance = from * jerkTime + sign * jerk * jerkTime * jerkTime * jerkTime / 6;
+            out[0] = distance + speed * hold + sign * peak * hold * hold / 2;
+            out[1] = speed + sign * peak * hold;
+            out[2] = sign * peak;
+        } else {
+            // mirror of the start, from the end
+            double remaining = Math.max(0, total - t);
+            out[0] = (from + to) / 2 * total - (to * remaining - sign * jerk * remaining * remaining * remaining / 6);
+            out[1] = to - sign * jerk * remaining * remaining / 2;
+            out[2] = sign * jerk * remaining;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+/**
+ * Tracks a trajectory with the piloting commands of the drone.
+ *
+ * The horizontal acceleration to command is the one of the trajectory, plus the drag of the drone,
+ * plus a correction of the position and velocity errors of the estimate; it is turned into the
+ * tilt giving it and into roll and pitch percentages of the max tilt.  The climb follows the
+ * vertical speed of the trajectory corrected by the altitude error, as a percentage of the max
+ * vertical speed, and the yaw holds a heading within the max rotation speed.
+ *
+ * Allocates nothing, to run at the rate of the estimator.
+ */
+public class TrajectoryTracker {
+
+    private static final double GRAVITY = 9.81;
+
+    /* gains of the horizontal correction, a damped response of about 1 s */
+    private static final double POSITION_GAIN = 1.2;     // [1/s^2]
+    private static final double VELOCITY_GAIN = 1.8;     // [1/s]
+
+    /** gain of the altitude correction [1/s] */
+    private static final double ALTITUDE_GAIN = 1.0;
+
+    /** gain of the heading correction [1/s] */
+    private static final double HEADING_GAIN = 1.5;
+
+    /* limits of the drone */
+    private float mMaxTilt = 15;            // [deg]
+    private float mMaxVerticalSpeed = 1;    // [m/s]
+    private float mMaxRotationSpeed = 100;  // [deg/s]
+
+    /** heading to hold [deg], NaN to not control the yaw */
+    private float mHeading = Float.NaN;
+
+    /** distance to the reference at the last command [m] */
+    private double mError = 0;
+
+    /**
+     * Set the limits the drone is configured with, the commands are percentages of them
+     * @param maxTilt max tilt [deg]
+     * @param maxVerticalSpeed max vertical speed [m/s]
+     * @param maxRotationSpeed max rotation speed [deg/s]
+     */
+    public void setLimits(float maxTilt, float maxVerticalSpeed, float maxRotationSpeed) {
+        mMaxTilt = maxTilt;
+        mMaxVerticalSpeed = maxVerticalSpeed;
+        mMaxRotationSpeed = maxRotationSpeed;
+    }
+
+    /**
+     * @param heading heading to hold [deg], NaN to leave the yaw alone
+     */
+    public void setHeading(float heading) {
+        mHeading = heading;
+    }
+
+    /**
+     * @return distance between the estimate and the reference at the last command [m]
+     */
+    public double getError() {
+        return mError;
+    }
+
+    /**
+     * Compute the piloting commands following a reference
+     * @param state estimate of the position and velocity of the drone
+     * @param yaw heading of the drone [deg]
+     * @param reference north, east and down positions [m], velocities [m/s] then accelerations
+     *                  [m/s^2] to follow, as sampled from a {@link TrajectoryPlanner.Trajectory}
+     * @param pcmd filled with the roll, pitch, yaw and gaz commands [%]
+     */
+    public void compute(StateEstimator state, float yaw, double[] reference, byte[] pcmd) {
+        double errorNorth = reference[0] - state.getPosition(StateEstimator.NORTH);
+        double errorEast = reference[1] - state.getPosition(StateEstimator.EAST);
+        double errorDown = reference[2] - state.getPosition(StateEstimator.DOWN);
+        double vn = state.getVelocity(StateEstimator.NORTH);
+        double ve = state.getVelocity(StateEstimator.EAST);
+        mError = Math.sqrt(errorNorth * errorNorth + errorEast * errorEast + errorDown * errorDown);
+
+        // acceleration to get from the tilt
+        double an = reference[6] + StateEstimator.DRAG * vn + POSITION_GAIN * errorNorth + VELOCITY_GAIN * (reference[3] - vn);
+        double ae = reference[7] + StateEstimator.DRAG * ve + POSITION_GAIN * errorEast + VELOCITY_GAIN * (reference[4] - ve);
+
+        // in the body frame, then as a tilt within the max tilt keeping its direction
+        double cosYaw = Math.cos(Math.toRadians(yaw));
+        double sinYaw = Math.sin(Math.toRadians(yaw));
+        double forward = cosYaw * an + sinYaw * ae;
+        double right = -sinYaw * an + cosYaw * ae;
+        double pitch = Math.toDegrees(Math.atan(forward / GRAVITY));
+        double roll = Math.toDegrees(Math.atan(right / GRAVITY));
+        double tilt = Math.hypot(pitch, roll);
+        if (tilt > mMaxTilt) {
+            pitch *= mMaxTilt / tilt;
+            roll *= mMaxTilt / tilt;
+        }
+        pcmd[0] = percentage(roll, mMaxTilt);
+        pcmd[1] = percentage(pitch, mMaxTilt);
+
+        // climb, up being positive
+        double climb = -reference[5] + ALTITUDE_GAIN * -errorDown;
+        pcmd[3] = percentage(climb, mMaxVerticalSpeed);
+
+        // heading
+        if (Float.isNaN(mHeading)) {
+            pcmd[2] = 0;
+        } else {
+            double headingError = mHeading - yaw;
+            headingError -= 360 * Math.floor((headingError + 180) / 360);
+            pcmd[2] = percentage(HEADING_GAIN * headingError, mMaxRotationSpeed);
+        }
+    }
+
+    /**
+     * a value as a percentage of its max, within -100 and 100
+     */
+    private static byte percentage(double value, double max) {
+        if (max <= 0) {
+            return 0;
+        }
+        return (byte) Math.max(-100, Math.min(100, Math.round(100 * value / max)));
+    }
+}
@@ -0,0 +1,63 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+/**
+ * Interface for the decoders of the H.264 video stream.
+ *
+ * All of the methods are expected to be called from the same thread (or with the caller
+ * providing the synchronization), the listener is called from within {@link #drainOutput()}.
+ */
+public interface VideoDecoder {
+
+    interface Listener {
+        /**
+         * Called when a decoded frame comes out of the decoder
+         * @param pts presentation time the frame was queued with [us]
+         */
+        void onOutputAvailable(long pts);
+
+        /**
+         * Called when a decoded frame has been released for rendering
+         * @param pts presentation time the frame was queued with [us]
+         */
+        void onFrameRendered(long pts);
+    }
+
+    /**
+     * Set the listener to the decoder output.
+     * @param listener the listener
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Configure the decoder with the parameter sets of the stream.
+     * Calling this again with the same parameter sets keeps the decoder as is.
+     * @param sps the sequence parameter set (with its start code)
+     * @param pps the picture parameter set (with its start code)
+     */
+    void configure(byte[] sps, byte[] pps);
+
+    /**
+     * Check if the decoder is ready to receive frames.
+     * @return true if the decoder has been configured
+     */
+    boolean isConfigured();
+
+    /**
+     * Give a frame to the decoder.
+     * @param data buffer containing the frame (Annex B)
+     * @param size number of valid bytes in the buffer
+     * @param pts presentation time of the frame [us]
+     * @return true if the frame was queued, false if it was dropped
+     */
+    boolean queueFrame(byte[] data, int size, long pts);
+
+    /**
+     * Release all of the frames available at the output of the decoder for rendering.
+     */
+    void drainOutput();
+
+    /**
+     * Release the resources of the decoder, it can no longer be used afterwards.
+     */
+    void release();
+}
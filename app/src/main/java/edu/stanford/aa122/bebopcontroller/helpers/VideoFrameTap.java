@@ -0,0 +1,480 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Secondary output of the video stream giving access to the decoded pixels, for running vision
+ * algorithms on the live stream.
+ *
+ * The display decoder renders straight to the surface, so the tap runs its own decoder (without a
+ * surface) on a worker thread and downscales the luma plane of the decoded frames into a small
+ * pool of reusable buffers.  Frames are delivered at a capped rate and frames that cannot be
+ * handled in time are skipped, so the display path is never slowed down.
+ *
+ * Requires API 21 (access to the decoded image), the tap does nothing on older versions.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class VideoFrameTap {
+
+    private static final String TAG = "VideoFrameTap";
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+
+    /** timeout when waiting for a decoder input buffer [us] */
+    private static final int DEQUEUE_TIMEOUT = 10000;
+
+    /** number of encoded frames that can be waiting for the worker */
+    private static final int INPUT_POOL_SIZE = 8;
+
+    /** number of output frames that can be held by the listener at the same time */
+    private static final int FRAME_POOL_SIZE = 3;
+
+    /** number of capture timestamps kept for the frames in the decoder */
+    private static final int TIMESTAMP_SLOTS = 32;
+
+    /* worker messages */
+    private static final int MSG_CONFIGURE = 0;
+    private static final int MSG_FRAME = 1;
+    private static final int MSG_RELEASE = 2;
+
+    public interface Listener {
+        /**
+         * Called when a new downscaled frame is available
+         * Called on the tap's worker thread
+         * The frame must be given back with {@link Frame#release()} once it is no longer used
+         * @param frame the frame
+         */
+        void onFrameAvailable(Frame frame);
+    }
+
+    /**
+     * Downscaled luma-only frame, backed by a pooled buffer.
+     */
+    public static class Frame {
+        private final VideoFrameTap mOwner;
+        private final byte[] mData;
+        private final ByteBuffer mReadOnlyBuffer;
+        private final int mWidth;
+        private final int mHeight;
+
+        private long mSequence;
+        private long mTimestamp;
+
+        private Frame(VideoFrameTap owner, int width, int height) {
+            mOwner = owner;
+            mWidth = width;
+            mHeight = height;
+            mData = new byte[width * height];
+            mReadOnlyBuffer = ByteBuffer.wrap(mData).asReadOnlyBuffer();
+        }
+
+        /**
+         * Get the luma values of the frame (one byte per pixel, row after row).
+         * @return read-only view of the pooled buffer, only valid until the frame is released
+         */
+        public ByteBuffer getLuma() {
+            mReadOnlyBuffer.clear();
+            return mReadOnlyBuffer;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Get the sequence number of the frame in the stream given to the tap.
+         * Gaps in the sequence numbers are frames that were skipped.
+         * @return sequence number
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Get the time at which the encoded frame was given to the tap.
+         * @return capture timestamp [ns] (from {@link System#nanoTime()})
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Give the frame back to the pool so it can be reused.
+         */
+        public void release() {
+            mOwner.mFreeFrames.offer(this);
+        }
+    }
+
+    /**
+     * Encoded frame waiting to be decoded.
+     */
+    private static class InputFrame {
+        byte[] data = new byte[0];
+        int size;
+        long sequence;
+        long timestamp;
+    }
+
+    /** size of the frames given to the listener [px] */
+    private final int mWidth;
+    private final int mHeight;
+
+    /** minimum time between two frames given to the listener [ns] */
+    private final long mMinIntervalNs;
+
+    private final Listener mListener;
+
+    /** pools of buffers, filled with the buffers not in use */
+    private final ArrayBlockingQueue<InputFrame> mFreeInputs = new ArrayBlockingQueue<>(INPUT_POOL_SIZE);
+    private final ArrayBlockingQueue<Frame> mFreeFrames = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /** the tap's decoder, only used on the worker thread */
+    private MediaCodec mDecoder;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    /** capture timestamp of the frames in the decoder, indexed by sequence number */
+    private final long[] mTimestamps = new long[TIMESTAMP_SLOTS];
+
+    /** scanner for the NAL units of the offered frames */
+    private final NalUnitScanner mScanner = new NalUnitScanner();
+
+    /** sequence number of the next frame offered */
+    private long mNextSequence = 0;
+
+    /** true when frames have been dropped and decoding must restart at the next IDR or I-frame */
+    private boolean mWaitForIdr = true;
+
+    /** time the last frame was given to the listener [ns] */
+    private long mLastDelivered = 0;
+
+    /** source image width for which the column offsets were computed */
+    private int mSourceWidth = -1;
+
+    /** column of the source image used for each column of the output */
+    private final int[] mColumns;
+
+    /* statistics (approximate, updated from both threads) */
+    private volatile long mFramesDelivered = 0;
+    private volatile long mFramesSkipped = 0;
+
+    /**
+     * Constructor
+     * @param width width of the frames given to the listener [px]
+     * @param height height of the frames given to the listener [px]
+     * @param maxFps maximum rate at which frames are given to the listener
+     * @param listener the listener to give the frames to
+     */
+    public VideoFrameTap(int width, int height, float maxFps, Listener listener) {
+        mWidth = width;
+        mHeight = height;
+        mMinIntervalNs = (long) (1e9 / maxFps);
+        mListener = listener;
+        mColumns = new int[width];
+
+        for (int i = 0; i < INPUT_POOL_SIZE; i++) {
+            mFreeInputs.offer(new InputFrame());
+        }
+        for (int i = 0; i < FRAME_POOL_SIZE; i++) {
+            mFreeFrames.offer(new Frame(this, width, height));
+        }
+    }
+
+    /**
+     * Check if the tap can run on this device.
+     * @return true if decoded frames can be read back (API 21+)
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Start the worker thread of the tap.
+     */
+    public synchronized void start() {
+        if (mThread != null || !isSupported()) {
+            return;
+        }
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_CONFIGURE:
+                        byte[][] config = (byte[][]) msg.obj;
+                        configureDecoder(config[0], config[1]);
+                        break;
+                    case MSG_FRAME:
+                        InputFrame input = (InputFrame) msg.obj;
+                        decode(input);
+                        mFreeInputs.offer(input);
+                        break;
+                    case MSG_RELEASE:
+                        releaseDecoder();
+                        break;
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Stop the tap and release its decoder.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        // release first, the frames still queued are then given back to the pool without decoding
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(MSG_RELEASE));
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Configure the tap's decoder with the parameter sets of the stream.
+     * @param sps the sequence parameter set (with its start code)
+     * @param pps the picture parameter set (with its start code)
+     */
+    public synchronized void configure(byte[] sps, byte[] pps) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.obtainMessage(MSG_CONFIGURE, new byte[][]{sps, pps}).sendToTarget();
+    }
+
+    /**
+     * Offer an encoded frame to the tap.
+     * The frame is copied into a pooled buffer, if the worker is too far behind the frame is
+     * skipped and decoding restarts at the next IDR frame, or the next frame flagged as an I-frame
+     * (as the display does, Bebop streams can refresh with non-IDR I-frames).
+     * @param data buffer containing the frame (Annex B)
+     * @param size number of valid bytes in the buffer
+     * @param iFrame true if the SDK flagged the frame as an I-frame
+     */
+    public synchronized void offerFrame(byte[] data, int size, boolean iFrame) {
+        long sequence = mNextSequence++;
+        if (mHandler == null) {
+            return;
+        }
+
+        if (mWaitForIdr) {
+            if (!iFrame && !containsIdr(data, size)) {
+                mFramesSkipped++;
+                return;
+            }
+            mWaitForIdr = false;
+        }
+
+        InputFrame input = mFreeInputs.poll();
+        if (input == null) {
+            // the worker is behind, the following frames would reference a missing one
+            mWaitForIdr = true;
+            mFramesSkipped++;
+            return;
+        }
+
+        if (input.data.length < size) {
+            input.data = new byte[size];
+        }
+        System.arraycopy(data, 0, input.data, 0, size);
+        input.size = size;
+        input.sequence = sequence;
+        input.timestamp = System.nanoTime();
+        mHandler.obtainMessage(MSG_FRAME, input).sendToTarget();
+    }
+
+    public long getFramesDelivered() {
+        return mFramesDelivered;
+    }
+
+    /**
+     * Get the number of frames skipped, either because the worker was behind or because the
+     * listener did not give the frames back in time.
+     * @return number of skipped frames
+     */
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    //region worker thread
+
+    private void configureDecoder(byte[] sps, byte[] pps) {
+        releaseDecoder();
+        try {
+            mDecoder = MediaCodec.createDecoderByType(VIDEO_MIME_TYPE);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception", e);
+            return;
+        }
+
+        // the real size is taken from the SPS by the decoder
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, mWidth, mHeight);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+
+        try {
+            mDecoder.configure(format, null, null, 0);
+            mDecoder.start();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Exception", e);
+            mDecoder.release();
+            mDecoder = null;
+        }
+
+        synchronized (this) {
+            mWaitForIdr = true;
+        }
+    }
+
+    private void releaseDecoder() {
+        if (mDecoder != null) {
+            try {
+                mDecoder.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Exception", e);
+            }
+            mDecoder.release();
+            mDecoder = null;
+        }
+    }
+
+    private void decode(InputFrame input) {
+        if (mDecoder == null) {
+            return;
+        }
+
+        try {
+            int index = mDecoder.dequeueInputBuffer(DEQUEUE_TIMEOUT);
+            if (index >= 0) {
+                ByteBuffer b = mDecoder.getInputBuffer(index);
+                b.put(input.data, 0, input.size);
+                // carry the sequence number and timestamp through the decoder
+                mDecoder.queueInputBuffer(index, 0, input.size, input.sequence, 0);
+                mTimestamps[(int) (input.sequence % TIMESTAMP_SLOTS)] = input.timestamp;
+            } else {
+                synchronized (this) {
+                    mWaitForIdr = true;
+                }
+                mFramesSkipped++;
+            }
+
+            int outIndex = mDecoder.dequeueOutputBuffer(mBufferInfo, 0);
+            while (outIndex >= 0 || outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (outIndex >= 0) {
+                    deliver(outIndex, mBufferInfo.presentationTimeUs);
+                    mDecoder.releaseOutputBuffer(outIndex, false);
+                }
+                outIndex = mDecoder.dequeueOutputBuffer(mBufferInfo, 0);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error while decoding");
+        }
+    }
+
+    /**
+     * downscale a decoded frame and give it to the listener, if the rate cap allows it
+     * @param outIndex index of the decoder output buffer
+     * @param sequence sequence number of the frame
+     */
+    private void deliver(int outIndex, long sequence) {
+        long now = System.nanoTime();
+        if (now - mLastDelivered < mMinIntervalNs) {
+            return;
+        }
+
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            // the listener still holds all the frames
+            mFramesSkipped++;
+            return;
+        }
+
+        Image image = mDecoder.getOutputImage(outIndex);
+        if (image == null) {
+            mFreeFrames.offer(frame);
+            return;
+        }
+        try {
+            downscaleLuma(image, frame.mData);
+        } finally {
+            image.close();
+        }
+
+        mLastDelivered = now;
+        frame.mSequence = sequence;
+        frame.mTimestamp = mTimestamps[(int) (sequence % TIMESTAMP_SLOTS)];
+        mFramesDelivered++;
+        mListener.onFrameAvailable(frame);
+    }
+
+    /**
+     * nearest neighbour downscale of the luma plane of an image
+     * @param image the decoded image
+     * @param out destination, of the size of the tap's frames
+     */
+    private void downscaleLuma(Image image, byte[] out) {
+        int srcWidth = image.getWidth();
+        int srcHeight = image.getHeight();
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer src = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        if (srcWidth != mSourceWidth) {
+            for (int x = 0; x < mWidth; x++) {
+                mColumns[x] = (x * srcWidth / mWidth) * pixelStride;
+            }
+            mSourceWidth = srcWidth;
+        }
+
+        int i = 0;
+        for (int y = 0; y < mHeight; y++) {
+            int row = (y * srcHeight / mHeight) * rowStride;
+            for (int x = 0; x < mWidth; x++) {
+                out[i++] = src.get(row + mColumns[x]);
+            }
+        }
+    }
+
+    //endregion worker thread
+
+    /**
+     * check if a frame contains an IDR slice
+     * @param data buffer containing the frame (Annex B)
+     * @param size number of valid bytes in the buffer
+     * @return true if an IDR NAL unit was found
+     */
+    private boolean containsIdr(byte[] data, int size) {
+        mScanner.reset(data, 0, size);
+        while (mScanner.next()) {
+            if (mScanner.getType() == NalUnitScanner.NAL_IDR) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,288 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Helper class for measuring the latency of each stage of the video pipeline.
+ *
+ * Every frame is given a presentation time when it arrives from the SDK, and that presentation
+ * time is then used to correlate the frame as it is queued into the decoder, comes out of the
+ * decoder and is finally released to the surface for rendering.
+ * The latency of each stage is kept over a sliding window of the last frames so percentiles
+ * can be computed at any time.
+ */
+public class VideoLatencyTracker {
+
+    /** from SDK arrival to the frame being queued in the decoder */
+    public static final int STAGE_QUEUE = 0;
+
+    /** from the frame being queued in the decoder to the decoded frame being available */
+    public static final int STAGE_DECODE = 1;
+
+    /** from the decoded frame being available to it being released to the surface */
+    public static final int STAGE_RENDER = 2;
+
+    /** from SDK arrival to the frame being released to the surface */
+    public static final int STAGE_TOTAL = 3;
+
+    /** number of stages tracked */
+    public static final int NB_STAGES = 4;
+
+    /** names of each of the stages, for reporting */
+    private static final String[] STAGE_NAMES = {"queue", "decode", "render", "total"};
+
+    /** presentation time step between two frames [us] (nominal 30 fps) */
+    public static final long FRAME_PTS_STEP_US = 33333;
+
+    /** default number of samples kept per stage */
+    public static final int DEFAULT_WINDOW_SIZE = 300;
+
+    /** number of frames that can be in flight in the decoder at the same time */
+    private static final int FRAME_SLOTS = 64;
+
+    /* per frame timestamps [ns], indexed by frame slot */
+    private final long[] mSlotFrame = new long[FRAME_SLOTS];
+    private final long[] mArrival = new long[FRAME_SLOTS];
+    private final long[] mQueued = new long[FRAME_SLOTS];
+    private final long[] mOutput = new long[FRAME_SLOTS];
+
+    /** sliding window of latencies for each stage [ns] */
+    private final long[][] mWindow;
+
+    /** next write position in the sliding window of each stage */
+    private final int[] mWindowIndex = new int[NB_STAGES];
+
+    /** number of valid samples in the sliding window of each stage */
+    private final int[] mWindowCount = new int[NB_STAGES];
+
+    /** scratch space used when sorting the window for percentiles */
+    private final long[] mScratch;
+
+    /** index of the next frame to arrive */
+    private long mNextFrame = 0;
+
+    /* frame counters */
+    private long mFramesArrived = 0;
+    private long mFramesRendered = 0;
+    private long mFramesDropped = 0;
+
+    /**
+     * Constructor using the default window size.
+     */
+    public VideoLatencyTracker() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param windowSize number of frames over which the percentiles are computed
+     */
+    public VideoLatencyTracker(int windowSize) {
+        mWindow = new long[NB_STAGES][windowSize];
+        mScratch = new long[windowSize];
+        Arrays.fill(mSlotFrame, -1);
+    }
+
+    /**
+     * Reset all of the measurements.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mSlotFrame, -1);
+        Arrays.fill(mWindowIndex, 0);
+        Arrays.fill(mWindowCount, 0);
+        mFramesArrived = 0;
+        mFramesRendered = 0;
+        mFramesDropped = 0;
+    }
+
+    /**
+     * Mark a new frame as having arrived from the SDK.
+     * @param timestamp arrival time [ns] (from {@link System#nanoTime()})
+     * @return the presentation time [us] to queue the frame with
+     */
+    public synchronized long onFrameArrived(long timestamp) {
+        long frame = mNextFrame++;
+        int slot = (int) (frame % FRAME_SLOTS);
+
+        // a frame still in this slot never made it out of the decoder
+        if (mSlotFrame[slot] != -1) {
+            mFramesDropped++;
+        }
+
+        mSlotFrame[slot] = frame;
+        mArrival[slot] = timestamp;
+        mQueued[slot] = 0;
+        mOutput[slot] = 0;
+        mFramesArrived++;
+
+        return frame * FRAME_PTS_STEP_US;
+    }
+
+    /**
+     * Mark a frame as having been queued in the decoder.
+     * @param pts presentation time of the frame [us]
+     * @param timestamp time [ns]
+     */
+    public synchronized void onFrameQueued(long pts, long timestamp) {
+        int slot = getSlot(pts);
+        if (slot < 0) {
+            return;
+        }
+        mQueued[slot] = timestamp;
+        addSample(STAGE_QUEUE, timestamp - mArrival[slot]);
+    }
+
+    /**
+     * Mark a frame as being available at the output of the decoder.
+     * @param pts presentation time of the frame [us]
+     * @param timestamp time [ns]
+     */
+    public synchronized void onOutputAvailable(long pts, long timestamp) {
+        int slot = getSlot(pts);
+        if (slot < 0) {
+            return;
+        }
+        mOutput[slot] = timestamp;
+        if (mQueued[slot] != 0) {
+            addSample(STAGE_DECODE, timestamp - mQueued[slot]);
+        }
+    }
+
+    /**
+     * Mark a frame as having been released to the surface for rendering.
+     * @param pts presentation time of the frame [us]
+     * @param timestamp time [ns]
+     * @return true if the frame was being tracked
+     */
+    public synchronized boolean onFrameRendered(long pts, long timestamp) {
+        int slot = getSlot(pts);
+        if (slot < 0) {
+            return false;
+        }
+        if (mOutput[slot] != 0) {
+            addSample(STAGE_RENDER, timestamp - mOutput[slot]);
+        }
+        addSample(STAGE_TOTAL, timestamp - mArrival[slot]);
+        mSlotFrame[slot] = -1;
+        mFramesRendered++;
+        return true;
+    }
+
+    /**
+     * Mark a frame as having been dropped before reaching the surface.
+     * @param pts presentation time of the frame [us]
+     */
+    public synchronized void onFrameDropped(long pts) {
+        int slot = getSlot(pts);
+        if (slot < 0) {
+            return;
+        }
+        mSlotFrame[slot] = -1;
+        mFramesDropped++;
+    }
+
+    /**
+     * Get a percentile of the latency of a given stage over the sliding window.
+     * @param stage one of the STAGE_* constants
+     * @param percentile percentile to get (0 - 100)
+     * @return latency [ms], or NaN if there are no samples
+     */
+    public synchronized double getPercentile(int stage, double percentile) {
+        int count = sortWindow(stage);
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return percentileOfSorted(count, percentile);
+    }
+
+    public synchronized long getFramesArrived() {
+        return mFramesArrived;
+    }
+
+    public synchronized long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    public synchronized long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     * Build a summary of the latency percentiles of every stage.
+     * @return human readable report (one line per stage)
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "frames: %d arrived, %d rendered, %d dropped",
+                mFramesArrived, mFramesRendered, mFramesDropped));
+        for (int stage = 0; stage < NB_STAGES; stage++) {
+            int count = sortWindow(stage);
+            sb.append('\n');
+            if (count == 0) {
+                sb.append(String.format(Locale.US, "%-6s: no samples", STAGE_NAMES[stage]));
+                continue;
+            }
+            sb.append(String.format(Locale.US, "%-6s: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms (n=%d)",
+                    STAGE_NAMES[stage],
+                    percentileOfSorted(count, 50),
+                    percentileOfSorted(count, 90),
+                    percentileOfSorted(count, 99),
+                    mScratch[count - 1] / 1e6,
+                    count));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * get the slot holding the frame with the given presentation time
+     * @param pts presentation time [us]
+     * @return the slot, or -1 if the frame is no longer tracked
+     */
+    private int getSlot(long pts) {
+        long frame = pts / FRAME_PTS_STEP_US;
+        int slot = (int) (frame % FRAME_SLOTS);
+        if (slot < 0 || mSlotFrame[slot] != frame) {
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * add a latency sample to the sliding window of a stage
+     * @param stage stage of the sample
+     * @param latency latency [ns]
+     */
+    private void addSample(int stage, long latency) {
+        long[] window = mWindow[stage];
+        window[mWindowIndex[stage]] = latency;
+        mWindowIndex[stage] = (mWindowIndex[stage] + 1) % window.length;
+        if (mWindowCount[stage] < window.length) {
+            mWindowCount[stage]++;
+        }
+    }
+
+    /**
+     * copy the window of a stage into the scratch space and sort it
+     * @param stage the stage
+     * @return number of valid samples in the scratch space
+     */
+    private int sortWindow(int stage) {
+        int count = mWindowCount[stage];
+        System.arraycopy(mWindow[stage], 0, mScratch, 0, count);
+        Arrays.sort(mScratch, 0, count);
+        return count;
+    }
+
+    /**
+     * nearest rank percentile of the sorted scratch space
+     * @param count number of valid samples
+     * @param percentile percentile (0 - 100)
+     * @return latency [ms]
+     */
+    private double percentileOfSorted(int count, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        rank = Math.max(0, Math.min(count - 1, rank));
+        return mScratch[rank] / 1e6;
+    }
+}
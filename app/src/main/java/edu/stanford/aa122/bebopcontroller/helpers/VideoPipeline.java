@@ -0,0 +1,173 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+/**
+ * Feeds the frames of the video stream to a decoder, and follows them through it.
+ *
+ * Every frame is given an increasing presentation time so it can be followed through the decoder
+ * for the latency measurements.  A frame is dropped when the decoder has no room for it.
+ *
+ * Has no Android dependencies so the same code path can be benchmarked with the
+ * {@link SoftwareVideoDecoder} in local unit tests.  Not thread safe, callers serialize access.
+ */
+public class VideoPipeline implements VideoDecoder.Listener {
+
+    /** number of frames that can be in flight in the decoder for the decode latency metric */
+    private static final int DECODE_SLOTS = 64;
+
+    private VideoDecoder mDecoder;
+
+    /** tracker for the latency of the video pipeline (null when not measuring) */
+    private volatile VideoLatencyTracker mLatencyTracker;
+
+    /** number of frames given to the decoder, used to generate the presentation times */
+    private long mFrameIndex = 0;
+
+    /* frame counters */
+    private long mFramesQueued = 0;
+    private long mFramesDropped = 0;
+
+    /** time each frame in flight was queued in the decoder [ns], indexed by frame slot */
+    private final long[] mQueuedAt = new long[DECODE_SLOTS];
+    private final LatencyHistogram mDecodeLatency = MetricsRegistry.getDefault().histogram(MetricsRegistry.VIDEO_DECODE);
+
+    /**
+     * Set the decoder to feed the frames to.
+     * The previous decoder is not released.
+     * @param decoder the decoder, or null to stop decoding
+     */
+    public void setDecoder(VideoDecoder decoder) {
+        if (mDecoder != null) {
+            mDecoder.setListener(null);
+        }
+        mDecoder = decoder;
+        if (decoder != null) {
+            decoder.setListener(this);
+        }
+    }
+
+    public VideoDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Check if frames can be given to the pipeline.
+     * @return true if there is a configured decoder
+     */
+    public boolean isReady() {
+        return (mDecoder != null) && mDecoder.isConfigured();
+    }
+
+    /**
+     * Configure the decoder with the parameter sets of the stream.
+     * @param sps the sequence parameter set (with its start code)
+     * @param pps the picture parameter set (with its start code)
+     */
+    public void configure(byte[] sps, byte[] pps) {
+        if (mDecoder != null) {
+            mDecoder.configure(sps, pps);
+        }
+    }
+
+    /**
+     * Set the tracker measuring the latency of the pipeline.
+     * @param tracker the tracker, or null to stop measuring
+     */
+    public void setLatencyTracker(VideoLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * Get the tracker measuring the latency of the pipeline.
+     * @return the tracker, or null if latency tracking is disabled
+     */
+    public VideoLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /**
+     * Give a frame to the decoder, then release the decoded frames for rendering.
+     * @param data buffer containing the frame (Annex B)
+     * @param size number of valid bytes in the buffer
+     * @param arrival time the frame arrived [ns] (from {@link System#nanoTime()})
+     * @return true if the frame was queued in the decoder
+     */
+    public boolean submitFrame(byte[] data, int size, long arrival) {
+        if (mDecoder == null) {
+            return false;
+        }
+
+        boolean queued = false;
+        if (mDecoder.isConfigured()) {
+            VideoLatencyTracker tracker = mLatencyTracker;
+            long pts;
+            if (tracker != null) {
+                pts = tracker.onFrameArrived(arrival);
+            } else {
+                pts = mFrameIndex * VideoLatencyTracker.FRAME_PTS_STEP_US;
+            }
+            mFrameIndex++;
+
+            queued = mDecoder.queueFrame(data, size, pts);
+            if (queued) {
+                mFramesQueued++;
+                long now = System.nanoTime();
+                mQueuedAt[getDecodeSlot(pts)] = now;
+                if (tracker != null) {
+                    tracker.onFrameQueued(pts, now);
+                }
+            } else {
+                mFramesDropped++;
+                if (tracker != null) {
+                    tracker.onFrameDropped(pts);
+                }
+            }
+        }
+
+        mDecoder.drainOutput();
+        return queued;
+    }
+
+    public long getFramesQueued() {
+        return mFramesQueued;
+    }
+
+    /**
+     * Get the number of frames dropped because the decoder had no room for them.
+     * @return number of dropped frames
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    @Override
+    public void onOutputAvailable(long pts) {
+        long now = System.nanoTime();
+        int slot = getDecodeSlot(pts);
+        if (mQueuedAt[slot] != 0) {
+            mDecodeLatency.record(now - mQueuedAt[slot]);
+            mQueuedAt[slot] = 0;
+        }
+
+        VideoLatencyTracker tracker = mLatencyTracker;
+        if (tracker != null) {
+            tracker.onOutputAvailable(pts, now);
+        }
+    }
+
+    @Override
+    public void onFrameRendered(long pts) {
+        VideoLatencyTracker tracker = mLatencyTracker;
+        if (tracker != null) {
+            tracker.onFrameRendered(pts, System.nanoTime());
+        }
+    }
+
+    /**
+     * slot of a frame for the decode latency metric
+     * @param pts presentation time of the frame [us]
+     * @return the slot
+     */
+    private static int getDecodeSlot(long pts) {
+        return (int) ((pts / VideoLatencyTracker.FRAME_PTS_STEP_US) % DECODE_SLOTS);
+    }
+}
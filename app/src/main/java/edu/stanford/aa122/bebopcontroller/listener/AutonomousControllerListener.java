@@ -11,4 +11,10 @@ public interface AutonomousControllerListener {
      * called when one of the mission segments is completed.
      */
     void onMissionSegmentCompleted();
+
+    /**
+     * called when the mission is held because the link with the drone is poor, and when it resumes.
+     * @param paused true if the mission is held
+     */
+    void onMissionPaused(boolean paused);
 }
@@ -27,6 +27,15 @@ public interface BebopDroneListener {
      */
     void onDroneConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM state);
 
+    /**
+     * Called when the connection state machine changes state
+     * Called in the main thread
+     * @param state the new state (one of the ConnectionManager.STATE_* constants)
+     * @param previousState the previous state
+     * @param timeInPreviousState time spent in the previous state [ms]
+     */
+    void onConnectionStateChanged(int state, int previousState, long timeInPreviousState);
+
     /**
      * Called when the battery charge changes
      * Called in the main thread
@@ -142,4 +151,11 @@ public interface BebopDroneListener {
      * @param mediaName the name of the media
      */
     void onDownloadComplete(String mediaName);
+
+    /**
+     * Called when the thumbnail of a media has been fetched from the drone
+     * Called in the main thread
+     * @param mediaName the name of the media
+     */
+    void onThumbnailAvailable(String mediaName);
 }
@@ -1,11 +1,13 @@
 package edu.stanford.aa122.bebopcontroller.view;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
 
 import java.util.Locale;
@@ -15,6 +17,9 @@ import java.util.Locale;
  * Attitude Indicator View
  * Displays a specific roll/pitch/yaw configuration visually
  *
+ * The roll arcs, the pitch ladder and the plane are rendered into bitmaps once per size change,
+ * each frame only rotates and translates them (and writes the heading).
+ *
  * adapted from https://github.com/DroidPlanner/Tower
  *
  * @author Adrien Perkins <adrienp@stanford.edu>
@@ -31,11 +36,28 @@ public class AttitudeHUDView extends View {
     private static final float PLANE_BODY_SIZE = 0.2f;
     private static final float PLANE_WING_WIDTH = 5f;
 
+    /** pitch covered by the pre-rendered ladder, on each side of the horizon [deg] */
+    private static final int PITCH_LADDER_RANGE = 90;
+
+    /** margin around the pre-rendered layers, for the stroke widths [px] */
+    private static final int LAYER_MARGIN = 8;
+
+    /** smallest change of roll or pitch worth a redraw [deg] */
+    private static final float MIN_ANGLE_CHANGE = 0.2f;
+
     private float halfWidth;
     private float halfHeight;
     private float radiusInternal;
     private RectF externalBounds;
 
+    /** pixels per degree of pitch */
+    private float pitchScale;
+
+    /** pre-rendered layers, centered on the middle of the bitmaps */
+    private Bitmap rollLayer;
+    private Bitmap pitchLayer;
+    private Bitmap planeLayer;
+
 
     private Paint planePaint;
     private Paint planeFinPaint;
@@ -44,10 +66,21 @@ public class AttitudeHUDView extends View {
     private Paint tickPaint;
     private Paint horizonTickPaint;
     private Paint yawTextPaint;
+    private Paint layerPaint;
 
 
+    /** attitude drawn */
     private float yaw, roll, pitch;
 
+    /** latest attitude received, drawn on the next frame */
+    private float pendingYaw, pendingRoll, pendingPitch;
+    private boolean frameScheduled = false;
+    private Choreographer choreographer;
+
+    /** heading text, cached per integer degree */
+    private final String[] yawTexts = new String[360];
+    private String yawText;
+
     /**
      * Constructor for view
      * @param context context
@@ -56,6 +89,7 @@ public class AttitudeHUDView extends View {
     public AttitudeHUDView(Context context, AttributeSet attrs) {
         super(context, attrs);
         initialize();
+        updateYawText();
         setAttitude(-30, 20, 0);
     }
 
@@ -95,6 +129,9 @@ public class AttitudeHUDView extends View {
         yawTextPaint.setTextSize(50f);
         yawTextPaint.setColor(Color.WHITE);
         yawTextPaint.setTextAlign(Paint.Align.CENTER);
+
+        layerPaint = new Paint();
+        layerPaint.setFilterBitmap(true);
     }
 
     @Override
@@ -106,11 +143,35 @@ public class AttitudeHUDView extends View {
         float radiusExternal = Math.min(halfHeight, halfWidth) / YAW_ARROW_SIZE;
         radiusInternal = radiusExternal * INTERNAL_RADIUS;
         externalBounds = new RectF(-radiusExternal, -radiusExternal, radiusExternal, radiusExternal);
+        pitchScale = radiusInternal / PITCH_RANGE;
+        renderLayers();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (rollLayer == null) {
+            renderLayers();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (frameScheduled) {
+            choreographer.removeFrameCallback(frameCallback);
+            frameScheduled = false;
+        }
+        recycleLayers();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (rollLayer == null) {
+            // no size yet (or detached)
+            return;
+        }
         canvas.translate(halfWidth, halfHeight);
         drawRoll(canvas);
         drawPitch(canvas);
@@ -123,8 +184,10 @@ public class AttitudeHUDView extends View {
      * @param canvas the canvas to draw on
      */
     private void drawRoll(Canvas canvas) {
-        canvas.drawArc(externalBounds, 135f - roll, 90f, false, rollPaint);
-        canvas.drawArc(externalBounds, 315f - roll, 90f, false, rollPaint);
+        canvas.save();
+        canvas.rotate(-roll);
+        drawLayer(canvas, rollLayer);
+        canvas.restore();
     }
 
     /**
@@ -132,30 +195,17 @@ public class AttitudeHUDView extends View {
      * @param canvas the canvas to draw on
      */
     private void drawPitch(Canvas canvas) {
+        canvas.save();
+        canvas.rotate(-roll);
 
-        // coordinates for the start and end of the line - (0,0) is center of canvas
-        float lineX = (float) (Math.cos(Math.toRadians(-roll)) * radiusInternal) * PITCH_TICK_LINE_LENGTH;
-        float lineY = (float) (Math.sin(Math.toRadians(-roll)) * radiusInternal) * PITCH_TICK_LINE_LENGTH;
-
-        // offset from one line to another
-        float dx = (float) (Math.cos(Math.toRadians(-roll - 90))*radiusInternal / PITCH_RANGE);
-        float dy = (float) (Math.sin(Math.toRadians(-roll - 90))*radiusInternal / PITCH_RANGE);
+        // only show the ticks within range of the current pitch
+        float visible = (PITCH_RANGE - PITCH_TICK_PADDING) * pitchScale;
+        canvas.clipRect(-pitchLayer.getWidth() / 2f, -visible, pitchLayer.getWidth() / 2f, visible);
 
-        // determine the range of ticks to put on (e.g. 0 = horizon, -1 = -15 degree, etc)
-        int i = (int) ((pitch - PITCH_RANGE + PITCH_TICK_PADDING) / PITCH_TICK_SPACING);
-        int loopEnd = (int) ((pitch + PITCH_RANGE - PITCH_TICK_PADDING) / PITCH_TICK_SPACING);
-
-        // paint the different lines
-        for (; i <= loopEnd; i++) {
-            float degree = -pitch + i*PITCH_TICK_SPACING;
-            float linedx = dx*degree;
-            float linedy = dy*degree;
-            if (i == 0) {
-                canvas.drawLine(2.0f*lineX + linedx, 2.0f*lineY + linedy, 2.0f*-lineX + linedx, 2.0f*-lineY + linedy, horizonTickPaint);
-            } else {
-                canvas.drawLine(lineX + linedx, lineY + linedy, -lineX + linedx, -lineY + linedy, tickPaint);
-            }
-        }
+        // slide the ladder, the horizon is level with the plane at 0 pitch
+        canvas.translate(0, pitchScale * pitch);
+        drawLayer(canvas, pitchLayer);
+        canvas.restore();
     }
 
     /**
@@ -163,7 +213,7 @@ public class AttitudeHUDView extends View {
      * @param canvas the canvas to draw on
      */
     private void drawYaw(Canvas canvas) {
-        canvas.drawText(String.format(Locale.US, "%03d\u00B0", (int)yaw), 0, -radiusInternal, yawTextPaint);
+        canvas.drawText(yawText, 0, -radiusInternal, yawTextPaint);
     }
 
     /**
@@ -171,12 +221,89 @@ public class AttitudeHUDView extends View {
      * @param canvas the canvas to draw on
      */
     private void drawPlane(Canvas canvas) {
+        drawLayer(canvas, planeLayer);
+    }
+
+    /**
+     * draw a pre-rendered layer centered on the origin
+     * @param canvas the canvas to draw on
+     * @param layer the layer
+     */
+    private void drawLayer(Canvas canvas, Bitmap layer) {
+        canvas.drawBitmap(layer, -layer.getWidth() / 2f, -layer.getHeight() / 2f, layerPaint);
+    }
+
+    /**
+     * render the parts of the HUD that don't change with the attitude, for the current size
+     */
+    private void renderLayers() {
+        recycleLayers();
+        if (radiusInternal <= 0) {
+            return;
+        }
+
+        // roll arcs, for 0 roll
+        float radiusExternal = externalBounds.right;
+        rollLayer = createLayer(2 * radiusExternal, 2 * radiusExternal);
+        Canvas canvas = layerCanvas(rollLayer);
+        canvas.drawArc(externalBounds, 135f, 90f, false, rollPaint);
+        canvas.drawArc(externalBounds, 315f, 90f, false, rollPaint);
+
+        // pitch ladder, for 0 roll and 0 pitch (0 = horizon, -1 = -15 degree, etc)
+        float lineX = radiusInternal * PITCH_TICK_LINE_LENGTH;
+        pitchLayer = createLayer(4 * lineX, 2 * PITCH_LADDER_RANGE * pitchScale);
+        canvas = layerCanvas(pitchLayer);
+        int ticks = PITCH_LADDER_RANGE / PITCH_TICK_SPACING;
+        for (int i = -ticks; i <= ticks; i++) {
+            float y = -pitchScale * i * PITCH_TICK_SPACING;
+            if (i == 0) {
+                canvas.drawLine(2.0f*lineX, y, 2.0f*-lineX, y, horizonTickPaint);
+            } else {
+                canvas.drawLine(lineX, y, -lineX, y, tickPaint);
+            }
+        }
+
+        // plane silhouette
+        planeLayer = createLayer(2 * radiusInternal * PLANE_SIZE, 2 * radiusInternal * PLANE_SIZE);
+        canvas = layerCanvas(planeLayer);
         canvas.drawLine(radiusInternal*PLANE_SIZE, 0, -radiusInternal*PLANE_SIZE, 0, planePaint);
         canvas.drawLine(0, 0, 0, -radiusInternal*PLANE_SIZE*5/12, planeFinPaint);
         canvas.drawCircle(0, 0, radiusInternal*PLANE_SIZE*PLANE_BODY_SIZE, planePaint);
         canvas.drawCircle(0, 0, radiusInternal*PLANE_SIZE*PLANE_BODY_SIZE / 2f, planeCenterPaint);
     }
 
+    /**
+     * create a transparent layer
+     * @param width width of the content [px]
+     * @param height height of the content [px]
+     * @return the layer, with room for the strokes around the content
+     */
+    private static Bitmap createLayer(float width, float height) {
+        return Bitmap.createBitmap((int) Math.ceil(width) + 2 * LAYER_MARGIN,
+                (int) Math.ceil(height) + 2 * LAYER_MARGIN, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param layer the layer to render into
+     * @return a canvas on the layer, with the origin at its center
+     */
+    private static Canvas layerCanvas(Bitmap layer) {
+        Canvas canvas = new Canvas(layer);
+        canvas.translate(layer.getWidth() / 2f, layer.getHeight() / 2f);
+        return canvas;
+    }
+
+    private void recycleLayers() {
+        if (rollLayer != null) {
+            rollLayer.recycle();
+            pitchLayer.recycle();
+            planeLayer.recycle();
+            rollLayer = null;
+            pitchLayer = null;
+            planeLayer = null;
+        }
+    }
+
     /**
      * set the attitude to be displayed by the HUD
      * @param roll roll angle in degrees
@@ -184,9 +311,49 @@ public class AttitudeHUDView extends View {
      * @param yaw yaw angle in degrees
      */
     public void setAttitude(float roll, float pitch, float yaw) {
-        this.roll = roll;
-        this.pitch = pitch;
-        this.yaw = (yaw+360) % 360;
-        invalidate();
+        pendingRoll = roll;
+        pendingPitch = pitch;
+        pendingYaw = (yaw+360) % 360;
+
+        // too small to be seen
+        if (yawText != null && Math.abs(pendingRoll - this.roll) < MIN_ANGLE_CHANGE
+                && Math.abs(pendingPitch - this.pitch) < MIN_ANGLE_CHANGE && (int) pendingYaw == (int) this.yaw) {
+            return;
+        }
+
+        // at most one redraw per display frame, with the latest attitude
+        if (!frameScheduled) {
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(frameCallback);
+            frameScheduled = true;
+        }
     }
+
+    /**
+     * update the heading text for the attitude drawn
+     */
+    private void updateYawText() {
+        int heading = ((int) yaw) % 360;
+        if (heading < 0) {
+            heading += 360;
+        }
+        if (yawTexts[heading] == null) {
+            yawTexts[heading] = String.format(Locale.US, "%03d\u00B0", heading);
+        }
+        yawText = yawTexts[heading];
+    }
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            roll = pendingRoll;
+            pitch = pendingPitch;
+            yaw = pendingYaw;
+            updateYawText();
+            invalidate();
+        }
+    };
 }
@@ -1,8 +1,6 @@
 package edu.stanford.aa122.bebopcontroller.view;
 
 import android.content.Context;
-import android.media.MediaCodec;
-import android.media.MediaFormat;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -12,11 +10,19 @@ import com.parrot.arsdk.arcontroller.ARCONTROLLER_STREAM_CODEC_TYPE_ENUM;
 import com.parrot.arsdk.arcontroller.ARControllerCodec;
 import com.parrot.arsdk.arcontroller.ARFrame;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import edu.stanford.aa122.bebopcontroller.helpers.H264FileFrameSource;
+import edu.stanford.aa122.bebopcontroller.helpers.MediaCodecVideoDecoder;
+import edu.stanford.aa122.bebopcontroller.helpers.StreamHealthMonitor;
+import edu.stanford.aa122.bebopcontroller.helpers.VideoFrameTap;
+import edu.stanford.aa122.bebopcontroller.helpers.VideoLatencyTracker;
+import edu.stanford.aa122.bebopcontroller.helpers.VideoPipeline;
+
 /**
  * Class for displaying the video stream from the Bebop onto a surface view
  *
@@ -28,21 +34,36 @@ public class BebopVideoView extends SurfaceView implements SurfaceHolder.Callbac
 
 
     private static final String TAG = "BebopVideoView";
-    private static final String VIDEO_MIME_TYPE = "video/avc";
-    private static final int VIDEO_DEQUEUE_TIMEOUT = 33000;
 
-    private MediaCodec mMediaCodec;
     private Lock mReadyLock;
 
-    private boolean mIsCodecConfigured = false;
+    /** feeds the frames to the decoder */
+    private final VideoPipeline mPipeline = new VideoPipeline();
+
+    /** hardware decoder rendering to the surface (only exists while the surface does) */
+    private MediaCodecVideoDecoder mDecoder;
+
+    /** parameter sets of the stream (with their start codes) */
+    private byte[] mSps;
+    private byte[] mPps;
+
+    /** analyzes the incoming stream */
+    private final StreamHealthMonitor mStreamHealth = new StreamHealthMonitor();
+
+    /** whether or not to skip the frames referencing a missed frame, until the next I-frame */
+    private volatile boolean mSkipBrokenFrames = false;
+
+    /** secondary output giving access to the decoded pixels (null when not used) */
+    private volatile VideoFrameTap mFrameTap;
 
-    private ByteBuffer mSpsBuffer;
-    private ByteBuffer mPpsBuffer;
+    /** source of frames when playing a recorded stream */
+    private H264FileFrameSource mFrameSource;
 
-    private ByteBuffer[] mBuffers;
+    /** number of rendered frames between two latency reports in the log */
+    private static final int LATENCY_REPORT_INTERVAL = 300;
 
-    private static final int VIDEO_WIDTH = 640;
-    private static final int VIDEO_HEIGHT = 368;
+    /** number of rendered frames at which to log the next latency report */
+    private long mNextLatencyReport = LATENCY_REPORT_INTERVAL;
 
     public BebopVideoView(Context context) {
         super(context);
@@ -65,118 +86,205 @@ public class BebopVideoView extends SurfaceView implements SurfaceHolder.Callbac
     }
 
     public void displayFrame(ARFrame frame) {
+        // timestamp before waiting on the lock so the queue stage includes any contention
+        long arrival = System.nanoTime();
+        decodeFrame(frame.getByteData(), frame.getDataSize(), frame.getMissed(), frame.isIFrame(), arrival);
+    }
+
+    /**
+     * Display a frame given as raw H.264 data (Annex B).
+     * Used to feed the decoder from a source other than the drone (e.g. a recorded stream).
+     * @param data buffer containing the frame
+     * @param size number of valid bytes in the buffer
+     */
+    public void displayFrame(byte[] data, int size) {
+        decodeFrame(data, size, 0, false, System.nanoTime());
+    }
+
+    private void decodeFrame(byte[] data, int size, int missed, boolean iFrame, long arrival) {
         mReadyLock.lock();
 
-        if ((mMediaCodec != null)) {
-            if (mIsCodecConfigured) {
-                // Here we have either a good PFrame, or an IFrame
-                int index = -1;
-
-                try {
-                    index = mMediaCodec.dequeueInputBuffer(VIDEO_DEQUEUE_TIMEOUT);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "Error while dequeue input buffer");
-                }
-                if (index >= 0) {
-                    ByteBuffer b;
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        b = mMediaCodec.getInputBuffer(index);
-                    } else {
-                        b = mBuffers[index];
-                        b.clear();
-                    }
-
-                    if (b != null) {
-                        b.put(frame.getByteData(), 0, frame.getDataSize());
-                    }
-
-                    try {
-                        mMediaCodec.queueInputBuffer(index, 0, frame.getDataSize(), 0, 0);
-                    } catch (IllegalStateException e) {
-                        Log.e(TAG, "Error while queue input buffer");
-                    }
-                }
+        boolean decodable = mStreamHealth.onFrame(data, size, missed, iFrame, arrival);
+
+        if (mPipeline.isReady() && (decodable || !mSkipBrokenFrames)) {
+            mPipeline.submitFrame(data, size, arrival);
+
+            // only once the display decoder has the frame
+            if (mFrameTap != null) {
+                mFrameTap.offerFrame(data, size, iFrame);
             }
 
-            // Try to display previous frame
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            int outIndex;
-            try {
-                outIndex = mMediaCodec.dequeueOutputBuffer(info, 0);
-
-                while (outIndex >= 0) {
-                    mMediaCodec.releaseOutputBuffer(outIndex, true);
-                    outIndex = mMediaCodec.dequeueOutputBuffer(info, 0);
-                }
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Error while dequeue input buffer (outIndex)");
+            VideoLatencyTracker tracker = mPipeline.getLatencyTracker();
+            if ((tracker != null) && (tracker.getFramesRendered() >= mNextLatencyReport)) {
+                Log.i(TAG, tracker.getReport());
+                mNextLatencyReport += LATENCY_REPORT_INTERVAL;
             }
         }
 
-
         mReadyLock.unlock();
     }
 
     public void configureDecoder(ARControllerCodec codec) {
-        mReadyLock.lock();
-
         if (codec.getType() == ARCONTROLLER_STREAM_CODEC_TYPE_ENUM.ARCONTROLLER_STREAM_CODEC_TYPE_H264) {
             ARControllerCodec.H264 codecH264 = codec.getAsH264();
-
-            mSpsBuffer = ByteBuffer.wrap(codecH264.getSps().getByteData());
-            mPpsBuffer = ByteBuffer.wrap(codecH264.getPps().getByteData());
+            configureDecoder(codecH264.getSps().getByteData(), codecH264.getPps().getByteData());
         }
+    }
 
-        if ((mMediaCodec != null) && (mSpsBuffer != null)) {
-            configureMediaCodec();
+    /**
+     * Configure the decoder from raw H.264 parameter sets.
+     * The decoder only tears itself down when the new parameter sets require it.
+     * @param sps the sequence parameter set (with its start code)
+     * @param pps the picture parameter set (with its start code)
+     */
+    public void configureDecoder(byte[] sps, byte[] pps) {
+        mReadyLock.lock();
+
+        boolean changed = !Arrays.equals(sps, mSps) || !Arrays.equals(pps, mPps);
+        mSps = sps;
+        mPps = pps;
+
+        mPipeline.configure(sps, pps);
+
+        if (changed) {
+            mStreamHealth.onCodecConfig();
+            if (mFrameTap != null) {
+                mFrameTap.configure(sps, pps);
+            }
         }
 
         mReadyLock.unlock();
     }
 
-    private void configureMediaCodec() {
-        mMediaCodec.stop();
-        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, VIDEO_WIDTH, VIDEO_HEIGHT);
-        format.setByteBuffer("csd-0", mSpsBuffer);
-        format.setByteBuffer("csd-1", mPpsBuffer);
+    /**
+     * Enable or disable the measurement of the latency of each stage of the video pipeline.
+     * When enabled, a report of the latency percentiles is logged periodically.
+     * @param enabled true to measure the latency
+     */
+    public void setLatencyTrackingEnabled(boolean enabled) {
+        mReadyLock.lock();
+        mPipeline.setLatencyTracker(enabled ? new VideoLatencyTracker() : null);
+        mNextLatencyReport = LATENCY_REPORT_INTERVAL;
+        mReadyLock.unlock();
+    }
+
+    /**
+     * Get the latency tracker of the video pipeline.
+     * @return the tracker, or null if latency tracking is disabled
+     */
+    public VideoLatencyTracker getLatencyTracker() {
+        return mPipeline.getLatencyTracker();
+    }
+
+    /**
+     * Get the monitor analyzing the health of the incoming stream.
+     * @return the monitor
+     */
+    public StreamHealthMonitor getStreamHealthMonitor() {
+        return mStreamHealth;
+    }
 
-        mMediaCodec.configure(format, getHolder().getSurface(), null, 0);
-        mMediaCodec.start();
+    /**
+     * Set whether or not to skip the frames that reference a missed frame.
+     * When enabled the last good picture stays on screen until the next I-frame, instead of
+     * showing the smeared pictures decoded from a broken reference chain.
+     * @param skip true to skip the frames
+     */
+    public void setSkipBrokenFrames(boolean skip) {
+        mSkipBrokenFrames = skip;
+    }
 
-        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
-            mBuffers = mMediaCodec.getInputBuffers();
+    /**
+     * Set the secondary output giving access to the downscaled decoded frames.
+     * The tap is started here and the previous tap, if any, is stopped.
+     * The app sets no tap itself, it is there for the vision algorithms run on the stream.
+     * @param tap the tap, or null to remove the current one
+     */
+    public void setFrameTap(VideoFrameTap tap) {
+        mReadyLock.lock();
+        if (mFrameTap != null) {
+            mFrameTap.stop();
+        }
+        mFrameTap = tap;
+        if (tap != null) {
+            tap.start();
+            if (mSps != null) {
+                tap.configure(mSps, mPps);
+            }
         }
+        mReadyLock.unlock();
+    }
 
-        mIsCodecConfigured = true;
+    /**
+     * Play a recorded H.264 elementary stream instead of the drone's stream.
+     * Allows for measuring the decoder latency on the bench without a drone.
+     * @param file the recorded stream
+     * @param fps the rate at which to play the frames
+     */
+    public void playRecordedStream(File file, int fps) {
+        stopRecordedStream();
+        mFrameSource = new H264FileFrameSource(file, fps, true, new H264FileFrameSource.Listener() {
+            @Override
+            public void onCodecConfig(byte[] sps, byte[] pps) {
+                configureDecoder(sps, pps);
+            }
+
+            @Override
+            public void onFrame(byte[] data, int size) {
+                displayFrame(data, size);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                Log.i(TAG, "end of recorded stream");
+            }
+        });
+        mFrameSource.start();
     }
 
-    private void initMediaCodec(String type) {
+    /**
+     * @return true while a recorded stream is played instead of the drone's stream
+     */
+    public boolean isPlayingRecordedStream() {
+        return mFrameSource != null;
+    }
+
+    /**
+     * Stop playing a recorded stream started with {@link #playRecordedStream(File, int)}.
+     */
+    public void stopRecordedStream() {
+        if (mFrameSource != null) {
+            mFrameSource.stop();
+            mFrameSource = null;
+        }
+    }
+
+    private void initDecoder(SurfaceHolder holder) {
         try {
-            mMediaCodec = MediaCodec.createDecoderByType(type);
+            mDecoder = new MediaCodecVideoDecoder(holder.getSurface());
         } catch (IOException e) {
             Log.e(TAG, "Exception", e);
+            return;
         }
+        mPipeline.setDecoder(mDecoder);
 
-        if ((mMediaCodec != null) && (mSpsBuffer != null)) {
-            configureMediaCodec();
+        if (mSps != null) {
+            mDecoder.configure(mSps, mPps);
         }
     }
 
-    private void releaseMediaCodec() {
-        if (mMediaCodec != null) {
-            if (mIsCodecConfigured) {
-                mMediaCodec.stop();
-                mMediaCodec.release();
-            }
-            mIsCodecConfigured = false;
-            mMediaCodec = null;
+    private void releaseDecoder() {
+        mPipeline.setDecoder(null);
+        if (mDecoder != null) {
+            mDecoder.release();
+            mDecoder = null;
         }
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         mReadyLock.lock();
-        initMediaCodec(VIDEO_MIME_TYPE);
+        initDecoder(holder);
         mReadyLock.unlock();
     }
 
@@ -188,7 +296,7 @@ public class BebopVideoView extends SurfaceView implements SurfaceHolder.Callbac
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
         mReadyLock.lock();
-        releaseMediaCodec();
+        releaseDecoder();
         mReadyLock.unlock();
     }
 }
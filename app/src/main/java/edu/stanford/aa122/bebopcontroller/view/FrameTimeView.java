@@ -0,0 +1,217 @@
+package edu.stanford.aa122.bebopcontroller.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import java.util.Locale;
+
+import edu.stanford.aa122.bebopcontroller.helpers.LatencyHistogram;
+import edu.stanford.aa122.bebopcontroller.helpers.MetricsRegistry;
+
+/**
+ * Debug overlay graphing the time between the last display frames.
+ *
+ * Each bar is one frame, the line is the 60 fps budget: a bar above it is a dropped frame.
+ * The average, worst and number of dropped frames over the window are written on top.
+ * The frame times are also recorded in the {@link MetricsRegistry#UI_FRAME} metric while shown.
+ */
+public class FrameTimeView extends View {
+
+    /** number of frames shown */
+    private static final int SAMPLES = 120;
+
+    /** time available to render a frame at 60 fps [ms] */
+    private static final float FRAME_BUDGET = 1000f / 60f;
+
+    /** frame time at the top of the graph [ms] */
+    private static final float MAX_FRAME_TIME = 3 * FRAME_BUDGET;
+
+    /** number of frames between two updates of the text */
+    private static final int TEXT_UPDATE_INTERVAL = 30;
+
+    private Paint mOnTimePaint;
+    private Paint mLatePaint;
+    private Paint mBudgetPaint;
+    private Paint mTextPaint;
+
+    /** frame intervals, as a ring buffer [ms] */
+    private final float[] mFrameTimes = new float[SAMPLES];
+    private int mNext = 0;
+    private int mCount = 0;
+    private long mLastFrameNanos = 0;
+    private int mFramesSinceText = 0;
+
+    /** lines of the bars, preallocated */
+    private final float[] mOnTimeLines = new float[4 * SAMPLES];
+    private final float[] mLateLines = new float[4 * SAMPLES];
+
+    private final LatencyHistogram mFrameHistogram = MetricsRegistry.getDefault().histogram(MetricsRegistry.UI_FRAME);
+
+    private String mText = "";
+    private boolean mRunning = false;
+    private Choreographer mChoreographer;
+
+    public FrameTimeView(Context context) {
+        super(context);
+        initialize();
+    }
+
+    public FrameTimeView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        initialize();
+    }
+
+    /**
+     * initialize all the paints and stuff to be used
+     */
+    private void initialize() {
+        mOnTimePaint = new Paint();
+        mOnTimePaint.setColor(Color.parseColor("#8800FF00"));
+
+        mLatePaint = new Paint();
+        mLatePaint.setColor(Color.parseColor("#88FF0000"));
+
+        mBudgetPaint = new Paint();
+        mBudgetPaint.setColor(Color.WHITE);
+        mBudgetPaint.setStrokeWidth(2f);
+
+        mTextPaint = new Paint();
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(24f);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        float barWidth = (float) w / SAMPLES;
+        mOnTimePaint.setStrokeWidth(barWidth);
+        mLatePaint.setStrokeWidth(barWidth);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stop();
+    }
+
+    /**
+     * start recording the frame times
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mRunning = true;
+        mLastFrameNanos = 0;
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    /**
+     * stop recording the frame times
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mChoreographer.removeFrameCallback(mFrameCallback);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float width = getWidth();
+        float height = getHeight();
+        float barWidth = width / SAMPLES;
+        float scale = height / MAX_FRAME_TIME;
+
+        // oldest frame on the left
+        int onTime = 0;
+        int late = 0;
+        for (int i = 0; i < mCount; i++) {
+            float frameTime = mFrameTimes[(mNext - mCount + i + SAMPLES) % SAMPLES];
+            float x = (i + 0.5f) * barWidth;
+            float top = height - Math.min(frameTime, MAX_FRAME_TIME) * scale;
+            float[] lines;
+            int index;
+            if (frameTime > 1.5f * FRAME_BUDGET) {
+                lines = mLateLines;
+                index = 4 * late++;
+            } else {
+                lines = mOnTimeLines;
+                index = 4 * onTime++;
+            }
+            lines[index] = x;
+            lines[index + 1] = height;
+            lines[index + 2] = x;
+            lines[index + 3] = top;
+        }
+        canvas.drawLines(mOnTimeLines, 0, 4 * onTime, mOnTimePaint);
+        canvas.drawLines(mLateLines, 0, 4 * late, mLatePaint);
+
+        float budget = height - FRAME_BUDGET * scale;
+        canvas.drawLine(0, budget, width, budget, mBudgetPaint);
+        canvas.drawText(mText, 0, mTextPaint.getTextSize(), mTextPaint);
+    }
+
+    /**
+     * record the time since the previous frame
+     * @param frameTimeNanos the time the frame started rendering [ns]
+     */
+    private void recordFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0) {
+            mFrameHistogram.record(frameTimeNanos - mLastFrameNanos);
+            mFrameTimes[mNext] = (frameTimeNanos - mLastFrameNanos) / 1e6f;
+            mNext = (mNext + 1) % SAMPLES;
+            if (mCount < SAMPLES) {
+                mCount++;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        if (++mFramesSinceText >= TEXT_UPDATE_INTERVAL) {
+            mFramesSinceText = 0;
+            updateText();
+        }
+    }
+
+    /**
+     * summarize the frames in the window
+     */
+    private void updateText() {
+        float total = 0;
+        float max = 0;
+        int dropped = 0;
+        for (int i = 0; i < mCount; i++) {
+            float frameTime = mFrameTimes[i];
+            total += frameTime;
+            max = Math.max(max, frameTime);
+            // a late frame covers several vsync periods
+            dropped += Math.max(0, Math.round(frameTime / FRAME_BUDGET) - 1);
+        }
+        float average = (mCount > 0) ? total / mCount : 0;
+        mText = String.format(Locale.US, "avg %.1f ms  max %.1f ms  dropped %d", average, max, dropped);
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            recordFrame(frameTimeNanos);
+            invalidate();
+            mChoreographer.postFrameCallback(this);
+        }
+    };
+}
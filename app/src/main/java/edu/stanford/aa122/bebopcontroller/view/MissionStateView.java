@@ -15,6 +15,7 @@ import edu.stanford.aa122.bebopcontroller.R;
 
 /**
  * View to display the current mission state.
+ * Drawn into a hardware layer, only updated when the state changes.
  *
  * @author Adrien Perkins <adrienp@stanford.edu>
  */
@@ -89,6 +90,10 @@ public class MissionStateView extends View {
         mVideoPaint.setAntiAlias(true);
         mVideoPaint.setStyle(Paint.Style.FILL);
         mVideoPaint.setColor(ContextCompat.getColor(getContext(), R.color.recording_transparent));
+
+        // the arcs only change with the mission state, keep them rendered in a texture composited
+        // over the video instead of rasterizing them each time the overlay is redrawn
+        setLayerType(LAYER_TYPE_HARDWARE, null);
     }
 
     @Override
@@ -157,6 +162,10 @@ public class MissionStateView extends View {
         if (missionState > 8 || missionState < 0) {
             return;
         }
+        if (missionState == mMissionState) {
+            // nothing to render again
+            return;
+        }
         mMissionState = missionState;
         invalidate();
     }
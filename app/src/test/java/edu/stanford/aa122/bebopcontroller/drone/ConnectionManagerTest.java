@@ -0,0 +1,136 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transitions of the connection state machine.
+ */
+public class ConnectionManagerTest {
+
+    /** runs the tasks when asked to, like a connection thread */
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    private final List<Integer> mStates = new ArrayList<>();
+    private boolean mOpenSucceeds = true;
+    private int mOpened = 0;
+    private int mClosed = 0;
+
+    private ConnectionManager mConnection;
+
+    @Before
+    public void setUp() {
+        mConnection = new ConnectionManager(new ConnectionManager.Link() {
+            @Override
+            public boolean open() {
+                mOpened++;
+                return mOpenSucceeds;
+            }
+
+            @Override
+            public boolean close() {
+                mClosed++;
+                return true;
+            }
+        }, mExecutor);
+        mConnection.setListener(new ConnectionManager.Listener() {
+            @Override
+            public void onConnectionStateChanged(int state, int previousState, long timeInPreviousState) {
+                assertTrue(timeInPreviousState >= 0);
+                mStates.add(state);
+            }
+        });
+    }
+
+    @Test
+    public void connectsInBackground() {
+        assertTrue(mConnection.connect());
+        assertEquals(ConnectionManager.STATE_CONNECTING, mConnection.getState());
+        assertEquals(0, mOpened);
+        assertFalse(mConnection.connect());
+
+        runTasks();
+        assertEquals(1, mOpened);
+        mConnection.onLinkConnected();
+        assertEquals(ConnectionManager.STATE_CONNECTED, mConnection.getState());
+
+        assertTrue(mConnection.disconnect());
+        runTasks();
+        assertEquals(1, mClosed);
+        mConnection.onLinkDisconnected();
+
+        assertEquals(states(ConnectionManager.STATE_CONNECTING, ConnectionManager.STATE_CONNECTED,
+                ConnectionManager.STATE_DISCONNECTING, ConnectionManager.STATE_DISCONNECTED), mStates);
+    }
+
+    @Test
+    public void failedOpenGoesBackToDisconnected() {
+        mOpenSucceeds = false;
+        mConnection.connect();
+        runTasks();
+        assertEquals(ConnectionManager.STATE_DISCONNECTED, mConnection.getState());
+        assertEquals(states(ConnectionManager.STATE_CONNECTING, ConnectionManager.STATE_DISCONNECTED), mStates);
+
+        // can try again
+        mOpenSucceeds = true;
+        assertTrue(mConnection.connect());
+    }
+
+    @Test
+    public void reconnectsOnceDisconnected() {
+        mConnection.connect();
+        runTasks();
+        mConnection.onLinkConnected();
+        mConnection.disconnect();
+
+        // asked again while disconnecting, e.g. the activity restarted
+        assertTrue(mConnection.connect());
+        runTasks();
+        assertEquals(ConnectionManager.STATE_DISCONNECTING, mConnection.getState());
+        mConnection.onLinkDisconnected();
+        assertEquals(ConnectionManager.STATE_CONNECTING, mConnection.getState());
+        runTasks();
+        assertEquals(2, mOpened);
+    }
+
+    @Test
+    public void disconnectCancelsPendingConnection() {
+        mConnection.connect();
+        runTasks();
+        mConnection.onLinkConnected();
+        mConnection.disconnect();
+        mConnection.connect();
+        assertFalse(mConnection.disconnect());
+
+        runTasks();
+        mConnection.onLinkDisconnected();
+        assertEquals(ConnectionManager.STATE_DISCONNECTED, mConnection.getState());
+        assertEquals(1, mOpened);
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+
+    private static List<Integer> states(int... states) {
+        List<Integer> list = new ArrayList<>();
+        for (int state : states) {
+            list.add(state);
+        }
+        return list;
+    }
+}
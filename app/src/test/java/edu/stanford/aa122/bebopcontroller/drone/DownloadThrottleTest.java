@@ -0,0 +1,111 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import org.junit.Test;
+
+import edu.stanford.aa122.bebopcontroller.helpers.StreamHealthMonitor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Levels, rate limiting and accounting of the download bandwidth budget.
+ */
+public class DownloadThrottleTest {
+
+    private static final StreamHealthMonitor.Summary HEALTHY = summary(30, 0, 0);
+    private static final StreamHealthMonitor.Summary DEGRADED = summary(22, 3, 2);
+
+    @Test
+    public void followsFlightAndStreamHealth() throws Exception {
+        DownloadThrottle throttle = new DownloadThrottle(100000, 200);
+
+        // ramps up once landed for long enough
+        assertEquals(DownloadThrottle.LEVEL_LOW, throttle.getLevel());
+        Thread.sleep(250);
+        assertEquals(DownloadThrottle.LEVEL_FULL, throttle.getLevel());
+
+        throttle.setFlying(true);
+        assertEquals(DownloadThrottle.LEVEL_LOW, throttle.getLevel());
+        throttle.setStreamHealth(DEGRADED);
+        assertEquals(DownloadThrottle.LEVEL_PAUSED, throttle.getLevel());
+        throttle.setStreamHealth(HEALTHY);
+        assertEquals(DownloadThrottle.LEVEL_LOW, throttle.getLevel());
+
+        throttle.setFlying(false);
+        assertEquals(DownloadThrottle.LEVEL_LOW, throttle.getLevel());
+        Thread.sleep(250);
+        assertEquals(DownloadThrottle.LEVEL_FULL, throttle.getLevel());
+
+        // a degraded stream holds back the downloads even when landed
+        throttle.setStreamHealth(DEGRADED);
+        assertEquals(DownloadThrottle.LEVEL_LOW, throttle.getLevel());
+    }
+
+    @Test
+    public void limitsRateWhileFlying() {
+        DownloadThrottle throttle = new DownloadThrottle(1000000, 0);
+        throttle.setFlying(true);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            throttle.acquire(50000);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // 500 kB at 1 MB/s
+        assertTrue(elapsed > 450000000L);
+        assertEquals(500000, throttle.getBytesTransferred(DownloadThrottle.PHASE_FLYING));
+        assertEquals(0, throttle.getBytesTransferred(DownloadThrottle.PHASE_LANDED));
+    }
+
+    @Test
+    public void pausesUntilStreamRecovers() throws Exception {
+        final DownloadThrottle throttle = new DownloadThrottle(1000000, 0);
+        throttle.setFlying(true);
+        throttle.setStreamHealth(DEGRADED);
+
+        Thread recovery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                throttle.setStreamHealth(HEALTHY);
+            }
+        });
+        long start = System.nanoTime();
+        recovery.start();
+        throttle.acquire(0);
+        long elapsed = System.nanoTime() - start;
+        recovery.join();
+
+        assertTrue(elapsed > 150000000L);
+        assertEquals(DownloadThrottle.LEVEL_LOW, throttle.getLevel());
+    }
+
+    @Test
+    public void interruptionEndsPause() throws Exception {
+        final DownloadThrottle throttle = new DownloadThrottle(1000000, 0);
+        throttle.setFlying(true);
+        throttle.setStreamHealth(DEGRADED);
+
+        Thread transfer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                throttle.acquire(1000);
+            }
+        });
+        transfer.start();
+        Thread.sleep(100);
+        assertTrue(transfer.isAlive());
+        transfer.interrupt();
+        transfer.join(1000);
+        assertFalse(transfer.isAlive());
+    }
+
+    private static StreamHealthMonitor.Summary summary(int frames, int missed, int gaps) {
+        return new StreamHealthMonitor.Summary(System.currentTimeMillis(), 1000, frames, 1, 0, missed, gaps,
+                (gaps > 0) ? 250 : 33, 0, 0, frames * 5000, 30);
+    }
+}
@@ -0,0 +1,296 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM;
+import com.parrot.arsdk.arcontroller.ARCONTROLLER_DEVICE_STATE_ENUM;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.stanford.aa122.bebopcontroller.listener.BebopDroneListener;
+import edu.stanford.aa122.bebopcontroller.listener.BebopDroneMissionListener;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fleet state and coordinated steps, with simulated drones each on a dispatch thread of its own.
+ */
+public class FleetManagerTest {
+
+    private static final int FLEET_SIZE = 8;
+
+    private final FleetManager mFleet = new FleetManager();
+
+    @After
+    public void tearDown() {
+        mFleet.dispose();
+    }
+
+    @Test
+    public void tracksTheStateOfEachDrone() throws Exception {
+        List<SimulatedDrone> drones = createFleet();
+        mFleet.connectAll();
+        for (SimulatedDrone drone : drones) {
+            drone.sendBattery(50 + drone.mIndex);
+        }
+        drainAll(drones);
+
+        FleetManager.DroneState[] states = mFleet.getStates();
+        assertEquals(FLEET_SIZE, states.length);
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertEquals("sim" + i, states[i].name);
+            assertTrue(states[i].connected);
+            assertEquals(50 + i, states[i].battery);
+        }
+        assertEquals(FLEET_SIZE, mFleet.getConnectedCount());
+        assertEquals(50, mFleet.getMinBattery());
+        assertEquals(0, mFleet.getFlyingCount());
+    }
+
+    @Test
+    public void completesStepOnceAllDronesFinished() throws Exception {
+        List<SimulatedDrone> drones = createFleet();
+        mFleet.connectAll();
+        drainAll(drones);
+
+        final CountDownLatch takenOff = new CountDownLatch(1);
+        assertTrue(mFleet.executeAll(FleetManager.takeOff(), new FleetManager.StepListener() {
+            @Override
+            public void onStepCompleted() {
+                takenOff.countDown();
+            }
+        }));
+        assertTrue(takenOff.await(5, TimeUnit.SECONDS));
+        assertEquals(FLEET_SIZE, mFleet.getFlyingCount());
+
+        // only some of the drones move, the others are not waited for
+        final AtomicInteger completions = new AtomicInteger();
+        final CountDownLatch moved = new CountDownLatch(1);
+        FleetManager.Command[] commands = new FleetManager.Command[FLEET_SIZE];
+        for (int i = 0; i < FLEET_SIZE; i += 2) {
+            commands[i] = FleetManager.relativeMove(1, 0, 0, 0);
+        }
+        assertTrue(mFleet.execute(commands, new FleetManager.StepListener() {
+            @Override
+            public void onStepCompleted() {
+                completions.incrementAndGet();
+                moved.countDown();
+            }
+        }));
+        assertTrue(moved.await(5, TimeUnit.SECONDS));
+        drainAll(drones);
+        assertEquals(1, completions.get());
+        for (SimulatedDrone drone : drones) {
+            assertEquals((drone.mIndex % 2 == 0) ? 1 : 0, drone.mMoves.get());
+        }
+    }
+
+    @Test
+    public void refusesOverlappingSteps() throws Exception {
+        List<SimulatedDrone> drones = createFleet();
+        mFleet.connectAll();
+        drainAll(drones);
+
+        drones.get(3).mHold = true;
+        mFleet.executeAll(FleetManager.takeOff(), null);
+        drainAll(drones);
+        assertFalse(mFleet.executeAll(FleetManager.land(), null));
+
+        // cancelled, a late finish doesn't leak into the next step
+        mFleet.cancelStep();
+        drones.get(3).finishHeldCommand();
+        drainAll(drones);
+        assertTrue(mFleet.executeAll(FleetManager.land(), null));
+    }
+
+    @Test
+    public void lateFinishOfCancelledStepIsIgnored() throws Exception {
+        List<SimulatedDrone> drones = createFleet();
+        mFleet.connectAll();
+        drainAll(drones);
+
+        drones.get(3).mHold = true;
+        mFleet.executeAll(FleetManager.takeOff(), null);
+        drainAll(drones);
+        mFleet.cancelStep();
+
+        // the next step starts while the cancelled command is still running
+        final AtomicInteger completions = new AtomicInteger();
+        assertTrue(mFleet.executeAll(FleetManager.land(), new FleetManager.StepListener() {
+            @Override
+            public void onStepCompleted() {
+                completions.incrementAndGet();
+            }
+        }));
+        drainAll(drones);
+        assertEquals(0, completions.get());
+
+        // the take off finishes late, the landing of the drone is still waited for
+        drones.get(3).finishHeldCommand();
+        drainAll(drones);
+        assertEquals(0, completions.get());
+
+        drones.get(3).finishHeldCommand();
+        drainAll(drones);
+        assertEquals(1, completions.get());
+    }
+
+    private List<SimulatedDrone> createFleet() {
+        List<SimulatedDrone> drones = new ArrayList<>();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            SimulatedDrone drone = new SimulatedDrone(i);
+            drones.add(drone);
+            assertEquals(i, mFleet.addDrone(drone));
+        }
+        return drones;
+    }
+
+    private static void drainAll(List<SimulatedDrone> drones) throws InterruptedException {
+        for (SimulatedDrone drone : drones) {
+            drone.drain();
+        }
+    }
+
+    /**
+     * Drone answering the commands like a Bebop, its listeners called on a thread of its own.
+     */
+    private static class SimulatedDrone implements FleetMember {
+        final int mIndex;
+        final ExecutorService mDispatch = Executors.newSingleThreadExecutor();
+        final List<BebopDroneListener> mListeners = new ArrayList<>();
+        final List<BebopDroneMissionListener> mMissionListeners = new ArrayList<>();
+        final AtomicInteger mMoves = new AtomicInteger();
+
+        /** whether to keep the next command running until told otherwise */
+        volatile boolean mHold = false;
+
+        SimulatedDrone(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public String getName() {
+            return "sim" + mIndex;
+        }
+
+        @Override
+        public boolean connect() {
+            mDispatch.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BebopDroneListener listener : new ArrayList<>(mListeners)) {
+                        listener.onDroneConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean disconnect() {
+            return true;
+        }
+
+        @Override
+        public void addListener(BebopDroneListener listener) {
+            mListeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(BebopDroneListener listener) {
+            mListeners.remove(listener);
+        }
+
+        @Override
+        public void addMissionListener(BebopDroneMissionListener listener) {
+            mMissionListeners.add(listener);
+        }
+
+        @Override
+        public void removeMissionListener(BebopDroneMissionListener listener) {
+            mMissionListeners.remove(listener);
+        }
+
+        @Override
+        public void takeOff() {
+            mDispatch.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BebopDroneListener listener : new ArrayList<>(mListeners)) {
+                        listener.onPilotingStateChanged(new Date(), ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_HOVERING);
+                    }
+                }
+            });
+            finishCommand();
+        }
+
+        @Override
+        public void land() {
+            finishCommand();
+        }
+
+        @Override
+        public void emergency() {
+        }
+
+        @Override
+        public void relativeMove(float dx, float dy, float dz, float dpsi) {
+            mMoves.incrementAndGet();
+            finishCommand();
+        }
+
+        @Override
+        public void dispose() {
+            mDispatch.shutdown();
+        }
+
+        void sendBattery(final int battery) {
+            mDispatch.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BebopDroneListener listener : new ArrayList<>(mListeners)) {
+                        listener.onBatteryChargeChanged(new Date(), battery);
+                    }
+                }
+            });
+        }
+
+        void finishHeldCommand() {
+            mHold = false;
+            finishCommand();
+        }
+
+        void drain() throws InterruptedException {
+            final CountDownLatch done = new CountDownLatch(1);
+            mDispatch.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+
+        private void finishCommand() {
+            if (mHold) {
+                return;
+            }
+            mDispatch.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BebopDroneMissionListener listener : new ArrayList<>(mMissionListeners)) {
+                        listener.onCommandFinished();
+                    }
+                }
+            });
+        }
+    }
+}
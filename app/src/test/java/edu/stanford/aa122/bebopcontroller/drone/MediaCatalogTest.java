@@ -0,0 +1,181 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging of the drone listings into the media catalog and its persistence.
+ */
+public class MediaCatalogTest {
+
+    private static final String RUN_A = "A3C5F21B";
+    private static final String RUN_B = "0D4E7711";
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("catalog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = mDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void parsesNamesAndDates() {
+        MediaCatalog.Entry entry = media("Bebop_2_2017-04-12T101545+0000_" + RUN_A + ".jpg", 1000, "2017-04-12T101545");
+        assertEquals(RUN_A, entry.runId);
+        assertTrue(entry.time != 0);
+
+        MediaCatalog catalog = new MediaCatalog(mDirectory);
+        catalog.merge(listOf(entry));
+        assertEquals(1, catalog.getByDay(new GregorianCalendar(2017, 3, 12)).size());
+        assertEquals(0, catalog.getByDay(new GregorianCalendar(2017, 3, 13)).size());
+    }
+
+    @Test
+    public void skipsMediasAlreadyDownloaded() throws IOException {
+        MediaCatalog catalog = new MediaCatalog(mDirectory);
+        List<MediaCatalog.Entry> listing = listOf(
+                media("Bebop_2_2017-04-12T101545+0000_" + RUN_A + ".jpg", 1000, "2017-04-12T101545"),
+                media("Bebop_2_2017-04-12T101603+0000_" + RUN_A + ".mp4", 5000, "2017-04-12T101603"),
+                media("Bebop_2_2017-04-12T113012+0000_" + RUN_B + ".jpg", 1000, "2017-04-12T113012"));
+        assertEquals(3, catalog.merge(listing));
+
+        List<MediaCatalog.Entry> run = catalog.getByRunId(RUN_A);
+        assertEquals(2, run.size());
+        assertEquals(2, catalog.getToDownload(run).size());
+
+        writeFile(run.get(0).name, 1000);
+        catalog.markDownloaded(run.get(0).name);
+        assertEquals(MediaCatalog.STATE_DOWNLOADED, catalog.get(run.get(0).name).getState());
+        assertEquals(1, catalog.getToDownload(run).size());
+
+        // the same listing again adds nothing
+        assertEquals(0, catalog.merge(listing));
+        assertEquals(1, catalog.getToDownload(catalog.getByRunId(RUN_A)).size());
+
+        // a media deleted from the phone is downloaded again
+        assertTrue(new File(mDirectory, run.get(0).name).delete());
+        assertEquals(2, catalog.getToDownload(catalog.getByRunId(RUN_A)).size());
+    }
+
+    @Test
+    public void adoptsMediasAlreadyOnThePhone() throws IOException {
+        String name = "Bebop_2_2017-04-12T101545+0000_" + RUN_A + ".jpg";
+        writeFile(name, 1000);
+
+        MediaCatalog catalog = new MediaCatalog(mDirectory);
+        catalog.merge(listOf(media(name, 1000, "2017-04-12T101545")));
+        assertEquals(MediaCatalog.STATE_DOWNLOADED, catalog.get(name).getState());
+        assertEquals(0, catalog.getToDownload(catalog.getByRunId(RUN_A)).size());
+    }
+
+    @Test
+    public void forgetsMediasRemovedFromTheDrone() throws IOException {
+        String kept = "Bebop_2_2017-04-12T101545+0000_" + RUN_A + ".jpg";
+        String dropped = "Bebop_2_2017-04-12T101603+0000_" + RUN_A + ".mp4";
+        writeFile(kept, 1000);
+
+        MediaCatalog catalog = new MediaCatalog(mDirectory);
+        catalog.merge(listOf(media(kept, 1000, "2017-04-12T101545"), media(dropped, 5000, "2017-04-12T101603")));
+        catalog.merge(new ArrayList<MediaCatalog.Entry>());
+
+        // the media on the phone stays in the catalog, but is no longer on the drone
+        assertEquals(1, catalog.size());
+        assertFalse(catalog.get(kept).isOnDrone());
+        assertNull(catalog.get(dropped));
+        assertEquals(0, catalog.getByRunId(RUN_A).size());
+    }
+
+    @Test
+    public void persistsBetweenSessions() throws IOException {
+        String name = "Bebop_2_2017-04-12T101545+0000_" + RUN_A + ".jpg";
+        MediaCatalog catalog = new MediaCatalog(mDirectory);
+        catalog.merge(listOf(media(name, 1000, "2017-04-12T101545")));
+        writeFile(name, 1000);
+        catalog.markVerified(name, "3f786850e387550fdab836ed7e6dc881de23001b");
+        catalog.save();
+
+        MediaCatalog reloaded = new MediaCatalog(mDirectory);
+        assertEquals(1, reloaded.size());
+        MediaCatalog.Entry entry = reloaded.get(name);
+        assertEquals(MediaCatalog.STATE_VERIFIED, entry.getState());
+        assertEquals("3f786850e387550fdab836ed7e6dc881de23001b", entry.getHash());
+        assertSame(entry, reloaded.findVerified(entry.getHash(), 1000, null));
+        assertEquals(RUN_A, entry.runId);
+        assertEquals(1000, entry.size);
+        assertEquals(1, reloaded.getByRunId(RUN_A).size());
+    }
+
+    @Test
+    public void indexesByRunAndTime() {
+        MediaCatalog catalog = new MediaCatalog(mDirectory);
+        catalog.merge(listOf(
+                media("Bebop_2_2017-04-12T101545+0000_" + RUN_A + ".jpg", 1000, "2017-04-12T101545"),
+                media("Bebop_2_2017-04-12T101603+0000_" + RUN_A + ".mp4", 5000, "2017-04-12T101603"),
+                media("Bebop_2_2017-04-12T113012+0000_" + RUN_B + ".jpg", 1000, "2017-04-12T113012"),
+                media("Bebop_2_2017-04-13T090000+0000_1234ABCD.jpg", 1000, "2017-04-13T090000")));
+        MediaIndex index = catalog.getIndex();
+
+        assertEquals(listOf("1234ABCD", RUN_B, RUN_A), index.getRuns());
+        assertEquals(2, index.getByRunId(RUN_A.toLowerCase()).size());
+
+        // pictures of the last two runs
+        List<MediaCatalog.Entry> pictures = index.getFromLastRuns(2, MediaCatalog.TYPE_PHOTO);
+        assertEquals(2, pictures.size());
+        assertEquals("1234ABCD", pictures.get(0).runId);
+        assertEquals(RUN_B, pictures.get(1).runId);
+        assertEquals(3, index.getFromLastRuns(3, MediaCatalog.TYPE_PHOTO).size());
+
+        long start = new GregorianCalendar(2017, 3, 12, 10, 16, 0).getTimeInMillis();
+        long end = new GregorianCalendar(2017, 3, 12, 12, 0, 0).getTimeInMillis();
+        List<MediaCatalog.Entry> range = index.getByTimeRange(start, end);
+        assertEquals(2, range.size());
+        assertEquals(RUN_A, range.get(0).runId);
+        assertEquals(RUN_B, range.get(1).runId);
+        assertEquals(0, index.getByTimeRange(end, start).size());
+    }
+
+    private static MediaCatalog.Entry media(String name, long size, String date) {
+        return new MediaCatalog.Entry(name, "internal_000/Bebop_2/media/" + name, size, date);
+    }
+
+    @SafeVarargs
+    private static <T> List<T> listOf(T... items) {
+        List<T> list = new ArrayList<>();
+        for (T item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private void writeFile(String name, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, name));
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+}
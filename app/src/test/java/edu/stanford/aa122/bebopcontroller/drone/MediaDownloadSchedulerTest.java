@@ -0,0 +1,305 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Download scheduling, resuming and reporting, against the local stand-in of the FTP server.
+ */
+public class MediaDownloadSchedulerTest {
+
+    private File mRoot;
+    private File mServer;
+    private File mPhone;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("medias", "");
+        assertTrue(mRoot.delete());
+        mServer = new File(mRoot, "server");
+        mPhone = new File(mRoot, "phone");
+        assertTrue(mServer.mkdirs());
+        assertTrue(mPhone.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    @Test
+    public void downloadsInParallel() throws Exception {
+        long[] sizes = {300000, 100000, 500000, 200000};
+        List<MediaDownloadScheduler.Task> tasks = createMedias(sizes);
+
+        RecordingListener listener = new RecordingListener();
+        // 1 MB/s per session, 4 sessions
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 1000000, 0), mPhone, 4,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, listener);
+        for (MediaDownloadScheduler.Task task : tasks) {
+            scheduler.enqueue(task);
+        }
+
+        long start = System.nanoTime();
+        scheduler.start();
+        scheduler.awaitCompletion();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "parallel: %d bytes in %.1f ms, %.2f MB/s",
+                scheduler.getBytesTransferred(), elapsed / 1e6, scheduler.getThroughput() / 1e6));
+
+        assertEquals(sizes.length, scheduler.getNbSucceeded());
+        assertEquals(0, scheduler.getNbFailed());
+        assertEquals(1100000, scheduler.getBytesTransferred());
+        // one session alone would need 1.1 s
+        assertTrue(elapsed < 1000000000L);
+        assertEquals(1100000, listener.mLastDone);
+        assertEquals(1100000, listener.mLastTotal);
+        assertTrue(listener.mFinished);
+        assertMediasDownloaded(tasks);
+    }
+
+    @Test
+    public void resumesAfterConnectionLoss() throws Exception {
+        long[] sizes = {250000};
+        List<MediaDownloadScheduler.Task> tasks = createMedias(sizes);
+
+        RecordingListener listener = new RecordingListener();
+        // each session drops after 100 kB: 3 sessions needed
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 100000), mPhone, 1,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, listener);
+        scheduler.setMaxAttempts(5);
+        scheduler.enqueue(tasks.get(0));
+        scheduler.start();
+        scheduler.awaitCompletion();
+
+        assertEquals(1, scheduler.getNbSucceeded());
+        // nothing is transferred twice
+        assertEquals(250000, scheduler.getBytesTransferred());
+        assertFalse(new File(mPhone, "media0.mp4" + MediaDownloadScheduler.PARTIAL_SUFFIX).exists());
+        assertMediasDownloaded(tasks);
+    }
+
+    @Test
+    public void keepsPartialFileWhenGivingUp() throws Exception {
+        long[] sizes = {250000};
+        List<MediaDownloadScheduler.Task> tasks = createMedias(sizes);
+
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 100000), mPhone, 1,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, new RecordingListener());
+        scheduler.setMaxAttempts(2);
+        scheduler.enqueue(tasks.get(0));
+        scheduler.start();
+        scheduler.awaitCompletion();
+
+        assertEquals(1, scheduler.getNbFailed());
+        File partial = new File(mPhone, "media0.mp4" + MediaDownloadScheduler.PARTIAL_SUFFIX);
+        assertEquals(200000, partial.length());
+
+        // a later download picks up from the partial file
+        scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 0), mPhone, 1,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, new RecordingListener());
+        scheduler.enqueue(new MediaDownloadScheduler.Task("media0.mp4", "media0.mp4", 250000, 0));
+        scheduler.start();
+        scheduler.awaitCompletion();
+
+        assertEquals(1, scheduler.getNbSucceeded());
+        assertEquals(50000, scheduler.getBytesTransferred());
+        assertMediasDownloaded(tasks);
+    }
+
+    @Test
+    public void followsDownloadOrder() throws Exception {
+        long[] sizes = {30000, 10000, 20000};
+        List<MediaDownloadScheduler.Task> tasks = createMedias(sizes);
+
+        RecordingListener listener = new RecordingListener();
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 0), mPhone, 1,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, listener);
+        for (MediaDownloadScheduler.Task task : tasks) {
+            scheduler.enqueue(task);
+        }
+        scheduler.start();
+        scheduler.awaitCompletion();
+        assertEquals(listOf("media1.mp4", "media2.mp4", "media0.mp4"), listener.mCompleted);
+
+        delete(mPhone);
+        assertTrue(mPhone.mkdirs());
+
+        listener = new RecordingListener();
+        scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 0), mPhone, 1,
+                MediaDownloadScheduler.ORDER_PRIORITY, listener);
+        scheduler.enqueue(new MediaDownloadScheduler.Task("media0.mp4", "media0.mp4", 30000, 1));
+        scheduler.enqueue(new MediaDownloadScheduler.Task("media1.mp4", "media1.mp4", 10000, 0));
+        scheduler.enqueue(new MediaDownloadScheduler.Task("media2.mp4", "media2.mp4", 20000, 0));
+        scheduler.start();
+        scheduler.awaitCompletion();
+        assertEquals(listOf("media0.mp4", "media1.mp4", "media2.mp4"), listener.mCompleted);
+    }
+
+    @Test
+    public void skipsMediasAlreadyDownloaded() throws Exception {
+        long[] sizes = {10000, 20000};
+        List<MediaDownloadScheduler.Task> tasks = createMedias(sizes);
+        copy(new File(mServer, "media0.mp4"), new File(mPhone, "media0.mp4"));
+
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 0), mPhone, 2,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, new RecordingListener());
+        for (MediaDownloadScheduler.Task task : tasks) {
+            scheduler.enqueue(task);
+        }
+        scheduler.start();
+        scheduler.awaitCompletion();
+
+        assertEquals(2, scheduler.getNbSucceeded());
+        assertEquals(20000, scheduler.getBytesTransferred());
+    }
+
+    @Test
+    public void sharesThrottleBetweenDownloads() throws Exception {
+        long[] sizes = {200000, 200000};
+        List<MediaDownloadScheduler.Task> tasks = createMedias(sizes);
+
+        // 1 MB/s for both downloads together while flying
+        DownloadThrottle throttle = new DownloadThrottle(1000000, 0);
+        throttle.setFlying(true);
+
+        MediaDownloadScheduler scheduler = new MediaDownloadScheduler(
+                new LocalFtpSession.Factory(mServer, 0, 0), mPhone, 2,
+                MediaDownloadScheduler.ORDER_SMALLEST_FIRST, new RecordingListener());
+        scheduler.setThrottle(throttle);
+        for (MediaDownloadScheduler.Task task : tasks) {
+            scheduler.enqueue(task);
+        }
+
+        long start = System.nanoTime();
+        scheduler.start();
+        scheduler.awaitCompletion();
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(2, scheduler.getNbSucceeded());
+        assertTrue(elapsed > 300000000L);
+        assertEquals(400000, throttle.getBytesTransferred(DownloadThrottle.PHASE_FLYING), 100);
+        assertMediasDownloaded(tasks);
+    }
+
+    private List<MediaDownloadScheduler.Task> createMedias(long[] sizes) throws IOException {
+        Random random = new Random(0);
+        List<MediaDownloadScheduler.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            String name = "media" + i + ".mp4";
+            byte[] data = new byte[(int) sizes[i]];
+            random.nextBytes(data);
+            FileOutputStream out = new FileOutputStream(new File(mServer, name));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            tasks.add(new MediaDownloadScheduler.Task(name, name, sizes[i], 0));
+        }
+        return tasks;
+    }
+
+    private void assertMediasDownloaded(List<MediaDownloadScheduler.Task> tasks) throws IOException {
+        for (MediaDownloadScheduler.Task task : tasks) {
+            File source = new File(mServer, task.remotePath);
+            File target = new File(mPhone, task.name);
+            assertTrue(target.isFile());
+            assertArrayEquals(readAll(source), readAll(target));
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        byte[] data = readAll(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> listOf(String... names) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, names);
+        return list;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class RecordingListener implements MediaDownloadScheduler.Listener {
+        final List<String> mCompleted = Collections.synchronizedList(new ArrayList<String>());
+        volatile long mLastDone;
+        volatile long mLastTotal;
+        volatile boolean mFinished;
+
+        @Override
+        public void onDownloadProgressed(String mediaName, int progress) {
+        }
+
+        @Override
+        public void onDownloadComplete(String mediaName, boolean success) {
+            if (success) {
+                mCompleted.add(mediaName);
+            }
+        }
+
+        @Override
+        public void onThroughputUpdated(long bytesDone, long bytesTotal, double bytesPerSecond) {
+            mLastDone = bytesDone;
+            mLastTotal = bytesTotal;
+        }
+
+        @Override
+        public void onAllDownloadsFinished(int nbSucceeded, int nbFailed) {
+            mFinished = true;
+        }
+    }
+}
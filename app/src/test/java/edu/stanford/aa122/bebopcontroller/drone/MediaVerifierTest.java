@@ -0,0 +1,142 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verification, hashing and deduplication of the downloaded medias.
+ */
+public class MediaVerifierTest {
+
+    private File mDirectory;
+    private MediaCatalog mCatalog;
+    private MediaVerifier mVerifier;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("verifier", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+        mCatalog = new MediaCatalog(mDirectory);
+        mVerifier = new MediaVerifier(mCatalog, mDirectory);
+        mVerifier.mUseHardLinks = false;
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = mDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void hashesThroughMappedWindows() throws Exception {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", MediaVerifier.hash(write("abc", "abc".getBytes("US-ASCII"))));
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", MediaVerifier.hash(write("empty", new byte[0])));
+
+        // larger than a window
+        byte[] data = random(9 * 1024 * 1024 + 17, 1);
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(data);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : expected) {
+            sb.append(String.format("%02x", b));
+        }
+        assertEquals(sb.toString(), MediaVerifier.hash(write("large", data)));
+    }
+
+    @Test
+    public void verifiesCompleteMedias() throws IOException {
+        download("a.mp4", random(5000, 1));
+        assertEquals(MediaVerifier.RESULT_OK, mVerifier.verifyNow("a.mp4"));
+        assertEquals(MediaCatalog.STATE_VERIFIED, mCatalog.get("a.mp4").getState());
+        assertNotNull(mCatalog.get("a.mp4").getHash());
+
+        // already verified
+        assertEquals(MediaVerifier.RESULT_OK, mVerifier.verifyNow("a.mp4"));
+    }
+
+    @Test
+    public void sendsIncompleteMediasBackToDownload() throws IOException {
+        List<MediaCatalog.Entry> listing = new ArrayList<>();
+        listing.add(new MediaCatalog.Entry("a.mp4", "a.mp4", 5000, "2017-04-12T101545"));
+        mCatalog.merge(listing);
+        write("a.mp4", random(3000, 1));
+        mCatalog.markDownloaded("a.mp4");
+
+        assertEquals(MediaVerifier.RESULT_CORRUPTED, mVerifier.verifyNow("a.mp4"));
+        assertEquals(MediaCatalog.STATE_REMOTE, mCatalog.get("a.mp4").getState());
+        assertFalse(new File(mDirectory, "a.mp4").exists());
+        assertEquals(3000, new File(mDirectory, "a.mp4" + MediaDownloadScheduler.PARTIAL_SUFFIX).length());
+        assertEquals(1, mCatalog.getToDownload(listing).size());
+    }
+
+    @Test
+    public void removesDuplicates() throws IOException {
+        byte[] data = random(5000, 1);
+        download("a.mp4", data);
+        assertEquals(MediaVerifier.RESULT_OK, mVerifier.verifyNow("a.mp4"));
+
+        download("b.mp4", data);
+        assertEquals(MediaVerifier.RESULT_DUPLICATE, mVerifier.verifyNow("b.mp4"));
+        MediaCatalog.Entry duplicate = mCatalog.get("b.mp4");
+        assertEquals(MediaCatalog.STATE_DUPLICATE, duplicate.getState());
+        assertEquals("a.mp4", duplicate.getDuplicateOf());
+        assertFalse(new File(mDirectory, "b.mp4").exists());
+
+        // the duplicate is not downloaded again while the original is there
+        List<MediaCatalog.Entry> medias = new ArrayList<>();
+        medias.add(duplicate);
+        assertEquals(0, mCatalog.getToDownload(medias).size());
+        assertTrue(new File(mDirectory, "a.mp4").delete());
+        assertEquals(1, mCatalog.getToDownload(medias).size());
+
+        // same size, different content
+        download("c.mp4", random(5000, 2));
+        assertEquals(MediaVerifier.RESULT_OK, mVerifier.verifyNow("c.mp4"));
+    }
+
+    private void download(String name, byte[] data) throws IOException {
+        List<MediaCatalog.Entry> listing = new ArrayList<>();
+        for (String known : new String[]{"a.mp4", "b.mp4", "c.mp4"}) {
+            if (mCatalog.get(known) != null) {
+                listing.add(mCatalog.get(known));
+            }
+        }
+        listing.add(new MediaCatalog.Entry(name, name, data.length, "2017-04-12T101545"));
+        mCatalog.merge(listing);
+        write(name, data);
+        mCatalog.markDownloaded(name);
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mDirectory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,94 @@
+package edu.stanford.aa122.bebopcontroller.drone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Eviction and persistence of the thumbnail cache.
+ */
+public class ThumbnailCacheTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("thumbnails", "");
+        assertTrue(mDirectory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = mDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void keysAreValidFileNames() {
+        String key = ThumbnailCache.key("Bebop_2_2017-04-12T101545+0000_A3C5F21B.jpg", "2017-04-12T101545+0000");
+        assertEquals("Bebop_2_2017-04-12T101545_0000_A3C5F21B.jpg_2017-04-12T101545_0000", key);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 3000);
+        cache.put("a", new byte[1000]);
+        cache.put("b", new byte[1000]);
+        cache.put("c", new byte[1000]);
+        assertEquals(3000, cache.getSize());
+
+        // using a makes b the least recently used
+        assertNotNull(cache.get("a"));
+        cache.put("d", new byte[1000]);
+
+        assertEquals(3, cache.getCount());
+        assertEquals(3000, cache.getSize());
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertNull(cache.get("b"));
+        assertFalse(new File(mDirectory, "b.jpg").exists());
+    }
+
+    @Test
+    public void replacesThumbnails() {
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 3000);
+        cache.put("a", new byte[1000]);
+        cache.put("a", new byte[500]);
+        assertEquals(1, cache.getCount());
+        assertEquals(500, cache.getSize());
+        assertEquals(500, cache.get("a").length);
+    }
+
+    @Test
+    public void persistsBetweenSessions() {
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 3000);
+        byte[] thumbnail = new byte[1000];
+        thumbnail[0] = 42;
+        cache.put("a", thumbnail);
+        cache.put("b", new byte[1000]);
+        cache.put("c", new byte[1000]);
+
+        // order of use: b, c, a
+        long now = System.currentTimeMillis();
+        assertTrue(new File(mDirectory, "b.jpg").setLastModified(now - 30000));
+        assertTrue(new File(mDirectory, "c.jpg").setLastModified(now - 20000));
+        assertTrue(new File(mDirectory, "a.jpg").setLastModified(now - 10000));
+
+        // a smaller cache keeps the most recently used
+        ThumbnailCache reloaded = new ThumbnailCache(mDirectory, 2000);
+        assertEquals(2, reloaded.getCount());
+        assertFalse(reloaded.contains("b"));
+        assertEquals(2, mDirectory.listFiles().length);
+        assertEquals(42, reloaded.get("a")[0]);
+    }
+}
@@ -0,0 +1,38 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time to plan a survey, over areas of thousands of vertices, to stay interactive while the
+ * area and the settings are edited.
+ */
+public class CoveragePlannerBenchmark {
+
+    private static final int[] VERTICES = {10, 100, 1000, 10000};
+
+    @Test
+    public void planningTime() {
+        CoveragePlanner planner = new CoveragePlanner();
+        planner.setDroneLimits(15, 1);
+        for (int vertices : VERTICES) {
+            double[][] polygon = GeofenceTest.star(vertices, 400, 500);
+
+            // warm up, then time the planning
+            CoveragePlanner.Plan plan = planner.plan(polygon[0], polygon[1], 30);
+            int runs = 20;
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                plan = planner.plan(polygon[0], polygon[1], 30);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println(String.format(Locale.US, "%6d vertices: planned in %.1f ms, %d passes, %d waypoints, %d pictures, %.0f s of flight",
+                    vertices, elapsed / 1e6 / runs, plan.passes, plan.getWaypointCount(), plan.getPictureCount(), plan.flightTime));
+            assertTrue(plan.getPictureCount() > 0);
+        }
+    }
+}
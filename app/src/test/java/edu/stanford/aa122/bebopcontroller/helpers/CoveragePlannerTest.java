@@ -0,0 +1,123 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Direction, coverage and flight time of the planned surveys.
+ */
+public class CoveragePlannerTest {
+
+    private static final double LATITUDE = 37.4;
+    private static final double LONGITUDE = -122.2;
+    private static final double METERS_PER_DEGREE = Math.toRadians(6378137.0);
+    private static final double METERS_PER_DEGREE_LONGITUDE = METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+
+    private static double[] latitudes(double[] north) {
+        double[] lats = new double[north.length];
+        for (int i = 0; i < north.length; i++) {
+            lats[i] = LATITUDE + north[i] / METERS_PER_DEGREE;
+        }
+        return lats;
+    }
+
+    private static double[] longitudes(double[] east) {
+        double[] lons = new double[east.length];
+        for (int i = 0; i < east.length; i++) {
+            lons[i] = LONGITUDE + east[i] / METERS_PER_DEGREE_LONGITUDE;
+        }
+        return lons;
+    }
+
+    @Test
+    public void passesRunAlongTheLongSide() {
+        // 200 m north by 50 m east, turned by 30 deg
+        double angle = Math.toRadians(30);
+        double[] n = {0, 200, 200, 0};
+        double[] e = {0, 0, 50, 50};
+        double[] north = new double[4];
+        double[] east = new double[4];
+        for (int i = 0; i < 4; i++) {
+            north[i] = Math.cos(angle) * n[i] - Math.sin(angle) * e[i];
+            east[i] = Math.sin(angle) * n[i] + Math.cos(angle) * e[i];
+        }
+
+        CoveragePlanner planner = new CoveragePlanner();
+        planner.setFieldOfView(90, 90);
+        planner.setOverlap(0.5, 0.5);
+        CoveragePlanner.Plan plan = planner.plan(latitudes(north), longitudes(east), 10);
+
+        // passes 10 m apart, each flown once
+        assertEquals(30, plan.bearing % 180, 1e-3);
+        assertEquals(5, plan.passes);
+        assertEquals(10, plan.getWaypointCount());
+        assertTrue(plan.length > 5 * 200 && plan.length < 5 * 200 + 4 * 10 + 1e-6 + 5 * 2 * 10);
+        for (int i = 1; i < plan.getPictureCount(); i++) {
+            assertTrue(plan.getPictureDistance(i) >= plan.getPictureDistance(i - 1));
+        }
+    }
+
+    @Test
+    public void areaIsCovered() {
+        // an L shaped field, with a slanted side
+        double[] north = {0, 120, 120, 40, 30, 0};
+        double[] east = {0, 0, 30, 50, 110, 100};
+        float altitude = 20;
+        double fieldOfView = 70;
+
+        CoveragePlanner planner = new CoveragePlanner();
+        planner.setFieldOfView(fieldOfView, fieldOfView);
+        planner.setOverlap(0.3, 0.3);
+        CoveragePlanner.Plan plan = planner.plan(latitudes(north), longitudes(east), altitude);
+
+        // each point of the field is under the footprint of a picture, along the passes
+        double half = altitude * Math.tan(Math.toRadians(fieldOfView / 2));
+        double bearing = Math.toRadians(plan.bearing);
+        Random random = new Random(5);
+        int checked = 0;
+        while (checked < 2000) {
+            double n = 120 * random.nextDouble();
+            double e = 110 * random.nextDouble();
+            if (!GeofenceTest.contains(new double[][] {north, east}, n, e)) {
+                continue;
+            }
+            checked++;
+            boolean covered = false;
+            for (int i = 0; i < plan.getPictureCount() && !covered; i++) {
+                double dn = n - (plan.getPictureLatitude(i) - LATITUDE) * METERS_PER_DEGREE;
+                double de = e - (plan.getPictureLongitude(i) - LONGITUDE) * METERS_PER_DEGREE_LONGITUDE;
+                double along = Math.cos(bearing) * dn + Math.sin(bearing) * de;
+                double across = -Math.sin(bearing) * dn + Math.cos(bearing) * de;
+                covered = Math.abs(along) <= half && Math.abs(across) <= half;
+            }
+            assertTrue("not covered " + n + " " + e, covered);
+        }
+    }
+
+    @Test
+    public void flightTimeIsCheckedAgainstTheBattery() {
+        double[] north = {0, 300, 300, 0};
+        double[] east = {0, 0, 300, 300};
+        CoveragePlanner planner = new CoveragePlanner();
+        planner.setPictureInterval(2);
+        planner.setDroneLimits(15, 1);
+        CoveragePlanner.Plan plan = planner.plan(latitudes(north), longitudes(east), 30);
+
+        // slow enough to take the pictures, and within what the drone follows
+        double spacing = 2 * 30 * Math.tan(Math.toRadians(30)) * 0.3;
+        assertEquals(Math.min(spacing / 2, 9.81 * Math.tan(Math.toRadians(15)) / (3 * StateEstimator.DRAG)), plan.speed, 1e-9);
+        assertTrue(plan.flightTime > plan.length / plan.speed);
+
+        // the transit from a far home point takes more of the battery
+        planner.setHome(LATITUDE - 500 / METERS_PER_DEGREE, LONGITUDE);
+        CoveragePlanner.Plan fromHome = planner.plan(latitudes(north), longitudes(east), 30);
+        assertTrue(fromHome.flightTime > plan.flightTime + 2 * 500 / plan.speed);
+        assertEquals(100 * fromHome.flightTime / (20 * 60), fromHome.batteryNeeded, 1e-3);
+
+        assertEquals(fromHome.batteryNeeded <= 80, fromHome.isFeasible(100));
+        assertFalse(fromHome.isFeasible((int) fromHome.batteryNeeded));
+    }
+}
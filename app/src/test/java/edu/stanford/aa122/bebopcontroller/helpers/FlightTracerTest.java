@@ -0,0 +1,76 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recording, ring buffer and export of the flight tracer.
+ */
+public class FlightTracerTest {
+
+    @Test
+    public void recordsNothingWhenDisabled() throws Exception {
+        FlightTracer tracer = new FlightTracer(16);
+        long id = tracer.beginCommand("takeOff");
+        assertEquals(0, id);
+        tracer.step(id, "sent");
+        tracer.complete("controlDrone", System.nanoTime());
+        tracer.instant("mark");
+
+        assertEquals(0, tracer.export(new StringWriter()));
+    }
+
+    @Test
+    public void exportsCommandSpans() throws Exception {
+        FlightTracer tracer = new FlightTracer(16);
+        tracer.setEnabled(true);
+
+        long first = tracer.beginCommand("relativeMove");
+        tracer.step(first, "sent");
+        tracer.step(first, "received");
+        tracer.endCommand(first, "relativeMove");
+        long second = tracer.beginCommand("takePicture");
+        tracer.complete("controlDrone", System.nanoTime());
+        assertTrue(second > first);
+
+        StringWriter out = new StringWriter();
+        assertEquals(6, tracer.export(out));
+        String json = out.toString();
+        assertTrue(json.startsWith("{\"traceEvents\":["));
+        assertTrue(json.trim().endsWith("],\"displayTimeUnit\":\"ms\"}"));
+
+        // events in the order they were recorded
+        int begin = json.indexOf("\"ph\":\"b\"");
+        int sent = json.indexOf("\"name\":\"sent\"");
+        int received = json.indexOf("\"name\":\"received\"");
+        int end = json.indexOf("\"ph\":\"e\"");
+        int complete = json.indexOf("\"ph\":\"X\"");
+        assertTrue(begin >= 0 && begin < sent && sent < received && received < end && end < complete);
+        assertTrue(json.contains("\"id\":\"0x" + Long.toHexString(first) + "\""));
+        assertTrue(json.contains("\"id\":\"0x" + Long.toHexString(second) + "\""));
+        assertTrue(json.contains("\"name\":\"thread_name\""));
+        assertFalse(json.contains("\"ts\":-"));
+    }
+
+    @Test
+    public void keepsTheLatestEvents() throws Exception {
+        FlightTracer tracer = new FlightTracer(8);
+        tracer.setEnabled(true);
+        for (int i = 0; i < 20; i++) {
+            tracer.instant("event" + i);
+        }
+
+        StringWriter out = new StringWriter();
+        assertEquals(8, tracer.export(out));
+        String json = out.toString();
+        assertFalse(json.contains("\"event11\""));
+        assertTrue(json.contains("\"event12\""));
+        assertTrue(json.contains("\"event19\""));
+
+        tracer.clear();
+        assertEquals(0, tracer.export(new StringWriter()));
+    }
+}
@@ -0,0 +1,98 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Speed of the geofence checks, against polygons of thousands of vertices.
+ *
+ * The time of a check should not grow with the number of vertices, unlike ray casting over all
+ * of the edges which is measured alongside.
+ */
+public class GeofenceBenchmark {
+
+    private static final int[] VERTICES = {100, 1000, 5000, 20000};
+
+    private static final double LATITUDE = 37.4275;
+    private static final double LONGITUDE = -122.1697;
+    private static final double METERS_PER_DEGREE = Math.toRadians(6378137.0);
+
+    @Test
+    public void pointThroughput() {
+        Random random = new Random(42);
+        int queries = 1000000;
+        double[] lats = new double[queries];
+        double[] lons = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            lats[i] = LATITUDE + (random.nextDouble() * 240 - 120) / METERS_PER_DEGREE;
+            lons[i] = LONGITUDE + (random.nextDouble() * 240 - 120) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        }
+
+        for (int vertices : VERTICES) {
+            double[][] polygon = GeofenceTest.star(vertices, 60, 100);
+            Geofence geofence = new Geofence();
+            geofence.addKeepInZone(polygon[0], polygon[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+            long start = System.nanoTime();
+            geofence.build();
+            long build = System.nanoTime() - start;
+
+            int allowed = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                allowed += geofence.isAllowed(lats[i], lons[i], 0) ? 1 : 0;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // the brute force reference, on fewer points
+            int references = Math.max(1000, 20000000 / vertices);
+            int agreed = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < references; i++) {
+                agreed += (GeofenceTest.contains(polygon, lats[i], lons[i]) == geofence.isAllowed(lats[i], lons[i], 0)) ? 1 : 0;
+            }
+            long reference = System.nanoTime() - start;
+
+            System.out.println(String.format(Locale.US, "%6d vertices: built in %.1f ms, %.0f ns per check (ray casting %.0f ns), %.1f%% allowed",
+                    vertices, build / 1e6, (double) elapsed / queries, (double) reference / references, allowed * 100.0 / queries));
+            assertEquals(references, agreed);
+        }
+    }
+
+    @Test
+    public void pcmdThroughput() {
+        double[][] polygon = GeofenceTest.star(5000, 60, 100);
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(polygon[0], polygon[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        geofence.setAltitudeEnvelope(0, 30);
+
+        // flying toward the boundary, where the commands need to be limited
+        StateEstimator estimator = new StateEstimator();
+        estimator.onPosition(LATITUDE + 95 / METERS_PER_DEGREE, LONGITUDE);
+        for (int i = 0; i < 20; i++) {
+            estimator.onVelocity(3, 0, 0);
+        }
+        estimator.onRelativeAltitude(10);
+
+        int steps = 200000;
+        int limited = 0;
+        byte[] pcmd = new byte[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            pcmd[0] = 0;
+            pcmd[1] = 80;
+            pcmd[2] = 0;
+            pcmd[3] = 20;
+            limited += geofence.limitPcmd(estimator, 0, pcmd, 15, 1) ? 1 : 0;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "pcmd: %.0f ns per limited command (%d of %d limited)",
+                (double) elapsed / steps, limited, steps));
+        assertEquals(steps, limited);
+    }
+}
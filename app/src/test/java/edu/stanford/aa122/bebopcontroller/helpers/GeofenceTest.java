@@ -0,0 +1,223 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Zones, moves and piloting limits of the geofence.
+ */
+public class GeofenceTest {
+
+    private static final double LATITUDE = 37.4275;
+    private static final double LONGITUDE = -122.1697;
+    private static final double METERS_PER_DEGREE = Math.toRadians(6378137.0);
+
+    private static double lat(double north) {
+        return LATITUDE + north / METERS_PER_DEGREE;
+    }
+
+    private static double lon(double east) {
+        return LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+    }
+
+    /**
+     * a square centered on the reference
+     * @param half half of the side [m]
+     * @return latitudes then longitudes of the vertices
+     */
+    private static double[][] square(double half) {
+        return new double[][] {
+                {lat(-half), lat(-half), lat(half), lat(half)},
+                {lon(-half), lon(half), lon(half), lon(-half)}};
+    }
+
+    /**
+     * a star with many vertices, its radius alternating between two values
+     */
+    static double[][] star(int vertices, double inner, double outer) {
+        double[][] polygon = new double[2][vertices];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            double radius = (i % 2 == 0) ? outer : inner;
+            polygon[0][i] = lat(radius * Math.cos(angle));
+            polygon[1][i] = lon(radius * Math.sin(angle));
+        }
+        return polygon;
+    }
+
+    /**
+     * ray casting over all of the edges, the reference to check the grid against
+     */
+    static boolean contains(double[][] polygon, double lat, double lon) {
+        boolean inside = false;
+        double[] lats = polygon[0];
+        double[] lons = polygon[1];
+        for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+            if ((lats[i] > lat) != (lats[j] > lat)
+                    && lon < (lons[j] - lons[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lons[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private static StateEstimator at(double north, double east, double altitude) {
+        StateEstimator estimator = new StateEstimator();
+        estimator.onPosition(lat(north), lon(east));
+        estimator.onRelativeAltitude(altitude);
+        return estimator;
+    }
+
+    private static StateEstimator moving(double north, double east, double altitude, float vn, float ve) {
+        StateEstimator estimator = at(north, east, altitude);
+        // the measurements converge to the velocity
+        for (int i = 0; i < 100; i++) {
+            estimator.onVelocity(vn, ve, 0);
+        }
+        return estimator;
+    }
+
+    @Test
+    public void zonesAndAltitudes() {
+        Geofence geofence = new Geofence();
+        double[][] field = square(100);
+        double[][] tower = square(10);
+        geofence.addKeepInZone(field[0], field[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        geofence.addKeepOutZone(tower[0], tower[1], Float.NEGATIVE_INFINITY, 30);
+        geofence.setAltitudeEnvelope(0, 50);
+
+        assertTrue(geofence.isAllowed(lat(50), lon(50), 10));
+        assertFalse(geofence.isAllowed(lat(150), lon(0), 10));
+        assertFalse(geofence.isAllowed(lat(50), lon(50), 60));
+
+        // the keep out zone can be flown over
+        assertFalse(geofence.isAllowed(lat(0), lon(5), 10));
+        assertTrue(geofence.isAllowed(lat(0), lon(5), 40));
+    }
+
+    @Test
+    public void gridMatchesRayCasting() {
+        double[][] polygon = star(5000, 60, 100);
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(polygon[0], polygon[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+        Random random = new Random(7);
+        int inside = 0;
+        for (int i = 0; i < 100000; i++) {
+            double lat = lat(random.nextDouble() * 240 - 120);
+            double lon = lon(random.nextDouble() * 240 - 120);
+            boolean expected = contains(polygon, lat, lon);
+            assertEquals(expected, geofence.isAllowed(lat, lon, 0));
+            inside += expected ? 1 : 0;
+        }
+        assertTrue(inside > 0);
+    }
+
+    @Test
+    public void movesAreShortened() {
+        double[][] field = square(100);
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(field[0], field[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        geofence.setAltitudeEnvelope(0, 20);
+
+        StateEstimator estimator = at(0, 0, 10);
+        assertEquals(1, geofence.getAllowedFraction(estimator, 0, 50, 0, 0), 0);
+
+        // 100 m to the boundary, heading north then east
+        assertEquals(0.5, geofence.getAllowedFraction(estimator, 0, 200, 0, 0), 0.01);
+        assertEquals(0.5, geofence.getAllowedFraction(estimator, 90, 200, 0, 0), 0.01);
+        assertEquals(0.5, geofence.getAllowedFraction(estimator, 0, 0, 200, 0), 0.01);
+
+        // 10 m up to the ceiling
+        assertEquals(0.5, geofence.getAllowedFraction(estimator, 0, 0, 0, -20), 0.01);
+
+        // without a heading, no horizontal move
+        assertEquals(0, geofence.getAllowedFraction(estimator, Float.NaN, 10, 0, 0), 0);
+
+        // out of the area, only the moves back in
+        estimator = at(150, 0, 10);
+        assertEquals(1, geofence.getAllowedFraction(estimator, 0, -100, 0, 0), 0);
+        assertEquals(0, geofence.getAllowedFraction(estimator, 0, 10, 0, 0), 0);
+    }
+
+    @Test
+    public void pcmdIsLimitedNearTheBoundary() {
+        double[][] field = square(100);
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(field[0], field[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        geofence.setAltitudeEnvelope(0, 20);
+
+        // far from the boundary
+        byte[] pcmd = {20, 50, 10, 30};
+        assertFalse(geofence.limitPcmd(at(0, 0, 10), 0, pcmd, 15, 1));
+        assertArrayEquals(new byte[] {20, 50, 10, 30}, pcmd);
+
+        // close to the north boundary, heading north: the pitch is reduced, the roll too
+        pcmd = new byte[] {20, 100, 10, 0};
+        assertTrue(geofence.limitPcmd(at(95, 0, 10), 0, pcmd, 15, 1));
+        assertTrue(pcmd[1] < 100);
+        assertEquals(10, pcmd[2]);
+
+        // heading south, the same command moves away from the boundary
+        pcmd = new byte[] {0, 100, 0, 0};
+        assertFalse(geofence.limitPcmd(at(95, 0, 10), 180, pcmd, 15, 1));
+
+        // climbing to the ceiling
+        pcmd = new byte[] {0, 0, 0, 100};
+        assertTrue(geofence.limitPcmd(at(0, 0, 19), 0, pcmd, 15, 1));
+        assertEquals(0, pcmd[3]);
+    }
+
+    @Test
+    public void pilotBrakingHarderIsKept() {
+        double[][] field = square(100);
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(field[0], field[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+        // 10 m from the boundary at 10 m/s, out of the area even without tilt
+        StateEstimator estimator = moving(90, 0, 10, 10, 0);
+
+        // no command, or a light one, brakes with the brake command
+        byte[] pcmd = {0, 0, 0, 0};
+        assertTrue(geofence.limitPcmd(estimator, 0, pcmd, 15, 1));
+        assertEquals(-50, pcmd[1]);
+        pcmd = new byte[] {0, -20, 0, 0};
+        assertTrue(geofence.limitPcmd(estimator, 0, pcmd, 15, 1));
+        assertEquals(-50, pcmd[1]);
+
+        // a full pitch back toward safety is not reduced
+        pcmd = new byte[] {0, -100, 0, 0};
+        assertFalse(geofence.limitPcmd(estimator, 0, pcmd, 15, 1));
+        assertArrayEquals(new byte[] {0, -100, 0, 0}, pcmd);
+
+        // nor a full roll to the right facing east, the velocity on the left
+        pcmd = new byte[] {100, 0, 0, 0};
+        assertFalse(geofence.limitPcmd(estimator, 90, pcmd, 15, 1));
+        assertEquals(100, pcmd[0]);
+    }
+
+    @Test
+    public void thinZonesAreNotFlownThrough() {
+        double[][] field = square(100);
+        Geofence geofence = new Geofence();
+        geofence.addKeepInZone(field[0], field[1], Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+        // a wall 0.5 m thick, between the positions projected at 1 s and 2 s
+        geofence.addKeepOutZone(new double[] {lat(10), lat(10), lat(10.5), lat(10.5)},
+                new double[] {lon(-50), lon(50), lon(50), lon(-50)}, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        assertFalse(geofence.isAllowed(lat(10.25), lon(0), 10));
+
+        StateEstimator estimator = moving(0, 0, 10, 8, 0);
+        byte[] pcmd = {0, 0, 0, 0};
+        assertTrue(geofence.limitPcmd(estimator, 0, pcmd, 15, 1));
+        assertTrue(pcmd[1] < 0);
+
+        // flying along the wall is not limited
+        estimator = moving(0, 0, 10, 0, 8);
+        pcmd = new byte[] {0, 0, 0, 0};
+        assertFalse(geofence.limitPcmd(estimator, 0, pcmd, 15, 1));
+    }
+}
@@ -0,0 +1,258 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of sequence parameter sets, written field by field or taken from a Bebop like stream.
+ */
+public class H264SpsParserTest {
+
+    /** SPS of a 1280x720 high profile stream, with two emulation prevention bytes */
+    private static final String SPS_720P = "000000016764001FACD9405005BB0110000003001000000303C0F1831960";
+
+    @Test
+    public void baselineWithoutCropping() {
+        // 640x480: 40x30 macroblocks
+        SpsWriter sps = new SpsWriter(66, 30);
+        sps.ue(0);          // seq_parameter_set_id
+        sps.ue(0);          // log2_max_frame_num_minus4
+        sps.ue(2);          // pic_order_cnt_type
+        sps.ue(1);          // max_num_ref_frames
+        sps.bits(0, 1);     // gaps_in_frame_num_value_allowed_flag
+        sps.ue(39);         // pic_width_in_mbs_minus1
+        sps.ue(29);         // pic_height_in_map_units_minus1
+        sps.bits(1, 1);     // frame_mbs_only_flag
+        sps.bits(1, 1);     // direct_8x8_inference_flag
+        sps.bits(0, 1);     // frame_cropping_flag
+        sps.bits(0, 1);     // vui_parameters_present_flag
+
+        H264SpsParser.Sps info = H264SpsParser.parse(sps.toNalUnit(true));
+        assertNotNull(info);
+        assertEquals(66, info.profileIdc);
+        assertEquals(30, info.levelIdc);
+        assertEquals(640, info.width);
+        assertEquals(480, info.height);
+
+        // without the start code too
+        info = H264SpsParser.parse(sps.toNalUnit(false));
+        assertNotNull(info);
+        assertEquals(640, info.width);
+    }
+
+    @Test
+    public void highProfileWithScalingListsAndCropping() {
+        // 1920x1080 interlaced: 120x34 macroblock pairs, 8 lines cropped at the bottom
+        SpsWriter sps = new SpsWriter(100, 40);
+        sps.ue(0);          // seq_parameter_set_id
+        sps.ue(1);          // chroma_format_idc 4:2:0
+        sps.ue(0);          // bit_depth_luma_minus8
+        sps.ue(0);          // bit_depth_chroma_minus8
+        sps.bits(0, 1);     // qpprime_y_zero_transform_bypass_flag
+        sps.bits(1, 1);     // seq_scaling_matrix_present_flag
+        for (int i = 0; i < 8; i++) {
+            boolean present = (i == 0 || i == 6);
+            sps.bits(present ? 1 : 0, 1);
+            if (present) {
+                // a ramp of the scale, then a next scale of 0 repeating the last one to the end
+                int size = (i < 6) ? 16 : 64;
+                for (int j = 0; j < size / 2; j++) {
+                    sps.se(j % 2 == 0 ? 3 : -1);
+                }
+                sps.se(-(8 + size / 2));
+            }
+        }
+        sps.ue(4);          // log2_max_frame_num_minus4
+        sps.ue(1);          // pic_order_cnt_type
+        sps.bits(0, 1);     // delta_pic_order_always_zero_flag
+        sps.se(-2);         // offset_for_non_ref_pic
+        sps.se(1);          // offset_for_top_to_bottom_field
+        sps.ue(2);          // num_ref_frames_in_pic_order_cnt_cycle
+        sps.se(2);
+        sps.se(-3);
+        sps.ue(4);          // max_num_ref_frames
+        sps.bits(0, 1);     // gaps_in_frame_num_value_allowed_flag
+        sps.ue(119);        // pic_width_in_mbs_minus1
+        sps.ue(33);         // pic_height_in_map_units_minus1
+        sps.bits(0, 1);     // frame_mbs_only_flag
+        sps.bits(1, 1);     // mb_adaptive_frame_field_flag
+        sps.bits(1, 1);     // direct_8x8_inference_flag
+        sps.bits(1, 1);     // frame_cropping_flag
+        sps.ue(0);
+        sps.ue(0);
+        sps.ue(0);
+        sps.ue(2);          // bottom, in units of 4 lines for interlaced 4:2:0
+        sps.bits(0, 1);     // vui_parameters_present_flag
+
+        H264SpsParser.Sps info = H264SpsParser.parse(sps.toNalUnit(true));
+        assertNotNull(info);
+        assertEquals(100, info.profileIdc);
+        assertEquals(40, info.levelIdc);
+        assertEquals(1920, info.width);
+        assertEquals(1080, info.height);
+    }
+
+    @Test
+    public void emulationPreventionBytesAreRemoved() {
+        byte[] sps = hex(SPS_720P);
+        assertTrue(indexOf(sps, new byte[] {0, 0, 3}) > 0);
+
+        H264SpsParser.Sps info = H264SpsParser.parse(sps);
+        assertNotNull(info);
+        assertEquals(100, info.profileIdc);
+        assertEquals(31, info.levelIdc);
+        assertEquals(1280, info.width);
+        assertEquals(720, info.height);
+
+        // a large offset gives runs of zero bytes in the payload, escaped when written
+        SpsWriter writer = new SpsWriter(77, 31);
+        writer.ue(0);
+        writer.ue(0);
+        writer.ue(1);                  // pic_order_cnt_type
+        writer.bits(0, 1);
+        writer.se(1 << 24);            // offset_for_non_ref_pic, 25 leading zero bits
+        writer.se(0);
+        writer.ue(0);
+        writer.ue(1);
+        writer.bits(0, 1);
+        writer.ue(79);                 // 1280
+        writer.ue(44);                 // 720
+        writer.bits(1, 1);
+        writer.bits(1, 1);
+        writer.bits(0, 1);
+        writer.bits(0, 1);
+        byte[] escaped = writer.toNalUnit(true);
+        assertTrue(indexOf(escaped, new byte[] {0, 0, 3}) > 0);
+
+        info = H264SpsParser.parse(escaped);
+        assertNotNull(info);
+        assertEquals(1280, info.width);
+        assertEquals(720, info.height);
+    }
+
+    @Test
+    public void invalidDataIsRejected() {
+        assertNull(H264SpsParser.parse(null));
+        assertNull(H264SpsParser.parse(new byte[0]));
+        assertNull(H264SpsParser.parse(new byte[] {0, 0, 0, 1}));
+        assertNull(H264SpsParser.parse(new byte[16]));
+
+        // a PPS is not an SPS
+        assertNull(H264SpsParser.parse(hex("0000000168EBECB22C")));
+
+        // truncated before the size, at any point
+        byte[] sps = hex(SPS_720P);
+        int sizeEnd = 12;
+        for (int length = 0; length < sizeEnd; length++) {
+            assertNull("truncated to " + length, H264SpsParser.parse(Arrays.copyOf(sps, length)));
+        }
+
+        // an exp-golomb code running past 32 bits
+        byte[] zeros = new byte[12];
+        zeros[0] = 0x67;
+        zeros[1] = 66;
+        zeros[3] = 30;
+        zeros[4] = (byte) 0x80;
+        zeros[11] = 0x01;
+        assertNull(H264SpsParser.parse(zeros));
+
+        // garbage after the header never throws
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            byte[] garbage = new byte[1 + random.nextInt(40)];
+            random.nextBytes(garbage);
+            garbage[0] = 0x67;
+            H264SpsParser.Sps info = H264SpsParser.parse(garbage);
+            if (info != null) {
+                assertTrue(info.width > 0 && info.height > 0);
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+    /**
+     * Writes the fields of an SPS, then the NAL unit with its emulation prevention bytes.
+     */
+    private static class SpsWriter {
+
+        private final ByteArrayOutputStream mRbsp = new ByteArrayOutputStream();
+        private int mCurrent = 0;
+        private int mBits = 0;
+
+        SpsWriter(int profileIdc, int levelIdc) {
+            bits(profileIdc, 8);
+            bits(0, 8);
+            bits(levelIdc, 8);
+        }
+
+        void bits(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                mCurrent = (mCurrent << 1) | (int) ((value >> i) & 1);
+                if (++mBits == 8) {
+                    mRbsp.write(mCurrent);
+                    mCurrent = 0;
+                    mBits = 0;
+                }
+            }
+        }
+
+        void ue(long value) {
+            long code = value + 1;
+            int length = 64 - Long.numberOfLeadingZeros(code);
+            bits(0, length - 1);
+            bits(code, length);
+        }
+
+        void se(long value) {
+            ue(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        byte[] toNalUnit(boolean startCode) {
+            // rbsp_trailing_bits
+            bits(1, 1);
+            while (mBits != 0) {
+                bits(0, 1);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (startCode) {
+                out.write(0);
+                out.write(0);
+                out.write(0);
+                out.write(1);
+            }
+            out.write(0x67);
+            int zeros = 0;
+            for (byte b : mRbsp.toByteArray()) {
+                if (zeros >= 2 && (b & 0xFF) <= 3) {
+                    out.write(3);
+                    zeros = 0;
+                }
+                out.write(b);
+                zeros = (b == 0) ? zeros + 1 : 0;
+            }
+            return out.toByteArray();
+        }
+    }
+}
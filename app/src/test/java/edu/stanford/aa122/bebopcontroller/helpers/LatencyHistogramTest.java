@@ -0,0 +1,89 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Buckets, percentiles and concurrent recording of the latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    private static final long HIGHEST = 60L * 1000000000L;
+
+    @Test
+    public void bucketsAreContiguousAndPrecise() {
+        int previous = -1;
+        for (long value = 0; value < 1000000; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(index == previous || index == previous + 1);
+            previous = index;
+
+            long lowest = LatencyHistogram.lowestValueOf(index);
+            assertTrue(lowest <= value);
+            assertTrue(value - lowest <= value / 64);
+        }
+
+        // the same relative error for large values
+        long value = 12345678901L;
+        long lowest = LatencyHistogram.lowestValueOf(LatencyHistogram.indexOf(value));
+        assertTrue(value - lowest <= value / 64);
+    }
+
+    @Test
+    public void computesPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram(HIGHEST);
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(false);
+        assertEquals(100, snapshot.count);
+        assertEquals(100000000L, snapshot.max);
+        assertEquals(50.5e6, snapshot.getMean(), 1);
+        assertEquals(50e6, snapshot.getPercentile(50), 50e6 / 64);
+        assertEquals(99e6, snapshot.getPercentile(99), 99e6 / 64);
+        assertEquals(100e6, snapshot.getPercentile(100), 0);
+
+        // values out of range are clamped
+        histogram.record(-5);
+        histogram.record(HIGHEST * 2);
+        snapshot = histogram.snapshot(true);
+        assertEquals(102, snapshot.count);
+        assertEquals(0, snapshot.getPercentile(0));
+        assertEquals(HIGHEST, snapshot.max);
+
+        // reset by the snapshot
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.snapshot(false).getPercentile(50));
+    }
+
+    @Test
+    public void recordsFromSeveralThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram(HIGHEST);
+        final int threads = 4;
+        final int values = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long value = (t + 1) * 1000L;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < values; i++) {
+                        histogram.record(value);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(false);
+        assertEquals(threads * values, snapshot.count);
+        assertEquals(threads * 1000L, snapshot.max);
+        assertEquals((1000L + 2000L + 3000L + 4000L) * values, snapshot.sum);
+    }
+}
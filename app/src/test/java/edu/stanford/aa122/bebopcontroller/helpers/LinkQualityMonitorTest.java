@@ -0,0 +1,110 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rates, gaps and scoring of the link quality monitor.
+ */
+public class LinkQualityMonitorTest {
+
+    private static final long MS = 1000000L;
+
+    /**
+     * feed the piloting telemetry at a given rate
+     * @param monitor the monitor
+     * @param start time of the first message [ns]
+     * @param duration duration of the telemetry [ms]
+     * @param slowdown factor applied to the nominal intervals
+     * @return time of the end of the telemetry [ns]
+     */
+    private static long feed(LinkQualityMonitor monitor, long start, long duration, int slowdown) {
+        for (long t = 0; t <= duration; t += 200 * slowdown) {
+            monitor.onMessage(LinkQualityMonitor.CHANNEL_ATTITUDE, start + t * MS);
+            monitor.onMessage(LinkQualityMonitor.CHANNEL_SPEED, start + t * MS);
+            monitor.onMessage(LinkQualityMonitor.CHANNEL_ALTITUDE, start + t * MS);
+            if (t % 1000 == 0) {
+                monitor.onMessage(LinkQualityMonitor.CHANNEL_POSITION, start + t * MS);
+            }
+        }
+        return start + duration * MS;
+    }
+
+    @Test
+    public void nominalTelemetryIsGood() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        long end = feed(monitor, 0, 10000, 1);
+
+        LinkQualityMonitor.Quality quality = monitor.evaluate(end);
+        assertEquals(1, quality.score, 0.01);
+        assertEquals(LinkQualityMonitor.LEVEL_GOOD, quality.level);
+        assertEquals(0, quality.gaps);
+        assertEquals(5, quality.getChannelRate(LinkQualityMonitor.CHANNEL_ATTITUDE), 0.01);
+        assertEquals(1, quality.getChannelRate(LinkQualityMonitor.CHANNEL_POSITION), 0.01);
+        assertEquals(-1, quality.videoScore, 0);
+        assertEquals(0, monitor.getIntervalDeviation(LinkQualityMonitor.CHANNEL_ATTITUDE), 0.01);
+
+        // nothing received, no link
+        assertEquals(LinkQualityMonitor.LEVEL_POOR, new LinkQualityMonitor().evaluate(end).level);
+    }
+
+    @Test
+    public void slowTelemetryIsDegraded() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        long end = feed(monitor, 0, 10000, 1);
+        end = feed(monitor, end, 10000, 2);
+
+        LinkQualityMonitor.Quality quality = monitor.evaluate(end);
+        assertEquals(2.5, quality.getChannelRate(LinkQualityMonitor.CHANNEL_ATTITUDE), 0.1);
+        assertTrue(quality.score < LinkQualityMonitor.GOOD_SCORE);
+        assertEquals(LinkQualityMonitor.LEVEL_DEGRADED, quality.level);
+    }
+
+    @Test
+    public void silenceIsPoorUntilRecovered() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        long end = feed(monitor, 0, 10000, 1);
+
+        // still within the gap threshold
+        assertEquals(LinkQualityMonitor.LEVEL_GOOD, monitor.evaluate(end + 500 * MS).level);
+
+        LinkQualityMonitor.Quality quality = monitor.evaluate(end + 2000 * MS);
+        assertEquals(LinkQualityMonitor.LEVEL_POOR, quality.level);
+        assertEquals(0, quality.getChannelScore(LinkQualityMonitor.CHANNEL_ATTITUDE), 0);
+
+        // the gap is counted once the telemetry comes back, and the rates recover gradually
+        end = feed(monitor, end + 2000 * MS, 1000, 1);
+        quality = monitor.evaluate(end);
+        assertTrue(quality.gaps > 0);
+        assertEquals(2000, quality.maxGap);
+        assertEquals(LinkQualityMonitor.LEVEL_DEGRADED, quality.level);
+
+        end = feed(monitor, end, 20000, 1);
+        assertEquals(LinkQualityMonitor.LEVEL_GOOD, monitor.evaluate(end).level);
+    }
+
+    @Test
+    public void videoLossLowersTheScore() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        long end = feed(monitor, 0, 10000, 1);
+
+        // half of the frames missed
+        monitor.onVideoHealth(new StreamHealthMonitor.Summary(0, 1000, 15, 1, 0, 15, 0, 0, 0, 0, 100000, 30), end);
+        LinkQualityMonitor.Quality quality = monitor.evaluate(end);
+        assertEquals(0.25, quality.videoScore, 0.01);
+        assertTrue(quality.score < 0.9);
+
+        // frozen video
+        assertEquals(0, monitor.evaluate(end + 5000 * MS).videoScore, 0);
+    }
+
+    @Test
+    public void levelsHaveHysteresis() {
+        assertEquals(LinkQualityMonitor.LEVEL_POOR, LinkQualityMonitor.nextLevel(LinkQualityMonitor.LEVEL_GOOD, 0.4f));
+        assertEquals(LinkQualityMonitor.LEVEL_POOR, LinkQualityMonitor.nextLevel(LinkQualityMonitor.LEVEL_POOR, 0.55f));
+        assertEquals(LinkQualityMonitor.LEVEL_DEGRADED, LinkQualityMonitor.nextLevel(LinkQualityMonitor.LEVEL_GOOD, 0.55f));
+        assertEquals(LinkQualityMonitor.LEVEL_DEGRADED, LinkQualityMonitor.nextLevel(LinkQualityMonitor.LEVEL_POOR, 0.7f));
+        assertEquals(LinkQualityMonitor.LEVEL_GOOD, LinkQualityMonitor.nextLevel(LinkQualityMonitor.LEVEL_POOR, 0.9f));
+    }
+}
@@ -0,0 +1,119 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Notifications of the updates of a list, replayed on a copy of it as an adapter does.
+ */
+public class ListDiffTest {
+
+    /** items written "name@address:port", identified by their name and address */
+    private static final ListDiff.Identity<String> IDENTITY = new ListDiff.Identity<String>() {
+        @Override
+        public String key(String item) {
+            return item.substring(0, item.indexOf(':'));
+        }
+
+        @Override
+        public String signature(String item) {
+            return item.substring(item.indexOf(':') + 1);
+        }
+    };
+
+    private final List<String> mItems = new ArrayList<>();
+    private final Map<String, String> mSignatures = new HashMap<>();
+
+    /** copy of the list kept up to date from the notifications only */
+    private final List<String> mAdapter = new ArrayList<>();
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final ListDiff.Callback<String> mCallback = new ListDiff.Callback<String>() {
+        @Override
+        public void onRemoved(String item, int position) {
+            assertEquals(IDENTITY.key(item), IDENTITY.key(mAdapter.get(position)));
+            mAdapter.remove(position);
+            mEvents.add("-" + position);
+        }
+
+        @Override
+        public void onChanged(String item, int position) {
+            assertEquals(IDENTITY.key(item), IDENTITY.key(mAdapter.get(position)));
+            mAdapter.set(position, item);
+            mEvents.add("~" + position);
+        }
+
+        @Override
+        public void onAdded(String item, int position) {
+            mAdapter.add(position, item);
+            mEvents.add("+" + position);
+        }
+    };
+
+    private List<String> update(String... items) {
+        mEvents.clear();
+        ListDiff.apply(mItems, mSignatures, Arrays.asList(items), IDENTITY, mCallback);
+        assertEquals(mItems, mAdapter);
+        return new ArrayList<>(mEvents);
+    }
+
+    @Test
+    public void itemsAreAdded() {
+        assertEquals(Arrays.asList("+0", "+1"), update("a@1:10", "b@2:10"));
+        assertEquals(Arrays.asList("+2"), update("a@1:10", "c@3:10", "b@2:10"));
+        assertEquals(Arrays.asList("a@1:10", "b@2:10", "c@3:10"), mItems);
+
+        // the same list again changes nothing
+        assertTrue(update("a@1:10", "c@3:10", "b@2:10").isEmpty());
+    }
+
+    @Test
+    public void itemsAreRemoved() {
+        update("a@1:10", "b@2:10", "c@3:10", "d@4:10", "e@5:10");
+
+        // from the end, each position valid when notified
+        assertEquals(Arrays.asList("-3", "-1"), update("a@1:10", "c@3:10", "e@5:10"));
+        assertEquals(Arrays.asList("-2", "-1", "-0"), update());
+        assertTrue(mItems.isEmpty());
+        assertTrue(mSignatures.isEmpty());
+
+        // with null for an empty list
+        update("a@1:10");
+        mEvents.clear();
+        ListDiff.apply(mItems, mSignatures, null, IDENTITY, mCallback);
+        assertEquals(Arrays.asList("-0"), mEvents);
+        assertTrue(mAdapter.isEmpty());
+    }
+
+    @Test
+    public void reorderKeepsThePositions() {
+        update("a@1:10", "b@2:10", "c@3:10");
+        assertTrue(update("c@3:10", "a@1:10", "b@2:10").isEmpty());
+        assertEquals(Arrays.asList("a@1:10", "b@2:10", "c@3:10"), mItems);
+
+        // reordered with a removal, a change and an addition
+        assertEquals(Arrays.asList("~2", "-0", "+2"), update("d@4:10", "c@3:11", "b@2:10"));
+        assertEquals(Arrays.asList("b@2:10", "c@3:11", "d@4:10"), mItems);
+    }
+
+    @Test
+    public void renameIsRemovalAndAddition() {
+        update("a@1:10", "b@2:10", "c@3:10");
+
+        // a new name, or a new address, is another item
+        assertEquals(Arrays.asList("-1", "+2"), update("a@1:10", "bb@2:10", "c@3:10"));
+        assertEquals(Arrays.asList("a@1:10", "c@3:10", "bb@2:10"), mItems);
+        assertEquals(Arrays.asList("-0", "+2"), update("a@9:10", "bb@2:10", "c@3:10"));
+
+        // a new port is the same item, changed
+        assertEquals(Arrays.asList("~1"), update("a@9:10", "bb@2:12", "c@3:10"));
+        assertEquals("12", mSignatures.get("bb@2"));
+    }
+}
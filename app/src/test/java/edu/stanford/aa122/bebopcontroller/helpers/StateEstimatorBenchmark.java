@@ -0,0 +1,253 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Speed and accuracy benchmarks of the state estimator, replaying flight logs.
+ *
+ * Replays a synthetic flight (with its true trajectory) by default, a flight log recorded by the
+ * app can be replayed instead with -Dbebop.flight.log=path/to/bebop_log.txt, in which case the
+ * accuracy is measured by the distance between the dead-reckoned position and each GPS fix.
+ */
+public class StateEstimatorBenchmark {
+
+    /** rate the estimator is stepped at [Hz] */
+    private static final int STEP_RATE = 50;
+
+    private static final double LATITUDE = 37.4275;
+    private static final double LONGITUDE = -122.1697;
+    private static final double METERS_PER_DEGREE = Math.toRadians(6378137.0);
+
+    /**
+     * a flight log, in the format of the data logger, and the true trajectory if known
+     */
+    private static class Flight {
+        final List<String> lines = new ArrayList<>();
+
+        /** true north and east positions from LATITUDE, LONGITUDE, at each step of the estimator (synthetic flights only) */
+        double[] trueNorth;
+        double[] trueEast;
+    }
+
+    @Test
+    public void stepThroughput() {
+        StateEstimator estimator = new StateEstimator();
+        estimator.onPosition(LATITUDE, LONGITUDE);
+        estimator.onAttitude(2, -5, 30);
+
+        int steps = 5000000;
+        double dt = 1.0 / STEP_RATE;
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            estimator.predict(dt);
+            if (i % 10 == 0) {
+                estimator.onVelocity(1, 0.5f, 0);
+                estimator.onAttitude(2, -5, 30);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "throughput: %d steps in %.1f ms, %.2f M steps/s (%.0f ns per step)",
+                steps, elapsed / 1e6, steps * 1e3 / elapsed, (double) elapsed / steps));
+        assertTrue(estimator.getVelocity(StateEstimator.NORTH) > 0);
+    }
+
+    @Test
+    public void replayAccuracy() throws IOException {
+        String path = System.getProperty("bebop.flight.log");
+        Flight flight = (path != null) ? loadFlight(path) : syntheticFlight(new Random(42), 180);
+
+        StateEstimator estimator = new StateEstimator();
+        Result result = replay(estimator, flight);
+
+        System.out.println(String.format(Locale.US, "replay: %d steps, %d fixes (%d rejected), error at fix mean %.2f m max %.2f m",
+                result.steps, result.fixes, estimator.getRejectedFixes(), result.fixError / Math.max(1, result.fixes), result.maxFixError));
+        if (flight.trueNorth != null) {
+            System.out.println(String.format(Locale.US, "replay: error to the true position rms %.2f m, max %.2f m, rms during the outage %.2f m",
+                    result.getTruthRms(), result.maxTruthError, result.getOutageRms()));
+
+            // a GPS with a 2 m deviation, and a 20 s outage bridged by dead reckoning
+            assertTrue(result.getTruthRms() < 2.0);
+            assertTrue(result.getOutageRms() < 5.0);
+        }
+        assertTrue(result.fixes > 0);
+    }
+
+    /**
+     * errors of the estimate over a replay
+     */
+    private static class Result {
+        int steps;
+        int fixes;
+        double fixError;
+        double maxFixError;
+
+        int truthSamples;
+        double truthSquares;
+        double maxTruthError;
+        int outageSamples;
+        double outageSquares;
+
+        double getTruthRms() {
+            return Math.sqrt(truthSquares / Math.max(1, truthSamples));
+        }
+
+        double getOutageRms() {
+            return Math.sqrt(outageSquares / Math.max(1, outageSamples));
+        }
+    }
+
+    /**
+     * replay a flight log through the estimator, stepped at a fixed rate in the time of the log
+     */
+    private static Result replay(StateEstimator estimator, Flight flight) {
+        Result result = new Result();
+        double dt = 1.0 / STEP_RATE;
+        long stepMs = 1000 / STEP_RATE;
+        long start = -1;
+        long nextStep = 0;
+
+        for (String line : flight.lines) {
+            int colon = line.indexOf(':');
+            if (colon != 3) {
+                continue;
+            }
+            String type = line.substring(0, 3);
+            String[] values = line.substring(4).split(",");
+            long time = Long.parseLong(values[0]);
+            if (start < 0) {
+                start = time;
+                nextStep = time;
+            }
+
+            // step up to the measurement
+            while (nextStep <= time) {
+                estimator.predict(dt);
+                if (flight.trueNorth != null && estimator.hasOrigin()) {
+                    int index = (int) ((nextStep - start) / stepMs);
+                    if (index < flight.trueNorth.length) {
+                        // the origin of the estimator is the first fix, compare the coordinates
+                        double error = Math.hypot((estimator.getLatitude() - LATITUDE) * METERS_PER_DEGREE - flight.trueNorth[index],
+                                (estimator.getLongitude() - LONGITUDE) * METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)) - flight.trueEast[index]);
+                        result.truthSamples++;
+                        result.truthSquares += error * error;
+                        result.maxTruthError = Math.max(result.maxTruthError, error);
+                        if (estimator.getTimeSinceFix() > 1.5) {
+                            result.outageSamples++;
+                            result.outageSquares += error * error;
+                        }
+                    }
+                }
+                nextStep += stepMs;
+                result.steps++;
+            }
+
+            switch (type) {
+                case "POS":
+                    double lat = Double.parseDouble(values[1]);
+                    double lon = Double.parseDouble(values[2]);
+                    if (lat != StateEstimator.NO_GPS && estimator.hasOrigin()) {
+                        double error = Math.hypot(estimator.getLatitude() - lat,
+                                (estimator.getLongitude() - lon) * Math.cos(Math.toRadians(lat))) * METERS_PER_DEGREE;
+                        result.fixes++;
+                        result.fixError += error;
+                        result.maxFixError = Math.max(result.maxFixError, error);
+                    }
+                    estimator.onPosition(lat, lon);
+                    break;
+                case "VEL":
+                    estimator.onVelocity(Float.parseFloat(values[1]), Float.parseFloat(values[2]), Float.parseFloat(values[3]));
+                    break;
+                case "ATT":
+                    estimator.onAttitude(Float.parseFloat(values[1]), Float.parseFloat(values[2]), Float.parseFloat(values[3]));
+                    break;
+                case "ALT":
+                    estimator.onRelativeAltitude(Double.parseDouble(values[1]));
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private static Flight loadFlight(String path) throws IOException {
+        Flight flight = new Flight();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                flight.lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return flight;
+    }
+
+    /**
+     * simulate a flight back and forth over a field, with the telemetry rates of the Bebop
+     * (attitude, speed and altitude at 5 Hz, GPS at 1 Hz) and a GPS outage in the middle
+     * @param random source of the noise and gusts
+     * @param duration duration of the flight [s]
+     */
+    private static Flight syntheticFlight(Random random, int duration) {
+        Flight flight = new Flight();
+        int steps = duration * STEP_RATE;
+        double dt = 1.0 / STEP_RATE;
+        long stepMs = 1000 / STEP_RATE;
+        flight.trueNorth = new double[steps];
+        flight.trueEast = new double[steps];
+
+        // a slightly different drag than the model, and gusts
+        double drag = 0.4;
+        double north = 0, east = 0, vn = 0, ve = 0;
+        double gustNorth = 0, gustEast = 0;
+        long start = 1500000000000L;
+
+        for (int i = 0; i < steps; i++) {
+            double t = i * dt;
+
+            // legs of 15 s north and south, shifting east in between
+            double targetVn = ((int) (t / 15) % 2 == 0) ? 4 : -4;
+            double targetVe = (t % 15 < 3) ? 2 : 0;
+            double an = Math.max(-3, Math.min(3, 1.5 * (targetVn - vn) + drag * vn));
+            double ae = Math.max(-3, Math.min(3, 1.5 * (targetVe - ve) + drag * ve));
+            gustNorth = 0.98 * gustNorth + 0.1 * random.nextGaussian();
+            gustEast = 0.98 * gustEast + 0.1 * random.nextGaussian();
+
+            vn += (an - drag * vn + gustNorth) * dt;
+            ve += (ae - drag * ve + gustEast) * dt;
+            north += vn * dt;
+            east += ve * dt;
+            flight.trueNorth[i] = north;
+            flight.trueEast[i] = east;
+
+            long time = start + i * stepMs;
+            if (i % 10 == 0) {
+                // tilt giving the commanded acceleration, heading north
+                double pitch = Math.toDegrees(Math.atan(-an / 9.81));
+                double roll = Math.toDegrees(Math.atan(ae / 9.81));
+                flight.lines.add(String.format(Locale.US, "ATT:%d,%f,%f,%f", time, roll, pitch, 0.0));
+                flight.lines.add(String.format(Locale.US, "VEL:%d,%f,%f,%f", time,
+                        vn + 0.1 * random.nextGaussian(), ve + 0.1 * random.nextGaussian(), 0.05 * random.nextGaussian()));
+                flight.lines.add(String.format(Locale.US, "ALT:%d,%f", time, 10 + 0.05 * random.nextGaussian()));
+            }
+            if (i % STEP_RATE == 0) {
+                boolean outage = t >= 80 && t < 100;
+                double lat = outage ? StateEstimator.NO_GPS : LATITUDE + (north + 2 * random.nextGaussian()) / METERS_PER_DEGREE;
+                double lon = LONGITUDE + (east + 2 * random.nextGaussian()) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+                flight.lines.add(String.format(Locale.US, "POS:%d,%.8f,%.8f,%f", time, lat, lon, 30.0));
+            }
+        }
+        return flight;
+    }
+}
@@ -0,0 +1,111 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Limits, continuity and duration of the planned trajectories.
+ */
+public class TrajectoryPlannerTest {
+
+    /** a zigzag over a field, with a climb */
+    private static final double[] NORTH = {0, 20, 20, 0, 0, 20};
+    private static final double[] EAST = {0, 0, 5, 5, 10, 10};
+    private static final double[] DOWN = {0, -2, -2, -2, -2, -4};
+
+    private static TrajectoryPlanner planner() {
+        TrajectoryPlanner planner = new TrajectoryPlanner();
+        planner.setMaxSpeed(3);
+        planner.setMaxVerticalSpeed(1);
+        planner.setMaxAcceleration(1);
+        planner.setMaxJerk(2);
+        return planner;
+    }
+
+    @Test
+    public void rampsReachTheirSpeed() {
+        double[] out = new double[3];
+        for (double[] ramp : new double[][] {{0, 3}, {3, 0.5}, {0.2, 0.4}}) {
+            double time = TrajectoryPlanner.rampTime(ramp[0], ramp[1], 1, 2);
+            TrajectoryPlanner.evaluateRamp(ramp[0], ramp[1], 1, 2, time, out);
+            assertEquals(TrajectoryPlanner.rampDistance(ramp[0], ramp[1], 1, 2), out[0], 1e-9);
+            assertEquals(ramp[1], out[1], 1e-9);
+            assertEquals(0, out[2], 1e-9);
+        }
+    }
+
+    @Test
+    public void trajectoryIsWithinTheLimits() {
+        TrajectoryPlanner.Trajectory trajectory = planner().plan(NORTH, EAST, DOWN);
+        double dt = 0.001;
+        double[] state = new double[9];
+        double[] previous = new double[9];
+        trajectory.sample(0, previous);
+        double maxJump = 0;
+        double distance = 0;
+
+        for (double t = dt; t <= trajectory.getDuration(); t += dt) {
+            distance = trajectory.sample(t, state);
+            double speed = Math.sqrt(state[3] * state[3] + state[4] * state[4]);
+            double acceleration = Math.sqrt(state[6] * state[6] + state[7] * state[7] + state[8] * state[8]);
+            assertTrue(speed <= 3 + 1e-6);
+            assertTrue(Math.abs(state[5]) <= 1 + 1e-6);
+            assertTrue(acceleration <= 1 + 1e-6);
+
+            // continuous position, and acceleration within the jerk along the path
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(previous[axis], state[axis], 3 * dt + 1e-9);
+            }
+            maxJump = Math.max(maxJump, Math.abs(acceleration - Math.sqrt(previous[6] * previous[6] + previous[7] * previous[7] + previous[8] * previous[8])));
+            System.arraycopy(state, 0, previous, 0, 9);
+        }
+        assertTrue(maxJump <= 2 * dt + 1e-6);
+
+        // ends at rest on the last waypoint, having flown the whole path
+        trajectory.sample(trajectory.getDuration(), state);
+        assertEquals(20, state[0], 1e-6);
+        assertEquals(10, state[1], 1e-6);
+        assertEquals(-4, state[2], 1e-6);
+        assertEquals(0, state[3], 1e-6);
+        assertEquals(trajectory.getLength(), distance, 0.01);
+    }
+
+    @Test
+    public void waypointsArePassedWithoutStopping() {
+        TrajectoryPlanner.Trajectory trajectory = planner().plan(NORTH, EAST, DOWN);
+        double[] state = new double[9];
+        for (int i = 1; i < NORTH.length - 1; i++) {
+            trajectory.sample(trajectory.getWaypointTime(i), state);
+            assertEquals(NORTH[i], state[0], 1e-6);
+            assertEquals(EAST[i], state[1], 1e-6);
+            assertTrue(Math.sqrt(state[3] * state[3] + state[4] * state[4]) > 0.3);
+        }
+    }
+
+    @Test
+    public void continuousFlightIsFaster() {
+        TrajectoryPlanner planner = planner();
+        double continuous = planner.plan(NORTH, EAST, DOWN).getDuration();
+
+        // stop and go, with a second to settle at each waypoint
+        double stopAndGo = 0;
+        for (int i = 1; i < NORTH.length; i++) {
+            stopAndGo += planner.plan(new double[] {NORTH[i - 1], NORTH[i]}, new double[] {EAST[i - 1], EAST[i]},
+                    new double[] {DOWN[i - 1], DOWN[i]}).getDuration() + 1;
+        }
+        assertTrue(continuous < 0.8 * stopAndGo);
+    }
+
+    @Test
+    public void duplicateWaypointsAreSkipped() {
+        TrajectoryPlanner.Trajectory trajectory = planner().plan(new double[] {0, 0, 10, 10}, new double[] {0, 0, 0, 0}, new double[] {0, 0, 0, 0});
+        assertEquals(10, trajectory.getLength(), 1e-9);
+        assertEquals(0, trajectory.getWaypointTime(1), 1e-9);
+        assertEquals(trajectory.getDuration(), trajectory.getWaypointTime(3), 1e-9);
+
+        // a single point is a trajectory at rest
+        trajectory = planner().plan(new double[] {1}, new double[] {2}, new double[] {3});
+        assertEquals(0, trajectory.getDuration(), 0);
+    }
+}
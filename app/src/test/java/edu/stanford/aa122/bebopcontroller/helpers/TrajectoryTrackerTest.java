@@ -0,0 +1,104 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Closed loop tracking of a trajectory, on a simulated drone.
+ */
+public class TrajectoryTrackerTest {
+
+    private static final double GRAVITY = 9.81;
+
+    /** a slightly different drag than the model, and the time the drone takes to reach a tilt [s] */
+    private static final double DRAG = 0.4;
+    private static final double TILT_RESPONSE = 0.2;
+
+    @Test
+    public void limitsAreRespected() {
+        TrajectoryTracker tracker = new TrajectoryTracker();
+        tracker.setLimits(10, 1, 50);
+        tracker.setHeading(90);
+
+        // far behind the reference, the tilt is saturated keeping its direction
+        StateEstimator estimator = new StateEstimator();
+        byte[] pcmd = new byte[4];
+        tracker.compute(estimator, 0, new double[] {100, 100, -50, 0, 0, 0, 0, 0, 0}, pcmd);
+        assertEquals(71, pcmd[0], 1);
+        assertEquals(71, pcmd[1], 1);
+        assertEquals(100, pcmd[2]);
+        assertEquals(100, pcmd[3]);
+
+        // on the reference, nothing to correct
+        tracker.setHeading(Float.NaN);
+        tracker.compute(estimator, 0, new double[9], pcmd);
+        assertArrayEquals(new byte[] {0, 0, 0, 0}, pcmd);
+        assertEquals(0, tracker.getError(), 1e-9);
+    }
+
+    @Test
+    public void trajectoryIsTracked() {
+        float maxTilt = 15;
+        float maxVerticalSpeed = 1;
+        TrajectoryPlanner planner = new TrajectoryPlanner();
+        planner.setDroneLimits(maxTilt, maxVerticalSpeed);
+        TrajectoryPlanner.Trajectory trajectory = planner.plan(new double[] {0, 30, 30, 0}, new double[] {0, 0, 8, 8}, new double[] {0, -3, -3, -3});
+
+        TrajectoryTracker tracker = new TrajectoryTracker();
+        tracker.setLimits(maxTilt, maxVerticalSpeed, 100);
+        StateEstimator estimator = new StateEstimator();
+        Random random = new Random(3);
+
+        // the drone, heading 30 deg
+        float yaw = 30;
+        double[] position = new double[3];
+        double[] velocity = new double[3];
+        double pitch = 0, roll = 0;
+
+        double dt = 0.02;
+        double[] reference = new double[9];
+        byte[] pcmd = new byte[4];
+        double maxError = 0;
+        int steps = (int) ((trajectory.getDuration() + 3) / dt);
+        for (int i = 0; i < steps; i++) {
+            trajectory.sample(i * dt, reference);
+            tracker.compute(estimator, yaw, reference, pcmd);
+            maxError = Math.max(maxError, tracker.getError());
+
+            // the drone tilts toward the command, and accelerates from its tilt
+            pitch += (pcmd[1] / 100.0 * maxTilt - pitch) * dt / TILT_RESPONSE;
+            roll += (pcmd[0] / 100.0 * maxTilt - roll) * dt / TILT_RESPONSE;
+            double forward = GRAVITY * Math.tan(Math.toRadians(pitch));
+            double right = GRAVITY * Math.tan(Math.toRadians(roll));
+            double cosYaw = Math.cos(Math.toRadians(yaw));
+            double sinYaw = Math.sin(Math.toRadians(yaw));
+            velocity[0] += (cosYaw * forward - sinYaw * right - DRAG * velocity[0]) * dt;
+            velocity[1] += (sinYaw * forward + cosYaw * right - DRAG * velocity[1]) * dt;
+            velocity[2] = -pcmd[3] / 100.0 * maxVerticalSpeed;
+            for (int axis = 0; axis < 3; axis++) {
+                position[axis] += velocity[axis] * dt;
+            }
+
+            // telemetry at 5 Hz, the attitude reported positive nose up
+            estimator.predict(dt);
+            if (i % 10 == 0) {
+                estimator.onAttitude((float) roll, (float) -pitch, yaw);
+                estimator.onVelocity((float) (velocity[0] + 0.05 * random.nextGaussian()),
+                        (float) (velocity[1] + 0.05 * random.nextGaussian()), (float) velocity[2]);
+                estimator.onRelativeAltitude(-position[2]);
+            }
+            if (i % 50 == 0) {
+                estimator.onPosition(37 + (position[0] + 0.5 * random.nextGaussian()) / Math.toRadians(6378137.0),
+                        -122 + (position[1] + 0.5 * random.nextGaussian()) / (Math.toRadians(6378137.0) * Math.cos(Math.toRadians(37))));
+            }
+        }
+
+        assertTrue("max error " + maxError, maxError < 1.5);
+        assertEquals(0, position[0], 0.7);
+        assertEquals(8, position[1], 0.7);
+        assertEquals(-3, position[2], 0.3);
+    }
+}
@@ -0,0 +1,85 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per stage accounting of the video latency, on synthetic timestamps.
+ */
+public class VideoLatencyTrackerTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void stagesAreMeasured() {
+        VideoLatencyTracker tracker = new VideoLatencyTracker(100);
+
+        // 2 ms to queue, 10 + i % 10 ms to decode and 1 ms to render, every 33 ms
+        for (int i = 0; i < 100; i++) {
+            long arrival = i * 33 * MS;
+            long pts = tracker.onFrameArrived(arrival);
+            assertEquals(i * VideoLatencyTracker.FRAME_PTS_STEP_US, pts);
+            tracker.onFrameQueued(pts, arrival + 2 * MS);
+            tracker.onOutputAvailable(pts, arrival + (12 + i % 10) * MS);
+            assertTrue(tracker.onFrameRendered(pts, arrival + (13 + i % 10) * MS));
+        }
+
+        assertEquals(2, tracker.getPercentile(VideoLatencyTracker.STAGE_QUEUE, 50), 1e-9);
+        assertEquals(14, tracker.getPercentile(VideoLatencyTracker.STAGE_DECODE, 50), 1e-9);
+        assertEquals(18, tracker.getPercentile(VideoLatencyTracker.STAGE_DECODE, 90), 1e-9);
+        assertEquals(19, tracker.getPercentile(VideoLatencyTracker.STAGE_DECODE, 100), 1e-9);
+        assertEquals(1, tracker.getPercentile(VideoLatencyTracker.STAGE_RENDER, 99), 1e-9);
+        assertEquals(17, tracker.getPercentile(VideoLatencyTracker.STAGE_TOTAL, 50), 1e-9);
+        assertEquals(100, tracker.getFramesArrived());
+        assertEquals(100, tracker.getFramesRendered());
+        assertEquals(0, tracker.getFramesDropped());
+    }
+
+    @Test
+    public void framesInFlightAreCorrelated() {
+        VideoLatencyTracker tracker = new VideoLatencyTracker();
+
+        // the decoder holds 3 frames before giving the first one out
+        long[] pts = new long[4];
+        for (int i = 0; i < 4; i++) {
+            pts[i] = tracker.onFrameArrived((10 + i * 10) * MS);
+            tracker.onFrameQueued(pts[i], (10 + i * 10) * MS);
+        }
+        for (int i = 0; i < 4; i++) {
+            tracker.onOutputAvailable(pts[i], (50 + i) * MS);
+            tracker.onFrameRendered(pts[i], (50 + i) * MS);
+        }
+
+        // the first frame waited the longest
+        assertEquals(13, tracker.getPercentile(VideoLatencyTracker.STAGE_DECODE, 0), 1e-9);
+        assertEquals(40, tracker.getPercentile(VideoLatencyTracker.STAGE_DECODE, 100), 1e-9);
+        assertEquals(0, tracker.getPercentile(VideoLatencyTracker.STAGE_RENDER, 100), 1e-9);
+    }
+
+    @Test
+    public void droppedFramesAreCounted() {
+        VideoLatencyTracker tracker = new VideoLatencyTracker();
+
+        // dropped by the pipeline
+        long pts = tracker.onFrameArrived(0);
+        tracker.onFrameDropped(pts);
+        assertFalse(tracker.onFrameRendered(pts, MS));
+
+        // never out of the decoder, noticed once its slot is reused
+        tracker.onFrameArrived(MS);
+        for (int i = 0; i < 64; i++) {
+            long next = tracker.onFrameArrived((2 + i) * MS);
+            tracker.onFrameRendered(next, (3 + i) * MS);
+        }
+
+        assertEquals(66, tracker.getFramesArrived());
+        assertEquals(64, tracker.getFramesRendered());
+        assertEquals(2, tracker.getFramesDropped());
+        assertTrue(Double.isNaN(tracker.getPercentile(VideoLatencyTracker.STAGE_QUEUE, 50)));
+
+        tracker.reset();
+        assertEquals(0, tracker.getFramesDropped());
+        assertTrue(Double.isNaN(tracker.getPercentile(VideoLatencyTracker.STAGE_TOTAL, 50)));
+    }
+}
@@ -0,0 +1,256 @@
+package edu.stanford.aa122.bebopcontroller.helpers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and drop benchmarks of the video pipeline.  The throughput uses the software
+ * decoder and only prints its timings, the drops use a decoder stepped by the test.
+ *
+ * Runs on a synthetic stream by default, a recorded Bebop elementary stream can be used instead
+ * with -Dbebop.video.stream=path/to/stream.h264
+ */
+public class VideoPipelineBenchmark {
+
+    /** synthetic stream: 1280x720 high profile SPS */
+    private static final String SPS = "000000016764001FACD9405005BB0110000003001000000303C0F1831960";
+    private static final String PPS = "0000000168EBECB22C";
+
+    private static final int GOP_LENGTH = 30;
+    private static final int IDR_SIZE = 24000;
+    private static final int P_SIZE = 3000;
+
+    @Test
+    public void parseAndQueueThroughput() throws Exception {
+        byte[] stream = loadStream(300);
+        int[] offsets = H264FileFrameSource.splitAccessUnits(stream);
+        int frames = offsets.length - 1;
+
+        // no reconstruction cost: measures the parsing and queuing overhead only
+        SoftwareVideoDecoder decoder = new SoftwareVideoDecoder(0);
+        VideoPipeline pipeline = new VideoPipeline();
+        pipeline.setDecoder(decoder);
+        pipeline.setLatencyTracker(new VideoLatencyTracker());
+        configure(pipeline, stream);
+
+        int rounds = 10;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < frames; i++) {
+                feed(pipeline, stream, offsets, i);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        decoder.release();
+
+        long submitted = (long) rounds * frames;
+        System.out.println(String.format(Locale.US, "throughput: %d frames (%.1f MB) in %.1f ms, %.0f frames/s, %d dropped",
+                submitted, rounds * stream.length / 1e6, elapsed / 1e6, submitted * 1e9 / elapsed, pipeline.getFramesDropped()));
+        System.out.println(pipeline.getLatencyTracker().getReport());
+
+        assertEquals(submitted, pipeline.getFramesQueued() + pipeline.getFramesDropped());
+        assertTrue(decoder.getFramesDecoded() > 0);
+    }
+
+    @Test
+    public void dropsWhenDecoderIsTooSlow() throws Exception {
+        byte[] stream = loadStream(60);
+        int[] offsets = H264FileFrameSource.splitAccessUnits(stream);
+        int frames = Math.min(60, offsets.length - 1);
+
+        // a decoder taking two frame intervals per frame, stepped by the test
+        SteppedDecoder decoder = new SteppedDecoder(4);
+        VideoPipeline pipeline = new VideoPipeline();
+        pipeline.setDecoder(decoder);
+        pipeline.setLatencyTracker(new VideoLatencyTracker());
+        configure(pipeline, stream);
+
+        for (int i = 0; i < frames; i++) {
+            feed(pipeline, stream, offsets, i);
+            if (i % 2 == 1) {
+                decoder.decodeOne();
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "overloaded decoder: %d frames, %d queued, %d dropped, %d decoded",
+                frames, pipeline.getFramesQueued(), pipeline.getFramesDropped(), decoder.getFramesDecoded()));
+        System.out.println(pipeline.getLatencyTracker().getReport());
+
+        // the input slots fill up, then every other frame finds no room: 3 frames are left in
+        // the decoder, and the last one decoded is drained with the next frame
+        assertEquals(frames / 2, decoder.getFramesDecoded());
+        assertEquals(frames / 2 + 3, pipeline.getFramesQueued());
+        assertEquals(frames / 2 - 3, pipeline.getFramesDropped());
+        assertEquals(pipeline.getFramesDropped(), pipeline.getLatencyTracker().getFramesDropped());
+        assertEquals(frames / 2 - 1, pipeline.getLatencyTracker().getFramesRendered());
+    }
+
+    /**
+     * Decoder with a fixed number of input slots, decoding a frame only when told to so the
+     * drops do not depend on the timing of the machine.
+     */
+    private static class SteppedDecoder implements VideoDecoder {
+
+        private final long[] mPending;
+        private int mPendingHead = 0;
+        private int mPendingCount = 0;
+
+        /** decoded frames not yet drained */
+        private final long[] mOutput;
+        private int mOutputCount = 0;
+
+        private long mFramesDecoded = 0;
+        private boolean mConfigured = false;
+        private Listener mListener;
+
+        SteppedDecoder(int inputSlots) {
+            mPending = new long[inputSlots];
+            mOutput = new long[inputSlots];
+        }
+
+        /**
+         * decode the oldest frame queued, if any
+         */
+        void decodeOne() {
+            if (mPendingCount == 0) {
+                return;
+            }
+            mOutput[mOutputCount++] = mPending[mPendingHead];
+            mPendingHead = (mPendingHead + 1) % mPending.length;
+            mPendingCount--;
+            mFramesDecoded++;
+        }
+
+        long getFramesDecoded() {
+            return mFramesDecoded;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void configure(byte[] sps, byte[] pps) {
+            mConfigured = true;
+        }
+
+        @Override
+        public boolean isConfigured() {
+            return mConfigured;
+        }
+
+        @Override
+        public boolean queueFrame(byte[] data, int size, long pts) {
+            if (mPendingCount == mPending.length) {
+                return false;
+            }
+            mPending[(mPendingHead + mPendingCount) % mPending.length] = pts;
+            mPendingCount++;
+            return true;
+        }
+
+        @Override
+        public void drainOutput() {
+            for (int i = 0; i < mOutputCount; i++) {
+                mListener.onOutputAvailable(mOutput[i]);
+                mListener.onFrameRendered(mOutput[i]);
+            }
+            mOutputCount = 0;
+        }
+
+        @Override
+        public void release() {
+            mConfigured = false;
+        }
+    }
+
+    private static void configure(VideoPipeline pipeline, byte[] stream) {
+        byte[] sps = H264FileFrameSource.findNalUnit(stream, 7);
+        byte[] pps = H264FileFrameSource.findNalUnit(stream, 8);
+        assertNotNull(sps);
+        assertNotNull(pps);
+        pipeline.configure(sps, pps);
+    }
+
+    private static void feed(VideoPipeline pipeline, byte[] stream, int[] offsets, int index) {
+        int size = offsets[index + 1] - offsets[index];
+        // the SDK gives each frame in its own buffer
+        byte[] frame = new byte[size];
+        System.arraycopy(stream, offsets[index], frame, 0, size);
+        pipeline.submitFrame(frame, size, System.nanoTime());
+    }
+
+    /**
+     * get the recorded stream if one was given, or build a synthetic one
+     * @param frames number of frames of the synthetic stream
+     * @return the stream (Annex B)
+     */
+    private static byte[] loadStream(int frames) throws IOException {
+        String path = System.getProperty("bebop.video.stream");
+        if (path != null) {
+            File file = new File(path);
+            byte[] data = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+            return data;
+        }
+
+        byte[] sps = hex(SPS);
+        byte[] pps = hex(PPS);
+        Random random = new Random(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            if (i % GOP_LENGTH == 0) {
+                out.write(sps, 0, sps.length);
+                out.write(pps, 0, pps.length);
+                writeSlice(out, 0x65, IDR_SIZE, random);
+            } else {
+                writeSlice(out, 0x41, P_SIZE, random);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeSlice(ByteArrayOutputStream out, int header, int size, Random random) {
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(header);
+        // first_mb_in_slice = 0
+        out.write(0x80 | random.nextInt(0x80));
+        for (int i = 0; i < size; i++) {
+            // no zero bytes so the payload never contains a start code
+            out.write(1 + random.nextInt(255));
+        }
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+}